@@ -16,6 +16,12 @@ public class ClientUpdateComponent extends Component {
     private boolean is_protected;
     public static boolean usePlayerColors;
     public static boolean hideNames;
+    protected boolean playerDelta;
+    private static final long PLAYER_SAMPLE_MAX_AGE = 250;  // Reuse of player list built for same update (msec)
+    private final Object sampleLock = new Object();
+    private JSONArray sampledPlayers;   // Player list for updates including all users, shared by all worlds
+    private long sampledTimestamp;
+    private long sampledAt;
     
     public ClientUpdateComponent(final DynmapCore core, ConfigurationNode configuration) {
         super(core, configuration);
@@ -27,6 +33,7 @@ public class ClientUpdateComponent extends Component {
         hideifinvisiblepotion = configuration.getBoolean("hide-if-invisiblity-potion", true);
         is_protected = configuration.getBoolean("protected-player-info", false);
         usePlayerColors = configuration.getBoolean("use-name-colors", false);
+        playerDelta = configuration.getBoolean("player-delta", true);
         if(is_protected)
             core.player_info_protected = true;
         
@@ -38,6 +45,7 @@ public class ClientUpdateComponent extends Component {
         });
     }
     
+    @SuppressWarnings("unchecked")
     protected void buildClientUpdate(ClientUpdateEvent e) {
         DynmapWorld world = e.world;
         JSONObject u = e.update;
@@ -61,7 +69,42 @@ public class ClientUpdateComponent extends Component {
         s(u, "hasStorm", world.hasStorm());
         s(u, "isThundering", world.isThundering());
 
-        s(u, "players", new JSONArray());
+        /* Player list doesn't depend on the world: when including all users, sample players once for all worlds */
+        JSONArray plist = null;
+        if(e.include_all_users) {
+            synchronized(sampleLock) {
+                long now = System.currentTimeMillis();
+                if((sampledPlayers == null) || (sampledTimestamp != since) || ((now - sampledAt) > PLAYER_SAMPLE_MAX_AGE)) {
+                    sampledPlayers = buildPlayers(e, see_all);
+                    sampledTimestamp = since;
+                    sampledAt = now;
+                }
+                plist = sampledPlayers;
+            }
+        }
+        else {
+            plist = buildPlayers(e, see_all);
+        }
+        JSONArray players = new JSONArray();
+        players.addAll(plist);  /* Own copy, so listeners can't change other worlds' lists */
+        s(u, "players", players);
+        if(configuration.getBoolean("includehiddenplayers", false)) {
+            s(u, "currentcount", core.getCurrentPlayers());
+        }
+        else {
+            s(u, "currentcount", core.getCurrentPlayers() - core.playerList.getHiddenPlayers().size());
+        }
+
+        s(u, "updates", new JSONArray());
+        for(Object update : core.mapManager.getWorldUpdates(worldName, since)) {
+            a(u, "updates", (Client.Update)update);
+        }
+    }
+
+    /* Build player list: needs server thread, for player and world state */
+    @SuppressWarnings("unchecked")
+    private JSONArray buildPlayers(ClientUpdateEvent e, boolean see_all) {
+        JSONArray u = new JSONArray();
         List<DynmapPlayer> players = core.playerList.getVisiblePlayers();
         for(DynmapPlayer p : players) {
             boolean hide = false;
@@ -138,7 +181,7 @@ public class ClientUpdateComponent extends Component {
                 s(jp, "armor", 0);
             }
             s(jp, "sort", p.getSortWeight());
-            a(u, "players", jp);
+            u.add(jp);
         }
         List<DynmapPlayer> hidden = core.playerList.getHiddenPlayers();
         if(configuration.getBoolean("includehiddenplayers", false)) {
@@ -159,18 +202,10 @@ public class ClientUpdateComponent extends Component {
                 s(jp, "health", 0);
                 s(jp, "armor", 0);
                 s(jp, "sort", p.getSortWeight());
-                a(u, "players", jp);
+                u.add(jp);
             }
-            s(u, "currentcount", core.getCurrentPlayers());
-        }
-        else {
-            s(u, "currentcount", core.getCurrentPlayers() - hidden.size());
-        }
-
-        s(u, "updates", new JSONArray());
-        for(Object update : core.mapManager.getWorldUpdates(worldName, since)) {
-            a(u, "updates", (Client.Update)update);
         }
+        return u;
     }
 
 }
@@ -0,0 +1,269 @@
+package org.dynmap;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dynmap.web.JsonWriter;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Client update for a world, serialized once and shared by all web clients polling for it until the
+ * next update is built.  The update is split into the fields common to all clients, the player list
+ * (serialized once for each visibility class: all players visible, all hidden for guests, or filtered
+ * for a given user) and the queued updates.  The queued updates are kept in timestamp order, so those
+ * since a client's last poll are a contiguous slice of their serialized form, found by binary search.
+ * Parts are serialized on first use, so worlds nobody is watching cost nothing.
+ * <p>
+ * With a player delta encoder, player positions are quantized, and clients that already have the player
+ * list of an earlier update get only the changes since then (see PlayerDeltaEncoder).
+ */
+public class ClientUpdateSnapshot {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] UPDATES_FIELD = "\"updates\":[".getBytes(UTF8);
+    private static final byte[] END = "]}".getBytes(UTF8);
+
+    private final JSONObject update;
+    private final PlayerDeltaEncoder encoder;
+    private final List<?> framePlayers;     // Quantized player list, if encoding player deltas
+    private final Object lock = new Object();
+    private volatile byte[] header;     // Common fields, without closing brace
+    private byte[] updates;             // Queued updates, each preceded by a separator
+    private int[] updateOffsets;        // Offset of each queued update's separator in updates
+    private long[] updateTimes;         // Timestamp of each queued update (ascending)
+    private byte[] allPlayers;          // Player list, all players visible
+    private byte[] guestPlayers;        // Player list, all players hidden
+    private final ConcurrentHashMap<String, byte[]> userPlayers = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<Long, byte[]> allDeltas = new ConcurrentHashMap<Long, byte[]>();
+    private final ConcurrentHashMap<Long, byte[]> guestDeltas = new ConcurrentHashMap<Long, byte[]>();
+
+    /**
+     * Create snapshot of client update
+     * @param update - update built for world (must not be modified after this)
+     */
+    public ClientUpdateSnapshot(JSONObject update) {
+        this(update, null);
+    }
+
+    /**
+     * Create snapshot of client update, adding its player list to player delta encoder
+     * @param update - update built for world (must not be modified after this)
+     * @param encoder - player delta encoder for world (null to always send full player list)
+     */
+    public ClientUpdateSnapshot(JSONObject update, PlayerDeltaEncoder encoder) {
+        this.update = update;
+        this.encoder = encoder;
+        if (encoder != null) {
+            Object players = update.get("players");
+            framePlayers = encoder.addFrame(getTimestamp(), (players instanceof List) ? (List<?>) players : null);
+        }
+        else {
+            framePlayers = null;
+        }
+    }
+
+    /**
+     * Get timestamp of update
+     */
+    public long getTimestamp() {
+        Object ts = update.get("timestamp");
+        return (ts instanceof Number) ? ((Number) ts).longValue() : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void serialize() {
+        if (header != null) {   // Set last, so rest is visible once it is
+            return;
+        }
+        synchronized(lock) {
+            if (header != null) {
+                return;
+            }
+            JsonWriter w = JsonWriter.getThreadWriter();
+            w.beginObject();    // Left open, for player list and queued updates
+            for (Object k : update.keySet()) {
+                if ("players".equals(k) || "updates".equals(k)) continue;
+                w.name(String.valueOf(k));
+                w.value(update.get(k));
+            }
+            byte[] hdr = w.toByteArray();
+            if (hdr.length > 1) {
+                hdr = Arrays.copyOf(hdr, hdr.length + 1);
+                hdr[hdr.length - 1] = ',';
+            }
+            // Queued updates, in timestamp order (sort is stable, so order of equal timestamps is kept)
+            List<Client.Update> lst = new ArrayList<Client.Update>();
+            Object upd = update.get("updates");
+            if (upd instanceof List) {
+                for (Object o : (List<Object>) upd) {
+                    if (o instanceof Client.Update) {
+                        lst.add((Client.Update) o);
+                    }
+                }
+            }
+            Collections.sort(lst, new Comparator<Client.Update>() {
+                public int compare(Client.Update a, Client.Update b) {
+                    return (a.timestamp < b.timestamp) ? -1 : ((a.timestamp == b.timestamp) ? 0 : 1);
+                }
+            });
+            updateTimes = new long[lst.size()];
+            updateOffsets = new int[lst.size()];
+            w.reset();
+            w.beginArray();     // Opening bracket is first update's separator
+            for (int i = 0; i < lst.size(); i++) {
+                Client.Update u = lst.get(i);
+                updateTimes[i] = u.timestamp;
+                updateOffsets[i] = (i == 0) ? (w.length() - 1) : w.length();   // At bracket, or at comma value() writes
+                w.value(u);
+            }
+            updates = w.toByteArray();
+            header = hdr;
+        }
+    }
+
+    /**
+     * Get serialized player list for client, as delta from player list of an earlier update when possible
+     * @param core - core
+     * @param see_all - if true, client can see all players
+     * @param user - user ID of client (null if guest)
+     * @param since - time of update client last had
+     * @return serialized player list or player delta field
+     */
+    public byte[] getPlayers(DynmapCore core, boolean see_all, String user, long since) {
+        long ts = getTimestamp();
+        if ((encoder != null) && (see_all || (user == null)) && (since != ts)) {
+            ConcurrentHashMap<Long, byte[]> deltas = see_all ? allDeltas : guestDeltas;
+            byte[] b = deltas.get(since);
+            if (b == null) {
+                JSONObject delta = encoder.getDelta(since, ts, !see_all);
+                if (delta != null) {
+                    JsonWriter w = JsonWriter.getThreadWriter();
+                    w.name("playerdelta").value(delta);
+                    b = w.toByteArray();
+                    deltas.put(since, b);
+                }
+            }
+            if (b != null) {
+                return b;
+            }
+        }
+        return getPlayers(core, see_all, user);
+    }
+
+    /**
+     * Get serialized player list for client
+     * @param core - core
+     * @param see_all - if true, client can see all players
+     * @param user - user ID of client (null if guest)
+     * @return serialized player list field
+     */
+    public byte[] getPlayers(DynmapCore core, boolean see_all, String user) {
+        if (see_all) {
+            synchronized(lock) {
+                if (allPlayers == null) {
+                    allPlayers = buildPlayers(null, null);
+                }
+                return allPlayers;
+            }
+        }
+        if (user == null) {
+            synchronized(lock) {
+                if (guestPlayers == null) {
+                    guestPlayers = buildPlayers(core, null);
+                }
+                return guestPlayers;
+            }
+        }
+        byte[] b = userPlayers.get(user);
+        if (b == null) {
+            b = buildPlayers(core, user);
+            userPlayers.put(user, b);
+        }
+        return b;
+    }
+
+    // Build player list: all visible if core is null, else hiding those user can't see (all if user is null)
+    @SuppressWarnings("unchecked")
+    private byte[] buildPlayers(DynmapCore core, String user) {
+        JSONArray newplayers = new JSONArray();
+        Object players = (framePlayers != null) ? framePlayers : update.get("players");
+        if (players instanceof List) {
+            for (Object o : (List<Object>) players) {
+                if (!(o instanceof JSONObject)) continue;
+                JSONObject p = (JSONObject) o;
+                boolean hide = false;
+                if (core != null) {
+                    hide = (user == null) || (!core.testIfPlayerVisibleToPlayer(user, (String) p.get("name")));
+                }
+                if (hide) {
+                    JSONObject newp = new JSONObject();
+                    newp.putAll(p);
+                    newp.put("world", "-some-other-bogus-world-");
+                    newp.put("x", 0.0);
+                    newp.put("y", 64.0);
+                    newp.put("z", 0.0);
+                    newp.put("health", 0);
+                    newp.put("armor", 0);
+                    p = newp;
+                }
+                newplayers.add(p);
+            }
+        }
+        JsonWriter w = JsonWriter.getThreadWriter();
+        w.name("players").value(newplayers);
+        return w.toByteArray();
+    }
+
+    // Index of first queued update at or after given time
+    private int getUpdateIndex(long since) {
+        int idx = Arrays.binarySearch(updateTimes, since);
+        if (idx < 0) {
+            return -(idx + 1);
+        }
+        while ((idx > 0) && (updateTimes[idx - 1] == since)) {  // First of equal timestamps
+            idx--;
+        }
+        return idx;
+    }
+
+    /**
+     * Get length of serialized update for client
+     * @param since - time of client's last update: only queued updates at or after this are sent
+     * @param players - serialized player list field for client
+     * @return length in bytes
+     */
+    public int getLength(long since, byte[] players) {
+        serialize();
+        int idx = getUpdateIndex(since);
+        int updlen = (idx < updateOffsets.length) ? (updates.length - updateOffsets[idx] - 1) : 0;
+        return header.length + players.length + 1 + UPDATES_FIELD.length + updlen + END.length;
+    }
+
+    /**
+     * Write serialized update for client
+     * @param out - output stream
+     * @param since - time of client's last update: only queued updates at or after this are sent
+     * @param players - serialized player list field for client
+     * @throws IOException on write error
+     */
+    public void write(OutputStream out, long since, byte[] players) throws IOException {
+        serialize();
+        out.write(header);
+        out.write(players);
+        out.write(',');
+        out.write(UPDATES_FIELD);
+        int idx = getUpdateIndex(since);
+        if (idx < updateOffsets.length) {
+            int off = updateOffsets[idx] + 1;   // Skip comma before first update
+            out.write(updates, off, updates.length - off);
+        }
+        out.write(END);
+    }
+}
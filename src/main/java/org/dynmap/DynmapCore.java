@@ -52,8 +52,12 @@ import org.dynmap.servlet.FileResourceHandler;
 import org.dynmap.servlet.JettyNullLogger;
 import org.dynmap.servlet.LoginServlet;
 import org.dynmap.servlet.MapStorageResourceHandler;
+import org.dynmap.servlet.StorageIOExecutor;
 import org.dynmap.storage.MapStorage;
+import org.dynmap.storage.MapStorageMigration;
 import org.dynmap.storage.filetree.FileTreeMapStorage;
+import org.dynmap.storage.filetree.FileTreeShardRebalancer;
+import org.dynmap.storage.kvlog.KVLogMapStorage;
 import org.dynmap.storage.mysql.MySQLMapStorage;
 import org.dynmap.storage.mariadb.MariaDBMapStorage;
 import org.dynmap.storage.sqllte.SQLiteMapStorage;
@@ -93,6 +97,9 @@ public class DynmapCore implements DynmapCommonAPI {
     private String platform = null;
     private String platformVersion = null;
     private Server webServer = null;
+    private ExecutorThreadPool webThreadPool = null;
+    private LinkedBlockingQueue<Runnable> webQueue = null;
+    private StorageIOExecutor storageIO = null;
     private String webhostname = null;
     private int webport = 0;
     private HandlerRouter router = null;
@@ -392,19 +399,8 @@ public class DynmapCore implements DynmapCommonAPI {
         }
         // Create default storage handler
         String storetype = configuration.getString("storage/type", "filetree");
-        if (storetype.equals("filetree")) {
-            defaultStorage = new FileTreeMapStorage();
-        }
-        else if (storetype.equals("sqlite")) {
-            defaultStorage = new SQLiteMapStorage();
-        }
-        else if (storetype.equals("mysql")) {
-            defaultStorage = new MySQLMapStorage();
-        }
-        else if (storetype.equals("mariadb")) {
-            defaultStorage = new MariaDBMapStorage();
-        }
-        else {
+        defaultStorage = createMapStorage(storetype);
+        if (defaultStorage == null) {
             Log.severe("Invalid storage type for map data: " + storetype);
             return false;
         }
@@ -794,6 +790,14 @@ public class DynmapCore implements DynmapCommonAPI {
         LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(maxconnections);
         ExecutorThreadPool pool = new ExecutorThreadPool(2, maxconnections, 60, TimeUnit.SECONDS, queue);
         webServer.setThreadPool(pool);
+        webThreadPool = pool;
+        webQueue = queue;
+        /* Storage reads for web requests run on their own threads (0 threads = on request threads) */
+        int iothreads = configuration.getInteger("storage-io-threads", 4);
+        if (iothreads > 0) {
+            storageIO = new StorageIOExecutor(iothreads, configuration.getInteger("storage-io-queue", 128),
+                configuration.getInteger("storage-io-timeout", 10000));
+        }
         
         SelectChannelConnector connector=new SelectChannelConnector();
         connector.setMaxIdleTime(5000);
@@ -853,6 +857,28 @@ public class DynmapCore implements DynmapCommonAPI {
         }
     }
     
+    /**
+     * Get executor for storage reads of web requests
+     * @return executor, or null if reads are done on request threads
+     */
+    public StorageIOExecutor getStorageIOExecutor() {
+        return storageIO;
+    }
+
+    /**
+     * Get state of web server request threads, for stats
+     * @return status, or null if web server not running
+     */
+    public String getWebThreadPoolStatus() {
+        ExecutorThreadPool pool = webThreadPool;
+        LinkedBlockingQueue<Runnable> queue = webQueue;
+        if ((pool == null) || (queue == null)) {
+            return null;
+        }
+        return String.format("threads=%d (%d idle), queued=%d%s", pool.getThreads(), pool.getIdleThreads(),
+            queue.size(), pool.isLowOnThreads() ? ", low on threads" : "");
+    }
+
     public boolean isLoginSupportEnabled() {
         return (authmgr != null);
     }
@@ -908,6 +934,12 @@ public class DynmapCore implements DynmapCommonAPI {
                 Log.severe("Failed to stop WebServer!", e);
             }
             webServer = null;
+            webThreadPool = null;
+            webQueue = null;
+        }
+        if (storageIO != null) {
+            storageIO.shutdown();
+            storageIO = null;
         }
 
         if (componentManager != null) {
@@ -1022,6 +1054,8 @@ public class DynmapCore implements DynmapCommonAPI {
         "purgequeue",
         "purgemap",
         "purgeworld",
+        "migratestorage",
+        "rebalancetiles",
         "quiet",
         "ids-for-ip",
         "ips-for-id",
@@ -1082,6 +1116,10 @@ public class DynmapCore implements DynmapCommonAPI {
         new CommandInfo("dynmap", "purgequeue", "<world>", "Empty all pending tile updates from update queue for world <world>."),
         new CommandInfo("dynmap", "purgemap", "<world> <map>", "Delete all existing tiles for map <map> on world <world>."),
         new CommandInfo("dynmap", "purgeworld", "<world>", "Delete all existing directories for world <world>."),
+        new CommandInfo("dynmap", "migratestorage", "Copy map data to storage configured in 'storage-migration' (resumes if interrupted)."),
+        new CommandInfo("dynmap", "migratestorage", "<restart|cancel|status>", "Restart migration from scratch, cancel it, or show its progress."),
+        new CommandInfo("dynmap", "rebalancetiles", "Move tiles to the tile shard directory they belong in, after changing 'shards' or 'zoom-tiles-path'."),
+        new CommandInfo("dynmap", "rebalancetiles", "<cancel|status>", "Cancel tile rebalancing, or show its progress."),
         new CommandInfo("dynmap", "pause", "Show render pause state."),
         new CommandInfo("dynmap", "pause", "<all|none|full|update>", "Set render pause state."),
         new CommandInfo("dynmap", "quiet", "Stop output from active jobs."),
@@ -1431,6 +1469,28 @@ public class DynmapCore implements DynmapCommonAPI {
                 } else {
                     sender.sendMessage("World name is required");
                 }
+            } else if (c.equals("migratestorage") && checkPlayerPermission(sender,"migratestorage")) {
+                if (args.length == 1) {
+                    MapStorageMigration.startMigration(this, sender, false);
+                } else if (args[1].equals("restart")) {
+                    MapStorageMigration.startMigration(this, sender, true);
+                } else if (args[1].equals("cancel")) {
+                    MapStorageMigration.cancelMigration(sender);
+                } else if (args[1].equals("status")) {
+                    MapStorageMigration.showStatus(sender);
+                } else {
+                    sender.sendMessage("Valid options are restart, cancel and status");
+                }
+            } else if (c.equals("rebalancetiles") && checkPlayerPermission(sender,"rebalancetiles")) {
+                if (args.length == 1) {
+                    FileTreeShardRebalancer.startRebalance(this, sender);
+                } else if (args[1].equals("cancel")) {
+                    FileTreeShardRebalancer.cancelRebalance(sender);
+                } else if (args[1].equals("status")) {
+                    FileTreeShardRebalancer.showStatus(sender);
+                } else {
+                    sender.sendMessage("Valid options are cancel and status");
+                }
             } else if (c.equals("reload") && checkPlayerPermission(sender, "reload")) {
                 sender.sendMessage("Reloading Dynmap...");
                 getServer().reload();
@@ -2420,5 +2480,29 @@ public class DynmapCore implements DynmapCommonAPI {
     public MapStorage getDefaultMapStorage() {
         return defaultStorage;
     }
+
+    /**
+     * Create (uninitialized) map storage handler of given type
+     * @param storetype - storage type (filetree, sqlite, mysql, mariadb, kvlog)
+     * @return storage handler, or null if type is not valid
+     */
+    public static MapStorage createMapStorage(String storetype) {
+        if (storetype.equals("filetree")) {
+            return new FileTreeMapStorage();
+        }
+        else if (storetype.equals("sqlite")) {
+            return new SQLiteMapStorage();
+        }
+        else if (storetype.equals("mysql")) {
+            return new MySQLMapStorage();
+        }
+        else if (storetype.equals("mariadb")) {
+            return new MariaDBMapStorage();
+        }
+        else if (storetype.equals("kvlog")) {
+            return new KVLogMapStorage();
+        }
+        return null;
+    }
 }
 
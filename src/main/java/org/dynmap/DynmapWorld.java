@@ -10,6 +10,8 @@ import org.dynmap.MapType.ImageEncoding;
 import org.dynmap.hdmap.TexturePack;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTileSummary;
+import org.dynmap.storage.MapStorageZoomOutCache;
 import org.dynmap.utils.DynmapBufferedImage;
 import org.dynmap.utils.ImageIOManager;
 import org.dynmap.utils.MapChunkCache;
@@ -38,7 +40,7 @@ public abstract class DynmapWorld {
     public boolean sendposition;
     public boolean sendhealth;
     private int extrazoomoutlevels;  /* Number of additional zoom out levels to generate */
-    private boolean cancelled;
+    private volatile boolean cancelled;
     private final String wname;
     private final int hashcode;
     private final String raw_wname;
@@ -116,6 +118,26 @@ public abstract class DynmapWorld {
         }
     }
     
+    /**
+     * Build zoom out tile above given tile, for each variant of the map (used by ZoomOutScheduler)
+     * @param mts - map type state
+     * @param x - X coordinate of tile
+     * @param y - Y coordinate of tile
+     * @param zoom - zoom level of tile
+     */
+    void processZoomOutTile(MapTypeState mts, int x, int y, int zoom) {
+        MapType mt = mts.type;
+        MapType.ImageVariant var[] = mt.getVariants();
+        for (int varIdx = 0; varIdx < var.length; varIdx++) {
+            MapStorageTile tile = storage.getTile(this, mt, x, y, zoom, var[varIdx]);
+            processZoomFile(mts, tile, varIdx == 0);
+        }
+    }
+    
+    public boolean isZoomOutFreshenCancelled() {
+        return cancelled;
+    }
+    
     public void cancelZoomOutFreshen() {
         cancelled = true;
     }
@@ -138,6 +160,8 @@ public abstract class DynmapWorld {
         int ty = ztile.y;
         ty = ty - step;   /* Adjust for negative step */ 
 
+        MapStorageZoomOutCache zcache = storage.getZoomOutCache();
+        MapStorageTileSummary summary = storage.getTileSummary();
         /* create image buffer */
         kzIm = DynmapBufferedImage.allocateBufferedImage(width, height);
         zIm = kzIm.buf_img;
@@ -152,8 +176,27 @@ public abstract class DynmapWorld {
                 mts.clearZoomOutInv(tile1.x, tile1.y, tile1.zoom);
             }
             try {
-                MapStorageTile.TileRead tr = tile1.read();
-                if (tr != null) {
+                /* Use downsampled copy deposited when tile was written, if we have it */
+                int[] scaled = (zcache != null) ? zcache.get(tile1) : null;
+                if (scaled != null) {
+                    zIm.setRGB(((i>>1) != 0)?0:width/2, (i & 1) * height/2, width/2, height/2, scaled, 0, width/2);
+                    blank = false;
+                    continue;
+                }
+                /* Known solid colour or blank tiles need no read */
+                Integer solid = (summary != null) ? summary.getSolidColor(tile1) : null;
+                MapStorageTile.TileRead tr = null;
+                if ((solid == null) && ((summary == null) || (!summary.isBlank(tile1)))) {
+                    tr = tile1.read();
+                    if ((tr == null) && (!tile1.exists())) {    /* Not a failed read */
+                        storage.recordBlankTile(tile1);
+                    }
+                }
+                if (solid != null) {
+                    Arrays.fill(argb, solid);
+                    blank = false;
+                }
+                else if (tr != null) {
                     BufferedImage im = null;
                     try {
                         im = ImageIOManager.imageIODecode(tr.image);
@@ -169,21 +212,11 @@ public abstract class DynmapWorld {
                         if ((iwidth == width) && (iheight == height)) {
                             im.getRGB(0, 0, width, height, argb, 0, width);    /* Read data */
                             im.flush();
-                            /* Do binlinear scale to 64x64 */
-                            int off = 0;
-                            for(int y = 0; y < height; y += 2) {
-                                off = y*width;
-                                for(int x = 0; x < width; x += 2, off += 2) {
-                                    int p0 = argb[off];
-                                    int p1 = argb[off+1];
-                                    int p2 = argb[off+width];
-                                    int p3 = argb[off+width+1];
-                                    int alpha = ((p0 >> 24) & 0xFF) + ((p1 >> 24) & 0xFF) + ((p2 >> 24) & 0xFF) + ((p3 >> 24) & 0xFF);
-                                    int red = ((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF);
-                                    int green = ((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF);
-                                    int blue = (p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF);
-                                    argb[off>>1] = (((alpha>>2)&0xFF)<<24) | (((red>>2)&0xFF)<<16) | (((green>>2)&0xFF)<<8) | ((blue>>2)&0xFF);
-                                }
+                            storage.recordTileImage(tile1, argb);
+                            /* Do binlinear scale to 64x64 (in place, with row stride of 128) */
+                            MapStorageZoomOutCache.downsample(argb, argb, width);
+                            if (zcache != null) {   /* Keep it, in case a sibling changes before we're next needed */
+                                zcache.putScaled(tile1, argb, 0, width);
                             }
                         }
                         else {
@@ -235,9 +268,15 @@ public abstract class DynmapWorld {
                     MapManager.mapman.pushUpdate(this, new Client.Tile(ztile.getURI()));
                     enqueueZoomOutUpdate(ztile);
                 }
+                storage.recordBlankTile(ztile);
             }
             else /* if (!ztile.matchesHashCode(crc)) */ {
-                ztile.write(crc, zIm);
+                if (ztile.write(crc, zIm)) {
+                    if (zcache != null) {   /* Deposit downsampled copy for next zoom level */
+                        zcache.putImage(ztile, kzIm.argb_buf);
+                    }
+                    storage.recordTileImage(ztile, kzIm.argb_buf);
+                }
                 MapManager.mapman.pushUpdate(this, new Client.Tile(ztile.getURI()));
                 enqueueZoomOutUpdate(ztile);
             }
@@ -5,6 +5,7 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.dynmap.servlet.ClientUpdateServlet;
 import org.dynmap.servlet.SendMessageServlet;
+import org.dynmap.servlet.UpdateStreamServlet;
 import org.json.simple.JSONObject;
 import static org.dynmap.JSONUtils.*;
 
@@ -15,12 +16,25 @@ public class InternalClientUpdateComponent extends ClientUpdateComponent {
     protected long lastChatTimestamp = 0;
     private long last_confighash;
     private ConcurrentHashMap<String, JSONObject> updates = new ConcurrentHashMap<String, JSONObject>();
+    private ConcurrentHashMap<String, ClientUpdateSnapshot> snapshots = new ConcurrentHashMap<String, ClientUpdateSnapshot>();
+    private ConcurrentHashMap<String, PlayerDeltaEncoder> playerEncoders = new ConcurrentHashMap<String, PlayerDeltaEncoder>();
+    private static final int PLAYER_DELTA_FRAMES = 30;  // Updates kept as bases for player deltas
     private JSONObject clientConfiguration = null;
+    private UpdateStreamServlet streamServlet = null;
     private static InternalClientUpdateComponent singleton;
     
     public InternalClientUpdateComponent(final DynmapCore dcore, final ConfigurationNode configuration) {
         super(dcore, configuration);
         dcore.addServlet("/up/world/*", new ClientUpdateServlet(dcore));
+        final Boolean serverpush = configuration.getBoolean("server-push", true);
+        if (serverpush) {
+            streamServlet = new UpdateStreamServlet(dcore, configuration.getInteger("server-push-threads", 2),
+                configuration.getInteger("server-push-max-connections", 1000),
+                configuration.getInteger("server-push-buffer-kb", 256) * 1024,
+                configuration.getInteger("server-push-max-time", 600) * 1000L,
+                configuration.getInteger("server-push-write-timeout", 5) * 1000L);
+            dcore.addServlet("/up/stream/*", streamServlet);
+        }
 
         jsonInterval = (long)(configuration.getFloat("writeinterval", 1) * 1000);
         final Boolean allowwebchat = configuration.getBoolean("allowwebchat", false);
@@ -43,6 +57,7 @@ public class InternalClientUpdateComponent extends ClientUpdateComponent {
                 s(t, "webchat-interval", webchatInterval);
                 s(t, "webchat-requires-login", req_login);
                 s(t, "chatlengthlimit", length_limit);
+                s(t, "updatestream", serverpush);
             }
         });
 
@@ -128,8 +143,28 @@ public class InternalClientUpdateComponent extends ClientUpdateComponent {
             core.events.trigger("buildclientupdate", clientUpdate);
 
             updates.put(dynmapWorld.getName(), update);
+            PlayerDeltaEncoder enc = null;
+            if (playerDelta) {
+                enc = playerEncoders.get(dynmapWorld.getName());
+                if (enc == null) {
+                    enc = new PlayerDeltaEncoder(PLAYER_DELTA_FRAMES);
+                    playerEncoders.put(dynmapWorld.getName(), enc);
+                }
+            }
+            ClientUpdateSnapshot snap = new ClientUpdateSnapshot(update, enc);
+            snapshots.put(dynmapWorld.getName(), snap);
+            if (streamServlet != null) {
+                streamServlet.publishUpdate(dynmapWorld, snap);
+            }
         }
     }
+    @Override
+    public void dispose() {
+        if (streamServlet != null) {
+            streamServlet.shutdown();
+        }
+        super.dispose();
+    }
     protected void writeConfiguration() {
         JSONObject clientConfiguration = new JSONObject();
         core.events.trigger("buildclientconfiguration", clientConfiguration);
@@ -142,6 +177,27 @@ public class InternalClientUpdateComponent extends ClientUpdateComponent {
         }
         return null;
     }
+    /**
+     * Get serialized update for world, shared by all web clients until the next update
+     * @param wname - world name
+     * @return snapshot, or null if no update built yet
+     */
+    public static ClientUpdateSnapshot getWorldUpdateSnapshot(String wname) {
+        if(singleton != null) {
+            return singleton.snapshots.get(wname);
+        }
+        return null;
+    }
+    /**
+     * Get update stream servlet
+     * @return servlet, or null if server push is disabled
+     */
+    public static UpdateStreamServlet getUpdateStreamServlet() {
+        if(singleton != null) {
+            return singleton.streamServlet;
+        }
+        return null;
+    }
     public static JSONObject getClientConfig() {
         if(singleton != null)
             return singleton.clientConfiguration;
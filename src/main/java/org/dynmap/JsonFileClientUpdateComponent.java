@@ -18,7 +18,7 @@ import java.util.List;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.utils.BufferInputStream;
 import org.dynmap.utils.BufferOutputStream;
-import org.dynmap.web.Json;
+import org.dynmap.web.JsonWriter;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
@@ -51,8 +51,11 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
 
     private static class FileToWrite {
         String filename;
+        String world;       // World of client update
         byte[] content;
         boolean phpwrapper;
+        JSONObject update;  // Client update, serialized by file processor (content is null)
+        long timestamp;
         @Override
         public boolean equals(Object o) {
             if(o instanceof FileToWrite) {
@@ -75,14 +78,20 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
                     }
                 }
                 BufferOutputStream buf = null;
-                if (f.content != null) {
+                if (f.update != null) {
+                    buf = serializeUpdate(f);
+                    if (buf == null) {    // Unchanged
+                        continue;
+                    }
+                }
+                else if (f.content != null) {
                     buf = new BufferOutputStream();
                     if(f.phpwrapper) {
-                        buf.write("<?php /*\n".getBytes(cs_utf8));
+                        buf.write(PHP_START);
                     }
                     buf.write(f.content);
                     if(f.phpwrapper) {
-                        buf.write("\n*/ ?>\n".getBytes(cs_utf8));
+                        buf.write(PHP_END);
                     }
                 }
                 if (!storage.setStandaloneFile(f.filename, buf)) {
@@ -94,12 +103,118 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
     private Object lock = new Object();
     private FileProcessor pending;
     private LinkedList<FileToWrite> files_to_write = new LinkedList<FileToWrite>();
+    private MessageDigest updatemd;     // For file processor
+    private HashMap<String, byte[]> updatehash = new HashMap<String, byte[]>();  // Hash of each update file written (file processor)
+    private long playerKeyframeInterval;
+    private int playerKeyframeWrites;
+    private HashMap<String, PlayerDeltaEncoder> playerEncoders = new HashMap<String, PlayerDeltaEncoder>();   // File processor
+    private HashMap<String, long[]> playerKeyframes = new HashMap<String, long[]>();  // Time and writes left, for each file (file processor)
+
+    private static final String PLAYER_BASE_SUFFIX = "_playerbase";
+
+    /*
+     * Replace player list of update with changes since the last keyframe (full player list), which clients
+     * polling the file at any time can apply.  The keyframe's player list is included in the first few
+     * writes after it, so clients polling at the update rate get it, and is written to its own file
+     * (as the update of world '<world>_playerbase') for clients that start polling later.
+     */
+    @SuppressWarnings("unchecked")
+    private void encodePlayers(FileToWrite f) {
+        PlayerDeltaEncoder enc = playerEncoders.get(f.filename);
+        if (enc == null) {
+            enc = new PlayerDeltaEncoder((int) (playerKeyframeInterval / Math.max(1, jsonInterval)) + 2);
+            playerEncoders.put(f.filename, enc);
+        }
+        Object players = f.update.get("players");
+        enc.addFrame(f.timestamp, (players instanceof List) ? (List<?>) players : null);
+        long[] kf = playerKeyframes.get(f.filename);
+        if ((kf == null) || ((f.timestamp - kf[0]) >= playerKeyframeInterval) || (!enc.hasFrame(kf[0]))) {
+            kf = new long[] { f.timestamp, playerKeyframeWrites };
+            playerKeyframes.put(f.filename, kf);
+            writePlayerBase(f, kf[0], enc.getFrame(kf[0], false));
+        }
+        JSONObject delta = enc.getDelta(kf[0], f.timestamp, false);
+        if (delta == null) {    // Leave full player list
+            return;
+        }
+        if (kf[1] > 0) {
+            delta.put("baseplayers", enc.getFrame(kf[0], false));
+            kf[1]--;
+        }
+        f.update.remove("players");
+        f.update.put("playerdelta", delta);
+    }
+
+    /*
+     * Write keyframe player list to its own file (on file processor)
+     */
+    private void writePlayerBase(FileToWrite f, long ts, JSONArray players) {
+        BufferOutputStream buf = new BufferOutputStream();
+        JsonWriter w = new JsonWriter(buf);
+        if (f.phpwrapper) {
+            buf.write(PHP_START);
+        }
+        w.beginObject();
+        w.field("timestamp", ts);
+        w.field("base", ts);
+        w.name("players");
+        w.value(players);
+        w.endObject();
+        if (f.phpwrapper) {
+            buf.write(PHP_END);
+        }
+        String fname = getUpdateFileName(f.world + PLAYER_BASE_SUFFIX, f.phpwrapper);
+        if (!storage.setStandaloneFile(fname, buf)) {
+            Log.severe("Exception while writing JSON-file - " + fname);
+        }
+    }
+
+    /*
+     * Serialize client update on file processor, straight into the file processor thread's reused buffer
+     * (with PHP wrapper, if needed): returns null if unchanged since last written, apart from timestamp
+     */
+    private BufferOutputStream serializeUpdate(FileToWrite f) {
+        if (playerDelta && (!core.player_info_protected)) {   // Protected player lists are filtered by the PHP scripts
+            encodePlayers(f);
+        }
+        JsonWriter w = JsonWriter.getThreadWriter();
+        BufferOutputStream buf = w.getOutput();
+        if (f.phpwrapper) {
+            buf.write(PHP_START);
+        }
+        w.beginObject();
+        w.field("timestamp", f.timestamp);
+        int start = w.length();     /* Timestamp left out of hash, as it changes every time */
+        for (Object k : f.update.keySet()) {
+            w.name(String.valueOf(k));
+            w.value(f.update.get(k));
+        }
+        w.endObject();
+        if (updatemd != null) {
+            updatemd.reset();
+            updatemd.update(buf.buf, start, buf.len - start);
+            byte[] hash = updatemd.digest();
+            byte[] oldhash = updatehash.get(f.filename);
+            if ((oldhash != null) && Arrays.equals(hash, oldhash)) {
+                return null;
+            }
+            updatehash.put(f.filename, hash);
+        }
+        if (f.phpwrapper) {
+            buf.write(PHP_END);
+        }
+        return buf;
+    }
 
     private void enqueueFileWrite(String filename, byte[] content, boolean phpwrap) {
         FileToWrite ftw = new FileToWrite();
         ftw.filename = filename;
         ftw.content = content;
         ftw.phpwrapper = phpwrap;
+        enqueueFileWrite(ftw);
+    }
+
+    private void enqueueFileWrite(FileToWrite ftw) {
         synchronized(lock) {
             boolean didadd = false;
             if(pending == null) {
@@ -115,10 +230,14 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
     }
     
     private static Charset cs_utf8 = Charset.forName("UTF-8");
+    private static final byte[] PHP_START = "<?php /*\n".getBytes(cs_utf8);
+    private static final byte[] PHP_END = "\n*/ ?>\n".getBytes(cs_utf8);
     public JsonFileClientUpdateComponent(final DynmapCore core, final ConfigurationNode configuration) {
         super(core, configuration);
         final boolean allowwebchat = configuration.getBoolean("allowwebchat", false);
         jsonInterval = (long)(configuration.getFloat("writeinterval", 1) * 1000);
+        playerKeyframeInterval = (long)(configuration.getFloat("player-keyframe-interval", 10) * 1000);
+        playerKeyframeWrites = (int)(core.configuration.getFloat("updaterate", 2000) / Math.max(1, jsonInterval)) + 2;
         hidewebchatip = configuration.getBoolean("hidewebchatip", false);
         useplayerloginip = configuration.getBoolean("use-player-login-ip", true);
         requireplayerloginip = configuration.getBoolean("require-player-login-ip", false);
@@ -134,6 +253,7 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
         }
         try {
             md = MessageDigest.getInstance("SHA-1");
+            updatemd = MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException nsax) {
             Log.severe("Unable to get message digest SHA-1");
         }
@@ -301,7 +421,10 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
         enqueueFileWrite(outputFile, content, dowrap);
     }
     
-    @SuppressWarnings("unchecked")
+    /*
+     * Build client updates on server thread (sampling player and world state), but serialize and write them
+     * on the file processor, which skips files whose content hasn't changed
+     */
     protected void writeUpdates() {
         if(core.mapManager == null) return;
         //Handles Updates
@@ -309,22 +432,27 @@ public class JsonFileClientUpdateComponent extends ClientUpdateComponent {
         for (int windx = 0; windx < wlist.size(); windx++) {
         	DynmapWorld dynmapWorld = wlist.get(windx);
             JSONObject update = new JSONObject();
-            update.put("timestamp", currentTimestamp);
             ClientUpdateEvent clientUpdate = new ClientUpdateEvent(currentTimestamp - 30000, dynmapWorld, update);
             clientUpdate.include_all_users = true;
             core.events.trigger("buildclientupdate", clientUpdate);
 
-            String outputFile;
             boolean dowrap = storage.wrapStandaloneJSON(core.isLoginSupportEnabled());
-            if(dowrap) {
-                outputFile = "updates_" + dynmapWorld.getName() + ".php";
-            }
-            else {
-                outputFile = "dynmap_" + dynmapWorld.getName() + ".json";
-            }
-            byte[] content = Json.stringifyJson(update).getBytes(cs_utf8);
-
-            enqueueFileWrite(outputFile, content, dowrap);
+            FileToWrite ftw = new FileToWrite();
+            ftw.filename = getUpdateFileName(dynmapWorld.getName(), dowrap);
+            ftw.world = dynmapWorld.getName();
+            ftw.update = update;    // Not changed after this
+            ftw.timestamp = currentTimestamp;
+            ftw.phpwrapper = dowrap;
+            enqueueFileWrite(ftw);
+        }
+    }
+    
+    private static String getUpdateFileName(String world, boolean dowrap) {
+        if(dowrap) {
+            return "updates_" + world + ".php";
+        }
+        else {
+            return "dynmap_" + world + ".json";
         }
     }
     
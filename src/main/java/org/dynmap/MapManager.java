@@ -30,6 +30,11 @@ import org.dynmap.common.DynmapPlayer;
 import org.dynmap.debug.Debug;
 import org.dynmap.exporter.OBJExport;
 import org.dynmap.hdmap.HDMapManager;
+import org.dynmap.servlet.StorageIOExecutor;
+import org.dynmap.servlet.UpdateStreamServlet;
+import org.dynmap.storage.MapStorageTileCache;
+import org.dynmap.storage.MapStorageTileSummary;
+import org.dynmap.storage.MapStorageZoomOutCache;
 import org.dynmap.utils.MapChunkCache;
 import org.dynmap.utils.TileFlags;
 
@@ -68,6 +73,9 @@ public class MapManager {
     private boolean did_start = false;
     
     private int zoomout_period = DEFAULT_ZOOMOUT_PERIOD;	/* Zoom-out tile processing period, in seconds */
+    private int zoomout_threads;    /* Number of threads for zoom-out tile processing */
+    private boolean zoomout_fullbuild;  /* Build zoom-out tiles in one sweep after full render */
+    private ZoomOutScheduler zoomout_scheduler;
     /* Which fullrenders are active */
     private HashMap<String, FullWorldRenderState> active_renders = new HashMap<String, FullWorldRenderState>();
 
@@ -487,14 +495,21 @@ public class MapManager {
                         }
                         /* Now, if fullrender, use the render bitmap to purge obsolete tiles */
                         if(rendertype.equals(RENDERTYPE_FULLRENDER)) {
+                            List<MapType> mtlist;
                             if(activemapcnt == 1) {
                                 map.purgeOldTiles(world, rendered);
+                                mtlist = Collections.singletonList(map);
                             }
                             else {
-                                for(MapType mt : map.getMapsSharingRender(world)) {
+                                mtlist = map.getMapsSharingRender(world);
+                                for(MapType mt : mtlist) {
                                     mt.purgeOldTiles(world, rendered);
                                 }
                             }
+                            /* Whole zoom out pyramid is dirty: build it in one sweep, rather than level by level */
+                            if(zoomout_fullbuild) {
+                                scheduleDelayedJob(new ZoomOutPyramidBuilder(world, mtlist, rendered), 0);
+                            }
                         }
                     }                	
                     found.clear();
@@ -818,8 +833,9 @@ public class MapManager {
             if (!tpspausezoomout) {
                 Debug.debug("DoZoomOutProcessing started");
                 ArrayList<DynmapWorld> wl = new ArrayList<DynmapWorld>(worlds);
-                for(DynmapWorld w : wl) {
-                    w.freshenZoomOutFiles();
+                ZoomOutScheduler zs = zoomout_scheduler;
+                if (zs != null) {
+                    zs.runPass(wl);
                 }
                 Debug.debug("DoZoomOutProcessing finished");
                 scheduleDelayedJob(this, zoomout_period*1000);
@@ -957,6 +973,8 @@ public class MapManager {
         /* Get zoomout processing periond in seconds */
         zoomout_period = configuration.getInteger("zoomoutperiod", DEFAULT_ZOOMOUT_PERIOD);
         if(zoomout_period < 5) zoomout_period = 5;
+        zoomout_threads = configuration.getInteger("zoomout-threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        zoomout_fullbuild = configuration.getBoolean("fullrender-zoomout-build", true);
         
         tileQueue.start();
     }
@@ -1371,6 +1389,7 @@ public class MapManager {
                                                                        
     public void startRendering() {
         render_pool = new DynmapScheduledThreadPoolExecutor();
+        zoomout_scheduler = new ZoomOutScheduler(zoomout_threads, usenormalpriority);
         tileQueue.start();
         scheduleDelayedJob(new DoZoomOutProcessing(), 60000);
         scheduleDelayedJob(new CheckWorldTimes(), 5000);
@@ -1398,7 +1417,11 @@ public class MapManager {
                 }
             }
         }
-        // Shutdown render pool
+        // Shutdown zoom out processing and render pool
+        if (zoomout_scheduler != null) {
+            zoomout_scheduler.shutdown();
+            zoomout_scheduler = null;
+        }
         render_pool.shutdown();
         try {
             render_pool.awaitTermination(5, TimeUnit.SECONDS);
@@ -1492,6 +1515,10 @@ public class MapManager {
         for(String wn : active_renders.keySet())
         	act += wn + " ";
         sender.sendMessage(String.format("  Active render jobs: %s", act));
+        ZoomOutScheduler zs = zoomout_scheduler;
+        if (zs != null) {
+            sender.sendMessage(String.format("  Zoom out processing: %s", zs.getStatus()));
+        }
         /* Chunk load stats */
         sender.sendMessage("Chunk Loading Statistics:");
         sender.sendMessage(String.format("  Cache hit rate: %.2f%%", core.getServer().getCacheHitRate()));
@@ -1501,6 +1528,51 @@ public class MapManager {
             long ts = chunks_read_times[cs.ordinal()].get();
             sender.sendMessage(String.format("  Chunks processed: %s: count=%d, %.2f msec/chunk", cs.getLabel(), cnt, 0.000001 * (ts / cnt)));
         }
+        /* Web tile cache stats */
+        MapStorageTileCache tc = core.getDefaultMapStorage().getTileCache();
+        if (tc != null) {
+            sender.sendMessage("Web Tile Cache Statistics:");
+            long hits = tc.getHits();
+            long lookups = hits + tc.getMisses();
+            if (lookups == 0) lookups = 1;
+            sender.sendMessage(String.format("  Cached tiles: %d, %d of %d KB", tc.getCount(), tc.getBytes() / 1024, tc.getMaxBytes() / 1024));
+            sender.sendMessage(String.format("  Hits=%d, misses=%d, hit rate: %.2f%%, evictions=%d, invalidations=%d", hits, tc.getMisses(),
+                    (100.0 * hits) / lookups, tc.getEvictions(), tc.getInvalidations()));
+        }
+        /* Zoom out tile cache stats */
+        MapStorageZoomOutCache zc = core.getDefaultMapStorage().getZoomOutCache();
+        if (zc != null) {
+            sender.sendMessage("Zoom Out Tile Cache Statistics:");
+            long hits = zc.getHits();
+            long lookups = hits + zc.getMisses();
+            if (lookups == 0) lookups = 1;
+            sender.sendMessage(String.format("  Cached tiles: %d, %d of %d KB", zc.getCount(), zc.getBytes() / 1024, zc.getMaxBytes() / 1024));
+            sender.sendMessage(String.format("  Hits=%d, misses=%d, hit rate: %.2f%%, evictions=%d", hits, zc.getMisses(),
+                    (100.0 * hits) / lookups, zc.getEvictions()));
+        }
+        /* Blank and solid colour tile stats */
+        MapStorageTileSummary ts = core.getDefaultMapStorage().getTileSummary();
+        if (ts != null) {
+            sender.sendMessage(String.format("Known Blank/Solid Tiles: blank=%d (hits=%d), solid=%d (hits=%d)",
+                    ts.getBlankCount(), ts.getBlankHits(), ts.getSolidCount(), ts.getSolidHits()));
+        }
+        /* Web server thread stats */
+        String webstat = core.getWebThreadPoolStatus();
+        StorageIOExecutor io = core.getStorageIOExecutor();
+        UpdateStreamServlet us = InternalClientUpdateComponent.getUpdateStreamServlet();
+        if ((webstat != null) || (io != null) || (us != null)) {
+            sender.sendMessage("Web Server Statistics:");
+            if (webstat != null) {
+                sender.sendMessage("  Request threads: " + webstat);
+            }
+            if (io != null) {
+                sender.sendMessage("  Storage I/O threads: " + io.getPoolStatus());
+                sender.sendMessage("  Storage I/O requests: " + io.getRequestStats());
+            }
+            if (us != null) {
+                sender.sendMessage("  Update streams: " + us.getStats());
+            }
+        }
     }
     /**
      * Print trigger statistics command
@@ -1545,6 +1617,26 @@ public class MapManager {
             }
         }
         core.getServer().resetCacheStats();
+        MapStorageTileCache tc = core.getDefaultMapStorage().getTileCache();
+        if (tc != null) {
+            tc.resetStats();
+        }
+        MapStorageZoomOutCache zc = core.getDefaultMapStorage().getZoomOutCache();
+        if (zc != null) {
+            zc.resetStats();
+        }
+        MapStorageTileSummary ts = core.getDefaultMapStorage().getTileSummary();
+        if (ts != null) {
+            ts.resetStats();
+        }
+        StorageIOExecutor io = core.getStorageIOExecutor();
+        if (io != null) {
+            io.resetStats();
+        }
+        UpdateStreamServlet us = InternalClientUpdateComponent.getUpdateStreamServlet();
+        if (us != null) {
+            us.resetStats();
+        }
         sender.sendMessage("Tile Render Statistics reset");
     }    
 
@@ -224,6 +224,22 @@ public class MapTypeState {
             return tf.setFlag(x >> zoomlevel, y >> zoomlevel, false);
         }
     }
+    // Clear flag in both active and accumulating zoom out flags
+    public void clearZoomOutInvAll(int x, int y, int zoomlevel) {
+        if (zoomlevel >= zoomOutLevels) {
+            return;
+        }
+        synchronized(invTileLock) {
+            TileFlags tf = zoomOutInv.get(zoomlevel);
+            if (tf != null) {
+                tf.setFlag(x >> zoomlevel, y >> zoomlevel, false);
+            }
+            tf = zoomOutInvAccum.get(zoomlevel);
+            if (tf != null) {
+                tf.setFlag(x >> zoomlevel, y >> zoomlevel, false);
+            }
+        }
+    }
     public static class ZoomOutCoord extends TileFlags.TileCoord {
         public int zoomlevel;
     }
@@ -240,6 +256,36 @@ public class MapTypeState {
             zoomOutInvIterLevel = 0;
         }
     }
+    // Get number of zoom out levels tracked
+    public int getZoomOutLevels() {
+        return zoomOutLevels;
+    }
+    // Get copy of active zoom out flags for given level (coordinates at that level), after moving in any
+    // flags set at that level since startZoomOutIter(), so that one pass can carry updates up the levels
+    public TileFlags getZoomOutInvLevel(int zoomlevel) {
+        TileFlags rslt = new TileFlags();
+        if (zoomlevel >= zoomOutLevels) {
+            return rslt;
+        }
+        synchronized(invTileLock) {
+            TileFlags tf = zoomOutInv.get(zoomlevel);
+            TileFlags acc = zoomOutInvAccum.get(zoomlevel);
+            if ((zoomlevel > 0) && (acc != null)) {
+                if (tf == null) {
+                    tf = acc;
+                    zoomOutInv.set(zoomlevel, tf);
+                }
+                else {
+                    tf.union(acc);
+                }
+                zoomOutInvAccum.set(zoomlevel, null);
+            }
+            if (tf != null) {
+                rslt.union(tf);
+            }
+        }
+        return rslt;
+    }
     public boolean nextZoomOutInv(ZoomOutCoord coord) {
         synchronized(invTileLock) {
             // Try existing iterator
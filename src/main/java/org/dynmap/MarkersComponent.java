@@ -1,5 +1,7 @@
 package org.dynmap;
 
+import static org.dynmap.JSONUtils.s;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -15,7 +17,9 @@ import org.dynmap.markers.MarkerAPI;
 import org.dynmap.markers.MarkerIcon;
 import org.dynmap.markers.MarkerSet;
 import org.dynmap.markers.impl.MarkerSignManager;
+import org.dynmap.servlet.MarkerQueryServlet;
 import org.dynmap.utils.Polygon;
+import org.json.simple.JSONObject;
 
 /**
  * Markers component - ties in the component system, both on the server and client
@@ -42,6 +46,17 @@ public class MarkersComponent extends ClientComponent {
         
         api = core.getMarkerAPI();
         
+        /* If enabled, let clients load only the markers in view */
+        if(configuration.getBoolean("viewport-query", true)) {
+            core.addServlet("/up/markers/*", new MarkerQueryServlet(core));
+            core.events.addListener("buildclientconfiguration", new Event.Listener<JSONObject>() {
+                @Override
+                public void triggered(JSONObject t) {
+                    s(t, "markerquery", true);
+                }
+            });
+        }
+        
         /* If configuration has enabled sign support, prime it too */
         if(configuration.getBoolean("enablesigns", false)) {
             signmgr = MarkerSignManager.initializeSignManager(core, configuration.getString("default-sign-set", MarkerSet.DEFAULT));
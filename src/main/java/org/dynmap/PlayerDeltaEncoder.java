@@ -0,0 +1,170 @@
+package org.dynmap;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Player lists of a world's recent client updates ("frames"), with positions quantized, for sending web clients
+ * only what changed since a frame they already have.  A delta holds, for each player, only the fields that
+ * differ from the base frame (all fields for players new since then), plus the players gone since then:
+ * <pre>
+ *   "playerdelta": { "base": &lt;timestamp of base frame&gt;, "players": [ ... ], "removed": [ &lt;account&gt;, ... ] }
+ * </pre>
+ * The client applies it to its copy of the base frame.  Deltas can also be taken with all player locations
+ * hidden, for guests when player info is protected.
+ */
+public class PlayerDeltaEncoder {
+    private static final double POSITION_SCALE = 10.0;  // Positions sent to 0.1 block
+
+    private final int maxFrames;
+    private final LinkedHashMap<Long, Map<String, JSONObject>> frames = new LinkedHashMap<Long, Map<String, JSONObject>>();
+
+    /**
+     * Create encoder
+     * @param maxFrames - number of recent frames kept as bases for deltas
+     */
+    public PlayerDeltaEncoder(int maxFrames) {
+        this.maxFrames = Math.max(1, maxFrames);
+    }
+
+    private static Object quantize(Object v) {
+        if (v instanceof Number) {
+            return Math.round(((Number) v).doubleValue() * POSITION_SCALE) / POSITION_SCALE;
+        }
+        return v;
+    }
+
+    /**
+     * Add frame for client update
+     * @param ts - timestamp of client update
+     * @param players - player list of update
+     * @return player list of frame (quantized), to send in full
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized JSONArray addFrame(long ts, List<?> players) {
+        LinkedHashMap<String, JSONObject> frame = new LinkedHashMap<String, JSONObject>();
+        JSONArray rslt = new JSONArray();
+        if (players != null) {
+            for (Object o : players) {
+                if (!(o instanceof JSONObject)) continue;
+                JSONObject p = new JSONObject();
+                p.putAll((JSONObject) o);
+                p.put("x", quantize(p.get("x")));
+                p.put("y", quantize(p.get("y")));
+                p.put("z", quantize(p.get("z")));
+                frame.put(String.valueOf(p.get("account")), p);
+                rslt.add(p);
+            }
+        }
+        if (frames.containsKey(ts)) {   // Rebuilt for same time: clients may have either, so use neither as base
+            frames.remove(ts);
+        }
+        else {
+            frames.put(ts, frame);
+        }
+        while (frames.size() > maxFrames) {
+            Long oldest = frames.keySet().iterator().next();
+            frames.remove(oldest);
+        }
+        return rslt;
+    }
+
+    /**
+     * Get player list of frame
+     * @param ts - timestamp of frame
+     * @param hideall - if true, hide locations of all players
+     * @return player list, or null if frame not kept
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized JSONArray getFrame(long ts, boolean hideall) {
+        Map<String, JSONObject> frame = frames.get(ts);
+        if (frame == null) {
+            return null;
+        }
+        JSONArray rslt = new JSONArray();
+        for (JSONObject p : frame.values()) {
+            rslt.add(hideall ? hide(p) : p);
+        }
+        return rslt;
+    }
+
+    /**
+     * Test if frame is kept
+     * @param ts - timestamp of frame
+     */
+    public synchronized boolean hasFrame(long ts) {
+        return frames.containsKey(ts);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject hide(JSONObject p) {
+        JSONObject newp = new JSONObject();
+        newp.putAll(p);
+        newp.put("world", "-some-other-bogus-world-");
+        newp.put("x", 0.0);
+        newp.put("y", 64.0);
+        newp.put("z", 0.0);
+        newp.put("health", 0);
+        newp.put("armor", 0);
+        return newp;
+    }
+
+    /**
+     * Get delta between frames
+     * @param basets - timestamp of frame client has
+     * @param ts - timestamp of frame to send
+     * @param hideall - if true, hide locations of all players
+     * @return delta, or null if either frame is not kept
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized JSONObject getDelta(long basets, long ts, boolean hideall) {
+        Map<String, JSONObject> base = frames.get(basets);
+        Map<String, JSONObject> cur = frames.get(ts);
+        if ((base == null) || (cur == null)) {
+            return null;
+        }
+        JSONArray changed = new JSONArray();
+        for (Map.Entry<String, JSONObject> me : cur.entrySet()) {
+            JSONObject p = me.getValue();
+            JSONObject bp = base.get(me.getKey());
+            if (hideall) {
+                p = hide(p);
+                bp = (bp != null) ? hide(bp) : null;
+            }
+            if (bp == null) {   // New player: send all
+                changed.add(p);
+                continue;
+            }
+            JSONObject d = null;
+            for (Object k : p.keySet()) {
+                Object v = p.get(k);
+                Object bv = bp.get(k);
+                if ((v == null) ? (bv != null) : (!v.equals(bv))) {
+                    if (d == null) {
+                        d = new JSONObject();
+                        d.put("account", p.get("account"));
+                    }
+                    d.put(k, v);
+                }
+            }
+            if (d != null) {
+                changed.add(d);
+            }
+        }
+        JSONArray removed = new JSONArray();
+        for (String acct : base.keySet()) {
+            if (!cur.containsKey(acct)) {
+                removed.add(acct);
+            }
+        }
+        JSONObject delta = new JSONObject();
+        delta.put("base", basets);
+        delta.put("players", changed);
+        delta.put("removed", removed);
+        return delta;
+    }
+}
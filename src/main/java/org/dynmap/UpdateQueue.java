@@ -2,120 +2,205 @@ package org.dynmap;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Queue of recent client updates for a world.  Updates are numbered in order as they are pushed, and kept
+ * in a fixed size ring, so readers take their snapshot of the updates after a given sequence number (or time)
+ * without any locking, and pushing an update never waits for a reader.  Pushing an update equal to one still
+ * in the queue (same tile, same player and so on) replaces it: the earlier copy is skipped by readers.
+ * Updates drop out of the queue when overwritten by newer ones, or once older than the maximum age.
+ */
 public class UpdateQueue {
-    public Object lock = new Object();
-    private HashMap<UpdateRec,UpdateRec> updateSet = new HashMap<UpdateRec,UpdateRec>();
-    private UpdateRec orderedlist = null;   /* Oldest to youngest */
     private static final long maxUpdateAge = 120000;
-    private static final long ageOutPeriod = 5000;
-    private long lastageout = 0;
-
-    private static class UpdateRec {
-        Client.Update u;
-        UpdateRec next;
-        UpdateRec prev;
-        
-        @Override
-        public boolean equals(Object o) {
-            if(o instanceof UpdateRec)
-                return u.equals(((UpdateRec)o).u);
-            return false;
-        }
-        @Override
-        public int hashCode() {
-            return u.hashCode();
+    private static final int defaultCapacity = 16384;
+
+    private final Object writeLock = new Object();
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final HashMap<Client.Update, Entry> latest = new HashMap<Client.Update, Entry>();   // Writers only
+    private volatile long lastSeq = 0;      // Sequence number of newest update (0 if none)
+    private long lastTimestamp = 0;
+    private final long epoch = System.currentTimeMillis();
+    private volatile Listener listener = null;
+    private final ConcurrentLinkedQueue<Entry> unnotified = new ConcurrentLinkedQueue<Entry>();   // Pushed, not yet passed to listener
+    private final AtomicBoolean notifying = new AtomicBoolean();
+
+    /**
+     * Update in queue, with its sequence number
+     */
+    public static class Entry {
+        public final long seq;
+        public final Client.Update update;  // Null if replaced by newer copy
+
+        Entry(long seq, Client.Update update) {
+            this.seq = seq;
+            this.update = update;
         }
     }
-    
-    private void doAgeOut(long now) {
-        /* If we're due */
-        if((now < lastageout) || (now > (lastageout + ageOutPeriod))) {
-            lastageout = now;
-            long deadline = now - maxUpdateAge;
-            while((orderedlist != null) && (orderedlist.u.timestamp < deadline)) {
-                UpdateRec r = orderedlist;
-
-                updateSet.remove(r);  /* Remove record from set */
-                if(r.next == r) {
-                    orderedlist = null;
-                }
-                else {
-                    orderedlist = r.next;
-                    r.next.prev = r.prev;
-                    r.prev.next = r.next;
-                }
-                r.next = r.prev = null;
-            }
+
+    /**
+     * Listener for updates as they are pushed
+     */
+    public interface Listener {
+        /**
+         * Called for each update pushed, in sequence order, on a pushing thread after it has released the
+         * queue's write lock (so should not block)
+         * @param u - update, with its timestamp set
+         * @param seq - sequence number of update
+         */
+        void updatePushed(Client.Update u, long seq);
+    }
+
+    public UpdateQueue() {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Create queue
+     * @param capacity - number of updates kept (rounded up to power of 2)
+     */
+    public UpdateQueue(int capacity) {
+        int sz = 1;
+        while (sz < capacity) {
+            sz <<= 1;
         }
+        ring = new AtomicReferenceArray<Entry>(sz);
+        mask = sz - 1;
     }
-    
+
     public void pushUpdate(Client.Update obj) {
-        synchronized (lock) {
+        synchronized (writeLock) {
             /* Do inside lock - prevent delay between time and actual work */
             long now = System.currentTimeMillis();
-            doAgeOut(now);  /* Consider age out */
-            UpdateRec r = new UpdateRec();
-            r.u = obj;
-            r.u.timestamp = now; // Use our timestamp: makes sure order is preserved
-            UpdateRec oldr = updateSet.remove(r);   /* Try to remove redundant event */
-            if(oldr != null) {  /* If found, remove from ordered list too */
-                if(oldr.next == oldr) { /* Only one? */
-                    orderedlist = null;
-                }
-                else {
-                    if(orderedlist == oldr) {   /* We're oldest? */
-                        orderedlist = oldr.next;
-                    }
-                    oldr.next.prev = oldr.prev;
-                    oldr.prev.next = oldr.next;
-                }
-                oldr.next = oldr.prev = null;
+            if (now < lastTimestamp) {  // Keep timestamps in sequence order, even if clock goes back
+                now = lastTimestamp;
+            }
+            lastTimestamp = now;
+            obj.timestamp = now; // Use our timestamp: makes sure order is preserved
+            long seq = lastSeq + 1;
+            Entry e = new Entry(seq, obj);
+            Entry olde = latest.put(obj, e);
+            if (olde != null) { /* Replace redundant event, if still in ring */
+                ring.compareAndSet((int) (olde.seq & mask), olde, new Entry(olde.seq, null));
             }
-            updateSet.put(r, r);
-            /* Add to end of ordered list */
-            if(orderedlist == null) {
-                orderedlist = r;
-                r.next = r.prev = r;
+            Entry overwritten = ring.getAndSet((int) (seq & mask), e);
+            if ((overwritten != null) && (overwritten.update != null) && (latest.get(overwritten.update) == overwritten)) {
+                latest.remove(overwritten.update);
             }
-            else {
-                r.next = orderedlist;
-                r.prev = orderedlist.prev;
-                r.next.prev = r.prev.next = r;
+            lastSeq = seq;  /* Publish to readers */
+            if (listener != null) {
+                unnotified.add(e);
             }
         }
+        notifyListener();
     }
 
-    private ArrayList<Client.Update> tmpupdates = new ArrayList<Client.Update>();
-
-    public Client.Update[] getUpdatedObjects(long since) {
-        Client.Update[] updates;
-        synchronized (lock) {
-            long now = System.currentTimeMillis();
-            doAgeOut(now);  /* Consider age out */
-            
-            tmpupdates.clear();
-            if(orderedlist != null) {
-                UpdateRec r = orderedlist.prev; /* Get newest */
-                while(r != null) {
-                    if(r.u.timestamp >= since) {
-                        tmpupdates.add(r.u);
-                        if(r == orderedlist)
-                            r = null;
-                        else
-                            r = r.prev;
-                    }
-                    else {
-                        r = null;
+    /*
+     * Pass pushed updates to listener, outside the write lock: one pushing thread at a time passes on all
+     * queued so far, so the listener still gets them in sequence order
+     */
+    private void notifyListener() {
+        while ((!unnotified.isEmpty()) && notifying.compareAndSet(false, true)) {
+            try {
+                Entry e;
+                while ((e = unnotified.poll()) != null) {
+                    Listener l = listener;
+                    if (l != null) {
+                        l.updatePushed(e.update, e.seq);
                     }
                 }
+            } finally {
+                notifying.set(false);
+            }
+        }
+    }
+
+    /**
+     * Get updates at or after given time, oldest first
+     * @param since - time (msec)
+     * @return updates
+     */
+    public Client.Update[] getUpdatedObjects(long since) {
+        since = Math.max(since, System.currentTimeMillis() - maxUpdateAge);
+        long last = lastSeq;
+        long first = Math.max(1, last - mask);
+        ArrayList<Client.Update> tmpupdates = new ArrayList<Client.Update>();
+        /* Walk back from newest until before given time */
+        for (long seq = last; seq >= first; seq--) {
+            Entry e = ring.get((int) (seq & mask));
+            if ((e == null) || (e.seq != seq)) {   /* Overwritten since we started */
+                break;
+            }
+            if (e.update == null) {
+                continue;
             }
-            // Reverse output.
-            updates = new Client.Update[tmpupdates.size()];
-            for (int i = 0; i < updates.length; i++) {
-                updates[i] = tmpupdates.get(updates.length-1-i);
+            if (e.update.timestamp < since) {
+                break;
             }
+            tmpupdates.add(e.update);
+        }
+        // Reverse output.
+        Client.Update[] updates = new Client.Update[tmpupdates.size()];
+        for (int i = 0; i < updates.length; i++) {
+            updates[i] = tmpupdates.get(updates.length-1-i);
         }
         return updates;
     }
+
+    /**
+     * Get updates after given sequence number, oldest first.  If updates after the sequence number have
+     * already been overwritten, only those still in the queue are returned.
+     * @param since - sequence number of last update already seen
+     * @return updates (with their sequence numbers)
+     */
+    public Entry[] getUpdatesSince(long since) {
+        long last = lastSeq;
+        long first = Math.max(since + 1, last - mask);
+        long oldest = System.currentTimeMillis() - maxUpdateAge;
+        ArrayList<Entry> tmpupdates = new ArrayList<Entry>();
+        for (long seq = first; seq <= last; seq++) {
+            Entry e = ring.get((int) (seq & mask));
+            if ((e == null) || (e.seq != seq) || (e.update == null) || (e.update.timestamp < oldest)) {
+                continue;   /* Overwritten, replaced or aged out */
+            }
+            tmpupdates.add(e);
+        }
+        return tmpupdates.toArray(new Entry[tmpupdates.size()]);
+    }
+
+    /**
+     * Get sequence number of newest update (0 if none yet)
+     */
+    public long getLastSequence() {
+        return lastSeq;
+    }
+
+    /**
+     * Test if sequence number is still in the queue's range: if not, updates after it may have been lost
+     * @param seq - sequence number of last update seen
+     * @return true if all later updates still available
+     */
+    public boolean isSequenceAvailable(long seq) {
+        long last = lastSeq;
+        return (seq <= last) && (seq >= (last - mask - 1));
+    }
+
+    /**
+     * Get epoch of queue's sequence numbers: sequence numbers from a queue with a different epoch
+     * (before a restart or reload) don't apply to this one
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Set listener for updates as they are pushed
+     * @param l - listener (null to remove)
+     */
+    public void setListener(Listener l) {
+        listener = l;
+    }
 }
@@ -0,0 +1,276 @@
+package org.dynmap;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dynmap.MapType.ImageEncoding;
+import org.dynmap.MapType.ImageVariant;
+import org.dynmap.hdmap.TexturePack;
+import org.dynmap.storage.MapStorage;
+import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTileSummary;
+import org.dynmap.storage.MapStorageZoomOutCache;
+import org.dynmap.utils.DynmapBufferedImage;
+import org.dynmap.utils.ImageIOManager;
+import org.dynmap.utils.TileFlags;
+
+/**
+ * Builds all zoom out tiles above the tiles of a completed full render in a single bottom-up sweep.
+ * After a full render, the whole pyramid over the rendered tiles is known to be out of date, so rather
+ * than carrying zoom out flags up one level per zoom out pass (re-reading each level from storage), each
+ * zoom tile over the rendered area is built exactly once, depth first from the top level tiles down.
+ * Only the downsampled quarters of the tiles being combined are held in memory (at most four per level),
+ * and parts of the tree with no rendered tiles are skipped.
+ */
+public class ZoomOutPyramidBuilder implements Runnable {
+    private static final int TILE_SIZE = MapStorageZoomOutCache.TILE_SIZE;
+    private static final int HALF = MapStorageZoomOutCache.SCALED_SIZE;
+
+    private final DynmapWorld world;
+    private final List<MapType> maps;
+    private final TileFlags rendered;
+    private TileFlags[] occupied;   // Tiles at each zoom level with rendered tiles below them
+    private boolean aborted;
+    private int written;
+    private int deleted;
+
+    /**
+     * Create builder
+     * @param world - world rendered
+     * @param maps - maps rendered
+     * @param rendered - base tiles rendered (copied)
+     */
+    public ZoomOutPyramidBuilder(DynmapWorld world, List<MapType> maps, TileFlags rendered) {
+        this.world = world;
+        this.maps = maps;
+        this.rendered = new TileFlags();
+        this.rendered.union(rendered);
+    }
+
+    public void run() {
+        long start = System.currentTimeMillis();
+        for (MapType mt : maps) {
+            MapTypeState mts = world.getMapState(mt);
+            if (mts == null) continue;
+            int levels = mts.getZoomOutLevels();
+            if (levels <= 0) continue;
+            buildOccupied(mts, levels);
+            ImageVariant[] vars = mt.getVariants();
+            for (int varIdx = 0; (varIdx < vars.length) && (!aborted); varIdx++) {
+                TileFlags top = new TileFlags();
+                top.union(occupied[levels]);
+                TileFlags.TileCoord c = new TileFlags.TileCoord();
+                TileFlags.Iterator iter = top.getIterator();
+                while ((!aborted) && iter.next(c)) {
+                    top.setFlag(c.x, c.y, false);
+                    buildZoomTile(mts, vars[varIdx], c.x << levels, c.y << levels, levels, varIdx == 0);
+                }
+            }
+            if (aborted) {  // Hand what is left back to normal zoom out processing
+                TileFlags.TileCoord c = new TileFlags.TileCoord();
+                TileFlags tf = new TileFlags();
+                tf.union(rendered);
+                TileFlags.Iterator iter = tf.getIterator();
+                while (iter.next(c)) {
+                    tf.setFlag(c.x, c.y, false);
+                    mts.setZoomOutInv(c.x, c.y, 0);
+                }
+                Log.info("Zoom out build for '" + world.getName() + "' stopped - left to normal zoom out processing");
+                return;
+            }
+            occupied = null;
+        }
+        Log.info(String.format("Zoom out build for '%s' completed - %d tiles updated, %d removed (%d msec)",
+                world.getName(), written, deleted, System.currentTimeMillis() - start));
+    }
+
+    // Find tiles at each level with rendered tiles below them, and take over the zoom out flags of the
+    // rendered tiles (they are all read during the build, so later updates will set them again)
+    private void buildOccupied(MapTypeState mts, int levels) {
+        occupied = new TileFlags[levels + 1];
+        for (int i = 1; i <= levels; i++) {
+            occupied[i] = new TileFlags();
+        }
+        TileFlags tf = new TileFlags();
+        tf.union(rendered);
+        TileFlags.TileCoord c = new TileFlags.TileCoord();
+        TileFlags.Iterator iter = tf.getIterator();
+        while (iter.next(c)) {
+            tf.setFlag(c.x, c.y, false);
+            mts.clearZoomOutInvAll(c.x, c.y, 0);
+            // Zoom tile at next level up holds X pairs (2n, 2n+1) and Y pairs (2n-1, 2n) - see getZoomOutTile()
+            int x = c.x, y = c.y;
+            for (int i = 1; i <= levels; i++) {
+                x = x >> 1;
+                y = (y + 1) >> 1;
+                occupied[i].setFlag(x, y, true);
+            }
+        }
+    }
+
+    // Wait while server TPS is below zoom out limit: return false if zoom out processing is cancelled
+    private boolean checkContinue() {
+        MapManager mm = MapManager.mapman;
+        while (true) {
+            if ((mm == null) || world.isZoomOutFreshenCancelled()) {
+                return false;
+            }
+            if (!mm.getTPSZoomOutPause()) {
+                return true;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException ix) {
+                return false;
+            }
+            mm = MapManager.mapman;
+        }
+    }
+
+    // Build zoom tile (zoom >= 1), returning its downsampled image, or null if blank (or aborted)
+    private int[] buildZoomTile(MapTypeState mts, ImageVariant var, int x0, int y0, int zoom, boolean firstVariant) {
+        if (aborted || (!checkContinue())) {
+            aborted = true;
+            return null;
+        }
+        MapType mt = mts.type;
+        int step = 1 << (zoom - 1);
+        int[][] quads = new int[4][];
+        boolean blank = true;
+        for (int i = 0; i < 4; i++) {
+            int cx = x0 + (((i & 1) != 0) ? step : 0);
+            int cy = y0 - (((i & 2) != 0) ? step : 0);
+            if (zoom == 1) {
+                if (rendered.getFlag(cx, cy)) {
+                    quads[i] = readBaseTile(mt, var, cx, cy);
+                }
+            }
+            else if (occupied[zoom - 1].getFlag(cx >> (zoom - 1), cy >> (zoom - 1))) {
+                if (firstVariant) { // Being rebuilt now: any update after this sets it again
+                    mts.clearZoomOutInvAll(cx, cy, zoom - 1);
+                }
+                quads[i] = buildZoomTile(mts, var, cx, cy, zoom - 1, firstVariant);
+            }
+            if (aborted) {
+                return null;
+            }
+            if (quads[i] != null) {
+                blank = false;
+            }
+        }
+        MapStorage storage = world.getMapStorage();
+        MapStorageTile ztile = storage.getTile(world, mt, x0, y0, zoom, var);
+        int[] rslt = null;
+        DynmapBufferedImage kzIm = null;
+        ztile.getWriteLock();
+        try {
+            if (blank) {
+                if (ztile.exists()) {
+                    ztile.delete();
+                    MapManager.mapman.pushUpdate(world, new Client.Tile(ztile.getURI()));
+                    deleted++;
+                }
+                storage.recordBlankTile(ztile);
+            }
+            else {
+                kzIm = DynmapBufferedImage.allocateBufferedImage(TILE_SIZE, TILE_SIZE);
+                int[] argb = kzIm.argb_buf;
+                int bg = (mt.getImageFormat().getEncoding() == ImageEncoding.JPG) ? mt.getBackgroundARGB(var) : 0;
+                for (int i = 0; i < 4; i++) {
+                    // Higher X to the right, higher Y at the top - as processZoomFile()
+                    int dx = ((i & 1) != 0) ? HALF : 0;
+                    int dy = ((i & 2) != 0) ? HALF : 0;
+                    for (int y = 0; y < HALF; y++) {
+                        int off = ((dy + y) * TILE_SIZE) + dx;
+                        if (quads[i] != null) {
+                            System.arraycopy(quads[i], y * HALF, argb, off, HALF);
+                        }
+                        else {
+                            Arrays.fill(argb, off, off + HALF, bg);
+                        }
+                    }
+                }
+                long crc = MapStorage.calculateImageHashCode(argb, 0, argb.length);
+                if (!ztile.matchesHashCode(crc)) {
+                    if (ztile.write(crc, kzIm.buf_img)) {
+                        storage.recordTileImage(ztile, argb);
+                        MapManager.mapman.pushUpdate(world, new Client.Tile(ztile.getURI()));
+                        written++;
+                    }
+                }
+                rslt = new int[HALF * HALF];
+                MapStorageZoomOutCache.downsample(argb, rslt, HALF);
+            }
+        } finally {
+            ztile.releaseWriteLock();
+            if (kzIm != null) {
+                DynmapBufferedImage.freeBufferedImage(kzIm);
+            }
+        }
+        return rslt;
+    }
+
+    // Read base tile, returning its downsampled image, or null if missing or unusable
+    private int[] readBaseTile(MapType mt, ImageVariant var, int x, int y) {
+        MapStorage storage = world.getMapStorage();
+        MapStorageZoomOutCache zcache = storage.getZoomOutCache();
+        MapStorageTile tile = storage.getTile(world, mt, x, y, 0, var);
+        tile.getReadLock();
+        try {
+            int[] scaled = (zcache != null) ? zcache.get(tile) : null;
+            if (scaled != null) {
+                return scaled;
+            }
+            // Known solid colour or blank tiles need no read
+            MapStorageTileSummary summary = storage.getTileSummary();
+            if (summary != null) {
+                Integer solid = summary.getSolidColor(tile);
+                if (solid != null) {
+                    scaled = new int[HALF * HALF];
+                    Arrays.fill(scaled, solid);
+                    return scaled;
+                }
+                if (summary.isBlank(tile)) {
+                    return null;
+                }
+            }
+            MapStorageTile.TileRead tr = tile.read();
+            if (tr == null) {
+                if (!tile.exists()) {   // Not a failed read
+                    storage.recordBlankTile(tile);
+                }
+                return null;
+            }
+            BufferedImage im;
+            try {
+                im = ImageIOManager.imageIODecode(tr.image);
+            } catch (IOException iox) {
+                return null;
+            }
+            if (im == null) {
+                return null;
+            }
+            int iwidth = Math.min(im.getWidth(), im.getHeight());
+            if (iwidth < TILE_SIZE) {
+                im.flush();
+                return null;
+            }
+            int[] buf = new int[iwidth * iwidth];
+            im.getRGB(0, 0, iwidth, iwidth, buf, 0, iwidth);
+            im.flush();
+            scaled = new int[HALF * HALF];
+            if (iwidth == TILE_SIZE) {
+                storage.recordTileImage(tile, buf);
+                MapStorageZoomOutCache.downsample(buf, scaled, HALF);
+            }
+            else {
+                TexturePack.scaleTerrainPNGSubImage(iwidth, HALF, buf, scaled);
+            }
+            return scaled;
+        } finally {
+            tile.releaseReadLock();
+        }
+    }
+}
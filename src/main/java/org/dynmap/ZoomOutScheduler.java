@@ -0,0 +1,196 @@
+package org.dynmap;
+
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dynmap.storage.MapStorageTile;
+import org.dynmap.utils.TileFlags;
+
+/**
+ * Parallel zoom out tile processing.  A pass handles the zoom levels in ascending order, across all
+ * worlds and maps, and waits for each level to finish before starting the next, so a zoom tile is only
+ * built once the tiles below it are complete.  Within a level, each zoom tile depends only on its own
+ * four child tiles, so the zoom tiles of all maps at that level are built concurrently on a dedicated
+ * thread pool.  Zoom tiles updated at one level are carried to the next level within the same pass.
+ */
+public class ZoomOutScheduler {
+    private final ThreadPoolExecutor pool;
+    private final int maxPending;
+    private volatile boolean stopped;
+    // Progress of active pass
+    private volatile int activeLevel = -1;
+    private volatile int activeLevelCount;
+    private volatile int activeLevelQueued;
+    private final AtomicInteger activeLevelDone = new AtomicInteger();
+    // Results of last completed pass
+    private volatile long lastPassTiles;
+    private volatile long lastPassTime;
+
+    private static class ZoomOutThreadFactory implements ThreadFactory {
+        private final boolean normalpriority;
+        ZoomOutThreadFactory(boolean normalpriority) {
+            this.normalpriority = normalpriority;
+        }
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            if (!normalpriority)
+                t.setPriority(Thread.MIN_PRIORITY);
+            t.setName("Dynmap Zoom-Out Thread");
+            return t;
+        }
+    }
+
+    /**
+     * Create scheduler
+     * @param threads - number of zoom out threads
+     * @param normalpriority - if true, use normal thread priority (otherwise minimum)
+     */
+    public ZoomOutScheduler(int threads, boolean normalpriority) {
+        if (threads < 1) threads = 1;
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ZoomOutThreadFactory(normalpriority));
+        pool.allowCoreThreadTimeOut(true);
+        maxPending = 4 * threads;
+    }
+
+    /**
+     * Stop scheduler - abandons any active pass
+     */
+    public void shutdown() {
+        stopped = true;
+        pool.shutdown();     // Queued tiles see cancelled worlds and finish quickly
+    }
+
+    /**
+     * Run zoom out pass for given worlds, on the calling thread (with tiles built on the pool)
+     * @param worlds - worlds to process
+     */
+    public void runPass(List<DynmapWorld> worlds) {
+        long passStart = System.currentTimeMillis();
+        long passTiles = 0;
+        int maxLevels = 0;
+        for (DynmapWorld w : worlds) {
+            for (MapTypeState mts : w.mapstate) {
+                mts.startZoomOutIter(); // Stash and reset accumulator
+                maxLevels = Math.max(maxLevels, mts.getZoomOutLevels());
+            }
+        }
+        final Semaphore pending = new Semaphore(maxPending);
+        try {
+            for (int level = 0; (level < maxLevels) && (!stopped); level++) {
+                long levelStart = System.currentTimeMillis();
+                activeLevelDone.set(0);
+                activeLevelQueued = 0;
+                activeLevelCount = maxLevels;
+                activeLevel = level;
+                int queued = 0;
+                for (DynmapWorld w : worlds) {
+                    for (MapTypeState mts : w.mapstate) {
+                        queued += queueLevel(w, mts, level, pending);
+                    }
+                }
+                // Wait for level to finish before starting on the one above it
+                pending.acquireUninterruptibly(maxPending);
+                pending.release(maxPending);
+                if (queued > 0) {
+                    Log.verboseinfo(String.format("Zoom out level %d of %d: %d tiles updated in %d msec",
+                            level + 1, maxLevels, queued, System.currentTimeMillis() - levelStart));
+                }
+                passTiles += queued;
+            }
+        } finally {
+            activeLevel = -1;
+        }
+        lastPassTiles = passTiles;
+        lastPassTime = System.currentTimeMillis() - passStart;
+    }
+
+    // Queue zoom tiles of given map to be built from updated tiles at the given level, returning number queued
+    private int queueLevel(final DynmapWorld w, final MapTypeState mts, final int level, final Semaphore pending) {
+        if (level >= mts.getZoomOutLevels()) {
+            return 0;
+        }
+        TileFlags tf = mts.getZoomOutInvLevel(level);
+        TileFlags queuedParents = new TileFlags();
+        TileFlags.TileCoord c = new TileFlags.TileCoord();
+        TileFlags.Iterator iter = tf.getIterator();
+        int queued = 0;
+        while (iter.next(c)) {
+            tf.setFlag(c.x, c.y, false);    // Consume, so iteration ends once all are handled
+            if (stopped || w.isZoomOutFreshenCancelled()) {
+                break;
+            }
+            final int x = c.x << level;
+            final int y = c.y << level;
+            // Siblings share a zoom tile: only queue it once
+            MapStorageTile ztile = w.getMapStorage().getTile(w, mts.type, x, y, level, MapType.ImageVariant.STANDARD).getZoomOutTile();
+            if (queuedParents.setFlag(ztile.x, ztile.y, true)) {
+                continue;
+            }
+            if (!waitForTPS(w)) {
+                break;
+            }
+            pending.acquireUninterruptibly();
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (!w.isZoomOutFreshenCancelled()) {
+                                w.processZoomOutTile(mts, x, y, level);
+                            }
+                        } catch (Exception ex) {
+                            Log.severe("Exception during zoom out processing", ex);
+                        } finally {
+                            activeLevelDone.incrementAndGet();
+                            pending.release();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException rxe) {  // Pool shutdown
+                pending.release();
+                break;
+            }
+            queued++;
+            activeLevelQueued++;
+        }
+        return queued;
+    }
+
+    // Wait while server TPS is below zoom out limit: return false if cancelled while waiting
+    private boolean waitForTPS(DynmapWorld w) {
+        MapManager mm = MapManager.mapman;
+        while ((mm != null) && mm.getTPSZoomOutPause()) {
+            if (stopped || w.isZoomOutFreshenCancelled()) {
+                return false;
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException ix) {
+                return false;
+            }
+            mm = MapManager.mapman;
+        }
+        return !stopped;
+    }
+
+    /**
+     * Get status of zoom out processing, for stats
+     * @return status message
+     */
+    public String getStatus() {
+        int lvl = activeLevel;
+        if (lvl >= 0) {
+            return String.format("level %d of %d: %d of %d tiles done", lvl + 1, activeLevelCount,
+                    activeLevelDone.get(), activeLevelQueued);
+        }
+        return String.format("idle (last pass: %d tiles in %d msec)", lastPassTiles, lastPassTime);
+    }
+}
@@ -26,6 +26,7 @@ import org.dynmap.renderer.RenderPatch;
 import org.dynmap.renderer.RenderPatchFactory.SideVisible;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageZoomOutCache;
 import org.dynmap.utils.BlockStep;
 import org.dynmap.hdmap.HDBlockModels.CustomBlockModel;
 import org.dynmap.hdmap.TexturePack.BlockTransparency;
@@ -1190,6 +1191,7 @@ public class IsoHDPerspective implements HDPerspective {
         boolean renderone = false;
         /* Test to see if we're unchanged from older tile */
         MapStorage storage = world.getMapStorage();
+        MapStorageZoomOutCache zcache = storage.getZoomOutCache();
         for(int i = 0; i < numshaders; i++) {
             long crc = MapStorage.calculateImageHashCode(argb_buf[i], 0, argb_buf[i].length);
             boolean tile_update = false;
@@ -1202,10 +1204,17 @@ public class IsoHDPerspective implements HDPerspective {
                 if(mtile.matchesHashCode(crc) == false) {
                     /* Wrap buffer as buffered image */
                     if(rendered[i]) {   
-                        mtile.write(crc, im[i].buf_img);
+                        /* Deposit downsampled copy for zoom out processing */
+                        if (mtile.write(crc, im[i].buf_img)) {
+                            if (zcache != null) {
+                                zcache.putImage(mtile, argb_buf[i]);
+                            }
+                            storage.recordTileImage(mtile, argb_buf[i]);
+                        }
                     }
                     else {
                         mtile.delete();
+                        storage.recordBlankTile(mtile);
                     }
                     MapManager.mapman.pushUpdate(tile.getDynmapWorld(), new Client.Tile(mtile.getURI()));
                     tile_update = true;
@@ -1214,6 +1223,7 @@ public class IsoHDPerspective implements HDPerspective {
                 else {
                     if(!rendered[i]) {   
                         mtile.delete();
+                        storage.recordBlankTile(mtile);
                     }
                 }
             } finally {
@@ -1233,10 +1243,16 @@ public class IsoHDPerspective implements HDPerspective {
                     if(mtile.matchesHashCode(crc) == false) {
                         /* Wrap buffer as buffered image */
                         if(rendered[i]) {
-                            mtile.write(crc, dayim[i].buf_img);
+                            if (mtile.write(crc, dayim[i].buf_img)) {
+                                if (zcache != null) {
+                                    zcache.putImage(mtile, day_argb_buf[i]);
+                                }
+                                storage.recordTileImage(mtile, day_argb_buf[i]);
+                            }
                         }
                         else {
                             mtile.delete();
+                            storage.recordBlankTile(mtile);
                         }
                         MapManager.mapman.pushUpdate(tile.getDynmapWorld(), new Client.Tile(mtile.getURI()));
                         tile_update = true;
@@ -1245,6 +1261,7 @@ public class IsoHDPerspective implements HDPerspective {
                     else {
                         if(!rendered[i]) {   
                             mtile.delete();
+                            storage.recordBlankTile(mtile);
                         }
                     }
                 } finally {
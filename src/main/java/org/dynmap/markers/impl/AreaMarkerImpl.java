@@ -268,10 +268,10 @@ class AreaMarkerImpl implements AreaMarker {
         if((this.ytop != ytop) || (this.ybottom != ybottom)) {
             this.ytop = ytop;
             this.ybottom = ybottom;
+            bb_cache = null;
             MarkerAPIImpl.areaMarkerUpdated(this, MarkerUpdate.UPDATED);
             if(ispersistent)
                 MarkerAPIImpl.saveMarkers();
-            bb_cache = null;
         }
     }
     @Override
@@ -306,20 +306,20 @@ class AreaMarkerImpl implements AreaMarker {
             c.x = x;
             c.z = z;
         }
+        bb_cache = null;
         MarkerAPIImpl.areaMarkerUpdated(this, MarkerUpdate.UPDATED);
         if(ispersistent)
             MarkerAPIImpl.saveMarkers();
-        bb_cache = null;
     }
     @Override
     public void deleteCorner(int n) {
         if(markerset == null) return;
         if(n < corners.size()) {
             corners.remove(n);
+            bb_cache = null;
             MarkerAPIImpl.areaMarkerUpdated(this, MarkerUpdate.UPDATED);
             if(ispersistent)
                 MarkerAPIImpl.saveMarkers();
-            bb_cache = null;
         }
     }
     @Override
@@ -342,10 +342,10 @@ class AreaMarkerImpl implements AreaMarker {
         for(int i = 0; (i < x.length) && (i < z.length); i++) {
             corners.add(new Coord(x[i], z[i]));
         }
+        bb_cache = null;
         MarkerAPIImpl.areaMarkerUpdated(this, MarkerUpdate.UPDATED);
         if(ispersistent)
             MarkerAPIImpl.saveMarkers();
-        bb_cache = null;
     }
     @Override
     public void setLineStyle(int weight, double opacity, int color) {
@@ -414,7 +414,8 @@ class AreaMarkerImpl implements AreaMarker {
         return boostflag;
     }
 
-    final boolean testTileForBoostMarkers(DynmapWorld w, HDPerspective perspective, final double tile_x, final double tile_y, final double tile_dim) {
+    /* Get bounding box of marker in map coordinates of perspective (cached) */
+    private BoundingBox getBoundingBox(HDPerspective perspective) {
         Map<String, BoundingBox> bbc = bb_cache;
         if(bbc == null) {
             bbc = new ConcurrentHashMap<String, BoundingBox>();
@@ -460,6 +461,21 @@ class AreaMarkerImpl implements AreaMarker {
             bbc.put(perspective.getName(), bb);
             bb_cache = bbc;
         }
+        return bb;
+    }
+
+    /**
+     * Get bounds of marker in map coordinates of given perspective
+     * @param perspective - perspective
+     * @return { xmin, ymin, xmax, ymax } (xmin &gt; xmax if marker has no corners)
+     */
+    final double[] getMapBounds(HDPerspective perspective) {
+        BoundingBox bb = getBoundingBox(perspective);
+        return new double[] { bb.xmin, bb.ymin, bb.xmax, bb.ymax };
+    }
+
+    final boolean testTileForBoostMarkers(DynmapWorld w, HDPerspective perspective, final double tile_x, final double tile_y, final double tile_dim) {
+        BoundingBox bb = getBoundingBox(perspective);
         final double tile_x2 = tile_x + tile_dim;
         final double tile_y2 = tile_y + tile_dim;
         if ((bb.xmin > tile_x2) || (bb.xmax < tile_x) || (bb.ymin > tile_y2) || (bb.ymax < tile_y)) {
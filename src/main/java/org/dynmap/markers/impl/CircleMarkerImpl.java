@@ -306,10 +306,10 @@ class CircleMarkerImpl implements CircleMarker {
             updated = true;
         }
         if(updated) {
+            bb_cache = null;
             MarkerAPIImpl.circleMarkerUpdated(this, MarkerUpdate.UPDATED);
             if(ispersistent)
                 MarkerAPIImpl.saveMarkers();
-            bb_cache = null;
         }
     }
     @Override
@@ -325,10 +325,10 @@ class CircleMarkerImpl implements CircleMarker {
         if((this.xr != xr) || (this.zr != zr)) {
             this.xr = xr;
             this.zr = zr;
+            bb_cache = null;
             MarkerAPIImpl.circleMarkerUpdated(this, MarkerUpdate.UPDATED);
             if(ispersistent)
                 MarkerAPIImpl.saveMarkers();
-            bb_cache = null;
         }
     }
     @Override
@@ -355,7 +355,8 @@ class CircleMarkerImpl implements CircleMarker {
         return boostflag;
     }
 
-    final boolean testTileForBoostMarkers(DynmapWorld w, HDPerspective perspective, double tile_x, double tile_y, double tile_dim) {
+    /* Get bounding box of marker in map coordinates of perspective (cached) */
+    private BoundingBox getBoundingBox(HDPerspective perspective) {
         Map<String, BoundingBox> bbc = bb_cache;
         if(bbc == null) {
             bbc = new ConcurrentHashMap<String, BoundingBox>();
@@ -388,6 +389,21 @@ class CircleMarkerImpl implements CircleMarker {
             bbc.put(perspective.getName(), bb);
             bb_cache = bbc;
         }
+        return bb;
+    }
+
+    /**
+     * Get bounds of marker in map coordinates of given perspective
+     * @param perspective - perspective
+     * @return { xmin, ymin, xmax, ymax }
+     */
+    final double[] getMapBounds(HDPerspective perspective) {
+        BoundingBox bb = getBoundingBox(perspective);
+        return new double[] { bb.xmin, bb.ymin, bb.xmax, bb.ymax };
+    }
+
+    final boolean testTileForBoostMarkers(DynmapWorld w, HDPerspective perspective, double tile_x, double tile_y, double tile_dim) {
+        BoundingBox bb = getBoundingBox(perspective);
         final double tile_x2 = tile_x + tile_dim;
         final double tile_y2 = tile_y + tile_dim;
         if ((bb.xmin > tile_x2) || (bb.xmax < tile_x) || (bb.ymin > tile_y2) || (bb.ymax < tile_y)) {
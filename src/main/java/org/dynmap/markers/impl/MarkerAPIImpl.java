@@ -8,10 +8,17 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -19,6 +26,7 @@ import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.imageio.ImageIO;
 
@@ -44,8 +52,11 @@ import org.dynmap.markers.MarkerIcon.MarkerSize;
 import org.dynmap.markers.MarkerSet;
 import org.dynmap.markers.PlayerSet;
 import org.dynmap.markers.PolyLineMarker;
+import org.dynmap.storage.MapStorage;
 import org.dynmap.utils.BufferOutputStream;
-import org.dynmap.web.Json;
+import org.dynmap.utils.Polygon;
+import org.dynmap.utils.PolylineSimplifier;
+import org.dynmap.web.JsonWriter;
 
 /**
  * Implementation class for MarkerAPI - should not be called directly
@@ -327,27 +338,121 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
             return id.hashCode();
         }
     }
+
+    /* Many markers of set changed at once (bulk update): clients reload markers rather than getting each change */
+    public static class MarkerSetChanged extends MarkerComponentMessage {
+        public String msg = "setchanged";
+        public String id;
+        public MarkerSetChanged(String setid) {
+            this.id = setid;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if(o instanceof MarkerSetChanged) {
+                return ((MarkerSetChanged)o).id.equals(id);
+            }
+            return false;
+        }
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
     
     private boolean stop = false;
     private Set<String> dirty_worlds = new HashSet<String>();
     private boolean dirty_markers = false;
+    private boolean sharded = true;     /* Write marker files as shards for each marker set */
+    private Set<String> dirty_sets = new HashSet<String>();     /* Marker sets changed (sharded): shards rewritten for all worlds */
+    private HashMap<String, TreeMap<String, String>> shardhashes = new HashMap<String, TreeMap<String, String>>();  /* Hash of each shard written, by world and set */
+    private MessageDigest shardmd;
+    private MarkerJournal journal;      /* Journal of changes to persistent markers (null if markers.yml rewritten each save) */
+    private int journal_compact;        /* Journal records before markers.yml is rewritten */
+    private LinkedHashMap<String, String[]> journal_keys = new LinkedHashMap<String, String[]>();  /* Paths of persistent nodes changed since last save */
+    private HashSet<String> bulksets = new HashSet<String>();   /* Marker sets with bulk update open: their marker file writes held until committed */
+    private HashMap<String, Set<String>> bulkchanged = new HashMap<String, Set<String>>();  /* Sets changed by committed bulk updates, by world, to send once files written */
+    
+    private static final double WORLD_INDEX_CELL = 64.0;    /* Grid cell size of world marker index (blocks) */
+    private static final double BOOST_INDEX_CELL = 512.0;   /* Grid cell size of boost marker index (map units) */
+    /* Index of boosting markers of a world, in map coordinates of a perspective */
+    private static class BoostIndex {
+        final String world;
+        final HDPerspective perspective;
+        final MarkerSpatialIndex<MarkerDescription> index = new MarkerSpatialIndex<MarkerDescription>(BOOST_INDEX_CELL);
+        BoostIndex(String world, HDPerspective perspective) {
+            this.world = world;
+            this.perspective = perspective;
+        }
+    }
+    private final Object indexlock = new Object();  /* Held for changes to marker indexes */
+    private ConcurrentHashMap<String, MarkerSpatialIndex<MarkerDescription>> worldindex = new ConcurrentHashMap<String, MarkerSpatialIndex<MarkerDescription>>();  /* Markers of each world, by X/Z bounds */
+    private IdentityHashMap<MarkerDescription, String> indexedworld = new IdentityHashMap<MarkerDescription, String>();  /* World each marker is indexed under */
+    private ConcurrentHashMap<String, BoostIndex> boostindex = new ConcurrentHashMap<String, BoostIndex>();  /* By world and perspective name, built on first use */
+    
+    private static final int LOD_LEVELS = 8;    /* Levels of detail: level 0 is exact, level n within 2^(n-1) blocks */
+    /* Corners of area or poly-line marker, with the corners kept at each level of detail */
+    private static class MarkerLOD {
+        double[] x, y, z;       /* Corners (y null for area marker) */
+        double xmin, zmin, xmax, zmax;
+        int[][] levels = new int[LOD_LEVELS][];   /* Indices of corners kept, for each level */
+    }
+    /* Copy of corners of area or poly-line marker, taken when indexed: the marker's own lists are changed by the server thread */
+    private static class MarkerCorners {
+        double[] x, y, z;       /* Corners (y null for area marker) */
+    }
+    private IdentityHashMap<MarkerDescription, MarkerCorners> indexedcorners = new IdentityHashMap<MarkerDescription, MarkerCorners>();  /* Guarded by indexlock */
+    private ConcurrentHashMap<MarkerDescription, MarkerLOD> lodcache = new ConcurrentHashMap<MarkerDescription, MarkerLOD>();  /* Built on first query */
+    private long lodgen;    /* Incremented (with indexlock) by each marker change, so LODs built from old corners aren't cached */
     
     private class DoFileWrites implements Runnable {
         public void run() {
             if(stop)
                 return;
             /* Write markers first - drives JSON updates too */
-            if(dirty_markers) {
-                doSaveMarkers();
+            if(dirty_markers || (!journal_keys.isEmpty())) {
+                doSaveMarkers(false);
                 dirty_markers = false;
             }
             /* Process any dirty worlds */
-            if(!dirty_worlds.isEmpty()) {
+            if(sharded) {
                 for(String world : dirty_worlds) {
-                    writeMarkersFile(world);
+                    writeMarkerShards(world, null);
+                }
+                if(!dirty_sets.isEmpty()) {
+                    ArrayList<String> sets = new ArrayList<String>(dirty_sets);
+                    for(String world : new ArrayList<String>(shardhashes.keySet())) {
+                        if(!dirty_worlds.contains(world)) {
+                            writeMarkerShards(world, sets);
+                        }
+                    }
+                    dirty_sets.retainAll(bulksets);     /* Shards of sets with bulk update open still to write */
                 }
                 dirty_worlds.clear();
             }
+            else if(!dirty_worlds.isEmpty()) {
+                Set<String> held = getBulkWorlds();
+                for(Iterator<String> iter = dirty_worlds.iterator(); iter.hasNext(); ) {
+                    String world = iter.next();
+                    if(!held.contains(world)) {     /* Worlds with bulk update changes held until committed */
+                        writeMarkersFile(world);
+                        iter.remove();
+                    }
+                }
+            }
+            /* Send changes of bulk updates, now that marker files have them */
+            if(!bulkchanged.isEmpty()) {
+                Set<String> held = sharded ? Collections.<String>emptySet() : getBulkWorlds();
+                for(Iterator<Map.Entry<String, Set<String>>> iter = bulkchanged.entrySet().iterator(); iter.hasNext(); ) {
+                    Map.Entry<String, Set<String>> me = iter.next();
+                    if(held.contains(me.getKey())) continue;
+                    if(MapManager.mapman != null) {
+                        for(String setid : me.getValue()) {
+                            MapManager.mapman.pushUpdate(me.getKey(), new MarkerSetChanged(setid));
+                        }
+                    }
+                    iter.remove();
+                }
+            }
             core.getServer().scheduleServerTask(this, 20);
         }
     }
@@ -366,6 +471,16 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         /* Initialize persistence file name */
         api.markerpersist = new File(core.getDataFolder(), "markers.yml");
         api.markerpersist_old = new File(core.getDataFolder(), "markers.yml.old");
+        api.sharded = core.configuration.getBoolean("sharded-marker-files", true);
+        try {
+            api.shardmd = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsax) {
+            Log.warning("Unable to hash marker shards - shards will be rewritten each time");
+        }
+        if(core.configuration.getBoolean("marker-journal", true)) {
+            api.journal = new MarkerJournal(core.getDataFolder());
+            api.journal_compact = core.configuration.getInteger("marker-journal-compact-records", 10000);
+        }
         /* Fill in default icons and sets, if needed */
         for(int i = 0; i < builtin_icons.length; i++) {
             String id = builtin_icons[i];
@@ -373,6 +488,7 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         }
         /* Load persistence */
         api.loadMarkers();
+        api.indexAllMarkers();
         /* Initialize default marker set, if needed */
         MarkerSet set = api.getMarkerSet(MarkerSet.DEFAULT);
         if(set == null) {
@@ -400,6 +516,18 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         return api;
     }
     
+    /* Get worlds with markers changed by bulk updates still open */
+    private Set<String> getBulkWorlds() {
+        HashSet<String> worlds = new HashSet<String>();
+        for(String setid : bulksets) {
+            MarkerSetImpl ms = markersets.get(setid);
+            if(ms != null) {
+                worlds.addAll(ms.getBulkWorlds());
+            }
+        }
+        return worlds;
+    }
+    
     private void scheduleWriteJob() {
         core.getServer().scheduleServerTask(new DoFileWrites(), 20);
     }
@@ -412,8 +540,15 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         plugin.events.removeListener("worldactivated", api);
 
         stop = true;
-        if(dirty_markers) {
-            doSaveMarkers();
+        if(journal != null) {   /* Compact journal into markers.yml, and wait for it to be written */
+            if(dirty_markers || (!journal_keys.isEmpty()) || (journal.getRecordCount() > 0)) {
+                doSaveMarkers(true);
+            }
+            journal.shutdown();
+            dirty_markers = false;
+        }
+        else if(dirty_markers) {
+            doSaveMarkers(true);
             dirty_markers = false;
         }
         
@@ -555,6 +690,7 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         /* Publish the marker */
         publishMarkerIcon(ico);
         
+        iconUpdated(id);
         saveMarkers();  /* Save results */
         
         return ico;
@@ -601,8 +737,143 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         }
     }
     
-    private void doSaveMarkers() {
+    /**
+     * Begin bulk update of marker set.  Until matching commitBulkUpdate(), changes to markers in the set are
+     * not sent to web clients one at a time, and the set's marker files are not written: on commit, the
+     * changes are written together and clients are told to reload the set's markers.  Bulk updates may be
+     * nested; each must be committed (in a finally block), as marker files with the set's changes wait for
+     * it.  Use for changes to many markers at once - small edits are better sent as they are made.
+     * @param set - marker set
+     */
+    public void beginBulkUpdate(MarkerSet set) {
+        if(!(set instanceof MarkerSetImpl)) return;
+        ((MarkerSetImpl)set).beginBulkUpdate();
+        bulksets.add(set.getMarkerSetID());
+    }
+    
+    /**
+     * Commit bulk update of marker set, started by beginBulkUpdate()
+     * @param set - marker set
+     */
+    public void commitBulkUpdate(MarkerSet set) {
+        if(!(set instanceof MarkerSetImpl)) return;
+        MarkerSetImpl ms = (MarkerSetImpl)set;
+        Set<String> worlds = ms.endBulkUpdate();
+        if(worlds == null) return;  /* Still nested */
+        bulksets.remove(ms.getMarkerSetID());
+        for(String world : worlds) {
+            Set<String> sets = bulkchanged.get(world);
+            if(sets == null) {
+                sets = new HashSet<String>();
+                bulkchanged.put(world, sets);
+            }
+            sets.add(ms.getMarkerSetID());
+        }
+    }
+    
+    /* Check for change to marker in set with bulk update open: if so, noted for update at commit */
+    private static boolean isBulkChange(MarkerDescription marker) {
+        MarkerSet set = marker.getMarkerSet();
+        return (set instanceof MarkerSetImpl) && ((MarkerSetImpl)set).bulkMarkerChanged(marker.getNormalizedWorld());
+    }
+    
+    /* Add changed node to journal, to be saved as it is at next save (or deleted, if gone by then) */
+    private void journalChange(String... path) {
+        if(journal == null) return;
+        StringBuilder sb = new StringBuilder();
+        for(String p : path) {
+            sb.append(p).append('\0');
+        }
+        String key = sb.toString();
+        journal_keys.remove(key);   /* Keep in order of last change */
+        journal_keys.put(key, path);
+    }
+    
+    /* Add deleted marker set to journal: drops changes to it not yet saved */
+    private void journalSetDeleted(String setid) {
+        if(journal == null) return;
+        String prefix = "sets\0" + setid + "\0";
+        for(Iterator<String> iter = journal_keys.keySet().iterator(); iter.hasNext(); ) {
+            if(iter.next().startsWith(prefix)) {
+                iter.remove();
+            }
+        }
+        journalChange("sets", setid);   /* Set is gone, so written as delete */
+    }
+    
+    /**
+     * Signal change to marker icon definition
+     * @param id - icon ID
+     */
+    static void iconUpdated(String id) {
+        if(api != null)
+            api.journalChange("icons", id);
+    }
+    
+    /* Get persistent data for marker in set, or null if not found or not persistent */
+    private static Map<String, Object> getMarkerPersistentData(MarkerSetImpl set, String type, String id) {
+        if(type.equals("markers")) {
+            MarkerImpl m = (MarkerImpl) set.findMarker(id);
+            if((m != null) && m.isPersistentMarker()) return m.getPersistentData();
+        }
+        else if(type.equals("areas")) {
+            AreaMarkerImpl m = (AreaMarkerImpl) set.findAreaMarker(id);
+            if((m != null) && m.isPersistentMarker()) return m.getPersistentData();
+        }
+        else if(type.equals("lines")) {
+            PolyLineMarkerImpl m = (PolyLineMarkerImpl) set.findPolyLineMarker(id);
+            if((m != null) && m.isPersistentMarker()) return m.getPersistentData();
+        }
+        else if(type.equals("circles")) {
+            CircleMarkerImpl m = (CircleMarkerImpl) set.findCircleMarker(id);
+            if((m != null) && m.isPersistentMarker()) return m.getPersistentData();
+        }
+        return null;
+    }
+    
+    /* Write journal record for each changed node, from its current state */
+    private void writeJournalRecords() {
+        for(Map.Entry<String, String[]> me : journal_keys.entrySet()) {
+            String[] path = me.getValue();
+            String op = MarkerJournal.OP_PUT;
+            Map<String, Object> data = null;
+            if(path[0].equals("icons")) {
+                MarkerIconImpl ico = markericons.get(path[1]);
+                if(ico != null) data = ico.getPersistentData();
+            }
+            else if(path[0].equals("playersets")) {
+                PlayerSetImpl ps = playersets.get(path[1]);
+                if((ps != null) && ps.isPersistentSet()) data = ps.getPersistentData();
+            }
+            else {
+                MarkerSetImpl set = markersets.get(path[1]);
+                if((set != null) && set.isMarkerSetPersistent()) {
+                    if(path.length == 2) {  /* Set's own settings */
+                        op = MarkerJournal.OP_ATTRS;
+                        data = set.getPersistentAttributes();
+                    }
+                    else {
+                        data = getMarkerPersistentData(set, path[2], path[3]);
+                    }
+                }
+            }
+            journal.addRecord((data != null) ? op : MarkerJournal.OP_DEL, path, data);
+        }
+        journal_keys.clear();
+        journal.flush();
+    }
+    
+    /* Save markers: as journal records when changes are known, else (or if compacting) as new markers.yml */
+    private void doSaveMarkers(boolean compact) {
         if(api != null) {
+            if((journal != null) && (!compact) && (!journal_keys.isEmpty()) &&
+                (journal.getRecordCount() + journal_keys.size() <= journal_compact)) {
+                writeJournalRecords();
+                if(!api.sharded)
+                    api.freshenMarkerFiles();
+                return;
+            }
+            journal_keys.clear();   /* All in snapshot */
             final ConfigurationNode conf = new ConfigurationNode(api.markerpersist);  /* Make configuration object */
             /* First, save icon definitions */
             HashMap<String, Object> icons = new HashMap<String,Object>();
@@ -639,7 +910,10 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
             }
             conf.put("playersets", psets);
             
-            MapManager.scheduleDelayedJob(new Runnable() {
+            if(journal != null) {   /* Written after journal records already queued, then replaces journal */
+                journal.snapshot(conf, api.markerpersist, api.markerpersist_old);
+            }
+            else MapManager.scheduleDelayedJob(new Runnable() {
                 public void run() {
                     /* And shift old file file out */
                     if(api.markerpersist_old.exists()) api.markerpersist_old.delete();
@@ -649,8 +923,9 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
                         Log.severe("Error writing markers - " + api.markerpersist.getPath());
                 }
             }, 0);
-            /* Refresh JSON files */
-            api.freshenMarkerFiles();
+            /* Refresh JSON files (shards are refreshed as their marker sets change) */
+            if(!api.sharded)
+                api.freshenMarkerFiles();
         }
     }
 
@@ -668,6 +943,10 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
     private boolean loadMarkers() {        
         ConfigurationNode conf = new ConfigurationNode(api.markerpersist);  /* Make configuration object */
         conf.load();    /* Load persistence */
+        /* Apply changes journaled since markers.yml was written */
+        if((journal != null) && (journal.replay(conf) > 0)) {
+            dirty_markers = true;   /* Compact at next save */
+        }
         /* Get icons */
         
         ConfigurationNode icons = conf.getNode("icons");
@@ -703,6 +982,19 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
     }
     
     enum MarkerUpdate { CREATED, UPDATED, DELETED };
+
+    /* Mark marker file for world dirty, after change to marker in given set */
+    private void markerFileDirty(String world, MarkerSet set) {
+        if(sharded) {
+            /* Marker may have moved from another world, so set's shards for all worlds are checked */
+            dirty_sets.add(set.getMarkerSetID());
+            if(!shardhashes.containsKey(world))
+                dirty_worlds.add(world);
+        }
+        else {
+            dirty_worlds.add(world);
+        }
+    }
     
     /**
      * Signal marker update
@@ -711,10 +1003,14 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      */
     static void markerUpdated(MarkerImpl marker, MarkerUpdate update) {
         /* Freshen marker file for the world for this marker */
-        if(api != null)
-            api.dirty_worlds.add(marker.getNormalizedWorld());
+        if(api != null) {
+            api.markerFileDirty(marker.getNormalizedWorld(), marker.getMarkerSet());
+            api.indexMarker(marker, marker.getNormalizedWorld(), update == MarkerUpdate.DELETED);
+            if(marker.isPersistentMarker())
+                api.journalChange("sets", marker.getMarkerSet().getMarkerSetID(), "markers", marker.getMarkerID());
+        }
         /* Enqueue client update */
-        if(MapManager.mapman != null)
+        if((MapManager.mapman != null) && (!isBulkChange(marker)))
             MapManager.mapman.pushUpdate(marker.getNormalizedWorld(), new MarkerUpdated(marker, update == MarkerUpdate.DELETED));
     }
     /**
@@ -724,10 +1020,14 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      */
     static void areaMarkerUpdated(AreaMarkerImpl marker, MarkerUpdate update) {
         /* Freshen marker file for the world for this marker */
-        if(api != null)
-            api.dirty_worlds.add(marker.getNormalizedWorld());
+        if(api != null) {
+            api.markerFileDirty(marker.getNormalizedWorld(), marker.getMarkerSet());
+            api.indexMarker(marker, marker.getNormalizedWorld(), update == MarkerUpdate.DELETED);
+            if(marker.isPersistentMarker())
+                api.journalChange("sets", marker.getMarkerSet().getMarkerSetID(), "areas", marker.getMarkerID());
+        }
         /* Enqueue client update */
-        if(MapManager.mapman != null)
+        if((MapManager.mapman != null) && (!isBulkChange(marker)))
             MapManager.mapman.pushUpdate(marker.getNormalizedWorld(), new AreaMarkerUpdated(marker, update == MarkerUpdate.DELETED));
     }
     /**
@@ -737,10 +1037,14 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      */
     static void polyLineMarkerUpdated(PolyLineMarkerImpl marker, MarkerUpdate update) {
         /* Freshen marker file for the world for this marker */
-        if(api != null)
-            api.dirty_worlds.add(marker.getNormalizedWorld());
+        if(api != null) {
+            api.markerFileDirty(marker.getNormalizedWorld(), marker.getMarkerSet());
+            api.indexMarker(marker, marker.getNormalizedWorld(), update == MarkerUpdate.DELETED);
+            if(marker.isPersistentMarker())
+                api.journalChange("sets", marker.getMarkerSet().getMarkerSetID(), "lines", marker.getMarkerID());
+        }
         /* Enqueue client update */
-        if(MapManager.mapman != null)
+        if((MapManager.mapman != null) && (!isBulkChange(marker)))
             MapManager.mapman.pushUpdate(marker.getNormalizedWorld(), new PolyLineMarkerUpdated(marker, update == MarkerUpdate.DELETED));
     }
     /**
@@ -750,10 +1054,14 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      */
     static void circleMarkerUpdated(CircleMarkerImpl marker, MarkerUpdate update) {
         /* Freshen marker file for the world for this marker */
-        if(api != null)
-            api.dirty_worlds.add(marker.getNormalizedWorld());
+        if(api != null) {
+            api.markerFileDirty(marker.getNormalizedWorld(), marker.getMarkerSet());
+            api.indexMarker(marker, marker.getNormalizedWorld(), update == MarkerUpdate.DELETED);
+            if(marker.isPersistentMarker())
+                api.journalChange("sets", marker.getMarkerSet().getMarkerSetID(), "circles", marker.getMarkerID());
+        }
         /* Enqueue client update */
-        if(MapManager.mapman != null)
+        if((MapManager.mapman != null) && (!isBulkChange(marker)))
             MapManager.mapman.pushUpdate(marker.getNormalizedWorld(), new CircleMarkerUpdated(marker, update == MarkerUpdate.DELETED));
     }
     /**
@@ -763,8 +1071,20 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      */
     static void markerSetUpdated(MarkerSetImpl markerset, MarkerUpdate update) {
         /* Freshen all marker files */
-        if(api != null)
-            api.freshenMarkerFiles();
+        if(api != null) {
+            if(api.sharded)
+                api.dirty_sets.add(markerset.getMarkerSetID());
+            else
+                api.freshenMarkerFiles();
+            if(update == MarkerUpdate.DELETED)
+                api.unindexMarkerSet(markerset);
+            if(markerset.isMarkerSetPersistent()) {
+                if(update == MarkerUpdate.DELETED)
+                    api.journalSetDeleted(markerset.getMarkerSetID());
+                else
+                    api.journalChange("sets", markerset.getMarkerSetID());
+            }
+        }
         /* Enqueue client update */
         if(MapManager.mapman != null)
             MapManager.mapman.pushUpdate(new MarkerSetUpdated(markerset, update == MarkerUpdate.DELETED));
@@ -775,8 +1095,11 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      * @param update - type of update
      */
     static void playerSetUpdated(PlayerSetImpl pset, MarkerUpdate update) {
-        if(api != null)
+        if(api != null) {
+            if(pset.isPersistentSet())
+                api.journalChange("playersets", pset.getSetID());
             api.core.events.trigger("playersetupdated", null);
+        }
     }
     
     /**
@@ -785,6 +1108,10 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
     static void removeMarkerSet(MarkerSetImpl markerset) {
         if(api != null) {
             api.markersets.remove(markerset.getMarkerSetID());  /* Remove set from list */
+            while(markerset.isBulkUpdate()) {   /* Close any bulk updates of set */
+                markerset.endBulkUpdate();
+            }
+            api.bulksets.remove(markerset.getMarkerSetID());
             if(markerset.isMarkerSetPersistent()) {   /* If persistent */
                 MarkerAPIImpl.saveMarkers();        /* Drive save */
             }
@@ -2929,165 +3256,368 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         }
         return true;
     }
+    private static final char[] HEXDIGITS = "0123456789ABCDEF".toCharArray();
+    private static final int SANITIZE_CACHE_LIMIT = 65536;
+    private ConcurrentHashMap<String, String> sanitized = new ConcurrentHashMap<String, String>();  // Sanitized labels and descriptions, for marker files and queries
+    private final ConcurrentLinkedQueue<BufferOutputStream> markerbufs = new ConcurrentLinkedQueue<BufferOutputStream>();
+
+    /* Sanitize label or description for marker file: most are unchanged between writes, so reuse results */
+    private String sanitizeForFile(String s) {
+        String v = sanitized.get(s);
+        if (v == null) {
+            if (sanitized.size() >= SANITIZE_CACHE_LIMIT) {
+                sanitized.clear();
+            }
+            v = Client.sanitizeHTML(s);
+            sanitized.put(s, v);
+        }
+        return v;
+    }
+
+    /* Color as #RRGGBB */
+    private static String colorString(int c) {
+        if ((c & 0xFF000000) != 0) {
+            return String.format("#%06X", c);
+        }
+        char[] v = new char[7];
+        v[0] = '#';
+        for (int i = 6; i > 0; i--) {
+            v[i] = HEXDIGITS[c & 0xF];
+            c >>= 4;
+        }
+        return new String(v);
+    }
+
+    /* Write label, description and zoom limits common to all marker types */
+    private void writeMarkerCommon(JsonWriter w, MarkerDescription m) {
+        w.field("label", sanitizeForFile(m.getLabel()));
+        w.field("markup", m.isLabelMarkup());
+        if (m.getDescription() != null)
+            w.field("desc", sanitizeForFile(m.getDescription()));
+        if (m.getMinZoom() >= 0) {
+            w.field("minzoom", m.getMinZoom());
+        }
+        if (m.getMaxZoom() >= 0) {
+            w.field("maxzoom", m.getMaxZoom());
+        }
+    }
+
+    /* Write marker set's own settings, as fields */
+    private void writeMarkerSetFields(JsonWriter w, MarkerSet ms) {
+        w.field("label", ms.getMarkerSetLabel());
+        w.field("hide", ms.getHideByDefault());
+        w.field("layerprio", ms.getLayerPriority());
+        if (ms.getMinZoom() >= 0) {
+            w.field("minzoom", ms.getMinZoom());
+        }
+        if (ms.getMaxZoom() >= 0) {
+            w.field("maxzoom", ms.getMaxZoom());
+        }
+        if(ms.getLabelShow() != null) {
+            w.field("showlabels", ms.getLabelShow().booleanValue());
+        }
+    }
+
+    private void writeMarker(JsonWriter w, Marker m) {
+        w.name(m.getMarkerID());
+        w.beginObject();
+        w.field("x", m.getX());
+        w.field("y", m.getY());
+        w.field("z", m.getZ());
+        MarkerIcon mi = m.getMarkerIcon();
+        if(mi == null)
+            mi = MarkerAPIImpl.getMarkerIconImpl(MarkerIcon.DEFAULT);
+        w.field("icon", mi.getMarkerIconID());
+        w.field("dim", mi.getMarkerIconSize().getSize());
+        writeMarkerCommon(w, m);
+        w.endObject();
+    }
+
+    /* Write area marker, with its corners or given corners (x == null for its own) */
+    private void writeAreaMarker(JsonWriter w, AreaMarker m, double[] x, double[] z, int cnt) {
+        w.name(m.getMarkerID());
+        w.beginObject();
+        if(x == null)
+            cnt = m.getCornerCount();
+        w.name("x");
+        w.beginArray();
+        for(int i = 0; i < cnt; i++) {
+            w.value((x != null) ? x[i] : m.getCornerX(i));
+        }
+        w.endArray();
+        w.field("ytop", m.getTopY());
+        w.field("ybottom", m.getBottomY());
+        w.name("z");
+        w.beginArray();
+        for(int i = 0; i < cnt; i++) {
+            w.value((x != null) ? z[i] : m.getCornerZ(i));
+        }
+        w.endArray();
+        w.field("color", colorString(m.getLineColor()));
+        w.field("fillcolor", colorString(m.getFillColor()));
+        w.field("opacity", m.getLineOpacity());
+        w.field("fillopacity", m.getFillOpacity());
+        w.field("weight", m.getLineWeight());
+        writeMarkerCommon(w, m);
+        w.endObject();
+    }
+
+    /* Write poly-line marker, with its corners or given corners (idx == null for all of its own) */
+    private void writePolyLineMarker(JsonWriter w, PolyLineMarker m, double[] x, double[] y, double[] z, int[] idx, int first, int last) {
+        w.name(m.getMarkerID());
+        w.beginObject();
+        if(idx == null) {
+            first = 0;
+            last = m.getCornerCount() - 1;
+        }
+        w.name("x");
+        w.beginArray();
+        for(int i = first; i <= last; i++) {
+            w.value((idx != null) ? x[idx[i]] : m.getCornerX(i));
+        }
+        w.endArray();
+        w.name("y");
+        w.beginArray();
+        for(int i = first; i <= last; i++) {
+            w.value((idx != null) ? y[idx[i]] : m.getCornerY(i));
+        }
+        w.endArray();
+        w.name("z");
+        w.beginArray();
+        for(int i = first; i <= last; i++) {
+            w.value((idx != null) ? z[idx[i]] : m.getCornerZ(i));
+        }
+        w.endArray();
+        w.field("color", colorString(m.getLineColor()));
+        w.field("opacity", m.getLineOpacity());
+        w.field("weight", m.getLineWeight());
+        writeMarkerCommon(w, m);
+        w.endObject();
+    }
+
+    private void writeCircleMarker(JsonWriter w, CircleMarker m) {
+        w.name(m.getMarkerID());
+        w.beginObject();
+        w.field("x", m.getCenterX());
+        w.field("y", m.getCenterY());
+        w.field("z", m.getCenterZ());
+        w.field("xr", m.getRadiusX());
+        w.field("zr", m.getRadiusZ());
+        w.field("color", colorString(m.getLineColor()));
+        w.field("fillcolor", colorString(m.getFillColor()));
+        w.field("opacity", m.getLineOpacity());
+        w.field("fillopacity", m.getFillOpacity());
+        w.field("weight", m.getLineWeight());
+        writeMarkerCommon(w, m);
+        w.endObject();
+    }
+
+    /* Write marker set, with its markers on given world, as object */
+    private void writeMarkerSet(JsonWriter w, MarkerSet ms, String wname) {
+        w.beginObject();
+        writeMarkerSetFields(w, ms);
+        w.name("markers");
+        w.beginObject();
+        for(Marker m : ms.getMarkers()) {
+            if(m.getWorld().equals(wname) == false) continue;
+            writeMarker(w, m);
+        }
+        w.endObject(); /* End of markers of set */
+
+        w.name("areas");
+        w.beginObject();
+        for(AreaMarker m : ms.getAreaMarkers()) {
+            if(m.getWorld().equals(wname) == false) continue;
+            writeAreaMarker(w, m, null, null, 0);
+        }
+        w.endObject(); /* End of areamarkers of set */
+
+        w.name("lines");
+        w.beginObject();
+        for(PolyLineMarker m : ms.getPolyLineMarkers()) {
+            if(m.getWorld().equals(wname) == false) continue;
+            writePolyLineMarker(w, m, null, null, null, null, 0, 0);
+        }
+        w.endObject(); /* End of polylinemarkers of set */
+
+        w.name("circles");
+        w.beginObject();
+        for(CircleMarker m : ms.getCircleMarkers()) {
+            if(m.getWorld().equals(wname) == false) continue;
+            writeCircleMarker(w, m);
+        }
+        w.endObject(); /* End of circle markers of set */
+
+        w.endObject(); /* End of marker set */
+    }
+
+    private BufferOutputStream getMarkerBuffer() {
+        BufferOutputStream buf = markerbufs.poll();
+        if (buf == null) {
+            buf = new BufferOutputStream();
+        }
+        buf.reset();
+        return buf;
+    }
+
     /**
-     * Write markers file for given world
+     * Write markers file for given world: the markers are serialized straight into a buffer (reused
+     * between writes), which is written to storage by a job
      */
     private void writeMarkersFile(final String wname) {
-        Map<String, Object> markerdata = new HashMap<String, Object>();
-                
-        final Map<String, Object> worlddata = new HashMap<String, Object>();
-        worlddata.put("timestamp", Long.valueOf(System.currentTimeMillis()));   /* Add timestamp */
-
+        final BufferOutputStream content = getMarkerBuffer();
+        JsonWriter w = new JsonWriter(content);
+        w.beginObject();
+        w.field("timestamp", System.currentTimeMillis());   /* Add timestamp */
+        w.name("sets");
+        w.beginObject();
         for(MarkerSet ms : markersets.values()) {
-            HashMap<String, Object> msdata = new HashMap<String, Object>();
-            msdata.put("label", ms.getMarkerSetLabel());
-            msdata.put("hide", ms.getHideByDefault());
-            msdata.put("layerprio", ms.getLayerPriority());
-            if (ms.getMinZoom() >= 0) {
-                msdata.put("minzoom", ms.getMinZoom());
-            }
-            if (ms.getMaxZoom() >= 0) {
-                msdata.put("maxzoom", ms.getMaxZoom());
-            }
-            if(ms.getLabelShow() != null) {
-                msdata.put("showlabels", ms.getLabelShow());
-            }
-            HashMap<String, Object> markers = new HashMap<String, Object>();
-            for(Marker m : ms.getMarkers()) {
-                if(m.getWorld().equals(wname) == false) continue;
-                
-                HashMap<String, Object> mdata = new HashMap<String, Object>();
-                mdata.put("x", m.getX());
-                mdata.put("y", m.getY());
-                mdata.put("z", m.getZ());
-                MarkerIcon mi = m.getMarkerIcon();
-                if(mi == null)
-                    mi = MarkerAPIImpl.getMarkerIconImpl(MarkerIcon.DEFAULT);
-                mdata.put("icon", mi.getMarkerIconID());
-                mdata.put("dim", mi.getMarkerIconSize().getSize());
-                mdata.put("label", Client.sanitizeHTML(m.getLabel()));
-                mdata.put("markup", m.isLabelMarkup());
-                if(m.getDescription() != null)
-                    mdata.put("desc", Client.sanitizeHTML(m.getDescription()));
-                if (m.getMinZoom() >= 0) {
-                    mdata.put("minzoom", m.getMinZoom());
-                }
-                if (m.getMaxZoom() >= 0) {
-                    mdata.put("maxzoom", m.getMaxZoom());
-                }
-                /* Add to markers */
-                markers.put(m.getMarkerID(), mdata);
-            }
-            msdata.put("markers", markers); /* Add markers to set data */
-
-            HashMap<String, Object> areas = new HashMap<String, Object>();
-            for(AreaMarker m : ms.getAreaMarkers()) {
-                if(m.getWorld().equals(wname) == false) continue;
-                
-                HashMap<String, Object> mdata = new HashMap<String, Object>();
-                int cnt = m.getCornerCount();
-                List<Double> xx = new ArrayList<Double>();
-                List<Double> zz = new ArrayList<Double>();
-                for(int i = 0; i < cnt; i++) {
-                    xx.add(m.getCornerX(i));
-                    zz.add(m.getCornerZ(i));
-                }
-                mdata.put("x", xx);
-                mdata.put("ytop", m.getTopY());
-                mdata.put("ybottom", m.getBottomY());
-                mdata.put("z", zz);
-                mdata.put("color", String.format("#%06X", m.getLineColor()));
-                mdata.put("fillcolor", String.format("#%06X", m.getFillColor()));
-                mdata.put("opacity", m.getLineOpacity());
-                mdata.put("fillopacity", m.getFillOpacity());
-                mdata.put("weight", m.getLineWeight());
-                mdata.put("label", Client.sanitizeHTML(m.getLabel()));
-                mdata.put("markup", m.isLabelMarkup());
-                if(m.getDescription() != null)
-                    mdata.put("desc", Client.sanitizeHTML(m.getDescription()));
-                if (m.getMinZoom() >= 0) {
-                    mdata.put("minzoom", m.getMinZoom());
-                }
-                if (m.getMaxZoom() >= 0) {
-                    mdata.put("maxzoom", m.getMaxZoom());
-                }
-                /* Add to markers */
-                areas.put(m.getMarkerID(), mdata);
-            }
-            msdata.put("areas", areas); /* Add areamarkers to set data */
-
-            HashMap<String, Object> lines = new HashMap<String, Object>();
-            for(PolyLineMarker m : ms.getPolyLineMarkers()) {
-                if(m.getWorld().equals(wname) == false) continue;
-                
-                HashMap<String, Object> mdata = new HashMap<String, Object>();
-                int cnt = m.getCornerCount();
-                List<Double> xx = new ArrayList<Double>();
-                List<Double> yy = new ArrayList<Double>();
-                List<Double> zz = new ArrayList<Double>();
-                for(int i = 0; i < cnt; i++) {
-                    xx.add(m.getCornerX(i));
-                    yy.add(m.getCornerY(i));
-                    zz.add(m.getCornerZ(i));
-                }
-                mdata.put("x", xx);
-                mdata.put("y", yy);
-                mdata.put("z", zz);
-                mdata.put("color", String.format("#%06X", m.getLineColor()));
-                mdata.put("opacity", m.getLineOpacity());
-                mdata.put("weight", m.getLineWeight());
-                mdata.put("label", Client.sanitizeHTML(m.getLabel()));
-                mdata.put("markup", m.isLabelMarkup());
-                if(m.getDescription() != null)
-                    mdata.put("desc", Client.sanitizeHTML(m.getDescription()));
-                if (m.getMinZoom() >= 0) {
-                    mdata.put("minzoom", m.getMinZoom());
-                }
-                if (m.getMaxZoom() >= 0) {
-                    mdata.put("maxzoom", m.getMaxZoom());
-                }
-                /* Add to markers */
-                lines.put(m.getMarkerID(), mdata);
-            }
-            msdata.put("lines", lines); /* Add polylinemarkers to set data */
-
-            HashMap<String, Object> circles = new HashMap<String, Object>();
-            for(CircleMarker m : ms.getCircleMarkers()) {
-                if(m.getWorld().equals(wname) == false) continue;
-                
-                HashMap<String, Object> mdata = new HashMap<String, Object>();
-                mdata.put("x", m.getCenterX());
-                mdata.put("y", m.getCenterY());
-                mdata.put("z", m.getCenterZ());
-                mdata.put("xr", m.getRadiusX());
-                mdata.put("zr", m.getRadiusZ());
-                mdata.put("color", String.format("#%06X", m.getLineColor()));
-                mdata.put("fillcolor", String.format("#%06X", m.getFillColor()));
-                mdata.put("opacity", m.getLineOpacity());
-                mdata.put("fillopacity", m.getFillOpacity());
-                mdata.put("weight", m.getLineWeight());
-                mdata.put("label", Client.sanitizeHTML(m.getLabel()));
-                mdata.put("markup", m.isLabelMarkup());
-                if(m.getDescription() != null)
-                    mdata.put("desc", Client.sanitizeHTML(m.getDescription()));
-                if (m.getMinZoom() >= 0) {
-                    mdata.put("minzoom", m.getMinZoom());
-                }
-                if (m.getMaxZoom() >= 0) {
-                    mdata.put("maxzoom", m.getMaxZoom());
-                }
-                /* Add to markers */
-                circles.put(m.getMarkerID(), mdata);
-            }
-            msdata.put("circles", circles); /* Add circle markers to set data */
-
-            markerdata.put(ms.getMarkerSetID(), msdata);    /* Add marker set data to world marker data */
-        }
-        worlddata.put("sets", markerdata);
+            w.name(ms.getMarkerSetID());
+            writeMarkerSet(w, ms, wname);
+        }
+        w.endObject(); /* End of sets */
+        w.endObject();
+
+        MapManager.scheduleDelayedJob(new Runnable() {
+            public void run() {
+                core.getDefaultMapStorage().setMarkerFile(wname, content);
+                markerbufs.offer(content);  /* Reuse for later writes */
+            }
+        }, 0);
+    }
+
+    /**
+     * Get marker file ID of shard for given world and marker set: characters of the world name and set ID
+     * other than letters and digits are escaped (as _XXXX), so the ID is safe in file names and URLs, and
+     * the two are joined by '~', which neither escaped part contains.  Shard IDs are thus distinct, and
+     * cannot be the name of a world (whose index is its marker file) unless the name contains '~'.
+     */
+    private static String getShardFileID(String wname, String setid) {
+        StringBuilder sb = new StringBuilder(wname.length() + setid.length() + 1);
+        appendEscapedID(sb, wname);
+        sb.append('~');
+        appendEscapedID(sb, setid);
+        return sb.toString();
+    }
+
+    private static void appendEscapedID(StringBuilder sb, String id) {
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if (((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z')) || ((c >= '0') && (c <= '9'))) {
+                sb.append(c);
+            }
+            else {
+                sb.append('_').append(HEXDIGITS[(c >> 12) & 0xF]).append(HEXDIGITS[(c >> 8) & 0xF]);
+                sb.append(HEXDIGITS[(c >> 4) & 0xF]).append(HEXDIGITS[c & 0xF]);
+            }
+        }
+    }
+
+    /**
+     * Write marker shards for given world: one file for each marker set, with the set's markers on the world,
+     * and an index (the world's marker file) listing the shards with a hash of each.  Shards are only
+     * written when their content has changed, and the index when any shard has.  All are written by
+     * one job, shards first, so the index never lists a shard not yet written.
+     * @param wname - world name
+     * @param sets - IDs of marker sets changed (null for all)
+     */
+    private void writeMarkerShards(final String wname, Collection<String> sets) {
+        TreeMap<String, String> hashes = shardhashes.get(wname);
+        boolean changed = false;
+        if (hashes == null) {
+            hashes = new TreeMap<String, String>();
+            shardhashes.put(wname, hashes);
+            sets = null;
+            changed = true;
+        }
+        if (sets == null) {
+            HashSet<String> ids = new HashSet<String>(markersets.keySet());
+            ids.addAll(hashes.keySet());
+            sets = ids;
+        }
+        long now = System.currentTimeMillis();
+        final ArrayList<String> ids = new ArrayList<String>();
+        final ArrayList<BufferOutputStream> bufs = new ArrayList<BufferOutputStream>();
+        for (String setid : sets) {
+            MarkerSet ms = markersets.get(setid);
+            if (bulksets.contains(setid)) {     /* Bulk update open: written once committed */
+                dirty_sets.add(setid);
+                continue;
+            }
+            if (ms == null) {   /* Deleted set: delete shard */
+                if (hashes.remove(setid) != null) {
+                    ids.add(getShardFileID(wname, setid));
+                    bufs.add(null);
+                    changed = true;
+                }
+                continue;
+            }
+            BufferOutputStream buf = getMarkerBuffer();
+            JsonWriter w = new JsonWriter(buf);
+            w.beginObject();
+            w.field("timestamp", now);
+            int start = w.length();     /* Timestamp left out of hash */
+            w.name("set");
+            writeMarkerSet(w, ms, wname);
+            w.endObject();
+            String hash = null;
+            if (shardmd != null) {
+                shardmd.reset();
+                shardmd.update(buf.buf, start, buf.len - start);
+                byte[] h = shardmd.digest();
+                char[] hc = new char[2 * h.length];
+                for (int i = 0; i < h.length; i++) {
+                    hc[2*i] = HEXDIGITS[(h[i] >> 4) & 0xF];
+                    hc[2*i+1] = HEXDIGITS[h[i] & 0xF];
+                }
+                hash = new String(hc);
+            }
+            else {
+                hash = Long.toHexString(now);
+            }
+            if (hash.equals(hashes.get(setid))) {   /* Unchanged */
+                markerbufs.offer(buf);
+                continue;
+            }
+            hashes.put(setid, hash);
+            ids.add(getShardFileID(wname, setid));
+            bufs.add(buf);
+            changed = true;
+        }
+        if (!changed) {
+            return;
+        }
+        final BufferOutputStream index = getMarkerBuffer();
+        JsonWriter w = new JsonWriter(index);
+        w.beginObject();
+        w.field("timestamp", now);
+        w.name("shards");
+        w.beginObject();
+        for (Entry<String, String> me : hashes.entrySet()) {
+            w.name(me.getKey());
+            w.beginObject();
+            w.field("file", getShardFileID(wname, me.getKey()));
+            w.field("hash", me.getValue());
+            w.endObject();
+        }
+        w.endObject();
+        w.endObject();
 
         MapManager.scheduleDelayedJob(new Runnable() {
             public void run() {
-                core.getDefaultMapStorage().setMarkerFile(wname, Json.stringifyJson(worlddata));
+                MapStorage ms = core.getDefaultMapStorage();
+                for (int i = 0; i < ids.size(); i++) {
+                    BufferOutputStream buf = bufs.get(i);
+                    if (buf != null) {
+                        ms.setMarkerFile(ids.get(i), buf);
+                        markerbufs.offer(buf);
+                    }
+                    else {
+                        ms.setMarkerFile(ids.get(i), (String) null);
+                    }
+                }
+                ms.setMarkerFile(wname, index);
+                markerbufs.offer(index);
             }
         }, 0);
     }
@@ -3120,6 +3650,7 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
         
         /* Remove from marker icons */
         api.markericons.remove(ico.getMarkerIconID());
+        iconUpdated(ico.getMarkerIconID());
         saveMarkers();
     }
     /**
@@ -3178,11 +3709,375 @@ public class MarkerAPIImpl implements MarkerAPI, Event.Listener<DynmapWorld> {
      */
     public static boolean testTileForBoostMarkers(DynmapWorld w, HDPerspective perspective, double tile_x, double tile_y, double tile_dim) {
         if (api == null) return false;
-        for(MarkerSetImpl ms : api.markersets.values()) {
-            if(ms.testTileForBoostMarkers(w, perspective, tile_x, tile_y, tile_dim)) {
-                return true;
+        BoostIndex bi = api.getBoostIndex(w.getName(), perspective);
+        if (bi.index.size() == 0) return false;
+        ArrayList<MarkerDescription> found = new ArrayList<MarkerDescription>();
+        bi.index.query(tile_x, tile_y, tile_x + tile_dim, tile_y + tile_dim, found);
+        for (MarkerDescription md : found) {
+            if (md instanceof AreaMarkerImpl) {
+                if (((AreaMarkerImpl) md).testTileForBoostMarkers(w, perspective, tile_x, tile_y, tile_dim)) {
+                    return true;
+                }
+            }
+            else if (md instanceof CircleMarkerImpl) {
+                if (((CircleMarkerImpl) md).testTileForBoostMarkers(w, perspective, tile_x, tile_y, tile_dim)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Find markers of a world whose bounds intersect given area
+     * @param world - world name
+     * @param xmin - minimum X of area
+     * @param zmin - minimum Z of area
+     * @param xmax - maximum X of area
+     * @param zmax - maximum Z of area
+     * @return markers, area markers, poly-line markers and circle markers found
+     */
+    public List<MarkerDescription> getMarkersInBounds(String world, double xmin, double zmin, double xmax, double zmax) {
+        ArrayList<MarkerDescription> rslt = new ArrayList<MarkerDescription>();
+        MarkerSpatialIndex<MarkerDescription> idx = worldindex.get(DynmapWorld.normalizeWorldName(world));
+        if (idx != null) {
+            idx.query(xmin, zmin, xmax, zmax, rslt);
+        }
+        return rslt;
+    }
+    
+    /* Copy corners of area or poly-line marker: called on the thread changing the marker, as it is indexed */
+    private static MarkerCorners copyCorners(MarkerDescription md) {
+        MarkerCorners c = new MarkerCorners();
+        if (md instanceof AreaMarkerImpl) {
+            AreaMarkerImpl m = (AreaMarkerImpl) md;
+            int cnt = m.getCornerCount();
+            c.x = new double[cnt];
+            c.z = new double[cnt];
+            for (int i = 0; i < cnt; i++) {
+                c.x[i] = m.getCornerX(i);
+                c.z[i] = m.getCornerZ(i);
+            }
+        }
+        else {
+            PolyLineMarkerImpl m = (PolyLineMarkerImpl) md;
+            int cnt = m.getCornerCount();
+            c.x = new double[cnt];
+            c.y = new double[cnt];
+            c.z = new double[cnt];
+            for (int i = 0; i < cnt; i++) {
+                c.x[i] = m.getCornerX(i);
+                c.y[i] = m.getCornerY(i);
+                c.z[i] = m.getCornerZ(i);
+            }
+        }
+        return c;
+    }
+    
+    /* Build levels of detail for area or poly-line marker, from copy of its corners */
+    private static MarkerLOD buildMarkerLOD(MarkerDescription md, MarkerCorners c) {
+        MarkerLOD lod = new MarkerLOD();
+        boolean closed = (md instanceof AreaMarkerImpl);
+        if (closed && (c.x.length == 2)) {  /* Rectangle from opposite corners */
+            double x0 = c.x[0], z0 = c.z[0], x1 = c.x[1], z1 = c.z[1];
+            lod.x = new double[] { x0, x0, x1, x1 };
+            lod.z = new double[] { z0, z1, z1, z0 };
+        }
+        else {
+            lod.x = c.x;
+            lod.y = c.y;
+            lod.z = c.z;
+        }
+        double[] b = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int i = 0; i < lod.x.length; i++) {
+            addToBounds(b, lod.x[i], lod.z[i]);
+        }
+        lod.xmin = b[0]; lod.zmin = b[1]; lod.xmax = b[2]; lod.zmax = b[3];
+        int n = lod.x.length;
+        for (int lvl = 0; lvl < LOD_LEVELS; lvl++) {
+            double tol = (lvl == 0) ? 0.0 : (double) (1 << (lvl - 1));
+            int[] idx = closed ? PolylineSimplifier.simplifyPolygon(lod.x, lod.z, n, tol) : PolylineSimplifier.simplifyLine(lod.x, lod.z, n, tol);
+            if ((lvl > 0) && Arrays.equals(idx, lod.levels[lvl - 1])) {  /* Same as previous level: share it */
+                idx = lod.levels[lvl - 1];
             }
+            lod.levels[lvl] = idx;
         }
+        return lod;
+    }
+    
+    /* Get levels of detail of indexed area or poly-line marker (null if no longer indexed) */
+    private MarkerLOD getMarkerLOD(MarkerDescription md) {
+        MarkerLOD lod = lodcache.get(md);
+        if (lod == null) {
+            long gen;
+            MarkerCorners c;
+            synchronized(indexlock) {
+                gen = lodgen;
+                c = indexedcorners.get(md);
+            }
+            if (c == null) {    /* Deleted since found */
+                return null;
+            }
+            lod = buildMarkerLOD(md, c);
+            synchronized(indexlock) {
+                if ((gen == lodgen) && indexedworld.containsKey(md)) {   /* Not changed (or deleted) while being built */
+                    lodcache.put(md, lod);
+                }
+            }
+        }
+        return lod;
+    }
+    
+    private static MarkerSet getMarkerSetOf(MarkerDescription md) {
+        if (md instanceof MarkerImpl) return ((MarkerImpl) md).getMarkerSet();
+        if (md instanceof AreaMarkerImpl) return ((AreaMarkerImpl) md).getMarkerSet();
+        if (md instanceof PolyLineMarkerImpl) return ((PolyLineMarkerImpl) md).getMarkerSet();
+        if (md instanceof CircleMarkerImpl) return ((CircleMarkerImpl) md).getMarkerSet();
+        return null;
+    }
+    
+    /**
+     * Write markers of world in given area, for a client showing only that area: all marker sets are written
+     * (so the client has all of their layers), each with only its markers whose bounds intersect the area.
+     * Area and poly-line marker corners are simplified for the zoom level, and clipped to the area.
+     * @param w - writer
+     * @param world - world name
+     * @param xmin - minimum X of area
+     * @param zmin - minimum Z of area
+     * @param xmax - maximum X of area
+     * @param zmax - maximum Z of area
+     * @param zoom - zoom-out level of map shown (0 for full resolution): corners are kept to within 2^(zoom-1) blocks
+     */
+    public void writeMarkersInBounds(JsonWriter w, String world, double xmin, double zmin, double xmax, double zmax, int zoom) {
+        int lvl = Math.max(0, Math.min(zoom, LOD_LEVELS - 1));
+        /* Group markers found by set */
+        IdentityHashMap<MarkerSet, List<MarkerDescription>> byset = new IdentityHashMap<MarkerSet, List<MarkerDescription>>();
+        for (MarkerDescription md : getMarkersInBounds(world, xmin, zmin, xmax, zmax)) {
+            MarkerSet ms = getMarkerSetOf(md);
+            if (ms == null) continue;
+            List<MarkerDescription> lst = byset.get(ms);
+            if (lst == null) {
+                lst = new ArrayList<MarkerDescription>();
+                byset.put(ms, lst);
+            }
+            lst.add(md);
+        }
+        List<MarkerDescription> none = Collections.emptyList();
+        w.beginObject();
+        w.field("timestamp", System.currentTimeMillis());
+        w.name("sets");
+        w.beginObject();
+        for (MarkerSet ms : markersets.values()) {
+            List<MarkerDescription> lst = byset.get(ms);
+            if (lst == null) lst = none;
+            w.name(ms.getMarkerSetID());
+            w.beginObject();
+            writeMarkerSetFields(w, ms);
+            w.name("markers");
+            w.beginObject();
+            for (MarkerDescription md : lst) {
+                if (md instanceof MarkerImpl) writeMarker(w, (MarkerImpl) md);
+            }
+            w.endObject();
+            w.name("areas");
+            w.beginObject();
+            for (MarkerDescription md : lst) {
+                if (!(md instanceof AreaMarkerImpl)) continue;
+                MarkerLOD lod = getMarkerLOD(md);
+                if (lod == null) continue;
+                int[] idx = lod.levels[lvl];
+                Polygon poly = new Polygon();
+                for (int i : idx) {
+                    poly.addVertex(lod.x[i], lod.z[i]);
+                }
+                if ((lod.xmin < xmin) || (lod.zmin < zmin) || (lod.xmax > xmax) || (lod.zmax > zmax)) {
+                    poly = poly.clip(xmin, zmin, xmax, zmax);
+                }
+                if ((poly == null) || (poly.size() < 3)) continue;  /* Bounds overlap area, but not polygon */
+                int cnt = poly.size();
+                double[] px = new double[cnt];
+                double[] pz = new double[cnt];
+                for (int i = 0; i < cnt; i++) {
+                    Polygon.Point2D pt = poly.getVertex(i);
+                    px[i] = pt.x;
+                    pz[i] = pt.y;
+                }
+                writeAreaMarker(w, (AreaMarkerImpl) md, px, pz, cnt);
+            }
+            w.endObject();
+            w.name("lines");
+            w.beginObject();
+            for (MarkerDescription md : lst) {
+                if (!(md instanceof PolyLineMarkerImpl)) continue;
+                MarkerLOD lod = getMarkerLOD(md);
+                if (lod == null) continue;
+                int[] idx = lod.levels[lvl];
+                /* Drop segments before first and after last that cross area (by their bounds) */
+                int first = -1, last = -1;
+                for (int i = 0; i < idx.length; i++) {
+                    int a = idx[(i > 0) ? (i - 1) : i], b = idx[i];
+                    int c = idx[(i < (idx.length - 1)) ? (i + 1) : i];
+                    if (segmentInBounds(lod, a, b, xmin, zmin, xmax, zmax) || segmentInBounds(lod, b, c, xmin, zmin, xmax, zmax)) {
+                        if (first < 0) first = i;
+                        last = i;
+                    }
+                }
+                if (first < 0) continue;
+                writePolyLineMarker(w, (PolyLineMarkerImpl) md, lod.x, lod.y, lod.z, idx, first, last);
+            }
+            w.endObject();
+            w.name("circles");
+            w.beginObject();
+            for (MarkerDescription md : lst) {
+                if (md instanceof CircleMarkerImpl) writeCircleMarker(w, (CircleMarkerImpl) md);
+            }
+            w.endObject();
+            w.endObject(); /* End of marker set */
+        }
+        w.endObject(); /* End of sets */
+        w.endObject();
+    }
+    
+    private static boolean segmentInBounds(MarkerLOD lod, int a, int b, double xmin, double zmin, double xmax, double zmax) {
+        return (Math.min(lod.x[a], lod.x[b]) <= xmax) && (Math.max(lod.x[a], lod.x[b]) >= xmin) &&
+            (Math.min(lod.z[a], lod.z[b]) <= zmax) && (Math.max(lod.z[a], lod.z[b]) >= zmin);
+    }
+    
+    /* Get bounds of marker in world coordinates, as { xmin, zmin, xmax, zmax } (xmin > xmax if none) */
+    private static double[] getWorldBounds(MarkerDescription md) {
+        double[] b = new double[] { Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        if (md instanceof MarkerImpl) {
+            MarkerImpl m = (MarkerImpl) md;
+            b[0] = b[2] = m.getX();
+            b[1] = b[3] = m.getZ();
+        }
+        else if (md instanceof CircleMarkerImpl) {
+            CircleMarkerImpl m = (CircleMarkerImpl) md;
+            double xr = Math.abs(m.getRadiusX()), zr = Math.abs(m.getRadiusZ());
+            b[0] = m.getCenterX() - xr; b[2] = m.getCenterX() + xr;
+            b[1] = m.getCenterZ() - zr; b[3] = m.getCenterZ() + zr;
+        }
+        else if (md instanceof AreaMarkerImpl) {
+            AreaMarkerImpl m = (AreaMarkerImpl) md;
+            for (int i = 0; i < m.getCornerCount(); i++) {
+                addToBounds(b, m.getCornerX(i), m.getCornerZ(i));
+            }
+        }
+        else if (md instanceof PolyLineMarkerImpl) {
+            PolyLineMarkerImpl m = (PolyLineMarkerImpl) md;
+            for (int i = 0; i < m.getCornerCount(); i++) {
+                addToBounds(b, m.getCornerX(i), m.getCornerZ(i));
+            }
+        }
+        return b;
+    }
+    
+    private static void addToBounds(double[] b, double x, double z) {
+        if (x < b[0]) b[0] = x;
+        if (x > b[2]) b[2] = x;
+        if (z < b[1]) b[1] = z;
+        if (z > b[3]) b[3] = z;
+    }
+    
+    private static boolean isBoosting(MarkerDescription md) {
+        if (md instanceof AreaMarkerImpl) return ((AreaMarkerImpl) md).getBoostFlag();
+        if (md instanceof CircleMarkerImpl) return ((CircleMarkerImpl) md).getBoostFlag();
         return false;
     }
+    
+    private static void addToBoostIndex(BoostIndex bi, MarkerDescription md) {
+        double[] b = (md instanceof AreaMarkerImpl) ? ((AreaMarkerImpl) md).getMapBounds(bi.perspective) :
+            ((CircleMarkerImpl) md).getMapBounds(bi.perspective);
+        bi.index.insert(md, b[0], b[1], b[2], b[3]);
+    }
+    
+    /* Update indexes for added, changed or removed marker */
+    private void indexMarker(MarkerDescription md, String world, boolean deleted) {
+        synchronized(indexlock) {
+            lodcache.remove(md);
+            lodgen++;
+            indexedcorners.remove(md);
+            String oldworld = indexedworld.remove(md);
+            if (oldworld != null) {
+                MarkerSpatialIndex<MarkerDescription> idx = worldindex.get(oldworld);
+                if (idx != null) idx.remove(md);
+                for (BoostIndex bi : boostindex.values()) {
+                    if (bi.world.equals(oldworld)) bi.index.remove(md);
+                }
+            }
+            if (deleted || (world == null)) {
+                return;
+            }
+            MarkerSpatialIndex<MarkerDescription> idx = worldindex.get(world);
+            if (idx == null) {
+                idx = new MarkerSpatialIndex<MarkerDescription>(WORLD_INDEX_CELL);
+                worldindex.put(world, idx);
+            }
+            double[] b = getWorldBounds(md);
+            idx.insert(md, b[0], b[1], b[2], b[3]);
+            indexedworld.put(md, world);
+            if ((md instanceof AreaMarkerImpl) || (md instanceof PolyLineMarkerImpl)) {
+                indexedcorners.put(md, copyCorners(md));
+            }
+            if (isBoosting(md)) {
+                for (BoostIndex bi : boostindex.values()) {
+                    if (bi.world.equals(world)) addToBoostIndex(bi, md);
+                }
+            }
+        }
+    }
+    
+    /* Remove markers of deleted set from indexes */
+    private void unindexMarkerSet(MarkerSetImpl set) {
+        ArrayList<MarkerDescription> mlist = new ArrayList<MarkerDescription>();
+        mlist.addAll(set.getMarkers());
+        mlist.addAll(set.getAreaMarkers());
+        mlist.addAll(set.getPolyLineMarkers());
+        mlist.addAll(set.getCircleMarkers());
+        for (MarkerDescription md : mlist) {
+            indexMarker(md, null, true);
+        }
+    }
+    
+    /* Index markers loaded from persistence (loading does not signal updates) */
+    private void indexAllMarkers() {
+        for (MarkerSetImpl set : markersets.values()) {
+            for (Marker m : set.getMarkers()) {
+                indexMarker(m, ((MarkerImpl) m).getNormalizedWorld(), false);
+            }
+            for (AreaMarker m : set.getAreaMarkers()) {
+                indexMarker(m, ((AreaMarkerImpl) m).getNormalizedWorld(), false);
+            }
+            for (PolyLineMarker m : set.getPolyLineMarkers()) {
+                indexMarker(m, ((PolyLineMarkerImpl) m).getNormalizedWorld(), false);
+            }
+            for (CircleMarker m : set.getCircleMarkers()) {
+                indexMarker(m, ((CircleMarkerImpl) m).getNormalizedWorld(), false);
+            }
+        }
+    }
+    
+    /* Get index of boosting markers for world and perspective, building it on first use */
+    private BoostIndex getBoostIndex(String world, HDPerspective perspective) {
+        String key = world + "/" + perspective.getName();
+        BoostIndex bi = boostindex.get(key);
+        if (bi == null) {
+            synchronized(indexlock) {
+                bi = boostindex.get(key);
+                if (bi == null) {
+                    bi = new BoostIndex(world, perspective);
+                    MarkerSpatialIndex<MarkerDescription> idx = worldindex.get(world);
+                    if (idx != null) {
+                        ArrayList<MarkerDescription> all = new ArrayList<MarkerDescription>();
+                        idx.getAll(all);
+                        for (MarkerDescription md : all) {
+                            if (isBoosting(md)) addToBoostIndex(bi, md);
+                        }
+                    }
+                    boostindex.put(key, bi);
+                }
+            }
+        }
+        return bi;
+    }
 }
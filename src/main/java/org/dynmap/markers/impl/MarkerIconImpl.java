@@ -47,6 +47,7 @@ class MarkerIconImpl implements MarkerIcon {
         if(lbl == null) lbl = iconid;
         if(label.equals(lbl) == false) {
             label = lbl;
+            MarkerAPIImpl.iconUpdated(iconid);
             MarkerAPIImpl.saveMarkers();
         }
     }
@@ -0,0 +1,291 @@
+package org.dynmap.markers.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dynmap.ConfigurationNode;
+import org.dynmap.Log;
+import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.web.JsonWriter;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Write-ahead journal of changes to persistent markers, so a change is saved by appending a record rather
+ * than by rewriting markers.yml.  Records are JSON, one per line, each giving a path in markers.yml:
+ * <pre>
+ *   {"op":"put","path":["sets","&lt;setid&gt;","markers","&lt;id&gt;"],"data":{...}}   - replace node
+ *   {"op":"attrs","path":["sets","&lt;setid&gt;"],"data":{...}}   - replace set's own settings, keeping its markers
+ *   {"op":"del","path":[...]}   - delete node
+ * </pre>
+ * Journal writes and snapshots (new markers.yml) are done in order, on one background thread.  A snapshot
+ * moves the journal aside first, and deletes it once markers.yml is written, so the records it holds are
+ * replayed at load if the snapshot was not finished (replaying records already in the snapshot is harmless).
+ */
+class MarkerJournal {
+    static final String OP_PUT = "put";
+    static final String OP_ATTRS = "attrs";
+    static final String OP_DEL = "del";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] SET_MARKER_NODES = { "markers", "areas", "lines", "circles" };
+    private static final byte[] NEWLINE = { '\n' };
+
+    private final File journal;
+    private final File compacting;
+    private final ThreadPoolExecutor exec;
+    private FileOutputStream out;       // Open journal (persistence thread only)
+    private final BufferOutputStream records = new BufferOutputStream();   // Records not yet handed to persistence thread
+    private final JsonWriter writer = new JsonWriter(records);
+    private int recordcnt;      // Records written since last snapshot
+
+    /**
+     * Create journal
+     * @param dir - directory of markers.yml
+     */
+    MarkerJournal(File dir) {
+        journal = new File(dir, "markers.journal");
+        compacting = new File(dir, "markers.journal.old");
+        exec = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("Dynmap Marker Persistence");
+                    return t;
+                }
+            });
+    }
+
+    /**
+     * Add record to be written by next flush()
+     * @param op - operation (OP_PUT, OP_ATTRS, OP_DEL)
+     * @param path - path of node
+     * @param data - data for node (null for OP_DEL)
+     */
+    void addRecord(String op, String[] path, Map<String, Object> data) {
+        writer.beginObject();   // Each record is its own document, after any earlier ones in buffer
+        writer.field("op", op);
+        writer.name("path");
+        writer.beginArray();
+        for (String p : path) {
+            writer.value(p);
+        }
+        writer.endArray();
+        if (data != null) {
+            writer.name("data");
+            writer.value(data);
+        }
+        writer.endObject();
+        records.write(NEWLINE);
+        recordcnt++;
+    }
+
+    /**
+     * Get number of records written since last snapshot
+     */
+    int getRecordCount() {
+        return recordcnt;
+    }
+
+    /**
+     * Append records added since last flush to journal (in background)
+     */
+    void flush() {
+        if (records.len == 0) {
+            return;
+        }
+        final byte[] b = writer.toByteArray();
+        records.reset();
+        exec.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (out == null) {
+                        out = new FileOutputStream(journal, true);
+                    }
+                    out.write(b);
+                    out.flush();
+                } catch (IOException iox) {
+                    Log.severe("Error writing marker journal - " + journal.getPath(), iox);
+                }
+            }
+        });
+    }
+
+    /**
+     * Write snapshot of all markers (in background, after journal writes already queued), replacing journal
+     * @param conf - configuration with all markers (must not be modified after this)
+     * @param persist - markers.yml
+     * @param persist_old - markers.yml.old
+     */
+    void snapshot(final ConfigurationNode conf, final File persist, final File persist_old) {
+        flush();
+        recordcnt = 0;
+        exec.execute(new Runnable() {
+            public void run() {
+                closeJournal();
+                if (journal.exists()) {
+                    if (compacting.exists()) {  // Earlier snapshot not finished: keep its records too
+                        appendFile(journal, compacting);
+                        journal.delete();
+                    }
+                    else {
+                        journal.renameTo(compacting);
+                    }
+                }
+                /* And shift old file file out */
+                if(persist_old.exists()) persist_old.delete();
+                if(persist.exists()) persist.renameTo(persist_old);
+                /* And write it out */
+                if(!conf.save()) {
+                    Log.severe("Error writing markers - " + persist.getPath());
+                }
+                else {
+                    compacting.delete();
+                }
+            }
+        });
+    }
+
+    private void closeJournal() {
+        if (out != null) {
+            try { out.close(); } catch (IOException iox) {}
+            out = null;
+        }
+    }
+
+    private static void appendFile(File src, File dest) {
+        FileInputStream in = null;
+        FileOutputStream o = null;
+        try {
+            in = new FileInputStream(src);
+            o = new FileOutputStream(dest, true);
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                o.write(buf, 0, len);
+            }
+        } catch (IOException iox) {
+            Log.severe("Error copying marker journal - " + src.getPath(), iox);
+        } finally {
+            if (in != null) { try { in.close(); } catch (IOException iox) {} }
+            if (o != null) { try { o.close(); } catch (IOException iox) {} }
+        }
+    }
+
+    /**
+     * Replay journals onto markers loaded from markers.yml
+     * @param root - top level node of loaded markers
+     * @return number of records replayed
+     */
+    int replay(Map<String, Object> root) {
+        int cnt = replayFile(compacting, root);
+        cnt += replayFile(journal, root);
+        recordcnt = cnt;
+        return cnt;
+    }
+
+    private static int replayFile(File f, Map<String, Object> root) {
+        if (!f.exists()) {
+            return 0;
+        }
+        int cnt = 0;
+        BufferedReader rdr = null;
+        try {
+            rdr = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+            JSONParser parser = new JSONParser();
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                if (line.length() == 0) continue;
+                try {
+                    Object o = parser.parse(line);
+                    if ((o instanceof Map) && applyRecord((Map<?, ?>) o, root)) {
+                        cnt++;
+                    }
+                } catch (ParseException px) {   // Partial record, if write was interrupted
+                    Log.warning("Skipping bad record in marker journal - " + f.getPath());
+                }
+            }
+        } catch (IOException iox) {
+            Log.severe("Error reading marker journal - " + f.getPath(), iox);
+        } finally {
+            if (rdr != null) {
+                try { rdr.close(); } catch (IOException iox) {}
+            }
+        }
+        return cnt;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean applyRecord(Map<?, ?> rec, Map<String, Object> root) {
+        Object op = rec.get("op");
+        Object path = rec.get("path");
+        Object data = rec.get("data");
+        if ((!(path instanceof List)) || ((List<?>) path).isEmpty()) {
+            return false;
+        }
+        List<?> p = (List<?>) path;
+        boolean del = OP_DEL.equals(op);
+        /* Find parent of node, adding missing nodes unless deleting */
+        Map<String, Object> parent = root;
+        for (int i = 0; i < (p.size() - 1); i++) {
+            String k = String.valueOf(p.get(i));
+            Object v = parent.get(k);
+            if (!(v instanceof Map)) {
+                if (del) return true;
+                v = new HashMap<String, Object>();
+                parent.put(k, v);
+            }
+            parent = (Map<String, Object>) v;
+        }
+        String key = String.valueOf(p.get(p.size() - 1));
+        if (del) {
+            parent.remove(key);
+        }
+        else if (OP_PUT.equals(op) && (data instanceof Map)) {
+            parent.put(key, data);
+        }
+        else if (OP_ATTRS.equals(op) && (data instanceof Map)) {
+            Map<String, Object> newnode = new HashMap<String, Object>((Map<String, Object>) data);
+            Object old = parent.get(key);
+            if (old instanceof Map) {   /* Keep markers of set */
+                for (String n : SET_MARKER_NODES) {
+                    Object v = ((Map<String, Object>) old).get(n);
+                    if (v != null) {
+                        newnode.put(n, v);
+                    }
+                }
+            }
+            parent.put(key, newnode);
+        }
+        else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stop journal: waits for queued writes
+     */
+    void shutdown() {
+        exec.shutdown();
+        try {
+            if (!exec.awaitTermination(60, TimeUnit.SECONDS)) {
+                Log.warning("Timed out waiting for markers to be saved");
+            }
+        } catch (InterruptedException ix) {
+        }
+        closeJournal();
+    }
+}
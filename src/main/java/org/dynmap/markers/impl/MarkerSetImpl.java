@@ -37,6 +37,8 @@ class MarkerSetImpl implements MarkerSet {
     private int maxzoom = -1;
     private Boolean showlabels = null;
     private MarkerIcon deficon;
+    private int bulkdepth = 0;  /* Nesting of open bulk updates */
+    private Set<String> bulkworlds = new HashSet<String>();    /* Worlds with markers changed during bulk update */
     
     MarkerSetImpl(String id) {
         setid = id;
@@ -388,16 +390,25 @@ class MarkerSetImpl implements MarkerSet {
             }
         }
         /* Make top level node */
+        Map<String, Object> setnode = getPersistentAttributes();
+        setnode.put("markers", node);
+        setnode.put("areas", anode);
+        setnode.put("lines", lnode);
+        setnode.put("circles", cnode);
+        return setnode;
+    }
+
+    /**
+     * Get configuration node for set's own settings, without its markers
+     * @return node
+     */
+    Map<String, Object> getPersistentAttributes() {
         HashMap<String, Object> setnode = new HashMap<String, Object>();
         setnode.put("label", label);
         if(allowedicons != null) {
             ArrayList<String> allowed = new ArrayList<String>(allowedicons.keySet());
             setnode.put("allowedicons", allowed);
         }
-        setnode.put("markers", node);
-        setnode.put("areas", anode);
-        setnode.put("lines", lnode);
-        setnode.put("circles", cnode);
         setnode.put("hide", hide_by_def);
         setnode.put("layerprio", prio);
         if (minzoom >= 0)
@@ -728,6 +739,48 @@ class MarkerSetImpl implements MarkerSet {
         return deficon;
     }
     
+    /**
+     * Begin bulk update (may be nested)
+     */
+    void beginBulkUpdate() {
+        bulkdepth++;
+    }
+    
+    /**
+     * End bulk update
+     * @return worlds with markers changed, if outermost bulk update ended; null otherwise
+     */
+    Set<String> endBulkUpdate() {
+        if(bulkdepth == 0) return null;
+        bulkdepth--;
+        if(bulkdepth > 0) return null;
+        Set<String> worlds = bulkworlds;
+        bulkworlds = new HashSet<String>();
+        return worlds;
+    }
+    
+    boolean isBulkUpdate() {
+        return bulkdepth > 0;
+    }
+    
+    /**
+     * Get worlds with markers changed during open bulk update
+     */
+    Set<String> getBulkWorlds() {
+        return bulkworlds;
+    }
+    
+    /**
+     * Note change to marker in world, if bulk update is open
+     * @param world - world of marker
+     * @return true if change is part of bulk update (so not sent to clients on its own)
+     */
+    boolean bulkMarkerChanged(String world) {
+        if(bulkdepth == 0) return false;
+        bulkworlds.add(world);
+        return true;
+    }
+    
     final boolean testTileForBoostMarkers(DynmapWorld w, HDPerspective perspective, double tile_x, double tile_y, double tile_dim) {
         if (boostingareamarkers != null) {
             for (AreaMarkerImpl am : boostingareamarkers.values()) {
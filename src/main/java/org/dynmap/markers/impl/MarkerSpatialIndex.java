@@ -0,0 +1,193 @@
+package org.dynmap.markers.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Uniform grid index of objects by bounding rectangle, for finding those that may intersect a given rectangle
+ * without testing every object.  Each object is listed in every cell its bounds overlap, except objects
+ * overlapping more than MAX_CELLS cells, which are kept in one list checked by every query.  Safe for use by
+ * several threads.
+ */
+class MarkerSpatialIndex<T> {
+    private static final int MAX_CELLS = 256;
+    private static final int CELL_LIMIT = 1 << 30;  /* Cell numbers clamped to this, so loops over cells can't overflow */
+
+    private final double cellsize;
+    private final HashMap<Long, ArrayList<T>> cells = new HashMap<Long, ArrayList<T>>();
+    private final ArrayList<T> large = new ArrayList<T>();
+    private final IdentityHashMap<T, double[]> bounds = new IdentityHashMap<T, double[]>();
+
+    /**
+     * Create index
+     * @param cellsize - size of grid cell (in units of bounds)
+     */
+    MarkerSpatialIndex(double cellsize) {
+        this.cellsize = cellsize;
+    }
+
+    private int cell(double v) {
+        double c = Math.floor(v / cellsize);
+        if (c < -CELL_LIMIT) return -CELL_LIMIT;
+        if (c > CELL_LIMIT) return CELL_LIMIT;
+        return (int) c;
+    }
+
+    private static Long cellKey(int cx, int cy) {
+        return Long.valueOf((((long) cx) << 32) | (cy & 0xFFFFFFFFL));
+    }
+
+    private boolean isLarge(double[] b) {
+        long nx = (long) cell(b[2]) - (long) cell(b[0]) + 1;
+        long ny = (long) cell(b[3]) - (long) cell(b[1]) + 1;
+        return (nx * ny) > MAX_CELLS;
+    }
+
+    /**
+     * Add object to index, replacing any earlier entry for it
+     * @param obj - object
+     * @param xmin - minimum X of bounds
+     * @param ymin - minimum Y of bounds
+     * @param xmax - maximum X of bounds
+     * @param ymax - maximum Y of bounds
+     */
+    synchronized void insert(T obj, double xmin, double ymin, double xmax, double ymax) {
+        remove(obj);
+        if ((!(xmin <= xmax)) || (!(ymin <= ymax))) {   /* Empty (or NaN) bounds */
+            return;
+        }
+        double[] b = new double[] { xmin, ymin, xmax, ymax };
+        bounds.put(obj, b);
+        if (isLarge(b)) {
+            large.add(obj);
+            return;
+        }
+        int cx1 = cell(xmax), cy1 = cell(ymax);
+        for (int cx = cell(xmin); cx <= cx1; cx++) {
+            for (int cy = cell(ymin); cy <= cy1; cy++) {
+                Long key = cellKey(cx, cy);
+                ArrayList<T> lst = cells.get(key);
+                if (lst == null) {
+                    lst = new ArrayList<T>(4);
+                    cells.put(key, lst);
+                }
+                lst.add(obj);
+            }
+        }
+    }
+
+    /**
+     * Remove object from index
+     * @param obj - object
+     * @return true if object was in index
+     */
+    synchronized boolean remove(T obj) {
+        double[] b = bounds.remove(obj);
+        if (b == null) {
+            return false;
+        }
+        if (isLarge(b)) {
+            removeFrom(large, obj);
+            return true;
+        }
+        int cx1 = cell(b[2]), cy1 = cell(b[3]);
+        for (int cx = cell(b[0]); cx <= cx1; cx++) {
+            for (int cy = cell(b[1]); cy <= cy1; cy++) {
+                Long key = cellKey(cx, cy);
+                ArrayList<T> lst = cells.get(key);
+                if ((lst != null) && removeFrom(lst, obj) && lst.isEmpty()) {
+                    cells.remove(key);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static <T> boolean removeFrom(ArrayList<T> lst, T obj) {
+        for (int i = lst.size() - 1; i >= 0; i--) {
+            if (lst.get(i) == obj) {
+                lst.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlaps(double[] b, double xmin, double ymin, double xmax, double ymax) {
+        return (b[0] <= xmax) && (b[2] >= xmin) && (b[1] <= ymax) && (b[3] >= ymin);
+    }
+
+    /**
+     * Find objects whose bounds intersect given rectangle
+     * @param xmin - minimum X of rectangle
+     * @param ymin - minimum Y of rectangle
+     * @param xmax - maximum X of rectangle
+     * @param ymax - maximum Y of rectangle
+     * @param out - collection to add objects found to (each added once)
+     * @return number of objects found
+     */
+    synchronized int query(double xmin, double ymin, double xmax, double ymax, Collection<? super T> out) {
+        int cnt = 0;
+        for (T obj : large) {
+            if (overlaps(bounds.get(obj), xmin, ymin, xmax, ymax)) {
+                out.add(obj);
+                cnt++;
+            }
+        }
+        int qx0 = cell(xmin), qy0 = cell(ymin), qx1 = cell(xmax), qy1 = cell(ymax);
+        long ncells = ((long) qx1 - (long) qx0 + 1) * ((long) qy1 - (long) qy0 + 1);
+        if (ncells > cells.size()) {    /* Query covers more cells than are in use: faster to check each object */
+            for (Map.Entry<T, double[]> me : bounds.entrySet()) {
+                double[] b = me.getValue();
+                if (overlaps(b, xmin, ymin, xmax, ymax) && (!isLarge(b))) {
+                    out.add(me.getKey());
+                    cnt++;
+                }
+            }
+            return cnt;
+        }
+        for (int cx = qx0; cx <= qx1; cx++) {
+            for (int cy = qy0; cy <= qy1; cy++) {
+                ArrayList<T> lst = cells.get(cellKey(cx, cy));
+                if (lst == null) continue;
+                for (int i = 0; i < lst.size(); i++) {
+                    T obj = lst.get(i);
+                    double[] b = bounds.get(obj);
+                    if (!overlaps(b, xmin, ymin, xmax, ymax)) continue;
+                    /* Object is in every cell of its bounds: only report it from the first cell of the overlap */
+                    if ((cx != Math.max(qx0, cell(b[0]))) || (cy != Math.max(qy0, cell(b[1])))) continue;
+                    out.add(obj);
+                    cnt++;
+                }
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Get all objects in index
+     * @param out - collection to add objects to
+     */
+    synchronized void getAll(Collection<? super T> out) {
+        out.addAll(bounds.keySet());
+    }
+
+    /**
+     * Get number of objects in index
+     */
+    synchronized int size() {
+        return bounds.size();
+    }
+
+    /**
+     * Remove all objects
+     */
+    synchronized void clear() {
+        cells.clear();
+        large.clear();
+        bounds.clear();
+    }
+}
@@ -1,12 +1,10 @@
 package org.dynmap.servlet;
 
 import static org.dynmap.JSONUtils.s;
-import static org.dynmap.JSONUtils.g;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.util.Date;
-import java.util.ListIterator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -16,12 +14,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.dynmap.Client;
+import org.dynmap.ClientUpdateSnapshot;
 import org.dynmap.DynmapCore;
 import org.dynmap.DynmapWorld;
 import org.dynmap.InternalClientUpdateComponent;
 import org.dynmap.web.HttpField;
-import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 @SuppressWarnings("serial")
@@ -33,8 +30,9 @@ public class ClientUpdateServlet extends HttpServlet {
         this.core = plugin;
     }
 
+    private final ClientUpdateSnapshot emptyUpdate = new ClientUpdateSnapshot(new JSONObject());
+
     Pattern updatePathPattern = Pattern.compile("/([^/]+)/([0-9]*)");
-    @SuppressWarnings("unchecked")
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
         byte[] bytes;
@@ -74,11 +72,6 @@ public class ClientUpdateServlet extends HttpServlet {
             } catch (NumberFormatException e) {
             }
 
-            JSONObject u = new JSONObject();
-            //s(u, "timestamp", current);
-            JSONObject upd = InternalClientUpdateComponent.getWorldUpdate(dynmapWorld.getName());
-            if(upd != null)
-                u.putAll(upd);
             boolean see_all = true;
             if(core.player_info_protected) {
                 if(guest) {
@@ -88,55 +81,26 @@ public class ClientUpdateServlet extends HttpServlet {
                     see_all = core.getServer().checkPlayerPermission(user, "playermarkers.seeall");
                 }
             }
-            if(!see_all) {
-                JSONArray players = (JSONArray)g(u, "players");
-                JSONArray newplayers = new JSONArray();
-                u.put("players",  newplayers);
-                if(players != null) {
-                    for(ListIterator<JSONObject> iter = players.listIterator(); iter.hasNext();) {
-                        JSONObject p = iter.next();
-                        JSONObject newp = new JSONObject();
-                        newp.putAll(p);
-                        newplayers.add(newp);
-                        boolean hide;
-                        if(!guest) {
-                            hide = !core.testIfPlayerVisibleToPlayer(user, (String)newp.get("name"));
-                        }
-                        else {
-                            hide = true;
-                        }
-                        if(hide) {
-                            s(newp, "world", "-some-other-bogus-world-");
-                            s(newp, "x", 0.0);
-                            s(newp, "y", 64.0);
-                            s(newp, "z", 0.0);
-                            s(newp, "health", 0);
-                            s(newp, "armor", 0);
-                        }
-                    }
-                }
+            // Send shared serialized update, with player list (or changes) for client's visibility and updates since its last poll
+            ClientUpdateSnapshot snap = InternalClientUpdateComponent.getWorldUpdateSnapshot(dynmapWorld.getName());
+            if(snap == null) {
+                snap = emptyUpdate;
             }
-            JSONArray updates = (JSONArray)u.get("updates");
-            JSONArray newupdates = new JSONArray();
-            u.put("updates", newupdates);
-            if(updates != null) {
-                for(ListIterator<Client.Update> iter = updates.listIterator(); iter.hasNext();) {
-                    Client.Update update = iter.next();
-                    if(update.timestamp >= since) {
-                        newupdates.add(update);
-                    }
-                }
-            }
-            bytes = u.toJSONString().getBytes(cs_utf8);
+            byte[] players = snap.getPlayers(core, see_all, guest ? null : user, since);
+            addHeaders(resp, snap.getLength(since, players));
+            snap.write(resp.getOutputStream(), since, players);
+            return;
         }
-        
+        addHeaders(resp, bytes.length);
+        resp.getOutputStream().write(bytes);
+    }
+
+    private static void addHeaders(HttpServletResponse resp, int len) {
         String dateStr = new Date().toString();
         resp.addHeader(HttpField.Date, dateStr);
         resp.addHeader(HttpField.ContentType, "text/plain; charset=utf-8");
         resp.addHeader(HttpField.Expires, "Thu, 01 Dec 1994 16:00:00 GMT");
         resp.addHeader(HttpField.LastModified, dateStr);
-        resp.addHeader(HttpField.ContentLength, Integer.toString(bytes.length));
-
-        resp.getOutputStream().write(bytes);
+        resp.addHeader(HttpField.ContentLength, Integer.toString(len));
     }
 }
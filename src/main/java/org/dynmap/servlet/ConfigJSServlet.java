@@ -28,6 +28,10 @@ public class ConfigJSServlet extends HttpServlet {
         sb.append("  update: '");
         sb.append(core.configuration.getString("url/update", "up/world/{world}/{timestamp}"));
         sb.append("',\n");
+        /* Get update stream URL */
+        sb.append("  stream: '");
+        sb.append(core.configuration.getString("url/stream", "up/stream/{world}/{timestamp}"));
+        sb.append("',\n");
         /* Get sendmessage URL */
         sb.append("  sendmessage: '");
         sb.append(core.configuration.getString("url/sendmessage", "up/sendmessage"));
@@ -44,6 +48,10 @@ public class ConfigJSServlet extends HttpServlet {
         sb.append("  tiles: '");
         sb.append(core.configuration.getString("url/tiles", "tiles/"));
         sb.append("',\n");
+        /* Get marker query URL */
+        sb.append("  markerquery: '");
+        sb.append(core.configuration.getString("url/markerquery", "up/markers/{world}"));
+        sb.append("',\n");
         /* Get markers URL */
         sb.append("  markers: '");
         sb.append(core.configuration.getString("url/markers", "tiles/"));
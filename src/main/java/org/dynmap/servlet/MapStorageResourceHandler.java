@@ -1,18 +1,28 @@
 package org.dynmap.servlet;
 
+import org.dynmap.ConfigurationNode;
 import org.dynmap.DynmapCore;
 import org.dynmap.DynmapWorld;
+import org.dynmap.Log;
 import org.dynmap.MapType.ImageEncoding;
+import org.dynmap.MapType.ImageFormat;
 import org.dynmap.PlayerFaces;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTileCache;
+import org.dynmap.storage.MapStorageTileSummary;
 import org.dynmap.storage.MapStorageTile.TileRead;
 import org.dynmap.utils.BufferInputStream;
+import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.utils.DynmapBufferedImage;
+import org.dynmap.utils.ImageIOManager;
+import org.dynmap.web.HttpField;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import javax.imageio.ImageIO;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -21,14 +31,32 @@ import javax.servlet.http.HttpServletResponse;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 public class MapStorageResourceHandler extends AbstractHandler {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private DynmapCore core;
     private byte[] blankpng;
+    private String[] tileCacheControl;  // Cache-Control by zoom level (null = none)
+    private String faceCacheControl;
+    private String markerCacheControl;
+    // Encoded solid colour tiles, by format and colour
+    private static class SolidTile {
+        byte[] image;
+        long hashCode;
+        ImageEncoding format;
+    }
+    private static final int MAX_SOLID_TILES = 256;
+    private final HashMap<Long, SolidTile> solidTiles = new HashMap<Long, SolidTile>();
     
     public MapStorageResourceHandler() {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -40,16 +68,133 @@ public class MapStorageResourceHandler extends AbstractHandler {
         }
         
     }
+
+    /**
+     * Response state of request handled on a storage I/O thread.  The storage I/O thread and the
+     * request timeout race to claim the response, and only the winner writes it and completes the
+     * request, so a late storage read can't write to a request that has already been answered.
+     */
+    private static class AsyncRequest {
+        final AsyncContext ac;
+        final AtomicBoolean claimed = new AtomicBoolean();
+        boolean responding;     // Set once the storage I/O thread has claimed the response
+        ScheduledFuture<?> timeout;
+
+        AsyncRequest(AsyncContext ac) {
+            this.ac = ac;
+        }
+    }
+
+    /**
+     * Conditional request headers, read on the request thread: once a request handled on a storage I/O
+     * thread has timed out, the server may reuse its request object for the next request on the connection.
+     */
+    private static class Conditions {
+        final String ifNoneMatch;
+        final long ifModifiedSince;   // -1 if none (or not a valid date)
+
+        Conditions(HttpServletRequest request) {
+            ifNoneMatch = request.getHeader(HttpField.IfNoneMatch);
+            long ims;
+            try {
+                ims = request.getDateHeader(HttpField.IfModifiedSince);
+            } catch (IllegalArgumentException iax) {
+                ims = -1;
+            }
+            ifModifiedSince = ims;
+        }
+
+        boolean isConditional() {
+            return (ifNoneMatch != null) || (ifModifiedSince >= 0);
+        }
+    }
+
+    private static final long TILE_LOCK_WAIT = 5000;   // Longest wait for tile read lock (msec)
+
+    /**
+     * Claim response before writing to it
+     * @param ar - async request state (null if handled synchronously)
+     * @return true if response can be written, false if already answered
+     */
+    private static boolean claimResponse(AsyncRequest ar) {
+        if ((ar == null) || ar.responding) {
+            return true;
+        }
+        if (ar.claimed.compareAndSet(false, true)) {
+            ar.responding = true;
+            if (ar.timeout != null) {
+                ar.timeout.cancel(false);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static void sendUnavailable(HttpServletResponse response) {
+        response.setHeader(HttpField.RetryAfter, "1");
+        response.setStatus(HttpStatus.SERVICE_UNAVAILABLE_503);
+    }
+
     @Override
-    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
-        String path = baseRequest.getPathInfo();
-        int soff = 0, eoff;
+    public void handle(String target, Request baseRequest, final HttpServletRequest request, final HttpServletResponse response) throws IOException, ServletException {
         // We're handling this request
         baseRequest.setHandled(true);
+        final String path = baseRequest.getPathInfo();  // Only valid until we return
+        final Conditions cond = new Conditions(request);
+        final StorageIOExecutor io = core.getStorageIOExecutor();
+        if ((io == null) || (!request.isAsyncSupported())) {
+            handleRequest(path, cond, response, null, TILE_LOCK_WAIT);
+            return;
+        }
+        // Lock wait kept well inside the request timeout, so slow storage still gets a response
+        final long lockwait = Math.min(TILE_LOCK_WAIT, io.getTimeout() / 2);
+        // Do storage reads on a storage I/O thread, so that slow storage doesn't hold up web server threads
+        final AsyncRequest ar = new AsyncRequest(request.startAsync(request, response));
+        ar.ac.setTimeout(0);    // Timed out by us, so request is never completed while being written
+        ar.timeout = io.scheduleTimeout(new Runnable() {
+            public void run() {
+                if (ar.claimed.compareAndSet(false, true)) {
+                    io.recordTimeout();
+                    sendUnavailable(response);
+                    ar.ac.complete();
+                }
+            }
+        });
+        boolean queued = io.execute(new Runnable() {
+            public void run() {
+                if (ar.claimed.get()) {     // Timed out while queued
+                    return;
+                }
+                try {
+                    handleRequest(path, cond, response, ar, lockwait);
+                } catch (Exception x) {
+                    if (claimResponse(ar)) {
+                        Log.warning("Error handling request for /tiles" + path + " - " + x.getMessage());
+                        if (!response.isCommitted()) {
+                            response.setStatus(HttpStatus.INTERNAL_SERVER_ERROR_500);
+                        }
+                    }
+                } finally {
+                    if (ar.responding) {
+                        ar.ac.complete();
+                    }
+                }
+            }
+        });
+        if ((!queued) && ar.claimed.compareAndSet(false, true)) {   // Storage I/O queue full
+            ar.timeout.cancel(false);
+            sendUnavailable(response);
+            ar.ac.complete();
+        }
+    }
+
+    private void handleRequest(String path, Conditions cond, HttpServletResponse response, AsyncRequest ar, long lockwait) throws IOException, ServletException {
+        int soff = 0, eoff;
 
         if (path.charAt(0) == '/') soff = 1;
         eoff = path.indexOf('/', soff);
         if (soff < 0) {
+            if (!claimResponse(ar)) return;
             response.sendError(HttpStatus.NOT_FOUND_404);
             return;
         }
@@ -57,12 +202,12 @@ public class MapStorageResourceHandler extends AbstractHandler {
         String uri = path.substring(eoff+1);
         // If faces directory, handle faces
         if (world.equals("faces")) {
-            handleFace(response, uri);
+            handleFace(cond, response, uri, ar);
             return;
         }
         // If markers directory, handle markers
         if (world.equals("_markers_")) {
-            handleMarkers(response, uri);
+            handleMarkers(cond, response, uri, ar);
             return;
         }
 
@@ -72,6 +217,7 @@ public class MapStorageResourceHandler extends AbstractHandler {
         }
         // If world not found quit
         if (w == null) {
+            if (!claimResponse(ar)) return;
             response.setContentType("image/png");
             OutputStream os = response.getOutputStream();
             os.write(blankpng);
@@ -81,27 +227,75 @@ public class MapStorageResourceHandler extends AbstractHandler {
         // Get tile reference, based on URI and world
         MapStorageTile tile = store.getTile(w, uri);
         if (tile == null) {
+            if (!claimResponse(ar)) return;
             response.setContentType("image/png");
             OutputStream os = response.getOutputStream();
             os.write(blankpng);
             return;
         }
-        // Read tile
         TileRead tr = null;
-        if (tile.getReadLock(5000)) {
-            tr = tile.read();
-            tile.releaseReadLock();
+        // Known blank or solid colour tiles are served without storage access
+        MapStorageTileSummary summary = store.getTileSummary();
+        if (summary != null) {
+            Integer solid = summary.getSolidColor(tile);
+            if (solid != null) {
+                tr = getSolidTile(tile.map.getImageFormat(), solid);
+            }
+            else if (summary.isBlank(tile)) {
+                if (!claimResponse(ar)) return;
+                response.setContentType("image/png");
+                OutputStream os = response.getOutputStream();
+                os.write(blankpng);
+                return;
+            }
+        }
+        // Check hot tile cache first
+        MapStorageTileCache cache = store.getTileCache();
+        if ((tr == null) && (cache != null)) {
+            tr = cache.get(tile);
+        }
+        // Read tile, if not cached.  If conditional request, the validators are checked first, under the
+        // same read lock, without loading the image.
+        TileRead unmodified = null;
+        if ((tr == null) && tile.getReadLock(lockwait)) {
+            try {
+                if (cond.isConditional()) {
+                    TileRead meta = tile.readMetadata();
+                    if ((meta != null) && isNotModified(cond, getTileETag(meta), meta.lastModified)) {
+                        unmodified = meta;
+                    }
+                }
+                if (unmodified == null) {
+                    tr = tile.read();
+                    if (cache != null) {
+                        cache.put(tile, tr);
+                    }
+                }
+            } finally {
+                tile.releaseReadLock();
+            }
+        }
+        if (unmodified != null) {
+            if (!claimResponse(ar)) return;
+            setTileValidators(response, tile, unmodified);
+            response.setStatus(HttpStatus.NOT_MODIFIED_304);
+            return;
         }
         if (tr == null) {
+            if (!claimResponse(ar)) return;
             response.setContentType("image/png");
             OutputStream os = response.getOutputStream();
             os.write(blankpng);
             return;
         }
+        if (!claimResponse(ar)) return;
         // Got tile, package up for response
-        response.setDateHeader("Last-Modified", tr.lastModified);
+        setTileValidators(response, tile, tr);
+        if (isNotModified(cond, getTileETag(tr), tr.lastModified)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED_304);
+            return;
+        }
         response.setIntHeader("Content-Length", tr.image.length());
-        response.setHeader("ETag", "\"" + tr.hashCode + "\"");
         if (tr.format == ImageEncoding.PNG) {
             response.setContentType("image/png");
         }
@@ -111,30 +305,67 @@ public class MapStorageResourceHandler extends AbstractHandler {
         ServletOutputStream out = response.getOutputStream();
         out.write(tr.image.buffer(), 0, tr.image.length());
         out.flush();
+    }
 
+    /**
+     * Get encoded image of a solid colour tile, with the hash code the renderer would have stored for it
+     */
+    private TileRead getSolidTile(ImageFormat fmt, int argb) {
+        long key = (((long) fmt.ordinal()) << 32) | (0xFFFFFFFFL & (long) argb);
+        SolidTile st;
+        synchronized (solidTiles) {
+            st = solidTiles.get(key);
+        }
+        if (st == null) {
+            int sz = MapStorageTileSummary.TILE_SIZE;
+            DynmapBufferedImage img = DynmapBufferedImage.allocateBufferedImage(sz, sz);
+            try {
+                Arrays.fill(img.argb_buf, argb);
+                BufferOutputStream bos = ImageIOManager.imageIOEncode(img.buf_img, fmt);
+                if (bos == null) {
+                    return null;
+                }
+                st = new SolidTile();
+                st.image = Arrays.copyOf(bos.buf, bos.len);
+                st.hashCode = MapStorage.calculateImageHashCode(img.argb_buf, 0, img.argb_buf.length);
+                st.format = fmt.getEncoding();
+            } finally {
+                DynmapBufferedImage.freeBufferedImage(img);
+            }
+            synchronized (solidTiles) {
+                if (solidTiles.size() >= MAX_SOLID_TILES) {
+                    solidTiles.clear();
+                }
+                solidTiles.put(key, st);
+            }
+        }
+        TileRead tr = new TileRead();
+        tr.image = new BufferInputStream(st.image);
+        tr.hashCode = st.hashCode;
+        tr.format = st.format;
+        tr.lastModified = 0;    // Unknown
+        return tr;
     }
 
-    private void handleFace(HttpServletResponse response, String uri) throws IOException, ServletException {
+    private void handleFace(Conditions cond, HttpServletResponse response, String uri, AsyncRequest ar) throws IOException, ServletException {
         String[] suri = uri.split("[/\\.]");
-        if (suri.length < 3) {  // 3 parts : face ID, player name, png
-            response.sendError(HttpStatus.NOT_FOUND_404);
-            return;
-        }
-        // Find type
-        PlayerFaces.FaceType ft = PlayerFaces.FaceType.byID(suri[0]);
-        if (ft == null) {
-            response.sendError(HttpStatus.NOT_FOUND_404);
-            return;
+        PlayerFaces.FaceType ft = null;
+        if (suri.length >= 3) { // 3 parts : face ID, player name, png
+            ft = PlayerFaces.FaceType.byID(suri[0]);    // Find type
         }
         BufferInputStream bis = null;
-        if (core.playerfacemgr != null) {
+        if ((ft != null) && (core.playerfacemgr != null)) {
             bis = core.playerfacemgr.storage.getPlayerFaceImage(suri[1], ft);
         }
+        if (!claimResponse(ar)) return;
         if (bis == null) {
             response.sendError(HttpStatus.NOT_FOUND_404);
             return;
         }
         // Got image, package up for response
+        if (sendContentValidators(cond, response, bis.buffer(), bis.length(), faceCacheControl)) {
+            return;
+        }
         response.setIntHeader("Content-Length", bis.length());
         response.setContentType("image/png");
         ServletOutputStream out = response.getOutputStream();
@@ -142,21 +373,39 @@ public class MapStorageResourceHandler extends AbstractHandler {
         out.flush();
     }
 
-    private void handleMarkers(HttpServletResponse response, String uri) throws IOException, ServletException {
+    private void handleMarkers(Conditions cond, HttpServletResponse response, String uri, AsyncRequest ar) throws IOException, ServletException {
         String[] suri = uri.split("/");
         // If json file in last part
         if ((suri.length == 1) && suri[0].startsWith("marker_") && suri[0].endsWith(".json")) {
             String content = core.getDefaultMapStorage().getMarkerFile(suri[0].substring(7, suri[0].length() - 5));
+            if (!claimResponse(ar)) return;
+            if (content == null) {
+                response.sendError(HttpStatus.NOT_FOUND_404);
+                return;
+            }
+            byte[] buf = content.getBytes(UTF8);
+            if (sendContentValidators(cond, response, buf, buf.length, markerCacheControl)) {
+                return;
+            }
             response.setContentType("application/json");
-            PrintWriter pw = response.getWriter();
-            pw.print(content);
-            pw.flush();
+            response.setIntHeader("Content-Length", buf.length);
+            ServletOutputStream out = response.getOutputStream();
+            out.write(buf, 0, buf.length);
+            out.flush();
             return;
         }
         // If png, make marker ID
         if (suri[suri.length-1].endsWith(".png")) {
             BufferInputStream bis = core.getDefaultMapStorage().getMarkerImage(uri.substring(0, uri.length()-4));
+            if (!claimResponse(ar)) return;
+            if (bis == null) {
+                response.sendError(HttpStatus.NOT_FOUND_404);
+                return;
+            }
             // Got image, package up for response
+            if (sendContentValidators(cond, response, bis.buffer(), bis.length(), markerCacheControl)) {
+                return;
+            }
             response.setIntHeader("Content-Length", bis.length());
             response.setContentType("image/png");
             ServletOutputStream out = response.getOutputStream();
@@ -164,10 +413,113 @@ public class MapStorageResourceHandler extends AbstractHandler {
             out.flush();
             return;
         }
+        if (!claimResponse(ar)) return;
         response.sendError(HttpStatus.NOT_FOUND_404);
     }
 
+    /**
+     * Test conditional request headers against the validators of the resource.  If-None-Match takes
+     * precedence over If-Modified-Since, as per RFC 7232.
+     */
+    private static boolean isNotModified(Conditions cond, String etag, long lastModified) {
+        String inm = cond.ifNoneMatch;
+        if (inm != null) {
+            if (etag == null) return false;
+            for (String tag : inm.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (lastModified > 0) {
+            long ims = cond.ifModifiedSince;
+            // HTTP dates only have one second resolution
+            return (ims >= 0) && ((lastModified / 1000) <= (ims / 1000));
+        }
+        return false;
+    }
+
+    private static String getTileETag(TileRead tr) {
+        if (tr.validator != null) {
+            return "\"" + tr.validator + "\"";
+        }
+        if (tr.hashCode < 0) {  // Unknown hash
+            return null;
+        }
+        return "\"" + tr.hashCode + "\"";
+    }
+
+    private void setTileValidators(HttpServletResponse response, MapStorageTile tile, TileRead tr) {
+        if (tr.lastModified > 0) {
+            response.setDateHeader(HttpField.LastModified, tr.lastModified);
+        }
+        String etag = getTileETag(tr);
+        if (etag != null) {
+            response.setHeader(HttpField.ETag, etag);
+        }
+        if (tileCacheControl != null) {
+            int zoom = Math.min(tile.zoom, tileCacheControl.length - 1);
+            if (tileCacheControl[zoom] != null) {
+                response.setHeader(HttpField.CacheControl, tileCacheControl[zoom]);
+            }
+        }
+    }
+
+    /**
+     * Set validators for content without stored hash (faces, marker icons and files), and handle
+     * conditional request
+     * @return true if 304 response sent
+     */
+    private boolean sendContentValidators(Conditions cond, HttpServletResponse response, byte[] buf, int len, String cachecontrol) {
+        CRC32 crc = new CRC32();
+        crc.update(buf, 0, len);
+        String etag = "\"" + Long.toHexString(crc.getValue()) + "-" + len + "\"";
+        response.setHeader(HttpField.ETag, etag);
+        if (cachecontrol != null) {
+            response.setHeader(HttpField.CacheControl, cachecontrol);
+        }
+        if (isNotModified(cond, etag, -1)) {
+            response.setStatus(HttpStatus.NOT_MODIFIED_304);
+            return true;
+        }
+        return false;
+    }
+
+    private static String getCacheControl(ConfigurationNode cfg, String path) {
+        String v = cfg.getString(path, null);
+        if ((v == null) || (v.length() == 0)) {
+            return null;
+        }
+        return v;
+    }
+
     public void setCore(DynmapCore core) {
         this.core = core;
+        // Load Cache-Control policies: tiles is either one value, or a list indexed by zoom level (last entry used for higher zooms)
+        ConfigurationNode cfg = core.configuration;
+        List<String> tcc = cfg.getStrings("http-cache-control/tiles", null);
+        if (tcc == null) {
+            String v = getCacheControl(cfg, "http-cache-control/tiles");
+            if (v != null) {
+                tcc = Collections.singletonList(v);
+            }
+        }
+        if ((tcc != null) && (tcc.size() > 0)) {
+            tileCacheControl = new String[tcc.size()];
+            for (int i = 0; i < tileCacheControl.length; i++) {
+                String v = tcc.get(i);
+                tileCacheControl[i] = ((v != null) && (v.length() > 0)) ? v : null;
+            }
+        }
+        else {
+            tileCacheControl = null;
+        }
+        faceCacheControl = getCacheControl(cfg, "http-cache-control/faces");
+        markerCacheControl = getCacheControl(cfg, "http-cache-control/markers");
     }
 }
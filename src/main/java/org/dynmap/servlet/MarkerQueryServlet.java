@@ -0,0 +1,98 @@
+package org.dynmap.servlet;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.dynmap.DynmapCore;
+import org.dynmap.DynmapWorld;
+import org.dynmap.markers.impl.MarkerAPIImpl;
+import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.web.HttpField;
+import org.dynmap.web.JsonWriter;
+
+/**
+ * Markers of a world in an area, for clients showing only part of the map:
+ * <pre>
+ *   /up/markers/&lt;world&gt;?bbox=&lt;xmin&gt;,&lt;zmin&gt;,&lt;xmax&gt;,&lt;zmax&gt;&amp;zoom=&lt;zoom-out level&gt;
+ * </pre>
+ * The response has the same form as a world's marker file, with area and poly-line corners simplified for
+ * the zoom level and clipped to the area (see MarkerAPIImpl.writeMarkersInBounds).
+ */
+@SuppressWarnings("serial")
+public class MarkerQueryServlet extends HttpServlet {
+    private static final byte[] LOGIN_REQUIRED = "{\"error\":\"login-required\"}".getBytes();
+    private DynmapCore core;
+
+    public MarkerQueryServlet(DynmapCore plugin) {
+        this.core = plugin;
+    }
+
+    Pattern queryPathPattern = Pattern.compile("/([^/]+)");
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        HttpSession sess = req.getSession(true);
+        String user = (String) sess.getAttribute(LoginServlet.USERID_ATTRIB);
+        if(user == null) user = LoginServlet.USERID_GUEST;
+        if(core.getLoginRequired() && user.equals(LoginServlet.USERID_GUEST)) {
+            addHeaders(resp, LOGIN_REQUIRED.length);
+            resp.getOutputStream().write(LOGIN_REQUIRED);
+            return;
+        }
+        String path = req.getPathInfo();
+        Matcher match = (path != null) ? queryPathPattern.matcher(path) : null;
+        if ((match == null) || (!match.matches())) {
+            resp.sendError(404, "World not found");
+            return;
+        }
+        DynmapWorld dynmapWorld = null;
+        if(core.mapManager != null) {
+            dynmapWorld = core.mapManager.getWorld(match.group(1));
+        }
+        MarkerAPIImpl api = (MarkerAPIImpl) core.getMarkerAPI();
+        if ((dynmapWorld == null) || (api == null)) {
+            resp.sendError(404, "World not found");
+            return;
+        }
+        double[] bbox = new double[4];
+        int zoom = 0;
+        try {
+            String[] b = String.valueOf(req.getParameter("bbox")).split(",");
+            if (b.length != 4) {
+                throw new NumberFormatException();
+            }
+            for (int i = 0; i < 4; i++) {
+                bbox[i] = Double.parseDouble(b[i]);
+            }
+            String z = req.getParameter("zoom");
+            if (z != null) {
+                zoom = Integer.parseInt(z);
+            }
+        } catch (NumberFormatException nfx) {
+            resp.sendError(400, "Bad bbox or zoom");
+            return;
+        }
+        JsonWriter w = JsonWriter.getThreadWriter();
+        api.writeMarkersInBounds(w, dynmapWorld.getName(), Math.min(bbox[0], bbox[2]), Math.min(bbox[1], bbox[3]),
+            Math.max(bbox[0], bbox[2]), Math.max(bbox[1], bbox[3]), zoom);
+        BufferOutputStream out = w.getOutput();
+        addHeaders(resp, out.len);
+        resp.getOutputStream().write(out.buf, 0, out.len);
+    }
+
+    private static void addHeaders(HttpServletResponse resp, int len) {
+        String dateStr = new Date().toString();
+        resp.addHeader(HttpField.Date, dateStr);
+        resp.addHeader(HttpField.ContentType, "application/json; charset=utf-8");
+        resp.addHeader(HttpField.Expires, "Thu, 01 Dec 1994 16:00:00 GMT");
+        resp.addHeader(HttpField.LastModified, dateStr);
+        resp.addHeader(HttpField.ContentLength, Integer.toString(len));
+    }
+}
@@ -0,0 +1,155 @@
+package org.dynmap.servlet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of threads for the map storage reads of web requests (tiles, faces and marker files),
+ * so that slow storage ties up these threads rather than the web server's request threads.  When the
+ * queue is full, requests are turned away at once instead of waiting, and requests not handled within
+ * the timeout are answered by a timer.
+ */
+public class StorageIOExecutor {
+    private final ThreadPoolExecutor pool;
+    private final ScheduledThreadPoolExecutor timer;
+    private final int queueSize;
+    private final long timeout;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    /**
+     * Create executor
+     * @param threads - number of storage I/O threads
+     * @param queueSize - maximum number of requests waiting for a thread
+     * @param timeout - request timeout (msec)
+     */
+    public StorageIOExecutor(int threads, int queueSize, long timeout) {
+        if (threads < 1) threads = 1;
+        if (queueSize < 1) queueSize = 1;
+        this.queueSize = queueSize;
+        this.timeout = timeout;
+        pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("Dynmap Web Storage I/O Thread");
+                    return t;
+                }
+            });
+        pool.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("Dynmap Web Storage I/O Timer");
+                return t;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Get timeout for requests (msec)
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Run task on storage I/O thread
+     * @param task - task
+     * @return true if queued, false if rejected (queue full or shut down)
+     */
+    public boolean execute(final Runnable task) {
+        final long queued = System.nanoTime();
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    long start = System.nanoTime();
+                    long wait = start - queued;
+                    waitNanos.addAndGet(wait);
+                    long max = maxWaitNanos.get();
+                    while ((wait > max) && (!maxWaitNanos.compareAndSet(max, wait))) {
+                        max = maxWaitNanos.get();
+                    }
+                    try {
+                        task.run();
+                    } finally {
+                        runNanos.addAndGet(System.nanoTime() - start);
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException rxe) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Schedule timeout for request
+     * @param task - task to run on timeout
+     * @return future, to be cancelled once request is handled
+     */
+    public ScheduledFuture<?> scheduleTimeout(Runnable task) {
+        return timer.schedule(task, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record request that timed out before being handled
+     */
+    public void recordTimeout() {
+        timedOut.incrementAndGet();
+    }
+
+    /**
+     * Get pool state, for stats
+     */
+    public String getPoolStatus() {
+        return String.format("threads=%d (%d active, max %d), queued=%d of %d",
+            pool.getPoolSize(), pool.getActiveCount(), pool.getMaximumPoolSize(), pool.getQueue().size(), queueSize);
+    }
+
+    /**
+     * Get request counts and timings, for stats
+     */
+    public String getRequestStats() {
+        long cnt = completed.get();
+        double avgwait = (cnt > 0) ? (0.000001 * waitNanos.get() / cnt) : 0.0;
+        double avgrun = (cnt > 0) ? (0.000001 * runNanos.get() / cnt) : 0.0;
+        return String.format("completed=%d, rejected=%d, timed out=%d, wait=%.2f msec avg (%.2f max), run=%.2f msec avg",
+            cnt, rejected.get(), timedOut.get(), avgwait, 0.000001 * maxWaitNanos.get(), avgrun);
+    }
+
+    /**
+     * Reset request counts and timings
+     */
+    public void resetStats() {
+        completed.set(0);
+        rejected.set(0);
+        timedOut.set(0);
+        waitNanos.set(0);
+        runNanos.set(0);
+        maxWaitNanos.set(0);
+    }
+
+    /**
+     * Stop executor: queued requests are still run
+     */
+    public void shutdown() {
+        pool.shutdown();
+        timer.shutdown();
+    }
+}
@@ -0,0 +1,583 @@
+package org.dynmap.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.dynmap.Client;
+import org.dynmap.ClientUpdateSnapshot;
+import org.dynmap.DynmapCore;
+import org.dynmap.DynmapWorld;
+import org.dynmap.InternalClientUpdateComponent;
+import org.dynmap.UpdateQueue;
+import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.web.HttpField;
+import org.dynmap.web.JsonWriter;
+import org.eclipse.jetty.io.EndPoint;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+
+/**
+ * Server-Sent Events stream of client updates for a world, as an alternative to polling ClientUpdateServlet.
+ * Queued updates (tiles, chat, joins and quits) are sent as they are pushed to the world's update queue,
+ * and the rest of the client update (players, time of day and so on) is sent each time it is built.  Each
+ * event is serialized once and shared by all clients watching the world.
+ * <p>
+ * Queued updates are sent with their sequence number in the update queue as event ID, so a client that
+ * reconnects (after a dropped connection, or once the connection reaches its maximum time) resumes from
+ * the last event it received, from the update queue.  Events for each connection are written by a small
+ * pool of writer threads: a client that falls too far behind has its connection dropped rather than holding
+ * more events in memory, and catches up the same way on reconnecting.  A client whose writes block for more
+ * than the write timeout (full TCP window) has its connection closed too, so it can't hold a writer thread
+ * that other streams need.  Clients that can't connect (no EventSource, too many connections) poll instead.
+ */
+@SuppressWarnings("serial")
+public class UpdateStreamServlet extends HttpServlet {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] RETRY = "retry: 2000\n\n".getBytes(UTF8);
+    private static final byte[] UPDATE_EVENT = "event: update\ndata: ".getBytes(UTF8);
+    private static final byte[] EVENT_END = "\n\n".getBytes(UTF8);
+    private static final byte[] LOGIN_REQUIRED = "event: update\ndata: {\"error\":\"login-required\"}\n\n".getBytes(UTF8);
+    private static final long BACKLOG_WINDOW = 30000;   // Updates sent to new clients (as polling)
+
+    private final DynmapCore core;
+    private final int maxConnections;
+    private final int maxBuffer;
+    private final long maxTime;
+    private final long writeTimeout;
+    private final ThreadPoolExecutor writers;
+    private final ScheduledExecutorService watchdog;
+    private final ConcurrentHashMap<String, WorldStream> streams = new ConcurrentHashMap<String, WorldStream>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final Pattern streamPathPattern = Pattern.compile("/([^/]+)(?:/([0-9]*))?");
+    private final Pattern eventIdPattern = Pattern.compile("([0-9]+)-([0-9]+)");
+
+    /**
+     * Create stream servlet
+     * @param core - core
+     * @param threads - number of writer threads
+     * @param maxConnections - maximum number of open streams
+     * @param maxBuffer - maximum bytes of events waiting to be written to a stream before it is dropped
+     * @param maxTime - time after which a stream is ended, for the client to reconnect (msec)
+     * @param writeTimeout - time a write to a stream may block before its connection is closed (msec)
+     */
+    public UpdateStreamServlet(DynmapCore core, int threads, int maxConnections, int maxBuffer, long maxTime, long writeTimeout) {
+        this.core = core;
+        this.maxConnections = maxConnections;
+        this.maxBuffer = maxBuffer;
+        this.maxTime = maxTime;
+        this.writeTimeout = Math.max(1000, writeTimeout);
+        if (threads < 1) threads = 1;
+        writers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    t.setName("Dynmap Update Stream Writer");
+                    return t;
+                }
+            });
+        writers.allowCoreThreadTimeOut(true);
+        watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setDaemon(true);
+                t.setName("Dynmap Update Stream Watchdog");
+                return t;
+            }
+        });
+        long period = Math.min(1000, this.writeTimeout / 2);
+        watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                closeStalledStreams();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Events for a world: gets queued updates as they are pushed
+     */
+    private class WorldStream implements UpdateQueue.Listener {
+        final DynmapWorld world;
+        final CopyOnWriteArrayList<Subscriber> subs = new CopyOnWriteArrayList<Subscriber>();
+
+        WorldStream(DynmapWorld world) {
+            this.world = world;
+        }
+
+        // Called on pushing thread, in sequence order
+        public void updatePushed(Client.Update u, long seq) {
+            if (subs.isEmpty()) {
+                return;
+            }
+            byte[] ev = buildQueuedEvent(world.updates.getEpoch(), seq, u);
+            for (Subscriber s : subs) {
+                s.sendQueued(seq, ev);
+            }
+        }
+    }
+
+    private static class QueuedEvent {
+        final long seq;
+        final byte[] ev;
+
+        QueuedEvent(long seq, byte[] ev) {
+            this.seq = seq;
+            this.ev = ev;
+        }
+    }
+
+    /**
+     * Open stream: events are written in order by a writer thread, one batch at a time
+     */
+    private class Subscriber implements Runnable, AsyncListener {
+        final AsyncContext ac;
+        final EndPoint endpoint;    // Connection of stream, closed if a write blocks too long (null if unknown)
+        final WorldStream ws;
+        final boolean see_all;
+        final String user;
+        final long started = System.currentTimeMillis();
+        private final ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+        private int pendingBytes;
+        private boolean scheduled;      // Queued for, or running on, a writer thread
+        private boolean closing;        // End stream once pending events are written
+        private final AtomicBoolean removed = new AtomicBoolean();
+        private long lastSeq;           // Sequence number of last queued update sent
+        private ArrayList<QueuedEvent> deferred = new ArrayList<QueuedEvent>();    // Pushed while backlog being sent
+        volatile long lastUpdate;       // Time of last client update sent, as base for player changes
+        private volatile long writeStarted; // Time write in progress started (0 if none)
+
+        Subscriber(AsyncContext ac, EndPoint endpoint, WorldStream ws, boolean see_all, String user) {
+            this.ac = ac;
+            this.endpoint = endpoint;
+            this.ws = ws;
+            this.see_all = see_all;
+            this.user = user;
+        }
+
+        /**
+         * Queue event for stream: if too many bytes are waiting, the stream is dropped instead
+         */
+        void send(byte[] ev) {
+            send(ev, true);
+        }
+
+        /**
+         * Queue event for stream
+         * @param ev - event
+         * @param limit - if false, queue even if over buffer limit (for events sent on connecting, so a
+         *  large backlog can't make the client reconnect for ever)
+         */
+        void send(byte[] ev, boolean limit) {
+            synchronized(this) {
+                if (closing) {
+                    return;
+                }
+                if (limit && ((pendingBytes + ev.length) > maxBuffer)) {   // Client not keeping up: it resumes on reconnect
+                    dropped.incrementAndGet();
+                    pending.clear();
+                    pendingBytes = 0;
+                    closing = true;
+                }
+                else {
+                    pending.add(ev);
+                    pendingBytes += ev.length;
+                }
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        /**
+         * Queue event for queued update pushed: held back until the backlog has been sent
+         */
+        synchronized void sendQueued(long seq, byte[] ev) {
+            if (deferred != null) {
+                deferred.add(new QueuedEvent(seq, ev));
+            }
+            else if (seq > lastSeq) {
+                lastSeq = seq;
+                send(ev);
+            }
+        }
+
+        /**
+         * Backlog sent: send updates pushed meanwhile that weren't in it
+         * @param seq - sequence number of last update in backlog
+         */
+        synchronized void backlogSent(long seq) {
+            lastSeq = Math.max(lastSeq, seq);
+            ArrayList<QueuedEvent> evs = deferred;
+            deferred = null;
+            for (QueuedEvent qe : evs) {
+                sendQueued(qe.seq, qe.ev);
+            }
+        }
+
+        /**
+         * End stream, once pending events are written
+         */
+        void close() {
+            synchronized(this) {
+                if (closing) {
+                    return;
+                }
+                closing = true;
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                writers.execute(this);
+            } catch (RejectedExecutionException rxe) {   // Shutting down
+                complete();
+            }
+        }
+
+        public void run() {
+            while (true) {
+                byte[][] batch;
+                synchronized(this) {
+                    if (pending.isEmpty()) {
+                        if (!closing) {
+                            scheduled = false;
+                            return;
+                        }
+                        batch = null;
+                    }
+                    else {
+                        batch = pending.toArray(new byte[pending.size()][]);
+                        pending.clear();
+                        pendingBytes = 0;
+                    }
+                }
+                if (batch == null) {
+                    complete();
+                    return;
+                }
+                try {
+                    writeStarted = System.currentTimeMillis();
+                    OutputStream out = ac.getResponse().getOutputStream();
+                    int len = 0;
+                    for (byte[] b : batch) {
+                        out.write(b);
+                        len += b.length;
+                    }
+                    out.flush();
+                    events.addAndGet(batch.length);
+                    bytes.addAndGet(len);
+                } catch (Exception x) {     // Client gone, or connection closed by watchdog
+                    synchronized(this) {
+                        closing = true;
+                        pending.clear();
+                        pendingBytes = 0;
+                    }
+                    complete();
+                    return;
+                } finally {
+                    writeStarted = 0;
+                }
+            }
+        }
+
+        /**
+         * Close connection if a write has been blocked for longer than the write timeout: the blocked write
+         * then fails, freeing its writer thread.  The client resumes on reconnecting.
+         */
+        void closeIfStalled(long now) {
+            long started = writeStarted;
+            if ((started == 0) || ((now - started) <= writeTimeout)) {
+                return;
+            }
+            synchronized(this) {
+                if (removed.get()) {
+                    return;
+                }
+                closing = true;
+                pending.clear();
+                pendingBytes = 0;
+            }
+            dropped.incrementAndGet();
+            if (endpoint != null) {
+                try {
+                    endpoint.close();
+                } catch (IOException iox) {
+                }
+            }
+        }
+
+        private void complete() {
+            remove();
+            try {
+                ac.complete();
+            } catch (IllegalStateException isx) {  // Already completed
+            }
+        }
+
+        void remove() {
+            if (removed.compareAndSet(false, true)) {
+                ws.subs.remove(this);
+                connections.decrementAndGet();
+            }
+        }
+
+        public void onComplete(AsyncEvent event) throws IOException {
+            remove();
+        }
+
+        public void onTimeout(AsyncEvent event) throws IOException {
+        }
+
+        public void onError(AsyncEvent event) throws IOException {
+            synchronized(this) {
+                closing = true;
+            }
+            remove();
+        }
+
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+    }
+
+    private static byte[] buildQueuedEvent(long epoch, long seq, Client.Update u) {
+        JsonWriter w = JsonWriter.getThreadWriter();
+        BufferOutputStream out = w.getOutput();
+        out.write(("id: " + epoch + "-" + seq + "\ndata: ").getBytes(UTF8));
+        w.value(u);
+        out.write(EVENT_END);
+        return w.toByteArray();
+    }
+
+    /* Close connections of streams with writes blocked for longer than the write timeout */
+    private void closeStalledStreams() {
+        long now = System.currentTimeMillis();
+        for (WorldStream ws : streams.values()) {
+            for (Subscriber s : ws.subs) {
+                s.closeIfStalled(now);
+            }
+        }
+    }
+
+    private WorldStream getWorldStream(DynmapWorld world) {
+        synchronized(streams) {
+            WorldStream ws = streams.get(world.getName());
+            if ((ws == null) || (ws.world != world)) {  // New, or world reloaded
+                ws = new WorldStream(world);
+                streams.put(world.getName(), ws);
+                world.updates.setListener(ws);
+            }
+            return ws;
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        String path = req.getPathInfo();
+        Matcher match = (path != null) ? streamPathPattern.matcher(path) : null;
+        if ((match == null) || (!match.matches())) {
+            resp.sendError(404, "World not found");
+            return;
+        }
+        DynmapWorld world = null;
+        if (core.mapManager != null) {
+            world = core.mapManager.getWorld(match.group(1));
+        }
+        if (world == null) {
+            resp.sendError(404, "World not found");
+            return;
+        }
+        if ((!req.isAsyncSupported()) || (connections.get() >= maxConnections)) {   // Client polls instead
+            refused.incrementAndGet();
+            resp.setHeader(HttpField.RetryAfter, "60");
+            resp.sendError(503, "Update stream unavailable");
+            return;
+        }
+        HttpSession sess = req.getSession(true);
+        String user = (String) sess.getAttribute(LoginServlet.USERID_ATTRIB);
+        if (user == null) user = LoginServlet.USERID_GUEST;
+        boolean guest = user.equals(LoginServlet.USERID_GUEST);
+
+        resp.setHeader(HttpField.ContentType, "text/event-stream; charset=utf-8");
+        resp.setHeader(HttpField.CacheControl, "no-cache");
+        resp.setHeader("X-Accel-Buffering", "no");  // Don't let proxies hold events back
+        if (core.getLoginRequired() && guest) {
+            resp.getOutputStream().write(LOGIN_REQUIRED);
+            return;
+        }
+        boolean see_all = true;
+        if (core.player_info_protected) {
+            if (guest) {
+                see_all = false;
+            }
+            else {
+                see_all = core.getServer().checkPlayerPermission(user, "playermarkers.seeall");
+            }
+        }
+        // Resume from last event received (if still in the update queue), or send the updates a poll would
+        UpdateQueue queue = world.updates;
+        long sinceSeq = -1;
+        long since = 0;
+        String lastid = req.getHeader("Last-Event-ID");
+        Matcher idmatch = (lastid != null) ? eventIdPattern.matcher(lastid.trim()) : null;
+        try {
+            if ((idmatch != null) && idmatch.matches() && (Long.parseLong(idmatch.group(1)) == queue.getEpoch())) {
+                long seq = Long.parseLong(idmatch.group(2));
+                if (queue.isSequenceAvailable(seq)) {
+                    sinceSeq = seq;
+                }
+            }
+            if ((sinceSeq < 0) && (match.group(2) != null)) {
+                since = Long.parseLong(match.group(2));
+            }
+        } catch (NumberFormatException nfx) {
+        }
+        if (sinceSeq < 0) {
+            sinceSeq = 0;
+            since = Math.max(since, System.currentTimeMillis() - BACKLOG_WINDOW);
+        }
+
+        AbstractHttpConnection conn = AbstractHttpConnection.getCurrentConnection();
+        AsyncContext ac = req.startAsync(req, resp);
+        ac.setTimeout(0);   // Ended by us, after maxTime
+        WorldStream ws = getWorldStream(world);
+        Subscriber sub = new Subscriber(ac, (conn != null) ? conn.getEndPoint() : null, ws, see_all, guest ? null : user);
+        ac.addListener(sub);
+        connections.incrementAndGet();
+        opened.incrementAndGet();
+        sub.send(RETRY, false);
+        ClientUpdateSnapshot snap = InternalClientUpdateComponent.getWorldUpdateSnapshot(world.getName());
+        if (snap != null) {
+            sub.send(buildUpdateEvent(snap, snap.getPlayers(core, see_all, sub.user)), false);
+            sub.lastUpdate = snap.getTimestamp();
+        }
+        // Subscribe before reading backlog: updates pushed after the last one in the backlog are held
+        // back by the subscriber until the backlog is sent, so none are missed or sent out of order
+        ws.subs.add(sub);
+        long last = queue.getLastSequence();
+        for (UpdateQueue.Entry e : queue.getUpdatesSince(sinceSeq)) {
+            if (e.seq > last) {
+                break;
+            }
+            if (e.update.timestamp >= since) {
+                sub.send(buildQueuedEvent(queue.getEpoch(), e.seq, e.update), false);
+            }
+        }
+        sub.backlogSent(last);
+    }
+
+    private static byte[] buildUpdateEvent(ClientUpdateSnapshot snap, byte[] players) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(snap.getLength(Long.MAX_VALUE, players) + UPDATE_EVENT.length + EVENT_END.length);
+        try {
+            bos.write(UPDATE_EVENT);
+            snap.write(bos, Long.MAX_VALUE, players);   // Queued updates are sent as they are pushed
+            bos.write(EVENT_END);
+        } catch (IOException iox) {     // Not for byte array stream
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Send newly built client update for world to its streams: the update is serialized once for each
+     * player visibility (and player list each stream had), and streams past their maximum time are ended
+     * @param world - world
+     * @param snap - client update
+     */
+    public void publishUpdate(DynmapWorld world, ClientUpdateSnapshot snap) {
+        WorldStream ws = streams.get(world.getName());
+        if ((ws == null) || ws.subs.isEmpty()) {
+            return;
+        }
+        IdentityHashMap<byte[], byte[]> evs = new IdentityHashMap<byte[], byte[]>();
+        long now = System.currentTimeMillis();
+        for (Subscriber s : ws.subs) {
+            if ((now - s.started) > maxTime) {
+                s.close();
+                continue;
+            }
+            byte[] players = snap.getPlayers(core, s.see_all, s.user, s.lastUpdate);
+            s.lastUpdate = snap.getTimestamp();
+            byte[] ev = evs.get(players);
+            if (ev == null) {
+                ev = buildUpdateEvent(snap, players);
+                evs.put(players, ev);
+            }
+            s.send(ev);
+        }
+    }
+
+    /**
+     * Get stream counts, for stats
+     */
+    public String getStats() {
+        return String.format("open=%d, opened=%d, refused=%d, dropped=%d, events=%d, %d KB sent",
+            connections.get(), opened.get(), refused.get(), dropped.get(), events.get(), bytes.get() / 1024);
+    }
+
+    /**
+     * Reset stream counts
+     */
+    public void resetStats() {
+        opened.set(0);
+        refused.set(0);
+        dropped.set(0);
+        events.set(0);
+        bytes.set(0);
+    }
+
+    /**
+     * End all streams and stop writer threads
+     */
+    public void shutdown() {
+        synchronized(streams) {
+            for (WorldStream ws : streams.values()) {
+                ws.world.updates.setListener(null);
+                for (Subscriber s : ws.subs) {
+                    s.close();
+                }
+            }
+            streams.clear();
+        }
+        writers.shutdown();
+        watchdog.shutdown();
+    }
+}
@@ -3,9 +3,15 @@ package org.dynmap.storage;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Set;
 import java.util.zip.CRC32;
 
+import org.dynmap.ConfigurationNode;
 import org.dynmap.DynmapCore;
 import org.dynmap.DynmapWorld;
 import org.dynmap.Log;
@@ -14,6 +20,7 @@ import org.dynmap.PlayerFaces;
 import org.dynmap.WebAuthManager;
 import org.dynmap.utils.BufferInputStream;
 import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.utils.TileFlags;
 
 /**
  * Generic interface for map data storage (image tiles, and associated hash codes)
@@ -22,7 +29,13 @@ public abstract class MapStorage {
     private static Object lock = new Object();
     private static HashMap<String, Integer> filelocks = new HashMap<String, Integer>();
     private static final Integer WRITELOCK = new Integer(-1);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     protected File baseStandaloneDir;
+    protected MapStorageTileCache tilecache;
+    protected MapStorageZoomOutCache zoomcache;
+    protected MapStorageTileSummary tilesummary;
+    protected ConfigurationNode storageConfig;  // Settings for this store ('storage' section, by default)
+    protected boolean zoomOutUpdates = true;    // If true, base tile writes mark zoom out tiles for update
 
     protected long serverID;
     
@@ -41,13 +54,146 @@ public abstract class MapStorage {
      * @return true if success
      */
     public boolean init(DynmapCore core) {
+        if (storageConfig == null) {
+            storageConfig = core.configuration.getNode("storage");
+            if (storageConfig == null) {
+                storageConfig = new ConfigurationNode();
+            }
+        }
         baseStandaloneDir = new File(core.configuration.getString("webpath", "web"), "standalone");
         if (!baseStandaloneDir.isAbsolute()) {
             baseStandaloneDir = new File(core.getDataFolder(), baseStandaloneDir.toString());
         }
+        // Set up hot tile cache for web server, if enabled
+        int cachekb = storageConfig.getInteger("tile-cache-kb", getDefaultTileCacheKB());
+        if (cachekb > 0) {
+            int maxtilekb = storageConfig.getInteger("tile-cache-max-tile-kb", 256);
+            tilecache = new MapStorageTileCache(1024L * cachekb, 1024 * maxtilekb);
+        }
+        // Set up cache of downsampled tiles for zoom out processing, if enabled
+        int zoomcachekb = storageConfig.getInteger("zoom-cache-kb", 32768);
+        if (zoomcachekb > 0) {
+            zoomcache = new MapStorageZoomOutCache(1024L * zoomcachekb);
+        }
+        // Set up record of blank and solid colour tiles, if enabled
+        if (storageConfig.getBoolean("tile-summary", true)) {
+            tilesummary = new MapStorageTileSummary();
+        }
         return true;
     }
     
+    /**
+     * Get size of hot tile cache used if 'tile-cache-kb' is not set.  Stores whose tiles can be written
+     * by other servers, such as a shared database, have no cache by default, as it would not see their
+     * updates and would serve stale tiles.
+     * @return size in KB (0 = no cache)
+     */
+    protected int getDefaultTileCacheKB() {
+        return 16384;
+    }
+    
+    /**
+     * Shut down store: close connections and files.  Store must not be used after this.
+     */
+    public void shutdown() {
+    }
+    
+    /**
+     * Set settings for store, in place of the 'storage' section of the configuration.  Must be called before init().
+     * @param cfg - settings
+     */
+    public void setStorageConfig(ConfigurationNode cfg) {
+        storageConfig = cfg;
+    }
+    
+    /**
+     * Enable or disable marking of zoom out tiles for update when base tiles are written.  Disabled for
+     * stores that are not the live map store, such as a migration target.
+     * @param enable - true to enable (default)
+     */
+    public void setZoomOutUpdates(boolean enable) {
+        zoomOutUpdates = enable;
+    }
+    
+    /**
+     * Get hot tile cache used for web serving
+     * @return cache, or null if disabled
+     */
+    public MapStorageTileCache getTileCache() {
+        return tilecache;
+    }
+    
+    /**
+     * Get cache of downsampled tiles used for zoom out processing
+     * @return cache, or null if disabled
+     */
+    public MapStorageZoomOutCache getZoomOutCache() {
+        return zoomcache;
+    }
+    
+    /**
+     * Get record of tiles known to be blank or a solid colour
+     * @return record, or null if disabled
+     */
+    public MapStorageTileSummary getTileSummary() {
+        return tilesummary;
+    }
+    
+    /**
+     * Record content of tile just written, if it is a standard size tile of a single solid colour.  Should be called after
+     * the write, while still holding the tile write lock.
+     * @param tile - tile written
+     * @param argb - pixels of tile
+     */
+    public void recordTileImage(MapStorageTile tile, int[] argb) {
+        if ((tilesummary != null) && (argb.length == (MapStorageTileSummary.TILE_SIZE * MapStorageTileSummary.TILE_SIZE)) &&
+                MapStorageTileSummary.isSolid(argb)) {
+            tilesummary.setSolid(tile, argb[0]);
+        }
+    }
+    
+    /**
+     * Record tile as blank, after it has been deleted or found missing.  Should be called while
+     * holding a lock on the tile.
+     * @param tile - tile
+     */
+    public void recordBlankTile(MapStorageTile tile) {
+        if (tilesummary != null) {
+            tilesummary.setBlank(tile);
+        }
+    }
+    
+    /**
+     * Invalidate cached content for given tile - called by tile write and delete
+     * @param tile - tile updated
+     */
+    protected void invalidateCachedTile(MapStorageTile tile) {
+        if (tilecache != null) {
+            tilecache.invalidate(tile);
+        }
+        if (zoomcache != null) {
+            zoomcache.invalidate(tile);
+        }
+        if (tilesummary != null) {
+            tilesummary.clear(tile);
+        }
+    }
+    
+    /**
+     * Invalidate all cached tile content - called by tile purge
+     */
+    protected void invalidateCachedTiles() {
+        if (tilecache != null) {
+            tilecache.invalidateAll();
+        }
+        if (zoomcache != null) {
+            zoomcache.invalidateAll();
+        }
+        if (tilesummary != null) {
+            tilesummary.clearAll();
+        }
+    }
+    
     /**
      * Set server ID for map storage instance
      * @param serverID - server ID (default is zero)
@@ -93,6 +239,60 @@ public abstract class MapStorage {
      */
     public abstract void purgeMapTiles(DynmapWorld world, MapType map);
 
+    /**
+     * Purge tiles of map left over from before a full render: tiles not in the current image format of the map,
+     * and base tiles (zoom 0) not in the rendered set, are deleted.  Deleted base tiles, and zoom 1 tiles with
+     * none of their base tiles rendered, are passed to the callback, so that the zoom out tiles affected can be
+     * updated.  The default implementation enumerates every tile of the map: backends should override it
+     * with something cheaper.
+     * @param world - world
+     * @param map - map
+     * @param rendered - base tiles rendered
+     * @param cb - callback for base tiles deleted, and zoom 1 tiles needing update
+     */
+    public void purgeOldTiles(DynmapWorld world, MapType map, final TileFlags rendered, final MapStorageTileEnumCB cb) {
+        final MapType.ImageEncoding fmt = map.getImageFormat().getEncoding();
+        enumMapTiles(world, map, new MapStorageTileEnumCB() {
+            @Override
+            public void tileFound(MapStorageTile tile, MapType.ImageEncoding enc) {
+                if (enc != fmt) { // Wrong format?  toss it
+                    tile.delete();
+                }
+                else if (tile.zoom == 1) {   // First tier zoom?  sensitive to newly rendered tiles
+                    boolean r;
+                    synchronized (rendered) {   // TileFlags lookups are not thread safe
+                        r = isZoomOutRendered(rendered, tile.x, tile.y);
+                    }
+                    if (!r) {
+                        cb.tileFound(tile, enc);
+                    }
+                }
+                else if (tile.zoom == 0) {
+                    boolean r;
+                    synchronized (rendered) {
+                        r = rendered.getFlag(tile.x, tile.y);
+                    }
+                    if (!r) {
+                        tile.delete();
+                        cb.tileFound(tile, enc);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Test if any base tile of a zoom 1 tile was rendered
+     * @param rendered - base tiles rendered
+     * @param x - X coordinate of zoom 1 tile
+     * @param y - Y coordinate of zoom 1 tile
+     * @return true if any rendered
+     */
+    protected static boolean isZoomOutRendered(TileFlags rendered, int x, int y) {
+        return rendered.getFlag(x, y) || rendered.getFlag(x+1, y) ||
+            rendered.getFlag(x, y-1) || rendered.getFlag(x+1, y-1);
+    }
+
     /**
      * Set player face image
      * @param playername - player name
@@ -118,6 +318,14 @@ public abstract class MapStorage {
      */
     public abstract boolean hasPlayerFaceImage(String playername, PlayerFaces.FaceType facetype);
 
+    /**
+     * Get names of players with face images stored, of any type
+     * @return player names (empty if not supported)
+     */
+    public Set<String> getPlayerFaceNames() {
+        return Collections.emptySet();
+    }
+
     /**
      * Set marker image
      * @param markerid - marker ID
@@ -140,6 +348,16 @@ public abstract class MapStorage {
      * @return true if successful
      */
     public abstract boolean setMarkerFile(String world, String content);
+
+    /**
+     * Set marker file for world from encoded content
+     * @param world - world ID
+     * @param content - UTF-8 JSON content for marker file
+     * @return true if successful
+     */
+    public boolean setMarkerFile(String world, BufferOutputStream content) {
+        return setMarkerFile(world, new String(content.buf, 0, content.len, UTF8));
+    }
     
     /**
      * Get marker file for world
@@ -178,6 +396,30 @@ public abstract class MapStorage {
         return crc32.getValue();
     }
     
+    /**
+     * Calculate strong content hash for encoded image, used to key shared (deduplicated) tile content
+     * @param buf - encoded image bytes
+     * @param off - offset of start in buffer
+     * @param len - length of encoded image
+     * @return hash, as lower case hex string
+     */
+    public static String calculateContentHash(byte[] buf, int off, int len) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsax) {
+            throw new IllegalStateException("SHA-1 not supported", nsax);
+        }
+        md.update(buf, off, len);
+        byte[] d = md.digest();
+        StringBuilder sb = new StringBuilder(2 * d.length);
+        for (byte v : d) {
+            sb.append(Character.forDigit((v >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(v & 0xF, 16));
+        }
+        return sb.toString();
+    }
+    
     /**
      * URI to use for loading marker data (for external web server)
      * 
@@ -0,0 +1,413 @@
+package org.dynmap.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dynmap.ConfigurationNode;
+import org.dynmap.DynmapCore;
+import org.dynmap.DynmapWorld;
+import org.dynmap.Log;
+import org.dynmap.MapType;
+import org.dynmap.PlayerFaces.FaceType;
+import org.dynmap.common.DynmapCommandSender;
+import org.dynmap.markers.MarkerAPI;
+import org.dynmap.markers.MarkerIcon;
+import org.dynmap.storage.MapStorageTile.TileRead;
+import org.dynmap.utils.BufferInputStream;
+import org.dynmap.utils.BufferOutputStream;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Copy of map tiles, faces, marker icons and marker files from the active map storage to the storage
+ * configured in the 'storage-migration' section, using a bounded pool of workers.  Tiles keep their
+ * hash codes, so no re-render is needed after switching storage.  Completed maps are recorded in a
+ * checkpoint file, so an interrupted migration resumes where it left off.
+ */
+public class MapStorageMigration implements Runnable {
+    private static final String CHECKPOINT_FILE = "storage-migration.txt";
+    private static final Object lock = new Object();
+    private static MapStorageMigration active;
+
+    private final DynmapCore core;
+    private final DynmapCommandSender sender;
+    private final ConfigurationNode cfg;
+    private final MapStorage source;
+    private final File checkpoint;
+    private volatile boolean cancelled;
+    private final AtomicLong copied = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private long starttime;
+    private long lastreport;
+    private long reportinterval;
+    private String current = "";
+
+    private MapStorageMigration(DynmapCore core, DynmapCommandSender sender, ConfigurationNode cfg) {
+        this.core = core;
+        this.sender = sender;
+        this.cfg = cfg;
+        this.source = core.getDefaultMapStorage();
+        this.checkpoint = new File(core.getDataFolder(), CHECKPOINT_FILE);
+    }
+
+    /**
+     * Start migration, resuming from checkpoint if one exists
+     * @param core - core
+     * @param sender - command sender, for progress messages
+     * @param restart - if true, ignore existing checkpoint
+     */
+    public static void startMigration(DynmapCore core, DynmapCommandSender sender, boolean restart) {
+        ConfigurationNode cfg = core.configuration.getNode("storage-migration");
+        if ((cfg == null) || (cfg.getString("type", null) == null)) {
+            sender.sendMessage("Storage migration requires target storage settings, including 'type', in 'storage-migration' section of configuration");
+            return;
+        }
+        ConfigurationNode cur = core.configuration.getNode("storage");
+        if ((cur != null) && cfg.entries.equals(cur.entries)) {
+            sender.sendMessage("Storage migration target is the same as current map storage");
+            return;
+        }
+        synchronized(lock) {
+            if (active != null) {
+                sender.sendMessage("Storage migration already running");
+                return;
+            }
+            active = new MapStorageMigration(core, sender, cfg);
+            if (restart) {
+                active.checkpoint.delete();
+            }
+            Thread t = new Thread(active, "Dynmap storage migration");
+            t.setDaemon(true);
+            t.start();
+        }
+        sender.sendMessage("Storage migration to '" + cfg.getString("type", null) + "' storage starting...");
+    }
+
+    /**
+     * Cancel running migration: checkpoint is kept, so migration can be resumed
+     * @param sender - command sender
+     */
+    public static void cancelMigration(DynmapCommandSender sender) {
+        synchronized(lock) {
+            if (active == null) {
+                sender.sendMessage("No storage migration running");
+                return;
+            }
+            active.cancelled = true;
+        }
+        sender.sendMessage("Storage migration cancelling...");
+    }
+
+    /**
+     * Report progress of running migration
+     * @param sender - command sender
+     */
+    public static void showStatus(DynmapCommandSender sender) {
+        synchronized(lock) {
+            if (active == null) {
+                sender.sendMessage("No storage migration running");
+                return;
+            }
+            sender.sendMessage(active.getProgress());
+        }
+    }
+
+    private String getProgress() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - starttime);
+        return String.format("Storage migration: %d tiles copied (%d skipped, %d failed), %.1f tiles/sec, %.1f KB/sec - %s",
+            copied.get(), skipped.get(), failed.get(), copied.get() * 1000.0 / elapsed,
+            bytes.get() * 1000.0 / 1024.0 / elapsed, current);
+    }
+
+    private synchronized void reportProgress() {
+        long now = System.currentTimeMillis();
+        if ((now - lastreport) >= reportinterval) {
+            lastreport = now;
+            String msg = getProgress();
+            Log.info(msg);
+            sender.sendMessage(msg);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            doMigration();
+        } catch (Exception x) {
+            Log.severe("Storage migration failed", x);
+            sender.sendMessage("Storage migration failed - " + x.getMessage());
+        } finally {
+            synchronized(lock) {
+                active = null;
+            }
+        }
+    }
+
+    private void doMigration() throws IOException {
+        starttime = lastreport = System.currentTimeMillis();
+        reportinterval = 1000L * cfg.getInteger("progress-interval", 30);
+        final MapStorage target = DynmapCore.createMapStorage(cfg.getString("type", null));
+        if (target == null) {
+            sender.sendMessage("Invalid storage type for storage migration: " + cfg.getString("type", null));
+            return;
+        }
+        target.setStorageConfig(cfg);
+        target.setZoomOutUpdates(false);    // Zoom out tiles are copied too
+        if (!target.init(core)) {
+            sender.sendMessage("Storage migration target initialization failure");
+            target.shutdown();
+            return;
+        }
+        try {
+            migrateTo(target);
+        } finally {
+            target.shutdown();
+        }
+    }
+
+    private void migrateTo(final MapStorage target) throws IOException {
+        // Load checkpoint: units started and completed by earlier run
+        Set<String> started = new HashSet<String>();
+        Set<String> done = new HashSet<String>();
+        if (checkpoint.exists()) {
+            BufferedReader rdr = new BufferedReader(new FileReader(checkpoint));
+            try {
+                String line;
+                while ((line = rdr.readLine()) != null) {
+                    if (line.startsWith("start ")) {
+                        started.add(line.substring(6));
+                    }
+                    else if (line.startsWith("done ")) {
+                        done.add(line.substring(5));
+                    }
+                }
+            } finally {
+                rdr.close();
+            }
+            sender.sendMessage("Resuming storage migration: " + done.size() + " steps already completed");
+        }
+        int threads = Math.max(1, cfg.getInteger("threads", 4));
+        final ExecutorService pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        final int maxpending = 4 * threads;
+        final Semaphore pending = new Semaphore(maxpending);
+        Writer chk = new FileWriter(checkpoint, true);
+        try {
+            List<DynmapWorld> worlds = new ArrayList<DynmapWorld>(core.mapManager.getWorlds());
+            for (final DynmapWorld world : worlds) {
+                for (MapType mt : world.maps) {
+                    if (cancelled) break;
+                    String unit = "tiles:" + world.getName() + ":" + mt.getPrefix();
+                    if (done.contains(unit)) continue;
+                    // If partially copied, skip tiles already on target
+                    final boolean verify = started.contains(unit);
+                    current = "world '" + world.getName() + "', map '" + mt.getName() + "'";
+                    chk.write("start " + unit + "\n");
+                    chk.flush();
+                    source.enumMapTiles(world, mt, new MapStorageTileEnumCB() {
+                        @Override
+                        public void tileFound(final MapStorageTile tile, MapType.ImageEncoding enc) {
+                            if (cancelled) return;
+                            try {
+                                pending.acquire();
+                            } catch (InterruptedException ix) {
+                                cancelled = true;
+                                return;
+                            }
+                            final int x = tile.x, y = tile.y, zoom = tile.zoom;
+                            final MapType map = tile.map;
+                            final MapType.ImageVariant var = tile.var;
+                            pool.execute(new Runnable() {
+                                public void run() {
+                                    try {
+                                        copyTile(target, world, map, x, y, zoom, var, verify);
+                                    } catch (Exception ex) {
+                                        Log.severe("Storage migration tile copy error", ex);
+                                        failed.incrementAndGet();
+                                    } finally {
+                                        pending.release();
+                                    }
+                                }
+                            });
+                            reportProgress();
+                        }
+                    });
+                    // Wait for copies of map to complete before recording it
+                    pending.acquireUninterruptibly(maxpending);
+                    pending.release(maxpending);
+                    if (!cancelled) {
+                        chk.write("done " + unit + "\n");
+                        chk.flush();
+                    }
+                }
+            }
+            if ((!cancelled) && (!done.contains("faces"))) {
+                current = "player faces";
+                copyFaces(target);
+                chk.write("done faces\n");
+                chk.flush();
+            }
+            if ((!cancelled) && (!done.contains("markers"))) {
+                current = "marker icons and files";
+                copyMarkers(target, worlds);
+                chk.write("done markers\n");
+                chk.flush();
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(60, TimeUnit.SECONDS);    // Copies done before target is shut down
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+            chk.close();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - starttime);
+        if (cancelled) {
+            sender.sendMessage("Storage migration cancelled after " + copied.get() + " tiles - run again to resume");
+            return;
+        }
+        checkpoint.delete();
+        String msg = String.format("Storage migration completed: %d tiles copied (%d skipped, %d failed) in %d seconds (%.1f tiles/sec)",
+            copied.get(), skipped.get(), failed.get(), elapsed / 1000, copied.get() * 1000.0 / elapsed);
+        Log.info(msg);
+        sender.sendMessage(msg);
+        if (failed.get() == 0) {
+            sender.sendMessage("Update 'storage' section of configuration to match 'storage-migration', and restart, to use new storage");
+        }
+    }
+
+    private void copyTile(MapStorage target, DynmapWorld world, MapType map, int x, int y, int zoom, MapType.ImageVariant var, boolean verify) {
+        MapStorageTile src = source.getTile(world, map, x, y, zoom, var);
+        TileRead tr = null;
+        if (src.getReadLock(5000)) {
+            try {
+                tr = src.read();
+            } finally {
+                src.releaseReadLock();
+            }
+        }
+        if (tr == null) {   // Deleted since enumerated, or unreadable
+            skipped.incrementAndGet();
+            return;
+        }
+        MapStorageTile dst = target.getTile(world, map, x, y, zoom, var);
+        if (verify && dst.matchesHashCode(tr.hashCode)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        BufferOutputStream bos = toOutputStream(tr.image);
+        boolean ok = false;
+        if (dst.getWriteLock()) {
+            try {
+                ok = dst.write(tr.hashCode, bos, tr.format);     // Kept in format it was encoded in
+            } finally {
+                dst.releaseWriteLock();
+            }
+        }
+        if (ok) {
+            copied.incrementAndGet();
+            bytes.addAndGet(bos.len);
+        }
+        else {
+            failed.incrementAndGet();
+        }
+    }
+
+    private void copyFaces(MapStorage target) {
+        for (String player : source.getPlayerFaceNames()) {
+            if (cancelled) return;
+            for (FaceType ft : FaceType.values()) {
+                BufferInputStream img = source.getPlayerFaceImage(player, ft);
+                if (img != null) {
+                    if (!target.setPlayerFaceImage(player, ft, toOutputStream(img))) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private void copyMarkers(MapStorage target, List<DynmapWorld> worlds) {
+        MarkerAPI api = core.getMarkerAPI();
+        if (api != null) {
+            for (MarkerIcon ico : api.getMarkerIcons()) {
+                BufferInputStream img = source.getMarkerImage(ico.getMarkerIconID());
+                if (img != null) {
+                    if (!target.setMarkerImage(ico.getMarkerIconID(), toOutputStream(img))) {
+                        failed.incrementAndGet();
+                    }
+                }
+            }
+        }
+        for (DynmapWorld world : worlds) {
+            String content = source.getMarkerFile(world.getName());
+            if (content != null) {
+                // Copy shards listed by index first, so the target's index never lists a missing shard
+                for (String id : getMarkerShardIDs(content)) {
+                    String shard = source.getMarkerFile(id);
+                    if ((shard == null) || (!target.setMarkerFile(id, shard))) {
+                        failed.incrementAndGet();
+                    }
+                }
+                if (!target.setMarkerFile(world.getName(), content)) {
+                    failed.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get marker file IDs of shards listed by marker file of world, if it is a shard index
+     * @param content - marker file of world
+     * @return shard marker file IDs (empty if not a shard index)
+     */
+    private static List<String> getMarkerShardIDs(String content) {
+        List<String> ids = new ArrayList<String>();
+        Object o;
+        try {
+            o = new JSONParser().parse(content);
+        } catch (ParseException px) {
+            return ids;
+        }
+        if (!(o instanceof Map)) {
+            return ids;
+        }
+        Object shards = ((Map<?, ?>) o).get("shards");
+        if (shards instanceof Map) {
+            for (Object shard : ((Map<?, ?>) shards).values()) {
+                if (shard instanceof Map) {
+                    Object id = ((Map<?, ?>) shard).get("file");
+                    if (id instanceof String) {
+                        ids.add((String) id);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
+
+    // Wrap content read from storage for writing, without copying it
+    private static BufferOutputStream toOutputStream(BufferInputStream in) {
+        BufferOutputStream bos = new BufferOutputStream();
+        bos.buf = in.buffer();
+        bos.len = in.length();
+        return bos;
+    }
+}
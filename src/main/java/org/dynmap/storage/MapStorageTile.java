@@ -23,6 +23,7 @@ public abstract class MapStorageTile {
         public MapType.ImageEncoding format; // Image format
         public long hashCode;              // Image hashcode (-1 = unknown)
         public long lastModified;          // Last modified timestamp (-1 = unknown)
+        public String validator;           // Validator for conditional requests, if not hashCode (null = use hashCode)
     }
 
     protected MapStorageTile(DynmapWorld world, MapType map, int x, int y, int zoom, MapType.ImageVariant var) {
@@ -50,6 +51,20 @@ public abstract class MapStorageTile {
      * @return loaded Tile, or null if not read
      */
     public abstract TileRead read();
+    /**
+     * Read tile metadata (hash code, last modified, format), without loading the image.
+     * Used for answering conditional requests.  Storage handlers should override this with
+     * a cheaper lookup than a full read.
+     *
+     * @return tile metadata (image field is null), or null if tile does not exist
+     */
+    public TileRead readMetadata() {
+        TileRead tr = read();
+        if (tr != null) {
+            tr.image = null;
+        }
+        return tr;
+    }
     /**
      * Write tile
      *
@@ -58,6 +73,22 @@ public abstract class MapStorageTile {
      * @return true if write succeeded
      */
     public abstract boolean write(long hash, BufferOutputStream encImage);
+    /**
+     * Write tile encoded in given format, which may not be the map's current format (when copying
+     * tiles between storage).  Storage handlers that keep the format of each tile override this: by
+     * default, the tile is only written if its format is the map's.
+     *
+     * @param hash - hash code of uncompressed image
+     * @param encImage - output stream for encoded image
+     * @param fmt - encoding of image
+     * @return true if write succeeded
+     */
+    public boolean write(long hash, BufferOutputStream encImage, MapType.ImageEncoding fmt) {
+        if (fmt != map.getImageFormat().getEncoding()) {
+            return false;
+        }
+        return write(hash, encImage);
+    }
     /**
      * Write tile from image
      * 
@@ -0,0 +1,200 @@
+package org.dynmap.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.dynmap.MapType;
+import org.dynmap.storage.MapStorageTile.TileRead;
+import org.dynmap.utils.BufferInputStream;
+
+/**
+ * Size bounded, byte accounted LRU cache of encoded tile images, used by the web server to
+ * serve frequently requested tiles without a storage read.  Entries are invalidated by the
+ * storage tile write and delete calls.
+ */
+public class MapStorageTileCache {
+    private static final long ENTRY_OVERHEAD = 128;   // Rough per entry overhead (key, entry, map node)
+
+    private static class CachedTile {
+        final byte[] image;
+        final int len;
+        final MapType.ImageEncoding format;
+        final long hashCode;
+        final long lastModified;
+        final String validator;
+        final long size;
+
+        CachedTile(String key, TileRead tr) {
+            this.image = tr.image.buffer();
+            this.len = tr.image.length();
+            this.format = tr.format;
+            this.hashCode = tr.hashCode;
+            this.lastModified = tr.lastModified;
+            this.validator = tr.validator;
+            this.size = image.length + (2 * key.length()) + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CachedTile> cache = new LinkedHashMap<String, CachedTile>(256, 0.75F, true);
+    private final long maxBytes;
+    private final int maxTileBytes;
+    private long curBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    /**
+     * Create cache
+     * @param maxBytes - maximum number of bytes of tile data held by cache
+     * @param maxTileBytes - largest encoded tile that will be cached
+     */
+    public MapStorageTileCache(long maxBytes, int maxTileBytes) {
+        this.maxBytes = maxBytes;
+        this.maxTileBytes = maxTileBytes;
+    }
+
+    /**
+     * Get cache key for given tile
+     * @param tile - tile
+     * @return key
+     */
+    public static String getKey(MapStorageTile tile) {
+        return tile.world.getName() + "/" + tile.getURI();
+    }
+
+    /**
+     * Get cached tile content
+     * @param tile - tile
+     * @return tile content, or null if not cached
+     */
+    public TileRead get(MapStorageTile tile) {
+        String key = getKey(tile);
+        CachedTile ct;
+        synchronized(lock) {
+            ct = cache.get(key);
+            if (ct == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        TileRead tr = new TileRead();
+        tr.image = new BufferInputStream(ct.image, ct.len);
+        tr.format = ct.format;
+        tr.hashCode = ct.hashCode;
+        tr.lastModified = ct.lastModified;
+        tr.validator = ct.validator;
+        return tr;
+    }
+
+    /**
+     * Add tile content to cache.  Should be called while holding the read lock of the tile, so that
+     * a concurrent write cannot be overtaken by stale content.
+     * @param tile - tile
+     * @param tr - tile content read from storage
+     */
+    public void put(MapStorageTile tile, TileRead tr) {
+        if ((tr == null) || (tr.image == null) || (tr.image.length() > maxTileBytes)) {
+            return;
+        }
+        String key = getKey(tile);
+        CachedTile ct = new CachedTile(key, tr);
+        if (ct.size > maxBytes) {
+            return;
+        }
+        synchronized(lock) {
+            CachedTile old = cache.put(key, ct);
+            if (old != null) {
+                curBytes -= old.size;
+            }
+            curBytes += ct.size;
+            // Evict least recently used until we fit
+            Iterator<Map.Entry<String, CachedTile>> iter = cache.entrySet().iterator();
+            while ((curBytes > maxBytes) && iter.hasNext()) {
+                Map.Entry<String, CachedTile> ent = iter.next();
+                if (ent.getValue() == ct) continue;
+                curBytes -= ent.getValue().size;
+                iter.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Invalidate cached content for tile (on write or delete)
+     * @param tile - tile
+     */
+    public void invalidate(MapStorageTile tile) {
+        String key = getKey(tile);
+        synchronized(lock) {
+            CachedTile old = cache.remove(key);
+            if (old != null) {
+                curBytes -= old.size;
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Invalidate all cached content (on purge)
+     */
+    public void invalidateAll() {
+        synchronized(lock) {
+            invalidations += cache.size();
+            cache.clear();
+            curBytes = 0;
+        }
+    }
+
+    public long getHits() {
+        synchronized(lock) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized(lock) {
+            return misses;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized(lock) {
+            return evictions;
+        }
+    }
+
+    public long getInvalidations() {
+        synchronized(lock) {
+            return invalidations;
+        }
+    }
+
+    public int getCount() {
+        synchronized(lock) {
+            return cache.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized(lock) {
+            return curBytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Reset hit/miss/eviction counters
+     */
+    public void resetStats() {
+        synchronized(lock) {
+            hits = misses = evictions = invalidations = 0;
+        }
+    }
+}
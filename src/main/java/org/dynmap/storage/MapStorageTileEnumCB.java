@@ -2,10 +2,21 @@ package org.dynmap.storage;
 
 import org.dynmap.MapType.ImageEncoding;
 
+/**
+ * Callback for tile enumeration (MapStorage.enumMapTiles, MapStorage.purgeOldTiles).
+ *
+ * Storage implementations may scan for tiles in parallel, so implementations of this interface must
+ * be thread safe: tileFound() may be invoked concurrently from several threads, none of which need be
+ * the thread that started the enumeration, and tiles are reported in no particular order (a zoomed tile
+ * may be reported before or after the tiles it is built from).  The enumeration call does not return
+ * until every callback has completed.  Callbacks should not block for long, as storage may buffer only
+ * a bounded number of found tiles and will stall its scan until they are consumed; an exception thrown
+ * from a callback abandons the rest of the enumeration.
+ */
 public interface MapStorageTileEnumCB {
     /**
      * Callback for tile enumeration calls
-     * @param tile - tile found
+     * @param tile - tile found (only valid for the duration of the call)
      * @param enc - image encoding
      */
     public void tileFound(MapStorageTile tile, ImageEncoding enc);
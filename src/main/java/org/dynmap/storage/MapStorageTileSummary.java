@@ -0,0 +1,202 @@
+package org.dynmap.storage;
+
+import java.util.HashMap;
+
+import org.dynmap.utils.TileFlags;
+
+/**
+ * Lightweight in-memory record of tiles known to be blank (no tile stored) or a single solid colour,
+ * kept per world, map, variant and zoom level as per-region bitmaps (with a colour table for solid
+ * tiles).  Zoom out processing and the web server consult it to skip storage reads of such tiles.
+ * Entries are only added for tiles whose content this server has just written, deleted or found missing,
+ * and are cleared by the storage tile write and delete calls, so the record stays in step with storage
+ * as long as tiles are only updated through this server.  It is not persisted: after a restart it is
+ * rebuilt as tiles are rendered and read.
+ */
+public class MapStorageTileSummary {
+    public static final int TILE_SIZE = 128;    // Size of tiles recorded as solid colour
+
+    private static class MapSummary {
+        final TileFlags blank = new TileFlags();
+        final HashMap<Long, Integer> solid = new HashMap<Long, Integer>();
+    }
+
+    private final Object lock = new Object();
+    private final HashMap<String, MapSummary> maps = new HashMap<String, MapSummary>();
+    private int blankCount;
+    private long blankHits;
+    private long solidHits;
+
+    private static String getKey(MapStorageTile tile) {
+        return tile.world.getName() + "/" + tile.map.getPrefix() + tile.var.variantSuffix + "/" + tile.zoom;
+    }
+
+    private static long getTileKey(int x, int y) {
+        return (((long) x) << 32) | (0xFFFFFFFFL & (long) y);
+    }
+
+    /**
+     * Test if image is a single colour
+     * @param argb - pixels
+     * @return true if all pixels are the same
+     */
+    public static boolean isSolid(int[] argb) {
+        if ((argb == null) || (argb.length == 0)) {
+            return false;
+        }
+        int c = argb[0];
+        for (int i = 1; i < argb.length; i++) {
+            if (argb[i] != c) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Test if tile is known to be blank (not stored)
+     * @param tile - tile
+     * @return true if known blank
+     */
+    public boolean isBlank(MapStorageTile tile) {
+        String key = getKey(tile);
+        synchronized(lock) {
+            MapSummary ms = maps.get(key);
+            if ((ms != null) && ms.blank.getFlag(tile.x >> tile.zoom, tile.y >> tile.zoom)) {
+                blankHits++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get colour of tile known to be a single solid colour
+     * @param tile - tile
+     * @return ARGB colour, or null if not known to be solid
+     */
+    public Integer getSolidColor(MapStorageTile tile) {
+        String key = getKey(tile);
+        synchronized(lock) {
+            MapSummary ms = maps.get(key);
+            if (ms == null) {
+                return null;
+            }
+            Integer c = ms.solid.get(getTileKey(tile.x >> tile.zoom, tile.y >> tile.zoom));
+            if (c != null) {
+                solidHits++;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Record tile as blank (deleted, or not found in storage)
+     * @param tile - tile
+     */
+    public void setBlank(MapStorageTile tile) {
+        String key = getKey(tile);
+        int x = tile.x >> tile.zoom;
+        int y = tile.y >> tile.zoom;
+        synchronized(lock) {
+            MapSummary ms = maps.get(key);
+            if (ms == null) {
+                ms = new MapSummary();
+                maps.put(key, ms);
+            }
+            ms.solid.remove(getTileKey(x, y));
+            if (!ms.blank.setFlag(x, y, true)) {
+                blankCount++;
+            }
+        }
+    }
+
+    /**
+     * Record tile as single solid colour
+     * @param tile - tile
+     * @param argb - colour
+     */
+    public void setSolid(MapStorageTile tile, int argb) {
+        String key = getKey(tile);
+        int x = tile.x >> tile.zoom;
+        int y = tile.y >> tile.zoom;
+        synchronized(lock) {
+            MapSummary ms = maps.get(key);
+            if (ms == null) {
+                ms = new MapSummary();
+                maps.put(key, ms);
+            }
+            if (ms.blank.setFlag(x, y, false)) {
+                blankCount--;
+            }
+            ms.solid.put(getTileKey(x, y), argb);
+        }
+    }
+
+    /**
+     * Forget what is known about tile (on write or delete)
+     * @param tile - tile
+     */
+    public void clear(MapStorageTile tile) {
+        String key = getKey(tile);
+        int x = tile.x >> tile.zoom;
+        int y = tile.y >> tile.zoom;
+        synchronized(lock) {
+            MapSummary ms = maps.get(key);
+            if (ms == null) {
+                return;
+            }
+            if (ms.blank.setFlag(x, y, false)) {
+                blankCount--;
+            }
+            ms.solid.remove(getTileKey(x, y));
+        }
+    }
+
+    /**
+     * Forget everything (on purge)
+     */
+    public void clearAll() {
+        synchronized(lock) {
+            maps.clear();
+            blankCount = 0;
+        }
+    }
+
+    public int getBlankCount() {
+        synchronized(lock) {
+            return blankCount;
+        }
+    }
+
+    public int getSolidCount() {
+        synchronized(lock) {
+            int cnt = 0;
+            for (MapSummary ms : maps.values()) {
+                cnt += ms.solid.size();
+            }
+            return cnt;
+        }
+    }
+
+    public long getBlankHits() {
+        synchronized(lock) {
+            return blankHits;
+        }
+    }
+
+    public long getSolidHits() {
+        synchronized(lock) {
+            return solidHits;
+        }
+    }
+
+    /**
+     * Reset hit counters
+     */
+    public void resetStats() {
+        synchronized(lock) {
+            blankHits = solidHits = 0;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package org.dynmap.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, byte accounted LRU cache of tiles downsampled to a quarter of their area (64x64 ARGB
+ * for the standard 128x128 tile), as used to build the zoom out tile above them.  Renderers deposit a
+ * copy of each tile they write, so that zoom out processing can skip reading and decoding it.  Entries
+ * are invalidated by the storage tile write and delete calls, so a deposit must follow the write it
+ * describes, while the tile write lock is still held.
+ */
+public class MapStorageZoomOutCache {
+    public static final int TILE_SIZE = 128;                 // Size of full tile
+    public static final int SCALED_SIZE = TILE_SIZE / 2;     // Size of downsampled tile
+    private static final long ENTRY_OVERHEAD = 128;   // Rough per entry overhead (key, entry, map node, array header)
+
+    private static class CachedTile {
+        final int[] argb;
+        final long size;
+
+        CachedTile(String key, int[] argb) {
+            this.argb = argb;
+            this.size = (4L * argb.length) + (2 * key.length()) + ENTRY_OVERHEAD;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final LinkedHashMap<String, CachedTile> cache = new LinkedHashMap<String, CachedTile>(256, 0.75F, true);
+    private final long maxBytes;
+    private long curBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create cache
+     * @param maxBytes - maximum number of bytes of pixel data held by cache
+     */
+    public MapStorageZoomOutCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Downsample 2x2 blocks of a TILE_SIZE x TILE_SIZE ARGB image by averaging each channel.  The
+     * source and destination may be the same array, when dstscan is TILE_SIZE.
+     * @param src - source pixels (TILE_SIZE x TILE_SIZE, row stride TILE_SIZE)
+     * @param dst - destination pixels (SCALED_SIZE x SCALED_SIZE)
+     * @param dstscan - row stride of destination
+     */
+    public static void downsample(int[] src, int[] dst, int dstscan) {
+        for (int y = 0; y < TILE_SIZE; y += 2) {
+            int off = y * TILE_SIZE;
+            int doff = (y >> 1) * dstscan;
+            for (int x = 0; x < TILE_SIZE; x += 2, off += 2, doff++) {
+                int p0 = src[off];
+                int p1 = src[off+1];
+                int p2 = src[off+TILE_SIZE];
+                int p3 = src[off+TILE_SIZE+1];
+                int alpha = ((p0 >> 24) & 0xFF) + ((p1 >> 24) & 0xFF) + ((p2 >> 24) & 0xFF) + ((p3 >> 24) & 0xFF);
+                int red = ((p0 >> 16) & 0xFF) + ((p1 >> 16) & 0xFF) + ((p2 >> 16) & 0xFF) + ((p3 >> 16) & 0xFF);
+                int green = ((p0 >> 8) & 0xFF) + ((p1 >> 8) & 0xFF) + ((p2 >> 8) & 0xFF) + ((p3 >> 8) & 0xFF);
+                int blue = (p0 & 0xFF) + (p1 & 0xFF) + (p2 & 0xFF) + (p3 & 0xFF);
+                dst[doff] = (((alpha>>2)&0xFF)<<24) | (((red>>2)&0xFF)<<16) | (((green>>2)&0xFF)<<8) | ((blue>>2)&0xFF);
+            }
+        }
+    }
+
+    /**
+     * Get downsampled tile
+     * @param tile - tile
+     * @return SCALED_SIZE x SCALED_SIZE pixels (must not be modified), or null if not cached
+     */
+    public int[] get(MapStorageTile tile) {
+        String key = MapStorageTileCache.getKey(tile);
+        synchronized(lock) {
+            CachedTile ct = cache.get(key);
+            if (ct == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return ct.argb;
+        }
+    }
+
+    /**
+     * Add full size tile image to cache, downsampling it.  Should be called after the tile has been
+     * written, while still holding its write lock.
+     * @param tile - tile
+     * @param argb - TILE_SIZE x TILE_SIZE pixels of tile
+     */
+    public void putImage(MapStorageTile tile, int[] argb) {
+        if ((argb == null) || (argb.length != (TILE_SIZE * TILE_SIZE))) {    // Only standard size tiles
+            return;
+        }
+        int[] scaled = new int[SCALED_SIZE * SCALED_SIZE];
+        downsample(argb, scaled, SCALED_SIZE);
+        put(tile, scaled);
+    }
+
+    /**
+     * Add already downsampled tile to cache
+     * @param tile - tile
+     * @param argb - pixels of downsampled tile
+     * @param off - offset of first pixel
+     * @param scan - row stride of pixels
+     */
+    public void putScaled(MapStorageTile tile, int[] argb, int off, int scan) {
+        int[] scaled = new int[SCALED_SIZE * SCALED_SIZE];
+        for (int y = 0; y < SCALED_SIZE; y++) {
+            System.arraycopy(argb, off + (y * scan), scaled, y * SCALED_SIZE, SCALED_SIZE);
+        }
+        put(tile, scaled);
+    }
+
+    private void put(MapStorageTile tile, int[] scaled) {
+        String key = MapStorageTileCache.getKey(tile);
+        CachedTile ct = new CachedTile(key, scaled);
+        if (ct.size > maxBytes) {
+            return;
+        }
+        synchronized(lock) {
+            CachedTile old = cache.put(key, ct);
+            if (old != null) {
+                curBytes -= old.size;
+            }
+            curBytes += ct.size;
+            // Evict least recently used until we fit
+            Iterator<Map.Entry<String, CachedTile>> iter = cache.entrySet().iterator();
+            while ((curBytes > maxBytes) && iter.hasNext()) {
+                Map.Entry<String, CachedTile> ent = iter.next();
+                if (ent.getValue() == ct) continue;
+                curBytes -= ent.getValue().size;
+                iter.remove();
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Invalidate cached tile (on write or delete)
+     * @param tile - tile
+     */
+    public void invalidate(MapStorageTile tile) {
+        String key = MapStorageTileCache.getKey(tile);
+        synchronized(lock) {
+            CachedTile old = cache.remove(key);
+            if (old != null) {
+                curBytes -= old.size;
+            }
+        }
+    }
+
+    /**
+     * Invalidate all cached tiles (on purge)
+     */
+    public void invalidateAll() {
+        synchronized(lock) {
+            cache.clear();
+            curBytes = 0;
+        }
+    }
+
+    public long getHits() {
+        synchronized(lock) {
+            return hits;
+        }
+    }
+
+    public long getMisses() {
+        synchronized(lock) {
+            return misses;
+        }
+    }
+
+    public long getEvictions() {
+        synchronized(lock) {
+            return evictions;
+        }
+    }
+
+    public int getCount() {
+        synchronized(lock) {
+            return cache.size();
+        }
+    }
+
+    public long getBytes() {
+        synchronized(lock) {
+            return curBytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Reset hit/miss/eviction counters
+     */
+    public void resetStats() {
+        synchronized(lock) {
+            hits = misses = evictions = 0;
+        }
+    }
+}
@@ -4,11 +4,27 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.dynmap.DynmapCore;
 import org.dynmap.DynmapWorld;
@@ -21,19 +37,35 @@ import org.dynmap.WebAuthManager;
 import org.dynmap.debug.Debug;
 import org.dynmap.storage.MapStorage;
 import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTile.TileRead;
 import org.dynmap.storage.MapStorageTileEnumCB;
 import org.dynmap.utils.BufferInputStream;
 import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.utils.TileFlags;
 
 public class FileTreeMapStorage extends MapStorage {
     private File baseTileDir;
+    private File[] shardDirs;   // Tile roots that map tiles are spread across
+    private long[] shardSeeds;  // Hash of each shard's configured path, for picking a tile's shard
+    private File zoomTileDir;   // Tile root for all zoom out tiles (null if sharded with base tiles)
+    private File[] tileRoots;   // All distinct tile roots
+    private String tileRootLayout;  // Shards and zoom tile directory, as recorded once tiles are rebalanced
+    private volatile boolean rebalancePending;  // If true, tiles may still be in other roots than their own
     private TileHashManager hashmap;
+    private boolean dedup;      // If true, identical tiles are hard linked to shared blob files
+    private int dedupMaxLen;
+    private ForkJoinPool enumPool;  // Pool for parallel directory scans (tile enumeration and purge)
+    private static final int ENUM_QUEUE_SIZE = 4096;    // Max tiles found but not yet passed to callback
     private static final int MAX_WRITE_RETRIES = 6;
     private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String BLOB_DIR = "_blobs_";
+    private static final String LAYOUT_FILE = "_tileroots.txt";  // Tile root layout tiles were last rebalanced for
+    private static final String BLOB_HASH_ATTR = "dynmap.blobhash";  // User attribute of blob (and so of its tile links) with its hash
 
     public class StorageTile extends MapStorageTile {
         private final String baseFilename;
         private final String uri;
+        private final File root;    // Tile root holding this tile
         private File f; // cached file
         private ImageEncoding f_fmt;
         
@@ -49,17 +81,35 @@ public class FileTreeMapStorage extends MapStorage {
             }
             baseFilename = world.getName() + "/" + baseURI;
             uri = baseURI + "." + map.getImageFormat().getFileExt();
+            root = getTileRoot(world.getName(), map.getPrefix() + var.variantSuffix, x, y, zoom);
         }
         private File getTileFile(ImageEncoding fmt) {
             if ((f == null) || (fmt != f_fmt)) {
-                f = new File(baseTileDir, baseFilename + "." + fmt.getFileExt());
+                f = new File(root, baseFilename + "." + fmt.getFileExt());
                 f_fmt = fmt;
             }
             return f;
         }
+        /*
+         * Find file of tile in given format: in its own tile root or, if not there while tiles are still
+         * to be rebalanced, in any other root
+         */
+        private File findTileFile(ImageEncoding fmt) {
+            File ff = getTileFile(fmt);
+            if (rebalancePending && (ff.exists() == false)) {
+                for (File r : tileRoots) {
+                    if (r == root) continue;
+                    File misplaced = new File(r, baseFilename + "." + fmt.getFileExt());
+                    if (misplaced.exists()) {
+                        return misplaced;
+                    }
+                }
+            }
+            return ff;
+        }
         private File getTileFile() {
             ImageEncoding fmt = map.getImageFormat().getEncoding();
-            File ff = getTileFile(fmt);
+            File ff = findTileFile(fmt);
             if (ff.exists() == false) {
                 if (fmt == ImageEncoding.PNG) {
                     fmt = ImageEncoding.JPG;
@@ -67,12 +117,29 @@ public class FileTreeMapStorage extends MapStorage {
                 else {
                     fmt = ImageEncoding.PNG;
                 }
-                ff = getTileFile(fmt);
+                ff = findTileFile(fmt);
             }
             return ff;
         }
-        private File getTileFileAltFormat() {
-            ImageEncoding fmt = map.getImageFormat().getEncoding();
+        /*
+         * Remove copies of tile left in other tile roots, once it is written or deleted in its own, so they
+         * aren't found in its place
+         */
+        private void removeMisplacedFiles() {
+            if (!rebalancePending) return;
+            for (File r : tileRoots) {
+                if (r == root) continue;
+                for (ImageEncoding fmt : ImageEncoding.values()) {
+                    File misplaced = new File(r, baseFilename + "." + fmt.getFileExt());
+                    if (misplaced.exists()) {
+                        File blob = getLinkedBlob(r, misplaced);
+                        misplaced.delete();
+                        releaseBlob(blob);
+                    }
+                }
+            }
+        }
+        private File getTileFileAltFormat(ImageEncoding fmt) {
             if (fmt == ImageEncoding.PNG) {
                 fmt = ImageEncoding.JPG;
             }
@@ -89,14 +156,14 @@ public class FileTreeMapStorage extends MapStorage {
 
         @Override
         public boolean matchesHashCode(long hash) {
-            File ff = getTileFile(map.getImageFormat().getEncoding());
+            File ff = findTileFile(map.getImageFormat().getEncoding());
             return ff.isFile() && ff.canRead() && (hash == hashmap.getImageHashCode(world.getName() + "." + map.getPrefix(), x, y));
         }
 
         @Override
         public TileRead read() {
             ImageEncoding fmt = map.getImageFormat().getEncoding();
-            File ff = getTileFile(fmt);
+            File ff = findTileFile(fmt);
             if (ff.exists() == false) { // Fallback and try to read other format
                 if (fmt == ImageEncoding.PNG) {
                     fmt = ImageEncoding.JPG;
@@ -104,7 +171,7 @@ public class FileTreeMapStorage extends MapStorage {
                 else {
                     fmt = ImageEncoding.PNG;
                 }
-                ff = getTileFile(fmt);
+                ff = findTileFile(fmt);
             }
             if (ff.isFile()) {
                 TileRead tr = new TileRead();
@@ -125,7 +192,22 @@ public class FileTreeMapStorage extends MapStorage {
                 tr.image = new BufferInputStream(buf);
                 tr.format = fmt;
                 tr.hashCode = hashmap.getImageHashCode(world.getName() + "." + map.getPrefix(), x, y);
-                tr.lastModified = ff.lastModified();
+                setFileValidators(tr, ff, buf);
+                return tr;
+            }
+            return null;
+        }
+
+        @Override
+        public TileRead readMetadata() {
+            File ff = getTileFile();
+            if (ff.isFile()) {
+                TileRead tr = new TileRead();
+                tr.format = f_fmt;
+                tr.hashCode = hashmap.getImageHashCode(world.getName() + "." + map.getPrefix(), x, y);
+                if (!setFileValidators(tr, ff, null)) {
+                    return null;
+                }
                 return tr;
             }
             return null;
@@ -133,18 +215,30 @@ public class FileTreeMapStorage extends MapStorage {
 
         @Override
         public boolean write(long hash, BufferOutputStream encImage) {
-            File ff = getTileFile(map.getImageFormat().getEncoding());
-            File ffalt = getTileFileAltFormat();
+            return write(hash, encImage, map.getImageFormat().getEncoding());
+        }
+
+        @Override
+        public boolean write(long hash, BufferOutputStream encImage, ImageEncoding fmt) {
+            File ff = getTileFile(fmt);
+            File ffalt = getTileFileAltFormat(fmt);
             File ffpar = ff.getParentFile();
             // Always clean up old alternate file, if it exsits
             if (ffalt.exists()) {
+                File altblob = getLinkedBlob(root, ffalt);
                 ffalt.delete();
+                releaseBlob(altblob);
             }
+            // If existing tile is shared, find its blob so we can release it
+            File oldblob = getLinkedBlob(root, ff);
             if (encImage == null) { // Delete?
                 ff.delete();
+                releaseBlob(oldblob);
+                removeMisplacedFiles();
                 hashmap.updateHashCode(world.getName() + "." + map.getPrefix(), x, y, -1);
+                invalidateCachedTile(this);
                 // Signal update for zoom out
-                if (zoom == 0) {
+                if ((zoom == 0) && zoomOutUpdates) {
                     world.enqueueZoomOutUpdate(this);
                 }
                 return true;
@@ -152,12 +246,22 @@ public class FileTreeMapStorage extends MapStorage {
             if (ffpar.exists() == false) {
                 ffpar.mkdirs();
             }
-            if (replaceFile(ff, encImage.buf, encImage.len) == false) {
+            boolean done;
+            if (dedup && (encImage.len <= dedupMaxLen)) {
+                done = replaceFileDedup(root, ff, encImage.buf, encImage.len);
+            }
+            else {
+                done = replaceFile(ff, encImage.buf, encImage.len);
+            }
+            releaseBlob(oldblob);
+            invalidateCachedTile(this);
+            if (done == false) {
                 return false;
             }
+            removeMisplacedFiles();
             hashmap.updateHashCode(world.getName() + "." + map.getPrefix(), x, y, hash);
             // Signal update for zoom out
-            if (zoom == 0) {
+            if ((zoom == 0) && zoomOutUpdates) {
                 world.enqueueZoomOutUpdate(this);
             }
             return true;
@@ -233,15 +337,205 @@ public class FileTreeMapStorage extends MapStorage {
     public FileTreeMapStorage() {
     }
 
+    /**
+     * Set validators of tile file for conditional requests.  The stored hash codes are kept by map and
+     * tile position only, so are shared by the zoom levels and variants of a tile and can't be used.
+     * A tile linked to a shared blob has the blob's modification time, which is that of the first tile
+     * written with the same content and can be older than the tile's previous content: these are
+     * validated by the blob's content hash only, and have no last modified time.
+     * @param tr - tile read to update
+     * @param ff - tile file
+     * @param buf - tile content, if read (null = read file only if needed)
+     * @return true if set, false if tile file could not be read
+     */
+    private static boolean setFileValidators(TileRead tr, File ff, byte[] buf) {
+        if (getLinkCount(ff) < 2) {
+            long len = (buf != null) ? buf.length : ff.length();
+            tr.lastModified = ff.lastModified();
+            tr.validator = Long.toHexString(len) + "-" + Long.toHexString(tr.lastModified);
+            return true;
+        }
+        String hash = getBlobHashAttr(ff);
+        if (hash == null) {
+            if (buf == null) {
+                buf = readFile(ff);
+                if (buf == null) {
+                    return false;
+                }
+            }
+            hash = calculateContentHash(buf, 0, buf.length);
+        }
+        tr.lastModified = 0;    // Unknown
+        tr.validator = hash;
+        return true;
+    }
+
     @Override
     public boolean init(DynmapCore core) {
         if (!super.init(core)) {
             return false;
         }
-        baseTileDir = core.getTilesFolder();
+        String tilespath = storageConfig.getString("tilespath", null);
+        baseTileDir = (tilespath != null) ? core.getFile(tilespath) : core.getTilesFolder();
         hashmap = new TileHashManager(baseTileDir, true);
+        initTileRoots(core);
+        dedup = storageConfig.getBoolean("deduplicate", false);
+        dedupMaxLen = 1024 * storageConfig.getInteger("dedup-max-tile-kb", 64);
+        enumPool = new ForkJoinPool(Math.max(1, storageConfig.getInteger("enum-threads", 4)));
+        if (dedup) {
+            for (File root : tileRoots) {
+                if (getLinkCount(root) < 0) {
+                    Log.warning("Tile deduplication requires hard link support in tile directory " + root.getPath() + " - deduplication disabled");
+                    dedup = false;
+                    break;
+                }
+            }
+            if (dedup) {
+                Log.info("Tile deduplication enabled - shared tiles stored in " + BLOB_DIR + " directory of each tile root");
+            }
+        }
         return true;
     }
+
+    /**
+     * Set up tile roots.  By default, all tiles are stored under the tiles directory.  If 'shards' lists
+     * several directories, the tile blocks (the X_Y directories of 32x32 base tiles) of each map are spread
+     * across them by a stable hash of world, map and block, and if 'zoom-tiles-path' is set, all zoom out
+     * tiles are kept there instead (such as on a faster disk, since they are the most often read).  The
+     * tiles directory still holds the tile hashes, faces and marker files.
+     */
+    private void initTileRoots(DynmapCore core) {
+        List<String> shards = storageConfig.getStrings("shards", null);
+        List<File> dirs = new ArrayList<File>();
+        List<String> ids = new ArrayList<String>();
+        if (shards != null) {
+            for (String sp : shards) {
+                File d = core.getFile(sp);
+                if (dirs.contains(d)) {
+                    Log.warning("Duplicate tile shard directory " + sp + " ignored");
+                    continue;
+                }
+                dirs.add(d);
+                ids.add(sp);
+            }
+        }
+        if (dirs.isEmpty()) {
+            dirs.add(baseTileDir);
+            ids.add("");
+        }
+        shardDirs = dirs.toArray(new File[dirs.size()]);
+        shardSeeds = new long[ids.size()];
+        for (int i = 0; i < shardSeeds.length; i++) {
+            shardSeeds[i] = hashString(ids.get(i));
+        }
+        String zoompath = storageConfig.getString("zoom-tiles-path", null);
+        zoomTileDir = null;
+        if (zoompath != null) {
+            zoomTileDir = core.getFile(zoompath);
+            int idx = dirs.indexOf(zoomTileDir);
+            if (idx >= 0) {     // Same directory as a shard: use same root
+                zoomTileDir = shardDirs[idx];
+            }
+            else {
+                dirs.add(zoomTileDir);
+            }
+        }
+        if (dirs.contains(baseTileDir) == false) {  // Not used for new tiles, but may still hold old ones
+            dirs.add(baseTileDir);
+        }
+        tileRoots = dirs.toArray(new File[dirs.size()]);
+        StringBuilder sb = new StringBuilder();
+        for (String id : ids) {
+            sb.append(id).append('\n');
+        }
+        sb.append("zoom:").append((zoompath != null) ? zoompath : "").append('\n');
+        tileRootLayout = sb.toString();
+        if (tileRoots.length > 1) {
+            Log.info("Map tiles spread across " + shardDirs.length + " tile shard director" + ((shardDirs.length == 1) ? "y" : "ies") +
+                ((zoomTileDir != null) ? (", with zoom out tiles in " + zoomTileDir.getPath()) : ""));
+            Log.info("Sharded tiles must be served by the internal web server - run 'dynmap rebalancetiles' after changing shards");
+            rebalancePending = !tileRootLayout.equals(readLayoutFile());
+            if (rebalancePending) {
+                Log.info("Tile directories changed - tiles not yet rebalanced are looked for in all tile directories until 'dynmap rebalancetiles' completes");
+            }
+        }
+        else {
+            rebalancePending = false;
+        }
+    }
+
+    // Read tile root layout tiles were last rebalanced for, or null if none
+    private String readLayoutFile() {
+        File f = new File(baseTileDir, LAYOUT_FILE);
+        if (!f.isFile()) {
+            return null;
+        }
+        byte[] buf = readFile(f);
+        return (buf != null) ? new String(buf, UTF8) : null;
+    }
+
+    // Record current tile root layout, once tiles are all in their own roots
+    private void writeLayoutFile() {
+        byte[] buf = tileRootLayout.getBytes(UTF8);
+        baseTileDir.mkdirs();
+        if (!replaceFile(new File(baseTileDir, LAYOUT_FILE), buf, buf.length)) {
+            Log.warning("Unable to record tile directory layout - tiles will be looked for in all tile directories at next start");
+        }
+    }
+
+    /**
+     * Get tile root holding given tile.  Shards are picked by rendezvous hashing, so adding a shard only
+     * moves the blocks that the new shard wins, and removing one only moves the blocks it held.
+     * @param world - world name
+     * @param mapvar - map prefix, with variant suffix
+     * @param x - tile X
+     * @param y - tile Y
+     * @param zoom - zoom level
+     * @return tile root
+     */
+    File getTileRoot(String world, String mapvar, int x, int y, int zoom) {
+        if ((zoom > 0) && (zoomTileDir != null)) {
+            return zoomTileDir;
+        }
+        if (shardDirs.length == 1) {
+            return shardDirs[0];
+        }
+        long h = hashString(world + "/" + mapvar + "/" + (x >> 5) + "_" + (y >> 5));
+        int best = 0;
+        long bestscore = 0;
+        for (int i = 0; i < shardDirs.length; i++) {
+            long score = mixHash(h ^ shardSeeds[i]);
+            if ((i == 0) || (score > bestscore)) {
+                best = i;
+                bestscore = score;
+            }
+        }
+        return shardDirs[best];
+    }
+
+    /**
+     * Get all tile roots
+     */
+    File[] getTileRoots() {
+        return tileRoots;
+    }
+
+    // 64-bit FNV-1a hash of string
+    private static long hashString(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // Finalizer from SplitMix64, spreading all bits of value over result
+    private static long mixHash(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
     
     @Override
     public MapStorageTile getTile(DynmapWorld world, MapType map, int x, int y,
@@ -295,67 +589,219 @@ public class FileTreeMapStorage extends MapStorage {
     }
 
 
-    private void processEnumMapTiles(DynmapWorld world, MapType map, File base, ImageVariant var, MapStorageTileEnumCB cb) {
-        File bdir = new File(base, map.getPrefix() + var.variantSuffix);
-        if (bdir.isDirectory() == false) return;
+    // Tile found by a directory scanner, queued for delivery to the enumeration callback
+    private static class FoundTile {
+        final int x, y, zoom;
+        final ImageEncoding fmt;
+        FoundTile(int x, int y, int zoom, ImageEncoding fmt) {
+            this.x = x; this.y = y; this.zoom = zoom; this.fmt = fmt;
+        }
+    }
+    private static final FoundTile END_OF_TILES = new FoundTile(0, 0, 0, null);
 
-        LinkedList<File> dirs = new LinkedList<File>(); // List to traverse
-        dirs.add(bdir);   // Directory for map
-        // While more paths to handle
-        while (dirs.isEmpty() == false) {
-            File dir = dirs.pop();
-            String[] dirlst = dir.list();
-            if (dirlst == null) continue;
-            for(String fn : dirlst) {
-                if (fn.equals(".") || fn.equals(".."))
-                    continue;
-                File f = new File(dir, fn);
-                if (f.isDirectory()) {   /* If directory, add to list to process */
-                    dirs.add(f);
-                }
-                else {  /* Else, file - see if tile */
-                    String ext = null;
-                    int extoff = fn.lastIndexOf('.');
-                    if (extoff >= 0) {
-                        ext = fn.substring(extoff+1);
-                        fn = fn.substring(0, extoff);
-                    }
-                    ImageEncoding fmt = ImageEncoding.fromExt(ext);
-                    if (fmt == null) {
-                        continue;
-                    }
-                    // See if zoom tile
-                    int zoom = 0;
-                    if (fn.startsWith("z")) {
-                        while (fn.startsWith("z")) {
-                            fn = fn.substring(1);
-                            zoom++;
+    // Parse tile file name ([z..._]x_y.ext), or return null if not a tile
+    private static FoundTile parseTileFile(String fn) {
+        String ext = null;
+        int extoff = fn.lastIndexOf('.');
+        if (extoff >= 0) {
+            ext = fn.substring(extoff+1);
+            fn = fn.substring(0, extoff);
+        }
+        ImageEncoding fmt = ImageEncoding.fromExt(ext);
+        if (fmt == null) {
+            return null;
+        }
+        // See if zoom tile
+        int zoom = 0;
+        while ((zoom < fn.length()) && (fn.charAt(zoom) == 'z')) {
+            zoom++;
+        }
+        if (zoom > 0) {
+            fn = fn.substring((fn.length() > zoom) && (fn.charAt(zoom) == '_') ? zoom + 1 : zoom);
+        }
+        // Must be X_Y to be a tile
+        String[] coord = fn.split("_");
+        if (coord.length != 2) {
+            return null;
+        }
+        try {
+            return new FoundTile(Integer.parseInt(coord[0]), Integer.parseInt(coord[1]), zoom, fmt);
+        } catch (NumberFormatException nfx) {
+            return null;
+        }
+    }
+
+    // List entries of directory, or empty list if not readable
+    private static List<Path> listDirectory(Path dir) {
+        List<Path> lst = new ArrayList<Path>();
+        DirectoryStream<Path> ds = null;
+        try {
+            ds = Files.newDirectoryStream(dir);
+            for (Path p : ds) {
+                lst.add(p);
+            }
+        } catch (IOException iox) {
+        } finally {
+            if (ds != null) {
+                try { ds.close(); } catch (IOException iox) {}
+            }
+        }
+        return lst;
+    }
+
+    /**
+     * Fork-join task walking a range of the top-level (X_Y block) entries of a map directory.  Ranges
+     * are split in half until a single entry is left, which is walked with Files.walkFileTree and its
+     * tiles offered to the bounded queue read by the enumerating thread.
+     */
+    private static class EnumTilesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> paths;
+        private final int start, end;
+        private final BlockingQueue<FoundTile> found;
+        private final AtomicBoolean cancelled;
+
+        EnumTilesTask(List<Path> paths, int start, int end, BlockingQueue<FoundTile> found, AtomicBoolean cancelled) {
+            this.paths = paths; this.start = start; this.end = end;
+            this.found = found; this.cancelled = cancelled;
+        }
+        @Override
+        protected void compute() {
+            if ((end - start) > 1) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new EnumTilesTask(paths, start, mid, found, cancelled),
+                        new EnumTilesTask(paths, mid, end, found, cancelled));
+                return;
+            }
+            if ((start >= end) || cancelled.get()) {
+                return;
+            }
+            try {
+                Files.walkFileTree(paths.get(start), new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (!attrs.isRegularFile()) {
+                            return FileVisitResult.CONTINUE;
                         }
-                        if (fn.startsWith("_")) {
-                            fn = fn.substring(1);
+                        FoundTile ft = parseTileFile(file.getFileName().toString());
+                        if (ft != null) {
+                            try {
+                                // Block while queue is full, unless enumeration has been abandoned
+                                while (!found.offer(ft, 100, TimeUnit.MILLISECONDS)) {
+                                    if (cancelled.get()) {
+                                        return FileVisitResult.TERMINATE;
+                                    }
+                                }
+                            } catch (InterruptedException ix) {
+                                cancelled.set(true);
+                                return FileVisitResult.TERMINATE;
+                            }
                         }
+                        return cancelled.get() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                    }
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException iox) {
+                        return FileVisitResult.CONTINUE;    // Skip unreadable entries
+                    }
+                });
+            } catch (IOException iox) {
+                Log.info("Error enumerating tiles in " + paths.get(start) + ": " + iox.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fork-join task deleting a range of the top-level entries of a map directory, and everything under them
+     */
+    private static class PurgeTilesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<Path> paths;
+        private final int start, end;
+
+        PurgeTilesTask(List<Path> paths, int start, int end) {
+            this.paths = paths; this.start = start; this.end = end;
+        }
+        @Override
+        protected void compute() {
+            if ((end - start) > 1) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new PurgeTilesTask(paths, start, mid), new PurgeTilesTask(paths, mid, end));
+                return;
+            }
+            if (start >= end) {
+                return;
+            }
+            try {
+                Files.walkFileTree(paths.get(start), new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        try { Files.deleteIfExists(file); } catch (IOException iox) {}
+                        return FileVisitResult.CONTINUE;
+                    }
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException iox) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException iox) {
+                        try { Files.deleteIfExists(dir); } catch (IOException x) {}
+                        return FileVisitResult.CONTINUE;
                     }
-                    // Split remainder to get coords
-                    String[] coord = fn.split("_");
-                    if (coord.length == 2) {    // Must be 2 to be a tile
-                        try {
-                            int x = Integer.parseInt(coord[0]);
-                            int y = Integer.parseInt(coord[1]);
-                            // Invoke callback
-                            MapStorageTile t = new StorageTile(world, map, x, y, zoom, var);
-                            cb.tileFound(t, fmt);
-                            t.cleanup();
-                        } catch (NumberFormatException nfx) {
+                });
+            } catch (IOException iox) {
+            }
+        }
+    }
+
+    private void processEnumMapTiles(DynmapWorld world, MapType map, File root, ImageVariant var, MapStorageTileEnumCB cb) {
+        File base = new File(root, world.getName()); // Get base directory for world
+        Path bdir = new File(base, map.getPrefix() + var.variantSuffix).toPath();
+        if (Files.isDirectory(bdir) == false) return;
+
+        List<Path> blocks = listDirectory(bdir);
+        if (blocks.isEmpty()) return;
+        final BlockingQueue<FoundTile> found = new ArrayBlockingQueue<FoundTile>(ENUM_QUEUE_SIZE);
+        final AtomicBoolean cancelled = new AtomicBoolean(false);
+        final EnumTilesTask task = new EnumTilesTask(blocks, 0, blocks.size(), found, cancelled);
+        // Scan on the pool; the end marker is always queued, even if the scan fails
+        enumPool.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.invoke();
+                } finally {
+                    try {
+                        while (!found.offer(END_OF_TILES, 100, TimeUnit.MILLISECONDS)) {
+                            if (cancelled.get()) break;
                         }
+                    } catch (InterruptedException ix) {
                     }
                 }
             }
+        });
+        // Deliver tiles to callback on this thread, as the scanners find them
+        boolean done = false;
+        try {
+            while (true) {
+                FoundTile ft = found.take();
+                if (ft == END_OF_TILES) break;
+                StorageTile t = new StorageTile(world, map, ft.x, ft.y, ft.zoom, var);
+                if (t.root != root) continue;   // Not in its shard: left for rebalancing
+                cb.tileFound(t, ft.fmt);
+                t.cleanup();
+            }
+            done = true;
+        } catch (InterruptedException ix) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!done) {    // Abandoned (callback failed, or interrupted): release scanners
+                cancelled.set(true);
+                found.clear();
+            }
         }
     }
 
     @Override
     public void enumMapTiles(DynmapWorld world, MapType map, MapStorageTileEnumCB cb) {
-        File base = new File(baseTileDir, world.getName()); // Get base directory for world
         List<MapType> mtlist;
 
         if (map != null) {
@@ -367,14 +813,87 @@ public class FileTreeMapStorage extends MapStorage {
         for (MapType mt : mtlist) {
             ImageVariant[] vars = mt.getVariants();
             for (ImageVariant var : vars) {
-                processEnumMapTiles(world, mt, base, var, cb);
+                for (File root : tileRoots) {
+                    processEnumMapTiles(world, mt, root, var, cb);
+                }
             }
         }
     }
 
-    private void processPurgeMapTiles(DynmapWorld world, MapType map, File base, ImageVariant var) {
+    @Override
+    public void purgeOldTiles(DynmapWorld world, MapType map, TileFlags rendered, MapStorageTileEnumCB cb) {
+        for (File root : tileRoots) {
+            purgeOldTiles(world, map, root, rendered, cb);
+        }
+    }
+
+    private void purgeOldTiles(DynmapWorld world, MapType map, File root, TileFlags rendered, MapStorageTileEnumCB cb) {
+        File base = new File(root, world.getName()); // Get base directory for world
+        ImageEncoding fmt = map.getImageFormat().getEncoding();
+        for (ImageVariant var : map.getVariants()) {
+            File mdir = new File(base, map.getPrefix() + var.variantSuffix);
+            String[] blocks = mdir.list();
+            if (blocks == null) continue;
+            for (String bname : blocks) {
+                // Block directory (X_Y) holds tiles X*32 to X*32+31, Y*32 to Y*32+31, of all zoom levels
+                int[] bc = parseCoords(bname);
+                if (bc == null) continue;
+                int minx = bc[0] << 5;
+                int miny = bc[1] << 5;
+                // If all base tiles of block were rendered, nothing in it is obsolete (writes remove other format files)
+                if (rendered.isRangeSet(minx, miny, minx + 31, miny + 31)) continue;
+                File bdir = new File(mdir, bname);
+                String[] files = bdir.list();
+                if (files == null) continue;
+                for (String fn : files) {
+                    int extoff = fn.lastIndexOf('.');
+                    if (extoff < 0) continue;
+                    ImageEncoding enc = ImageEncoding.fromExt(fn.substring(extoff+1));
+                    if (enc == null) continue;
+                    String tn = fn.substring(0, extoff);
+                    int zoom = 0;
+                    while ((zoom < tn.length()) && (tn.charAt(zoom) == 'z')) {
+                        zoom++;
+                    }
+                    int[] tc = parseCoords((zoom > 0) ? tn.substring(Math.min(zoom + 1, tn.length())) : tn);
+                    if (tc == null) continue;
+                    StorageTile t = new StorageTile(world, map, tc[0], tc[1], zoom, var);
+                    if (t.root != root) continue;   // Not in its shard: left for rebalancing
+                    if (enc != fmt) {   // Wrong format?  toss it
+                        File f = new File(bdir, fn);
+                        File blob = getLinkedBlob(root, f);
+                        f.delete();
+                        releaseBlob(blob);
+                    }
+                    else if (zoom == 1) {   // First tier zoom?  sensitive to newly rendered tiles
+                        if (!isZoomOutRendered(rendered, tc[0], tc[1])) {
+                            cb.tileFound(t, enc);
+                        }
+                    }
+                    else if ((zoom == 0) && (!rendered.getFlag(tc[0], tc[1]))) {
+                        t.delete();
+                        cb.tileFound(t, enc);
+                    }
+                }
+            }
+        }
+    }
+
+    // Parse X_Y coordinates, or return null if not valid
+    private static int[] parseCoords(String s) {
+        int off = s.indexOf('_');
+        if (off <= 0) return null;
+        try {
+            return new int[] { Integer.parseInt(s.substring(0, off)), Integer.parseInt(s.substring(off+1)) };
+        } catch (NumberFormatException nfx) {
+            return null;
+        }
+    }
+
+    private void processPurgeMapTiles(DynmapWorld world, MapType map, ImageVariant var) {
         String mname = map.getPrefix() + var.variantSuffix;
         // Clean up hash files
+        File base = new File(baseTileDir, world.getName());
         String[] hlist = base.list();
         if (hlist != null) {
             for (String h : hlist) {
@@ -384,41 +903,23 @@ public class FileTreeMapStorage extends MapStorage {
                 f.delete();
             }
         }
-        File bdir = new File(base, mname);
-        if (bdir.isDirectory() == false) return;
-
-        LinkedList<File> dirs = new LinkedList<File>(); // List to traverse
-        LinkedList<File> dirsdone = new LinkedList<File>();
-        dirs.add(bdir);   // Directory for map
-        // While more paths to handle
-        while (dirs.isEmpty() == false) {
-            File dir = dirs.pop();
-            dirsdone.add(dir);
-            String[] dirlst = dir.list();
-            if (dirlst == null) continue;
-            for(String fn : dirlst) {
-                if (fn.equals(".") || fn.equals(".."))
-                    continue;
-                File f = new File(dir, fn);
-                if (f.isDirectory()) {   /* If directory, add to list to process */
-                    dirs.add(f);
-                }
-                else {  /* Else, file - cleanup */
-                    f.delete();
-                }
+        for (File root : tileRoots) {
+            Path bdir = new File(root, world.getName() + "/" + mname).toPath();
+            if (Files.isDirectory(bdir) == false) continue;
+
+            List<Path> blocks = listDirectory(bdir);
+            if (!blocks.isEmpty()) {
+                enumPool.invoke(new PurgeTilesTask(blocks, 0, blocks.size()));
+            }
+            try {
+                Files.deleteIfExists(bdir);
+            } catch (IOException iox) {
             }
-        }
-        // Clean up directories, in reverse order of traverse
-        int cnt = dirsdone.size();
-        for (int i = cnt-1; i >= 0; i--) {
-            File f = dirsdone.get(i);
-            f.delete();
         }
     }
 
     @Override
     public void purgeMapTiles(DynmapWorld world, MapType map) {
-        File base = new File(baseTileDir, world.getName()); // Get base directory for world
         List<MapType> mtlist;
 
         if (map != null) {
@@ -430,9 +931,258 @@ public class FileTreeMapStorage extends MapStorage {
         for (MapType mt : mtlist) {
             ImageVariant[] vars = mt.getVariants();
             for (ImageVariant var : vars) {
-                processPurgeMapTiles(world, mt, base, var);
+                processPurgeMapTiles(world, mt, var);
+            }
+        }
+        invalidateCachedTiles();
+        purgeUnreferencedBlobs();
+    }
+
+    /**
+     * Get number of hard links to given file
+     * @return link count, or -1 if not available
+     */
+    private static int getLinkCount(File f) {
+        try {
+            Object v = Files.getAttribute(f.toPath(), "unix:nlink");
+            if (v instanceof Number) {
+                return ((Number) v).intValue();
+            }
+        } catch (IOException iox) {
+        } catch (UnsupportedOperationException uox) {
+        } catch (IllegalArgumentException iax) {
+        }
+        return -1;
+    }
+
+    private static File getBlobFile(File root, String hash) {
+        return new File(root, BLOB_DIR + "/" + hash.substring(0, 2) + "/" + hash);
+    }
+
+    /**
+     * Find shared blob file for existing tile file, if the tile is a link to one.  The blob's hash is
+     * stored as a user attribute of the blob, which its links share; the tile is only read and hashed
+     * if the file system doesn't support them.
+     * @param root - tile root holding tile (blobs are kept per tile root, as links can't span file systems)
+     * @param f - tile file
+     * @return blob file, or null if not shared
+     */
+    private File getLinkedBlob(File root, File f) {
+        if ((!dedup) || (getLinkCount(f) < 2)) {
+            return null;
+        }
+        String hash = getBlobHashAttr(f);
+        if (hash == null) {
+            byte[] buf = readFile(f);
+            if (buf == null) {
+                return null;
+            }
+            hash = calculateContentHash(buf, 0, buf.length);
+        }
+        File blob = getBlobFile(root, hash);
+        return blob.isFile() ? blob : null;
+    }
+
+    // Get blob hash attribute of file, or null if not set or not supported
+    private static String getBlobHashAttr(File f) {
+        UserDefinedFileAttributeView v = Files.getFileAttributeView(f.toPath(), UserDefinedFileAttributeView.class);
+        if (v == null) {
+            return null;
+        }
+        try {
+            ByteBuffer bb = ByteBuffer.allocate(v.size(BLOB_HASH_ATTR));
+            v.read(BLOB_HASH_ATTR, bb);
+            return new String(bb.array(), 0, bb.position(), UTF8);
+        } catch (IOException iox) {
+        } catch (UnsupportedOperationException uox) {
+        }
+        return null;
+    }
+
+    // Set blob hash attribute of blob file, if supported
+    private static void setBlobHashAttr(File f, String hash) {
+        UserDefinedFileAttributeView v = Files.getFileAttributeView(f.toPath(), UserDefinedFileAttributeView.class);
+        if (v == null) {
+            return;
+        }
+        try {
+            v.write(BLOB_HASH_ATTR, ByteBuffer.wrap(hash.getBytes(UTF8)));
+        } catch (IOException iox) {
+        } catch (UnsupportedOperationException uox) {
+        }
+    }
+
+    // Read whole file, or return null if it can't be read
+    private static byte[] readFile(File f) {
+        byte[] buf = new byte[(int) f.length()];
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            int off = 0;
+            while (off < buf.length) {
+                int rc = fis.read(buf, off, buf.length - off);
+                if (rc < 0) break;
+                off += rc;
+            }
+        } catch (IOException iox) {
+            return null;
+        } finally {
+            if (fis != null) {
+                try { fis.close(); } catch (IOException iox) {}
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Release shared blob after a link to it has been replaced or deleted: the blob is removed once
+     * only its own link remains.  A concurrent writer that linked to it keeps its content, since
+     * the data survives with the remaining links.
+     * @param blob - blob file (null if none)
+     */
+    private void releaseBlob(File blob) {
+        if ((blob != null) && (getLinkCount(blob) == 1)) {
+            blob.delete();
+        }
+    }
+
+    /**
+     * Write tile as hard link to shared blob file for its content, creating blob if needed
+     */
+    private boolean replaceFileDedup(File root, File f, byte[] b, int len) {
+        String hash = calculateContentHash(b, 0, len);
+        File blob = getBlobFile(root, hash);
+        File fnew = new File(f.getPath() + ".new");
+        for (int retrycnt = 0; retrycnt < 2; retrycnt++) {
+            if (blob.isFile() == false) {
+                File bpar = blob.getParentFile();
+                if (bpar.exists() == false) {
+                    bpar.mkdirs();
+                }
+                if (replaceFile(blob, b, len) == false) {
+                    break;
+                }
+                setBlobHashAttr(blob, hash);
+            }
+            try {
+                Files.deleteIfExists(fnew.toPath());
+                Files.createLink(fnew.toPath(), blob.toPath());
+            } catch (NoSuchFileException nsfx) {   // Blob released concurrently - recreate it
+                continue;
+            } catch (IOException iox) {
+                Debug.debug("Unable to link tile " + f.getPath() + " to blob - " + iox.getMessage());
+                break;
             }
+            swapFile(f, fnew);
+            return true;
         }
+        // Fall back to private copy of tile
+        return replaceFile(f, b, len);
+    }
+
+    /**
+     * Delete blobs that are no longer referenced by any tile
+     */
+    private void purgeUnreferencedBlobs() {
+        if (!dedup) return;
+        int cnt = 0;
+        for (File root : tileRoots) {
+            File[] dirs = new File(root, BLOB_DIR).listFiles();
+            if (dirs == null) continue;
+            for (File dir : dirs) {
+                File[] blobs = dir.listFiles();
+                if (blobs == null) continue;
+                for (File blob : blobs) {
+                    if (getLinkCount(blob) == 1) {
+                        blob.delete();
+                        cnt++;
+                    }
+                }
+            }
+        }
+        if (cnt > 0) {
+            Log.info("Purged " + cnt + " unreferenced tile blobs");
+        }
+    }
+
+    /**
+     * Move tile file found outside of the tile root it belongs in to that root, under the tile's write
+     * lock.  If the tile is already there and is at least as new, the misplaced copy is just removed.
+     * @param srcroot - tile root file was found in
+     * @param relpath - path of file, relative to tile root (world/map/block/file)
+     * @param dstroot - tile root file belongs in
+     * @return true if moved or removed, false if failed
+     */
+    boolean relocateTileFile(File srcroot, String relpath, File dstroot) {
+        File src = new File(srcroot, relpath);
+        File dst = new File(dstroot, relpath);
+        String lockname = relpath.substring(0, relpath.lastIndexOf('.'));
+        getWriteLock(lockname);
+        try {
+            if (src.isFile() == false) {    // Gone since found
+                return true;
+            }
+            File srcblob = getLinkedBlob(srcroot, src);
+            if (dst.isFile() && (dst.lastModified() >= src.lastModified())) {
+                src.delete();
+                releaseBlob(srcblob);
+                return true;
+            }
+            byte[] buf = readFile(src);
+            if (buf == null) {
+                return false;
+            }
+            File dpar = dst.getParentFile();
+            if (dpar.exists() == false) {
+                dpar.mkdirs();
+            }
+            File dstblob = getLinkedBlob(dstroot, dst);
+            boolean done;
+            if (dedup && (buf.length <= dedupMaxLen)) {
+                done = replaceFileDedup(dstroot, dst, buf, buf.length);
+            }
+            else {
+                done = replaceFile(dst, buf, buf.length);
+                if (done) { // Keep modification time, so web clients don't refetch tile
+                    dst.setLastModified(src.lastModified());
+                }
+            }
+            releaseBlob(dstblob);
+            if (done == false) {
+                return false;
+            }
+            src.delete();
+            releaseBlob(srcblob);
+            return true;
+        } finally {
+            releaseWriteLock(lockname);
+        }
+    }
+
+    /**
+     * Called when rebalancing of tile shards is complete
+     * @param allmoved - true if all tiles found outside their own root were moved (not cancelled, none failed)
+     */
+    void rebalanceCompleted(boolean allmoved) {
+        if (allmoved) {     // Tiles are only looked for in their own roots from now on
+            writeLayoutFile();
+            rebalancePending = false;
+        }
+        invalidateCachedTiles();
+        purgeUnreferencedBlobs();
+    }
+
+    /**
+     * Parse tile file name
+     * @param fn - file name
+     * @return { x, y, zoom }, or null if not a tile file
+     */
+    static int[] parseTileFileName(String fn) {
+        FoundTile ft = parseTileFile(fn);
+        if (ft == null) {
+            return null;
+        }
+        return new int[] { ft.x, ft.y, ft.zoom };
     }
 
     @Override
@@ -490,6 +1240,21 @@ public class FileTreeMapStorage extends MapStorage {
         return ff.exists();
     }
 
+    @Override
+    public Set<String> getPlayerFaceNames() {
+        Set<String> names = new HashSet<String>();
+        for (FaceType ft : FaceType.values()) {
+            String[] files = new File(baseTileDir, "faces/" + ft.id).list();
+            if (files == null) continue;
+            for (String fn : files) {
+                if (fn.endsWith(".png")) {
+                    names.add(fn.substring(0, fn.length() - 4));
+                }
+            }
+        }
+        return names;
+    }
+
     @Override
     public boolean setMarkerImage(String markerid, BufferOutputStream encImage) {
         String baseFilename = "_markers_/" + markerid + ".png";
@@ -554,6 +1319,20 @@ public class FileTreeMapStorage extends MapStorage {
         return done;
     }
 
+    @Override
+    public boolean setMarkerFile(String world, BufferOutputStream content) {
+        String baseFilename = "_markers_/marker_" + world + ".json";
+        File ff = new File(baseTileDir, baseFilename);
+        File ffpar = ff.getParentFile();
+        if (ffpar.exists() == false) {
+            ffpar.mkdirs();
+        }
+        getWriteLock(baseFilename);
+        boolean done = replaceFile(ff, content.buf, content.len);
+        releaseWriteLock(baseFilename);
+        return done;
+    }
+
     @Override
     public String getMarkerFile(String world) {
         String baseFilename = "_markers_/marker_" + world + ".json";
@@ -591,9 +1370,20 @@ public class FileTreeMapStorage extends MapStorage {
         return login_enabled?"standalone/tiles.php?tile=":"tiles/";
     }
     
+    private static void swapFile(File f, File fnew) {
+        if (f.exists()) {
+            File fold = new File(f.getPath() + ".old");
+            f.renameTo(fold);
+            fnew.renameTo(f);
+            fold.delete();
+        }
+        else {
+            fnew.renameTo(f);
+        }
+    }
+
     private boolean replaceFile(File f, byte[] b, int len) {
         boolean done = false;
-        File fold = new File(f.getPath() + ".old");
         File fnew = new File(f.getPath() + ".new");
         int retrycnt = 0;
         while (!done) {
@@ -604,14 +1394,7 @@ public class FileTreeMapStorage extends MapStorage {
                 raf.close();
                 raf = null;
                 // Now swap names
-                if (f.exists()) {
-                    f.renameTo(fold);
-                    fnew.renameTo(f);
-                    fold.delete();
-                }
-                else {
-                    fnew.renameTo(f);
-                }
+                swapFile(f, fnew);
                 done = true;
             } catch (IOException iox) {
                 if (raf != null) { try { raf.close(); } catch (IOException x) {} }
@@ -0,0 +1,172 @@
+package org.dynmap.storage.filetree;
+
+import java.io.File;
+
+import org.dynmap.DynmapCore;
+import org.dynmap.Log;
+import org.dynmap.common.DynmapCommandSender;
+import org.dynmap.storage.MapStorage;
+
+/**
+ * Moves file tree tiles that are not in the tile root they belong in (after tile shards or the zoom tile
+ * directory have been added, removed or changed) to the right root.  Until a rebalance completes with
+ * every such tile moved, tiles not found in their own root are looked for in the others, and a tile
+ * written or deleted in its own root has its copies elsewhere removed.  Runs on its own thread, alongside
+ * rendering: each tile is moved under its write lock.
+ */
+public class FileTreeShardRebalancer implements Runnable {
+    private static final long REPORT_INTERVAL = 30000;  // Progress report interval (msec)
+    private static final Object lock = new Object();
+    private static FileTreeShardRebalancer active;
+
+    private final FileTreeMapStorage storage;
+    private final DynmapCommandSender sender;
+    private volatile boolean cancelled;
+    private long scanned;
+    private long moved;
+    private long failed;
+    private long starttime;
+    private long lastreport;
+    private volatile String current = "";
+
+    private FileTreeShardRebalancer(FileTreeMapStorage storage, DynmapCommandSender sender) {
+        this.storage = storage;
+        this.sender = sender;
+    }
+
+    /**
+     * Start rebalancing tiles of active storage
+     * @param core - core
+     * @param sender - command sender, for progress messages
+     */
+    public static void startRebalance(DynmapCore core, DynmapCommandSender sender) {
+        MapStorage ms = core.getDefaultMapStorage();
+        if (!(ms instanceof FileTreeMapStorage)) {
+            sender.sendMessage("Tile rebalancing is only supported by 'filetree' storage");
+            return;
+        }
+        FileTreeMapStorage fts = (FileTreeMapStorage) ms;
+        if (fts.getTileRoots().length < 2) {
+            sender.sendMessage("Tile storage has only one tile directory - nothing to rebalance");
+            return;
+        }
+        synchronized(lock) {
+            if (active != null) {
+                sender.sendMessage("Tile rebalancing already running");
+                return;
+            }
+            active = new FileTreeShardRebalancer(fts, sender);
+            Thread t = new Thread(active, "Dynmap tile rebalance");
+            t.setDaemon(true);
+            t.start();
+        }
+        sender.sendMessage("Tile rebalancing across " + fts.getTileRoots().length + " tile directories starting...");
+    }
+
+    /**
+     * Cancel running rebalance: tiles already moved stay moved
+     * @param sender - command sender
+     */
+    public static void cancelRebalance(DynmapCommandSender sender) {
+        synchronized(lock) {
+            if (active == null) {
+                sender.sendMessage("No tile rebalancing running");
+                return;
+            }
+            active.cancelled = true;
+        }
+        sender.sendMessage("Tile rebalancing cancelling...");
+    }
+
+    /**
+     * Report progress of running rebalance
+     * @param sender - command sender
+     */
+    public static void showStatus(DynmapCommandSender sender) {
+        synchronized(lock) {
+            if (active == null) {
+                sender.sendMessage("No tile rebalancing running");
+                return;
+            }
+            sender.sendMessage(active.getProgress());
+        }
+    }
+
+    private synchronized String getProgress() {
+        return String.format("Tile rebalancing: %d tiles scanned, %d moved (%d failed) in %d sec - %s",
+            scanned, moved, failed, (System.currentTimeMillis() - starttime) / 1000, current);
+    }
+
+    private void reportProgress() {
+        long now = System.currentTimeMillis();
+        if ((now - lastreport) >= REPORT_INTERVAL) {
+            lastreport = now;
+            String msg = getProgress();
+            Log.info(msg);
+            sender.sendMessage(msg);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            starttime = lastreport = System.currentTimeMillis();
+            File[] roots = storage.getTileRoots();
+            for (int i = 0; (i < roots.length) && (!cancelled); i++) {
+                rebalanceRoot(roots[i]);
+            }
+            storage.rebalanceCompleted((!cancelled) && (failed == 0));
+            String msg = (cancelled ? "Tile rebalancing cancelled: " : "Tile rebalancing completed: ") +
+                String.format("%d tiles scanned, %d moved (%d failed)", scanned, moved, failed);
+            Log.info(msg);
+            sender.sendMessage(msg);
+        } catch (Exception x) {
+            Log.severe("Tile rebalancing failed", x);
+            sender.sendMessage("Tile rebalancing failed - " + x.getMessage());
+        } finally {
+            synchronized(lock) {
+                active = null;
+            }
+        }
+    }
+
+    // Check all tiles under tile root: layout is world/map/block/tile
+    private void rebalanceRoot(File root) {
+        String[] worlds = root.list();
+        if (worlds == null) return;
+        for (String world : worlds) {
+            if (world.equals("faces") || world.startsWith("_")) continue;   // Faces, markers and blobs
+            File wdir = new File(root, world);
+            String[] maps = wdir.list();
+            if (maps == null) continue;
+            for (String map : maps) {
+                File mdir = new File(wdir, map);
+                String[] blocks = mdir.list();
+                if (blocks == null) continue;   // Hash files, or not a directory
+                current = root.getPath() + ": " + world + "/" + map;
+                for (String block : blocks) {
+                    if (cancelled) return;
+                    File bdir = new File(mdir, block);
+                    String[] files = bdir.list();
+                    if (files == null) continue;
+                    for (String fn : files) {
+                        int[] tc = FileTreeMapStorage.parseTileFileName(fn);
+                        if (tc == null) continue;
+                        File owner = storage.getTileRoot(world, map, tc[0], tc[1], tc[2]);
+                        boolean ok = true;
+                        if (owner != root) {
+                            ok = storage.relocateTileFile(root, world + "/" + map + "/" + block + "/" + fn, owner);
+                        }
+                        synchronized(this) {
+                            scanned++;
+                            if (owner != root) {
+                                if (ok) moved++; else failed++;
+                            }
+                        }
+                    }
+                    reportProgress();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,743 @@
+package org.dynmap.storage.kvlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.dynmap.Log;
+
+/**
+ * Embedded, log structured, ordered key-value store.
+ *
+ * Records are appended to segment files in the store directory, and an in-memory sorted index maps each
+ * live key to the location of its latest value.  Every record carries a sequence number, so the index can
+ * be rebuilt on open by replaying the segments, regardless of where compaction has moved records.
+ * Readers do not lock: they look up the index and use positional reads, while writers are serialized.
+ * Segments that are mostly garbage are compacted, on a background thread, by copying their live records to
+ * the active segment.
+ */
+public class KVLog {
+    // Record: length (4), CRC32 of rest of record (4), sequence (8), type (1), key length (2), key, value
+    private static final int HDR_LEN = 19;
+    private static final byte REC_PUT = 1;
+    private static final byte REC_DEL = 2;
+    private static final byte REC_RANGEDEL = 3;    // Key is start of range (inclusive), value is end (exclusive)
+    private static final int MAX_KEY_LEN = 0xFFFF;
+    private static final String SEG_EXT = ".log";
+    private static final int COMPACT_BATCH = 1 << 20;   // Bytes of records copied by compaction per hold of writelock
+
+    /**
+     * Key order: unsigned lexicographic compare of bytes
+     */
+    public static final Comparator<byte[]> KEY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            int len = Math.min(a.length, b.length);
+            for (int i = 0; i < len; i++) {
+                int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (d != 0) return d;
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private static class Segment {
+        final int id;
+        final File file;
+        private FileChannel ch;
+        private boolean removed;
+        long size;      // Bytes written
+        long live;      // Bytes of records referenced by the index
+
+        Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.ch = new RandomAccessFile(file, "rw").getChannel();
+        }
+        // Get channel - reopened if closed by an interrupted reader or writer
+        synchronized FileChannel getChannel() throws IOException {
+            if (removed) {
+                throw new ClosedChannelException();
+            }
+            if (!ch.isOpen()) {
+                ch = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return ch;
+        }
+        synchronized void close() {
+            try { ch.close(); } catch (IOException iox) {}
+        }
+        synchronized void remove() {
+            removed = true;
+            close();
+            file.delete();
+        }
+    }
+
+    private static class Loc {
+        final Segment seg;
+        final long off;
+        final int reclen;
+        final int keylen;
+        final long seq;
+
+        Loc(Segment seg, long off, int reclen, int keylen, long seq) {
+            this.seg = seg;
+            this.off = off;
+            this.reclen = reclen;
+            this.keylen = keylen;
+            this.seq = seq;
+        }
+        int valueLen() {
+            return reclen - HDR_LEN - keylen;
+        }
+        long valueOff() {
+            return off + HDR_LEN + keylen;
+        }
+    }
+
+    private static class RangeDel {
+        final byte[] from;
+        final byte[] to;
+        final long seq;
+        RangeDel(byte[] from, byte[] to, long seq) {
+            this.from = from;
+            this.to = to;
+            this.seq = seq;
+        }
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final ConcurrentSkipListMap<byte[], Loc> index = new ConcurrentSkipListMap<byte[], Loc>(KEY_ORDER);
+    private final Object writelock = new Object();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();  // Guarded by writelock
+    private Segment active;
+    private long nextSeq = 1;
+    private boolean compacting;     // Guarded by writelock
+    private boolean compactQueued;  // Guarded by writelock
+    private boolean closing;        // Guarded by writelock
+    private ThreadPoolExecutor compactor;   // Guarded by writelock (null if closed)
+    private long compactedBytes;
+    private final Runnable compactTask = new Runnable() {
+        public void run() {
+            compactNext();
+        }
+    };
+
+    /**
+     * Create store
+     * @param dir - directory holding segment files
+     * @param segmentSize - size at which the active segment is sealed and a new one started
+     */
+    public KVLog(File dir, long segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Open store: replay existing segments to build the index
+     * @throws IOException if store cannot be opened
+     */
+    public void open() throws IOException {
+        synchronized(writelock) {
+            closing = false;
+            dir.mkdirs();
+            File[] files = dir.listFiles();
+            if (files == null) {
+                throw new IOException("Cannot read directory " + dir.getPath());
+            }
+            for (File f : files) {
+                String n = f.getName();
+                if (n.endsWith(SEG_EXT)) {
+                    try {
+                        int id = Integer.parseInt(n.substring(0, n.length() - SEG_EXT.length()));
+                        segments.put(id, new Segment(id, f));
+                    } catch (NumberFormatException nfx) {
+                    }
+                }
+            }
+            TreeMap<byte[], Long> deleted = new TreeMap<byte[], Long>(KEY_ORDER);
+            List<RangeDel> ranges = new ArrayList<RangeDel>();
+            for (Segment seg : segments.values()) {
+                replaySegment(seg, seg == segments.lastEntry().getValue(), deleted, ranges);
+            }
+            // Apply range deletes to records replayed before them
+            for (RangeDel rd : ranges) {
+                removeRange(rd.from, rd.to, rd.seq);
+            }
+            if (segments.isEmpty() || (segments.lastEntry().getValue().size >= segmentSize)) {
+                newSegment();
+            }
+            else {
+                active = segments.lastEntry().getValue();
+            }
+            // If mostly garbage, rewrite now, while nobody else is using the store
+            long total = getTotalBytes();
+            if ((total > segmentSize) && (getLiveBytes() < (total / 2))) {
+                Log.info("Compacting map store " + dir.getPath());
+                compactAll();
+            }
+            compactor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r);
+                        t.setDaemon(true);
+                        t.setName("Dynmap Map Store Compaction");
+                        return t;
+                    }
+                });
+        }
+    }
+
+    /**
+     * Close store: stops any compaction in progress, and forces active segment to disk
+     */
+    public void close() {
+        ThreadPoolExecutor c;
+        synchronized(writelock) {
+            closing = true;
+            c = compactor;
+            compactor = null;
+        }
+        if (c != null) {
+            c.shutdown();
+            try {
+                c.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException ix) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized(writelock) {
+            if (active != null) {
+                try {
+                    active.getChannel().force(false);
+                } catch (IOException iox) {
+                }
+            }
+            for (Segment seg : segments.values()) {
+                seg.close();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+        }
+    }
+
+    private void replaySegment(Segment seg, boolean last, TreeMap<byte[], Long> deleted, List<RangeDel> ranges) throws IOException {
+        FileChannel ch = seg.getChannel();
+        long len = ch.size();
+        long pos = 0;
+        ByteBuffer hdr = ByteBuffer.allocate(HDR_LEN);
+        while (pos < len) {
+            hdr.clear();
+            if (!readFully(ch, hdr, pos)) break;
+            hdr.flip();
+            int reclen = hdr.getInt();
+            int crc = hdr.getInt();
+            long seq = hdr.getLong();
+            byte type = hdr.get();
+            int keylen = hdr.getShort() & 0xFFFF;
+            if ((reclen < (HDR_LEN + keylen)) || ((pos + reclen) > len)) break;
+            ByteBuffer rec = ByteBuffer.allocate(reclen);
+            if (!readFully(ch, rec, pos)) break;
+            CRC32 c = new CRC32();
+            c.update(rec.array(), 8, reclen - 8);
+            if ((int) c.getValue() != crc) break;
+            byte[] key = new byte[keylen];
+            System.arraycopy(rec.array(), HDR_LEN, key, 0, keylen);
+            if (seq >= nextSeq) {
+                nextSeq = seq + 1;
+            }
+            if (type == REC_PUT) {
+                Loc cur = index.get(key);
+                Long delseq = deleted.get(key);
+                if (((cur == null) || (cur.seq < seq)) && ((delseq == null) || (delseq < seq)) && (!inDeletedRange(ranges, key, seq))) {
+                    Loc loc = new Loc(seg, pos, reclen, keylen, seq);
+                    index.put(key, loc);
+                    seg.live += reclen;
+                    if (cur != null) {
+                        cur.seg.live -= cur.reclen;
+                    }
+                }
+            }
+            else if (type == REC_DEL) {
+                Long delseq = deleted.get(key);
+                if ((delseq == null) || (delseq < seq)) {
+                    deleted.put(key, seq);
+                }
+                Loc cur = index.get(key);
+                if ((cur != null) && (cur.seq < seq)) {
+                    index.remove(key);
+                    cur.seg.live -= cur.reclen;
+                }
+            }
+            else if (type == REC_RANGEDEL) {
+                byte[] to = new byte[reclen - HDR_LEN - keylen];
+                System.arraycopy(rec.array(), HDR_LEN + keylen, to, 0, to.length);
+                ranges.add(new RangeDel(key, to, seq));
+            }
+            pos += reclen;
+        }
+        if (pos < len) {
+            if (last) {     // Incomplete write at end of log: drop it
+                Log.warning("Truncating incomplete record at end of " + seg.file.getPath());
+                ch.truncate(pos);
+            }
+            else {
+                Log.warning("Ignoring corrupted data at end of " + seg.file.getPath());
+            }
+        }
+        seg.size = pos;
+    }
+
+    private static boolean inDeletedRange(List<RangeDel> ranges, byte[] key, long seq) {
+        for (RangeDel rd : ranges) {
+            if ((rd.seq > seq) && (KEY_ORDER.compare(key, rd.from) >= 0) && (KEY_ORDER.compare(key, rd.to) < 0)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) return false;
+            pos += n;
+        }
+        return true;
+    }
+
+    private void newSegment() throws IOException {
+        int id = segments.isEmpty() ? 1 : (segments.lastKey() + 1);
+        Segment seg = new Segment(id, new File(dir, String.format("%08d%s", id, SEG_EXT)));
+        segments.put(id, seg);
+        if (active != null) {
+            active.getChannel().force(false);
+        }
+        active = seg;
+    }
+
+    // Append record to active segment: must hold writelock
+    private Loc append(byte[] rec, int keylen, long seq) throws IOException {
+        if (active == null) {
+            throw new IOException("Store is closed");
+        }
+        if ((active.size > 0) && ((active.size + rec.length) > segmentSize)) {
+            newSegment();
+        }
+        Segment seg = active;
+        long pos = seg.size;
+        boolean interrupted = false;
+        try {
+            for (int retry = 0; ; retry++) {
+                try {
+                    ByteBuffer buf = ByteBuffer.wrap(rec);
+                    long p = pos;
+                    FileChannel ch = seg.getChannel();
+                    while (buf.hasRemaining()) {
+                        p += ch.write(buf, p);
+                    }
+                    break;
+                } catch (ClosedChannelException ccx) {
+                    // Channel closed by an interrupt (ours or a reader's): rewrite record on reopened channel
+                    if (retry >= 3) {
+                        throw ccx;
+                    }
+                    if (Thread.interrupted()) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        seg.size = pos + rec.length;
+        return new Loc(seg, pos, rec.length, keylen, seq);
+    }
+
+    private static byte[] buildRecord(byte type, long seq, byte[] key, byte[] val, int off, int len) {
+        if (key.length > MAX_KEY_LEN) {
+            throw new IllegalArgumentException("Key too long");
+        }
+        int reclen = HDR_LEN + key.length + len;
+        ByteBuffer buf = ByteBuffer.allocate(reclen);
+        buf.putInt(reclen);
+        buf.putInt(0);
+        buf.putLong(seq);
+        buf.put(type);
+        buf.putShort((short) key.length);
+        buf.put(key);
+        if (len > 0) {
+            buf.put(val, off, len);
+        }
+        CRC32 c = new CRC32();
+        c.update(buf.array(), 8, reclen - 8);
+        buf.putInt(4, (int) c.getValue());
+        return buf.array();
+    }
+
+    /**
+     * Store value for key
+     * @param key - key
+     * @param val - buffer with value
+     * @param off - offset of value in buffer
+     * @param len - length of value
+     * @throws IOException on write error
+     */
+    public void put(byte[] key, byte[] val, int off, int len) throws IOException {
+        synchronized(writelock) {
+            long seq = nextSeq++;
+            Loc loc = append(buildRecord(REC_PUT, seq, key, val, off, len), key.length, seq);
+            loc.seg.live += loc.reclen;
+            Loc old = index.put(key, loc);
+            if (old != null) {
+                old.seg.live -= old.reclen;
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Delete key
+     * @param key - key
+     * @return true if key existed
+     * @throws IOException on write error
+     */
+    public boolean delete(byte[] key) throws IOException {
+        synchronized(writelock) {
+            if (!index.containsKey(key)) {
+                return false;
+            }
+            long seq = nextSeq++;
+            append(buildRecord(REC_DEL, seq, key, null, 0, 0), key.length, seq);
+            Loc old = index.remove(key);
+            if (old != null) {
+                old.seg.live -= old.reclen;
+            }
+            compactIfNeeded();
+            return true;
+        }
+    }
+
+    /**
+     * Delete all keys in range, with a single log record
+     * @param from - first key of range (inclusive)
+     * @param to - end of range (exclusive)
+     * @return number of keys deleted
+     * @throws IOException on write error
+     */
+    public int deleteRange(byte[] from, byte[] to) throws IOException {
+        synchronized(writelock) {
+            long seq = nextSeq++;
+            append(buildRecord(REC_RANGEDEL, seq, from, to, 0, to.length), from.length, seq);
+            int cnt = removeRange(from, to, seq);
+            compactIfNeeded();
+            return cnt;
+        }
+    }
+
+    private int removeRange(byte[] from, byte[] to, long seq) {
+        int cnt = 0;
+        for (Map.Entry<byte[], Loc> ent : index.subMap(from, true, to, false).entrySet()) {
+            Loc loc = ent.getValue();
+            if ((loc.seq < seq) && index.remove(ent.getKey(), loc)) {
+                loc.seg.live -= loc.reclen;
+                cnt++;
+            }
+        }
+        return cnt;
+    }
+
+    /**
+     * Test if key exists
+     * @param key - key
+     * @return true if exists
+     */
+    public boolean contains(byte[] key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Get value for key
+     * @param key - key
+     * @return value, or null if not found
+     * @throws IOException on read error
+     */
+    public byte[] get(byte[] key) throws IOException {
+        return get(key, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get part of value for key
+     * @param key - key
+     * @param off - offset in value
+     * @param len - maximum number of bytes to return
+     * @return bytes of value (shorter than len if the value is shorter), or null if not found
+     * @throws IOException on read error
+     */
+    public byte[] get(byte[] key, int off, int len) throws IOException {
+        while (true) {
+            Loc loc = index.get(key);
+            if (loc == null) {
+                return null;
+            }
+            int vlen = Math.max(0, Math.min(len, loc.valueLen() - off));
+            byte[] buf = new byte[vlen];
+            try {
+                if (!readFully(loc.seg.getChannel(), ByteBuffer.wrap(buf), loc.valueOff() + off)) {
+                    throw new IOException("Unexpected end of " + loc.seg.file.getPath());
+                }
+                return buf;
+            } catch (ClosedChannelException ccx) {
+                // Segment compacted away, or channel closed by an interrupt: retry, unless we're the one interrupted
+                if (Thread.currentThread().isInterrupted()) {
+                    throw ccx;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get keys in range.  The returned view is weakly consistent: it may be iterated while the store
+     * is updated, and reflects some of the updates made during the iteration.
+     * @param from - first key of range (inclusive)
+     * @param to - end of range (exclusive)
+     * @return keys, in order
+     */
+    public NavigableSet<byte[]> keys(byte[] from, byte[] to) {
+        ConcurrentNavigableMap<byte[], Loc> sub = index.subMap(from, true, to, false);
+        return sub.keySet();
+    }
+
+    // Find sealed segment that is most garbage, if it is mostly garbage: must hold writelock
+    private Segment findCompactable() {
+        Segment best = null;
+        for (Segment seg : segments.values()) {
+            if ((seg == active) || (seg.size == 0)) continue;
+            if ((best == null) || ((seg.live * best.size) < (best.live * seg.size))) {
+                best = seg;
+            }
+        }
+        if ((best != null) && (best.live < (best.size / 2))) {
+            return best;
+        }
+        return null;
+    }
+
+    // Queue compaction on background thread, if a segment needs it: must hold writelock
+    private void compactIfNeeded() {
+        if (compacting || compactQueued || (compactor == null) || (findCompactable() == null)) return;
+        compactQueued = true;
+        compactor.execute(compactTask);
+    }
+
+    // Compact most wasteful segment (on compaction thread)
+    private void compactNext() {
+        Segment seg;
+        synchronized(writelock) {
+            compactQueued = false;
+            if (compacting || closing) return;
+            seg = findCompactable();
+            if (seg == null) return;
+            compacting = true;
+        }
+        try {
+            compactSegment(seg, false);
+        } catch (IOException iox) {
+            Log.severe("Error compacting " + seg.file.getPath(), iox);
+        } finally {
+            synchronized(writelock) {
+                compacting = false;
+                writelock.notifyAll();
+                compactIfNeeded();  // Next segment, if any
+            }
+        }
+    }
+
+    /**
+     * Rewrite all segments, dropping all garbage.  Blocks writers while running.
+     * @throws IOException on read or write error
+     */
+    public void compactAll() throws IOException {
+        synchronized(writelock) {
+            while (compacting) {    // Wait for background compaction
+                try {
+                    writelock.wait();
+                } catch (InterruptedException ix) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for compaction");
+                }
+            }
+            compacting = true;
+            try {
+                // Start new segment, so every existing one can be rewritten
+                newSegment();
+                List<Segment> old = new ArrayList<Segment>(segments.headMap(active.id).values());
+                // Oldest first - delete records always follow the records they delete, so no deleted
+                // record can be left behind once its delete record is dropped
+                for (Segment seg : old) {
+                    compactSegment(seg, true);
+                }
+            } finally {
+                compacting = false;
+                writelock.notifyAll();
+            }
+        }
+    }
+
+    /*
+     * Copy live records of sealed segment to active segment, then drop segment.  The segment is read
+     * without the writelock, which is taken for each batch of records copied, so writers are not held up
+     * for the whole segment.  The copies are forced to disk before the segment is deleted.
+     */
+    private void compactSegment(Segment seg, boolean dropDeletes) throws IOException {
+        FileChannel ch = seg.getChannel();
+        long pos = 0;
+        ByteBuffer hdr = ByteBuffer.allocate(HDR_LEN);
+        List<byte[]> recs = new ArrayList<byte[]>();
+        List<Long> offs = new ArrayList<Long>();
+        boolean eof = false;
+        while (!eof) {
+            recs.clear();
+            offs.clear();
+            int bytes = 0;
+            while (bytes < COMPACT_BATCH) {
+                if (pos >= seg.size) {
+                    eof = true;
+                    break;
+                }
+                hdr.clear();
+                if (!readFully(ch, hdr, pos)) {
+                    eof = true;
+                    break;
+                }
+                int reclen = hdr.getInt(0);
+                byte[] rec = new byte[reclen];
+                if (!readFully(ch, ByteBuffer.wrap(rec), pos)) {
+                    eof = true;
+                    break;
+                }
+                recs.add(rec);
+                offs.add(pos);
+                pos += reclen;
+                bytes += reclen;
+            }
+            synchronized(writelock) {
+                if (closing || (active == null)) {  // Closed: copies made so far are harmless duplicates
+                    return;
+                }
+                // Deletes are kept while older segments, which may hold records they delete, remain
+                boolean keepDeletes = (!dropDeletes) && (segments.firstKey() < seg.id);
+                for (int i = 0; i < recs.size(); i++) {
+                    copyRecord(seg, recs.get(i), offs.get(i), keepDeletes);
+                }
+            }
+        }
+        synchronized(writelock) {
+            if (closing || (active == null)) {
+                return;
+            }
+            active.getChannel().force(false);   // Copies must be on disk before the originals are deleted
+            compactedBytes += seg.size;
+            segments.remove(seg.id);
+            seg.remove();
+        }
+    }
+
+    // Copy record from segment being compacted to active segment, if still needed: must hold writelock
+    private void copyRecord(Segment seg, byte[] rec, long off, boolean keepDeletes) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(rec);
+        long seq = buf.getLong(8);
+        byte type = rec[16];
+        int keylen = buf.getShort(17) & 0xFFFF;
+        byte[] key = new byte[keylen];
+        System.arraycopy(rec, HDR_LEN, key, 0, keylen);
+        if (type == REC_PUT) {
+            Loc cur = index.get(key);
+            if ((cur != null) && (cur.seg == seg) && (cur.off == off)) {  // Live?
+                Loc loc = append(rec, keylen, seq);
+                loc.seg.live += rec.length;
+                index.put(key, loc);
+            }
+        }
+        else if (keepDeletes) {
+            if (type == REC_DEL) {
+                Loc cur = index.get(key);
+                if ((cur == null) || (cur.seq < seq)) {
+                    append(rec, keylen, seq);
+                }
+            }
+            else {
+                append(rec, keylen, seq);
+            }
+        }
+    }
+
+    /**
+     * Get total bytes in segment files
+     * @return bytes
+     */
+    public long getTotalBytes() {
+        synchronized(writelock) {
+            long total = 0;
+            for (Segment seg : segments.values()) {
+                total += seg.size;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Get bytes of live records in segment files
+     * @return bytes
+     */
+    public long getLiveBytes() {
+        synchronized(writelock) {
+            long live = 0;
+            for (Segment seg : segments.values()) {
+                live += seg.live;
+            }
+            return live;
+        }
+    }
+
+    /**
+     * Get number of segment files
+     * @return count
+     */
+    public int getSegmentCount() {
+        synchronized(writelock) {
+            return segments.size();
+        }
+    }
+
+    /**
+     * Get bytes of segments reclaimed by compaction since open
+     * @return bytes
+     */
+    public long getCompactedBytes() {
+        synchronized(writelock) {
+            return compactedBytes;
+        }
+    }
+}
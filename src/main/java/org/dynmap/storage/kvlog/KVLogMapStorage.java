@@ -0,0 +1,533 @@
+package org.dynmap.storage.kvlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.dynmap.DynmapCore;
+import org.dynmap.DynmapWorld;
+import org.dynmap.Log;
+import org.dynmap.MapType;
+import org.dynmap.MapType.ImageVariant;
+import org.dynmap.PlayerFaces.FaceType;
+import org.dynmap.storage.MapStorage;
+import org.dynmap.storage.MapStorageTile;
+import org.dynmap.storage.MapStorageTileEnumCB;
+import org.dynmap.utils.BufferInputStream;
+import org.dynmap.utils.BufferOutputStream;
+
+/**
+ * Map storage in an embedded key-value store (no external database or driver needed).
+ * Tiles are keyed by map, zoom, x and y, so all tiles of a map variant are one key range.
+ * Content is only served by the internal web server.
+ */
+public class KVLogMapStorage extends MapStorage {
+    private static final byte KEY_MAP = 'M';
+    private static final byte KEY_TILE = 'T';
+    private static final byte KEY_FACE = 'F';
+    private static final byte KEY_MARKERICON = 'I';
+    private static final byte KEY_MARKERFILE = 'J';
+    // Tile value: hash code (8), last update (8), format (1), image
+    private static final int TILE_HDR_LEN = 17;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private KVLog store;
+    private File storeDir;
+    private HashMap<String, Integer> mapKey = new HashMap<String, Integer>();
+    private int nextMapKey = 1;
+
+    public class StorageTile extends MapStorageTile {
+        private Integer mapkey;
+        private byte[] key;
+        private String uri;
+        protected StorageTile(DynmapWorld world, MapType map, int x, int y,
+                int zoom, ImageVariant var) {
+            super(world, map, x, y, zoom, var);
+
+            mapkey = getMapKey(world, map, var);
+            if (mapkey != null) {
+                key = getTileKey(mapkey, x, y, zoom);
+            }
+
+            if (zoom > 0) {
+                uri = map.getPrefix() + var.variantSuffix + "/"+ (x >> 5) + "_" + (y >> 5) + "/" + "zzzzzzzzzzzzzzzz".substring(0, zoom) + "_" + x + "_" + y + "." + map.getImageFormat().getFileExt();
+            }
+            else {
+                uri = map.getPrefix() + var.variantSuffix + "/"+ (x >> 5) + "_" + (y >> 5) + "/" + x + "_" + y + "." + map.getImageFormat().getFileExt();
+            }
+        }
+
+        @Override
+        public boolean exists() {
+            if (mapkey == null) return false;
+            return store.contains(key);
+        }
+
+        @Override
+        public boolean matchesHashCode(long hash) {
+            if (mapkey == null) return false;
+            try {
+                byte[] v = store.get(key, 0, 8);
+                return (v != null) && (v.length == 8) && (ByteBuffer.wrap(v).getLong() == hash);
+            } catch (IOException iox) {
+                Log.severe("Tile matches hash error - " + iox.getMessage());
+            }
+            return false;
+        }
+
+        @Override
+        public TileRead read() {
+            if (mapkey == null) return null;
+            try {
+                byte[] v = store.get(key);
+                if ((v != null) && (v.length >= TILE_HDR_LEN)) {
+                    ByteBuffer bb = ByteBuffer.wrap(v);
+                    TileRead rslt = new TileRead();
+                    rslt.hashCode = bb.getLong();
+                    rslt.lastModified = bb.getLong();
+                    rslt.format = MapType.ImageEncoding.fromOrd(bb.get());
+                    byte[] img = new byte[v.length - TILE_HDR_LEN];
+                    System.arraycopy(v, TILE_HDR_LEN, img, 0, img.length);
+                    rslt.image = new BufferInputStream(img);
+                    return rslt;
+                }
+            } catch (IOException iox) {
+                Log.severe("Tile read error - " + iox.getMessage());
+            }
+            return null;
+        }
+
+        @Override
+        public TileRead readMetadata() {
+            if (mapkey == null) return null;
+            try {
+                byte[] v = store.get(key, 0, TILE_HDR_LEN);
+                if ((v != null) && (v.length == TILE_HDR_LEN)) {
+                    ByteBuffer bb = ByteBuffer.wrap(v);
+                    TileRead rslt = new TileRead();
+                    rslt.hashCode = bb.getLong();
+                    rslt.lastModified = bb.getLong();
+                    rslt.format = MapType.ImageEncoding.fromOrd(bb.get());
+                    return rslt;
+                }
+            } catch (IOException iox) {
+                Log.severe("Tile read metadata error - " + iox.getMessage());
+            }
+            return null;
+        }
+
+        @Override
+        public boolean write(long hash, BufferOutputStream encImage) {
+            return write(hash, encImage, map.getImageFormat().getEncoding());
+        }
+
+        @Override
+        public boolean write(long hash, BufferOutputStream encImage, MapType.ImageEncoding fmt) {
+            if (mapkey == null) return false;
+            boolean err = false;
+            try {
+                if (encImage == null) { // If delete
+                    // If delete, and doesn't exist, quit
+                    if (!store.delete(key)) return false;
+                }
+                else {
+                    ByteBuffer bb = ByteBuffer.allocate(TILE_HDR_LEN + encImage.len);
+                    bb.putLong(hash);
+                    bb.putLong(System.currentTimeMillis());
+                    bb.put((byte) fmt.ordinal());
+                    bb.put(encImage.buf, 0, encImage.len);
+                    store.put(key, bb.array(), 0, bb.capacity());
+                }
+                // Signal update for zoom out
+                if ((zoom == 0) && zoomOutUpdates) {
+                    world.enqueueZoomOutUpdate(this);
+                }
+            } catch (IOException iox) {
+                Log.severe("Tile write error - " + iox.getMessage());
+                err = true;
+            } finally {
+                invalidateCachedTile(this);
+            }
+            return !err;
+        }
+
+        @Override
+        public boolean getWriteLock() {
+            return KVLogMapStorage.this.getWriteLock(uri);
+        }
+
+        @Override
+        public void releaseWriteLock() {
+            KVLogMapStorage.this.releaseWriteLock(uri);
+        }
+
+        @Override
+        public boolean getReadLock(long timeout) {
+            return KVLogMapStorage.this.getReadLock(uri, timeout);
+        }
+
+        @Override
+        public void releaseReadLock() {
+            KVLogMapStorage.this.releaseReadLock(uri);
+        }
+
+        @Override
+        public void cleanup() {
+        }
+
+        @Override
+        public String getURI() {
+            return uri;
+        }
+
+        @Override
+        public void enqueueZoomOutUpdate() {
+            world.enqueueZoomOutUpdate(this);
+        }
+
+        @Override
+        public MapStorageTile getZoomOutTile() {
+            int xx, yy;
+            int step = 1 << zoom;
+            if(x >= 0)
+                xx = x - (x % (2*step));
+            else
+                xx = x + (x % (2*step));
+            yy = -y;
+            if(yy >= 0)
+                yy = yy - (yy % (2*step));
+            else
+                yy = yy + (yy % (2*step));
+            yy = -yy;
+            return new StorageTile(world, map, xx, yy, zoom+1, var);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof StorageTile) {
+                StorageTile st = (StorageTile) o;
+                return uri.equals(st.uri);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode();
+        }
+    }
+
+    public KVLogMapStorage() {
+    }
+
+    @Override
+    public boolean init(DynmapCore core) {
+        if (!super.init(core)) {
+            return false;
+        }
+        storeDir = core.getFile(storageConfig.getString("dbdir", "dynmap-kvlog"));
+        long segsize = 1024L * 1024L * storageConfig.getInteger("segment-mb", 64);
+        Log.info("Opening key-value store " + storeDir.getAbsolutePath() + " as map store");
+        store = new KVLog(storeDir, segsize);
+        try {
+            store.open();
+        } catch (IOException iox) {
+            Log.severe("Error opening key-value store - " + iox.getMessage());
+            return false;
+        }
+        // Load maps - cache results
+        doLoadMaps();
+
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private static byte[] getKey(byte type, String id) {
+        byte[] b = id.getBytes(UTF8);
+        byte[] k = new byte[b.length + 1];
+        k[0] = type;
+        System.arraycopy(b, 0, k, 1, b.length);
+        return k;
+    }
+
+    // Tile key: type, map key, zoom, then x and y with sign flipped so keys sort numerically
+    private static byte[] getTileKey(int mapkey, int x, int y, int zoom) {
+        ByteBuffer bb = ByteBuffer.allocate(14);
+        bb.put(KEY_TILE);
+        bb.putInt(mapkey);
+        bb.put((byte) zoom);
+        bb.putInt(x ^ Integer.MIN_VALUE);
+        bb.putInt(y ^ Integer.MIN_VALUE);
+        return bb.array();
+    }
+
+    // Start of key range for tiles of map
+    private static byte[] getTileKeyPrefix(int mapkey) {
+        ByteBuffer bb = ByteBuffer.allocate(5);
+        bb.put(KEY_TILE);
+        bb.putInt(mapkey);
+        return bb.array();
+    }
+
+    private void doLoadMaps() {
+        mapKey.clear();
+        byte[] from = { KEY_MAP };
+        byte[] to = { KEY_MAP + 1 };
+        try {
+            for (byte[] k : store.keys(from, to)) {
+                byte[] v = store.get(k);
+                if ((v == null) || (v.length < 4)) continue;
+                int key = ByteBuffer.wrap(v).getInt();
+                mapKey.put(new String(k, 1, k.length - 1, UTF8), key);
+                if (key >= nextMapKey) {
+                    nextMapKey = key + 1;
+                }
+            }
+        } catch (IOException iox) {
+            Log.severe("Error loading map keys - " + iox.getMessage());
+        }
+    }
+
+    private Integer getMapKey(DynmapWorld w, MapType mt, ImageVariant var) {
+        String id = w.getName() + ":" + mt.getPrefix() + ":" + var.toString();
+        synchronized(mapKey) {
+            Integer k = mapKey.get(id);
+            if (k == null) {    // No hit: new value so we need to add it to store
+                try {
+                    byte[] v = ByteBuffer.allocate(4).putInt(nextMapKey).array();
+                    store.put(getKey(KEY_MAP, id), v, 0, v.length);
+                    k = nextMapKey++;
+                    mapKey.put(id, k);
+                } catch (IOException iox) {
+                    Log.severe("Error adding map key - " + iox.getMessage());
+                }
+            }
+            return k;
+        }
+    }
+
+    @Override
+    public MapStorageTile getTile(DynmapWorld world, MapType map, int x, int y,
+            int zoom, ImageVariant var) {
+        return new StorageTile(world, map, x, y, zoom, var);
+    }
+
+    @Override
+    public MapStorageTile getTile(DynmapWorld world, String uri) {
+        String[] suri = uri.split("/");
+        if (suri.length < 2) return null;
+        String mname = suri[0]; // Map URI - might include variant
+        MapType mt = null;
+        ImageVariant imgvar = null;
+        // Find matching map type and image variant
+        for (int mti = 0; (mt == null) && (mti < world.maps.size()); mti++) {
+            MapType type = world.maps.get(mti);
+            ImageVariant[] var = type.getVariants();
+            for (int ivi = 0; (imgvar == null) && (ivi < var.length); ivi++) {
+                if (mname.equals(type.getPrefix() + var[ivi].variantSuffix)) {
+                    mt = type;
+                    imgvar = var[ivi];
+                }
+            }
+        }
+        if (mt == null) {   // Not found?
+            return null;
+        }
+        // Now, take the last section and parse out coordinates and zoom
+        String fname = suri[suri.length-1];
+        String[] coord = fname.split("[_\\.]");
+        if (coord.length < 3) { // 3 or 4
+            return null;
+        }
+        int zoom = 0;
+        int x, y;
+        try {
+            if (coord[0].charAt(0) == 'z') {
+                zoom = coord[0].length();
+                x = Integer.parseInt(coord[1]);
+                y = Integer.parseInt(coord[2]);
+            }
+            else {
+                x = Integer.parseInt(coord[0]);
+                y = Integer.parseInt(coord[1]);
+            }
+            return getTile(world, mt, x, y, zoom, imgvar);
+        } catch (NumberFormatException nfx) {
+            return null;
+        }
+    }
+
+    @Override
+    public void enumMapTiles(DynmapWorld world, MapType map,
+            MapStorageTileEnumCB cb) {
+        List<MapType> mtlist;
+
+        if (map != null) {
+            mtlist = Collections.singletonList(map);
+        }
+        else {  // Else, add all directories under world directory (for maps)
+            mtlist = new ArrayList<MapType>(world.maps);
+        }
+        for (MapType mt : mtlist) {
+            ImageVariant[] vars = mt.getVariants();
+            for (ImageVariant var : vars) {
+                processEnumMapTiles(world, mt, var, cb);
+            }
+        }
+    }
+    private void processEnumMapTiles(DynmapWorld world, MapType map, ImageVariant var, MapStorageTileEnumCB cb) {
+        Integer mapkey = getMapKey(world, map, var);
+        if (mapkey == null) return;
+        try {
+            // Scan key range of tiles for given mapkey
+            for (byte[] k : store.keys(getTileKeyPrefix(mapkey), getTileKeyPrefix(mapkey + 1))) {
+                ByteBuffer bb = ByteBuffer.wrap(k, 5, 9);
+                int zoom = bb.get();
+                int x = bb.getInt() ^ Integer.MIN_VALUE;
+                int y = bb.getInt() ^ Integer.MIN_VALUE;
+                byte[] fmt = store.get(k, TILE_HDR_LEN - 1, 1);
+                if ((fmt == null) || (fmt.length < 1)) continue;    // Deleted since found
+                StorageTile st = new StorageTile(world, map, x, y, zoom, var);
+                cb.tileFound(st, MapType.ImageEncoding.fromOrd(fmt[0]));
+                st.cleanup();
+            }
+        } catch (IOException iox) {
+            Log.severe("Tile enum error - " + iox.getMessage());
+        }
+    }
+
+    @Override
+    public void purgeMapTiles(DynmapWorld world, MapType map) {
+        List<MapType> mtlist;
+
+        if (map != null) {
+            mtlist = Collections.singletonList(map);
+        }
+        else {  // Else, add all directories under world directory (for maps)
+            mtlist = new ArrayList<MapType>(world.maps);
+        }
+        for (MapType mt : mtlist) {
+            ImageVariant[] vars = mt.getVariants();
+            for (ImageVariant var : vars) {
+                processPurgeMapTiles(world, mt, var);
+            }
+        }
+        invalidateCachedTiles();
+    }
+    private void processPurgeMapTiles(DynmapWorld world, MapType map, ImageVariant var) {
+        Integer mapkey = getMapKey(world, map, var);
+        if (mapkey == null) return;
+        try {
+            // Drop key range of tiles for given mapkey
+            store.deleteRange(getTileKeyPrefix(mapkey), getTileKeyPrefix(mapkey + 1));
+        } catch (IOException iox) {
+            Log.severe("Tile purge error - " + iox.getMessage());
+        }
+    }
+
+    // Set or delete (if data is null) value: returns false if delete of value that doesn't exist
+    private boolean setValue(byte[] key, byte[] data, int len, String errmsg) {
+        try {
+            if (data == null) {
+                return store.delete(key);
+            }
+            store.put(key, data, 0, len);
+            return true;
+        } catch (IOException iox) {
+            Log.severe(errmsg + " - " + iox.getMessage());
+            return false;
+        }
+    }
+
+    private byte[] getValue(byte[] key, String errmsg) {
+        try {
+            return store.get(key);
+        } catch (IOException iox) {
+            Log.severe(errmsg + " - " + iox.getMessage());
+            return null;
+        }
+    }
+
+    private static byte[] getFaceKey(String playername, FaceType facetype) {
+        return getKey(KEY_FACE, facetype.typeID + ":" + playername);
+    }
+
+    @Override
+    public boolean setPlayerFaceImage(String playername, FaceType facetype,
+            BufferOutputStream encImage) {
+        return setValue(getFaceKey(playername, facetype), (encImage != null) ? encImage.buf : null,
+            (encImage != null) ? encImage.len : 0, "Face write error");
+    }
+
+    @Override
+    public BufferInputStream getPlayerFaceImage(String playername,
+            FaceType facetype) {
+        byte[] img = getValue(getFaceKey(playername, facetype), "Face read error");
+        return (img != null) ? new BufferInputStream(img) : null;
+    }
+
+    @Override
+    public boolean hasPlayerFaceImage(String playername, FaceType facetype) {
+        return store.contains(getFaceKey(playername, facetype));
+    }
+
+    @Override
+    public Set<String> getPlayerFaceNames() {
+        Set<String> names = new HashSet<String>();
+        byte[] from = { KEY_FACE };
+        byte[] to = { KEY_FACE + 1 };
+        for (byte[] k : store.keys(from, to)) {
+            String id = new String(k, 1, k.length - 1, UTF8);
+            names.add(id.substring(id.indexOf(':') + 1));
+        }
+        return names;
+    }
+
+    @Override
+    public boolean setMarkerImage(String markerid, BufferOutputStream encImage) {
+        return setValue(getKey(KEY_MARKERICON, markerid), (encImage != null) ? encImage.buf : null,
+            (encImage != null) ? encImage.len : 0, "Marker write error");
+    }
+
+    @Override
+    public BufferInputStream getMarkerImage(String markerid) {
+        byte[] img = getValue(getKey(KEY_MARKERICON, markerid), "Marker read error");
+        return (img != null) ? new BufferInputStream(img) : null;
+    }
+
+    @Override
+    public boolean setMarkerFile(String world, String content) {
+        byte[] b = (content != null) ? content.getBytes(UTF8) : null;
+        return setValue(getKey(KEY_MARKERFILE, world), b, (b != null) ? b.length : 0, "Marker file write error");
+    }
+
+    @Override
+    public String getMarkerFile(String world) {
+        byte[] b = getValue(getKey(KEY_MARKERFILE, world), "Marker file read error");
+        return (b != null) ? new String(b, UTF8) : null;
+    }
+
+    // No standalone PHP support: tiles and markers are served by the internal web server
+    @Override
+    public String getMarkersURI(boolean login_enabled) {
+        return "tiles/";
+    }
+
+    @Override
+    public String getTilesURI(boolean login_enabled) {
+        return "tiles/";
+    }
+}
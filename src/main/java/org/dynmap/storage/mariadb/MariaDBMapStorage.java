@@ -10,10 +10,14 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.dynmap.DynmapCore;
 import org.dynmap.DynmapWorld;
@@ -27,6 +31,7 @@ import org.dynmap.storage.MapStorageTile;
 import org.dynmap.storage.MapStorageTileEnumCB;
 import org.dynmap.utils.BufferInputStream;
 import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.utils.TileFlags;
 
 public class MariaDBMapStorage extends MapStorage {
     private String connectionString;
@@ -42,6 +47,9 @@ public class MariaDBMapStorage extends MapStorage {
     private String tableMarkerFiles;
     private String tableStandaloneFiles;
     private String tableSchemaVersion;
+    private String tableTileBlobs;
+    private boolean dedup;      // If true, identical tiles share content in TileBlobs table
+    private int dedupMaxLen;
 
     private int port;
     private static final int POOLSIZE = 5;
@@ -122,19 +130,51 @@ public class MariaDBMapStorage extends MapStorage {
             try {
                 c = getConnection();
                 Statement stmt = c.createStatement();
-                ResultSet rs = stmt.executeQuery("SELECT HashCode,LastUpdate,Format,Image FROM " + tableTiles + " WHERE MapID=" + mapkey + " AND x=" + x + " AND y=" + y + " AND zoom=" + zoom + ";");
+                ResultSet rs = stmt.executeQuery("SELECT t.HashCode,t.LastUpdate,t.Format,t.Image,b.Image AS BlobImage FROM " + tableTiles + " t LEFT JOIN " + tableTileBlobs + " b ON b.Hash=t.ImageHash WHERE t.MapID=" + mapkey + " AND t.x=" + x + " AND t.y=" + y + " AND t.zoom=" + zoom + ";");
+                if (rs.next()) {
+                    byte[] img = rs.getBytes("Image");
+                    if (img == null) {  // Shared tile content?
+                        img = rs.getBytes("BlobImage");
+                    }
+                    if (img != null) {
+                        rslt = new TileRead();
+                        rslt.hashCode = rs.getLong("HashCode");
+                        rslt.lastModified = rs.getLong("LastUpdate");
+                        rslt.format = MapType.ImageEncoding.fromOrd(rs.getInt("Format"));
+                        rslt.image = new BufferInputStream(img);
+                    }
+                }
+                rs.close();
+                stmt.close();
+            } catch (SQLException x) {
+                Log.severe("Tile read error - " + x.getMessage());
+                err = true;
+            } finally {
+                releaseConnection(c, err);
+            }
+            return rslt;
+        }
+
+        @Override
+        public TileRead readMetadata() {
+            if (mapkey == null) return null;
+            TileRead rslt = null;
+            Connection c = null;
+            boolean err = false;
+            try {
+                c = getConnection();
+                Statement stmt = c.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT HashCode,LastUpdate,Format FROM " + tableTiles + " WHERE MapID=" + mapkey + " AND x=" + x + " AND y=" + y + " AND zoom=" + zoom + ";");
                 if (rs.next()) {
                     rslt = new TileRead();
                     rslt.hashCode = rs.getLong("HashCode");
                     rslt.lastModified = rs.getLong("LastUpdate");
                     rslt.format = MapType.ImageEncoding.fromOrd(rs.getInt("Format"));
-                    byte[] img = rs.getBytes("Image");
-                    rslt.image = new BufferInputStream(img);
                 }
                 rs.close();
                 stmt.close();
             } catch (SQLException x) {
-                Log.severe("Tile read error - " + x.getMessage());
+                Log.severe("Tile read metadata error - " + x.getMessage());
                 err = true;
             } finally {
                 releaseConnection(c, err);
@@ -144,16 +184,43 @@ public class MariaDBMapStorage extends MapStorage {
 
         @Override
         public boolean write(long hash, BufferOutputStream encImage) {
+            return write(hash, encImage, map.getImageFormat().getEncoding());
+        }
+
+        @Override
+        public boolean write(long hash, BufferOutputStream encImage, MapType.ImageEncoding fmt) {
             if (mapkey == null) return false;
             Connection c = null;
             boolean err = false;
-            boolean exists = exists();
-            // If delete, and doesn't exist, quit
-            if ((encImage == null) && (!exists)) return false;
+            String blobhash = null;
+            if ((encImage != null) && dedup && (encImage.len <= dedupMaxLen)) {
+                blobhash = calculateContentHash(encImage.buf, 0, encImage.len);
+            }
             
+            boolean intx = false;
             try {
                 c = getConnection();
-                PreparedStatement stmt;
+                // Check for existing tile, and shared content it references
+                boolean exists = false;
+                String oldblobhash = null;
+                PreparedStatement stmt = c.prepareStatement("SELECT ImageHash FROM " + tableTiles + " WHERE MapID=? AND x=? and y=? AND zoom=?;");
+                stmt.setInt(1, mapkey);
+                stmt.setInt(2, x);
+                stmt.setInt(3, y);
+                stmt.setInt(4, zoom);
+                ResultSet rs = stmt.executeQuery();
+                if (rs.next()) {
+                    exists = true;
+                    oldblobhash = rs.getString("ImageHash");
+                }
+                rs.close();
+                stmt.close();
+                // If delete, and doesn't exist, quit
+                if ((encImage == null) && (!exists)) return false;
+                // Update references to shared content and tile together, so a failed write leaves neither
+                c.setAutoCommit(false);
+                intx = true;
+                changeBlobRef(c, oldblobhash, blobhash, encImage);
                 if (encImage == null) { // If delete
                     stmt = c.prepareStatement("DELETE FROM " + tableTiles + " WHERE MapID=? AND x=? and y=? AND zoom=?;");
                     stmt.setInt(1, mapkey);
@@ -162,38 +229,59 @@ public class MariaDBMapStorage extends MapStorage {
                     stmt.setInt(4, zoom);
                 }
                 else if (exists) {
-                    stmt = c.prepareStatement("UPDATE " + tableTiles + " SET HashCode=?, LastUpdate=?, Format=?, Image=? WHERE MapID=? AND x=? and y=? AND zoom=?;");
+                    stmt = c.prepareStatement("UPDATE " + tableTiles + " SET HashCode=?, LastUpdate=?, Format=?, Image=?, ImageHash=? WHERE MapID=? AND x=? and y=? AND zoom=?;");
                     stmt.setLong(1, hash);
                     stmt.setLong(2, System.currentTimeMillis());
-                    stmt.setInt(3, map.getImageFormat().getEncoding().ordinal());
-                    stmt.setBinaryStream(4, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
-                    stmt.setInt(5, mapkey);
-                    stmt.setInt(6, x);
-                    stmt.setInt(7, y);
-                    stmt.setInt(8, zoom);
+                    stmt.setInt(3, fmt.ordinal());
+                    if (blobhash != null) {
+                        stmt.setNull(4, Types.BLOB);
+                    }
+                    else {
+                        stmt.setBinaryStream(4, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
+                    }
+                    stmt.setString(5, blobhash);
+                    stmt.setInt(6, mapkey);
+                    stmt.setInt(7, x);
+                    stmt.setInt(8, y);
+                    stmt.setInt(9, zoom);
                 }
                 else {
-                    stmt = c.prepareStatement("INSERT INTO " + tableTiles + " (MapID,x,y,zoom,HashCode,LastUpdate,Format,Image) VALUES (?,?,?,?,?,?,?,?);");
+                    stmt = c.prepareStatement("INSERT INTO " + tableTiles + " (MapID,x,y,zoom,HashCode,LastUpdate,Format,Image,ImageHash) VALUES (?,?,?,?,?,?,?,?,?);");
                     stmt.setInt(1, mapkey);
                     stmt.setInt(2, x);
                     stmt.setInt(3, y);
                     stmt.setInt(4, zoom);
                     stmt.setLong(5, hash);
                     stmt.setLong(6, System.currentTimeMillis());
-                    stmt.setInt(7, map.getImageFormat().getEncoding().ordinal());
-                    stmt.setBinaryStream(8, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
-               }
+                    stmt.setInt(7, fmt.ordinal());
+                    if (blobhash != null) {
+                        stmt.setNull(8, Types.BLOB);
+                    }
+                    else {
+                        stmt.setBinaryStream(8, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
+                    }
+                    stmt.setString(9, blobhash);
+                }
                 stmt.executeUpdate();
                 stmt.close();
+                c.commit();
                 // Signal update for zoom out
-                if (zoom == 0) {
+                if ((zoom == 0) && zoomOutUpdates) {
                     world.enqueueZoomOutUpdate(this);
                 }
             } catch (SQLException x) {
                 Log.severe("Tile write error - " + x.getMessage());
                 err = true;
+                if (intx) {
+                    try { c.rollback(); } catch (SQLException rx) {}
+                }
             } finally {
-                releaseConnection(c, err);
+                boolean keep = !err;
+                if (intx && keep) {
+                    try { c.setAutoCommit(true); } catch (SQLException x) { keep = false; }
+                }
+                releaseConnection(c, !keep);
+                invalidateCachedTile(this);
             }
             return !err;
         }
@@ -267,17 +355,23 @@ public class MariaDBMapStorage extends MapStorage {
     public MariaDBMapStorage() {
     }
 
+    // Database may be shared by several servers, so tiles can change without this server writing them
+    @Override
+    protected int getDefaultTileCacheKB() {
+        return 0;
+    }
+
     @Override
     public boolean init(DynmapCore core) {
         if (!super.init(core)) {
             return false;
         }
-        database = core.configuration.getString("storage/database", "dynmap");
-        hostname = core.configuration.getString("storage/hostname", "localhost");
-        port = core.configuration.getInteger("storage/port", 3306);
-        userid = core.configuration.getString("storage/userid", "dynmap");
-        password = core.configuration.getString("storage/password", "dynmap");
-        prefix = core.configuration.getString("storage/prefix", "");
+        database = storageConfig.getString("database", "dynmap");
+        hostname = storageConfig.getString("hostname", "localhost");
+        port = storageConfig.getInteger("port", 3306);
+        userid = storageConfig.getString("userid", "dynmap");
+        password = storageConfig.getString("password", "dynmap");
+        prefix = storageConfig.getString("prefix", "");
         tableTiles = prefix + "Tiles";
         tableMaps = prefix + "Maps";
         tableFaces = prefix + "Faces";
@@ -285,6 +379,9 @@ public class MariaDBMapStorage extends MapStorage {
         tableMarkerFiles = prefix + "MarkerFiles";
         tableStandaloneFiles = prefix + "StandaloneFiles";
         tableSchemaVersion = prefix + "SchemaVersion";
+        tableTileBlobs = prefix + "TileBlobs";
+        dedup = storageConfig.getBoolean("deduplicate", false);
+        dedupMaxLen = 1024 * storageConfig.getInteger("dedup-max-tile-kb", 64);
         
         connectionString = "jdbc:mariadb://" + hostname + ":" + port + "/" + database + "?allowReconnect=true";
         Log.info("Opening MariaDB database " + hostname + ":" + port + "/" + database + " as map store");
@@ -447,13 +544,14 @@ public class MariaDBMapStorage extends MapStorage {
             try {
                 c = getConnection();
                 doUpdate(c, "CREATE TABLE " + tableMaps + " (ID INTEGER PRIMARY KEY AUTO_INCREMENT, WorldID VARCHAR(64) NOT NULL, MapID VARCHAR(64) NOT NULL, Variant VARCHAR(16) NOT NULL, ServerID BIGINT NOT NULL DEFAULT 0)");
-                doUpdate(c, "CREATE TABLE " + tableTiles + " (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, zoom INT NOT NULL, HashCode BIGINT NOT NULL, LastUpdate BIGINT NOT NULL, Format INT NOT NULL, Image BLOB, PRIMARY KEY(MapID, x, y, zoom))");
+                doUpdate(c, "CREATE TABLE " + tableTiles + " (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, zoom INT NOT NULL, HashCode BIGINT NOT NULL, LastUpdate BIGINT NOT NULL, Format INT NOT NULL, Image BLOB, ImageHash CHAR(40), PRIMARY KEY(MapID, x, y, zoom), INDEX TilesImageHash (MapID, ImageHash))");
+                doUpdate(c, "CREATE TABLE " + tableTileBlobs + " (Hash CHAR(40) PRIMARY KEY NOT NULL, RefCount INT NOT NULL, Image MEDIUMBLOB)");
                 doUpdate(c, "CREATE TABLE " + tableFaces + " (PlayerName VARCHAR(64) NOT NULL, TypeID INT NOT NULL, Image BLOB, PRIMARY KEY(PlayerName, TypeID))");
                 doUpdate(c, "CREATE TABLE " + tableMarkerIcons + " (IconName VARCHAR(128) PRIMARY KEY NOT NULL, Image BLOB)");
                 doUpdate(c, "CREATE TABLE " + tableMarkerFiles + " (FileName VARCHAR(128) PRIMARY KEY NOT NULL, Content MEDIUMTEXT)");
                 doUpdate(c, "CREATE TABLE " + tableStandaloneFiles + " (FileName VARCHAR(128) NOT NULL, ServerID BIGINT NOT NULL DEFAULT 0, Content MEDIUMTEXT, PRIMARY KEY (FileName, ServerID))");
                 doUpdate(c, "CREATE TABLE " + tableSchemaVersion + " (level INT PRIMARY KEY NOT NULL)");
-                doUpdate(c, "INSERT INTO " + tableSchemaVersion + " (level) VALUES (3)");
+                doUpdate(c, "INSERT INTO " + tableSchemaVersion + " (level) VALUES (4)");
             } catch (SQLException x) {
                 Log.severe("Error creating tables - " + x.getMessage());
                 err = true;
@@ -494,6 +592,21 @@ public class MariaDBMapStorage extends MapStorage {
                 c = null;
             }
         }
+        if ((version > 0) && (version < 4)) {
+            try {
+                c = getConnection();
+                doUpdate(c, "ALTER TABLE " + tableTiles + " ADD COLUMN ImageHash CHAR(40), ADD INDEX TilesImageHash (MapID, ImageHash)");
+                doUpdate(c, "CREATE TABLE " + tableTileBlobs + " (Hash CHAR(40) PRIMARY KEY NOT NULL, RefCount INT NOT NULL, Image MEDIUMBLOB)");
+                doUpdate(c, "UPDATE " + tableSchemaVersion + " SET level=4 WHERE level = 3;");
+            } catch (SQLException x) {
+                Log.severe("Error creating tables - " + x.getMessage());
+                err = true;
+                return false;
+            } finally {
+                releaseConnection(c, err);
+                c = null;
+            }
+        }
         // Load maps table - cache results
         doLoadMaps();
         
@@ -534,6 +647,21 @@ public class MariaDBMapStorage extends MapStorage {
         return conn;
     }
     
+    @Override
+    public void shutdown() {
+        // Close pooled connections
+        synchronized (cpool) {
+            for (int i = 0; i < cpool.length; i++) {
+                if (cpool[i] != null) {
+                    try { cpool[i].close(); } catch (SQLException x) {}
+                    cpool[i] = null;
+                    cpoolCount--;
+                }
+            }
+            cpool.notifyAll();
+        }
+    }
+
     private void releaseConnection(Connection c, boolean err) {
         if (c == null) return;
         synchronized (cpool) {
@@ -665,6 +793,7 @@ public class MariaDBMapStorage extends MapStorage {
                 processPurgeMapTiles(world, mt, var);
             }
         }
+        invalidateCachedTiles();
     }
     private void processPurgeMapTiles(DynmapWorld world, MapType map, ImageVariant var) {
         Connection c = null;
@@ -675,6 +804,9 @@ public class MariaDBMapStorage extends MapStorage {
             c = getConnection();
             // Query tiles for given mapkey
             Statement stmt = c.createStatement();
+            // Release references to shared content, then drop content no longer used
+            stmt.executeUpdate("UPDATE " + tableTileBlobs + " SET RefCount=RefCount-(SELECT COUNT(*) FROM " + tableTiles + " WHERE " + tableTiles + ".MapID=" + mapkey + " AND " + tableTiles + ".ImageHash=" + tableTileBlobs + ".Hash) WHERE Hash IN (SELECT ImageHash FROM " + tableTiles + " WHERE MapID=" + mapkey + ");");
+            stmt.executeUpdate("DELETE FROM " + tableTileBlobs + " WHERE RefCount<=0;");
             stmt.executeUpdate("DELETE FROM " + tableTiles + " WHERE MapID=" + mapkey + ";");
             stmt.close();
         } catch (SQLException x) {
@@ -685,6 +817,173 @@ public class MariaDBMapStorage extends MapStorage {
         }
     }
 
+    @Override
+    public void purgeOldTiles(DynmapWorld world, MapType map, TileFlags rendered, MapStorageTileEnumCB cb) {
+        ImageVariant[] vars = map.getVariants();
+        for (ImageVariant var : vars) {
+            processPurgeOldTiles(world, map, var, rendered, cb);
+        }
+    }
+    private void processPurgeOldTiles(DynmapWorld world, MapType map, ImageVariant var, TileFlags rendered, MapStorageTileEnumCB cb) {
+        Connection c = null;
+        boolean err = false;
+        Integer mapkey = getMapKey(world, map, var);
+        if (mapkey == null) return;
+        MapType.ImageEncoding fmt = map.getImageFormat().getEncoding();
+        List<int[]> stale = new ArrayList<int[]>();     // Base tiles not rendered
+        List<int[]> zoomout = new ArrayList<int[]>();   // Zoom 1 tiles with no base tiles rendered
+        try {
+            c = getConnection();
+            Statement stmt = c.createStatement();
+            // Tiles in other formats are obsolete at all zoom levels: release shared content, and drop them
+            String where = "MapID=" + mapkey + " AND Format<>" + fmt.ordinal();
+            stmt.executeUpdate("UPDATE " + tableTileBlobs + " SET RefCount=RefCount-(SELECT COUNT(*) FROM " + tableTiles + " WHERE " + tableTiles + ".ImageHash=" + tableTileBlobs + ".Hash AND " + tableTiles + "." + where + ") WHERE Hash IN (SELECT ImageHash FROM " + tableTiles + " WHERE " + where + ");");
+            if (stmt.executeUpdate("DELETE FROM " + tableTiles + " WHERE " + where + ";") > 0) {
+                invalidateCachedTiles();
+            }
+            // Find base and zoom 1 tiles to handle, without reading image data
+            HashMap<String, Integer> blobrefs = new HashMap<String, Integer>();  // Shared content references to release
+            ResultSet rs = stmt.executeQuery("SELECT x,y,zoom,ImageHash FROM " + tableTiles + " WHERE MapID=" + mapkey + " AND zoom<=1;");
+            while (rs.next()) {
+                int x = rs.getInt("x");
+                int y = rs.getInt("y");
+                if (rs.getInt("zoom") == 0) {
+                    if (!rendered.getFlag(x, y)) {
+                        stale.add(new int[] { x, y });
+                        String h = rs.getString("ImageHash");
+                        if (h != null) {
+                            Integer cnt = blobrefs.get(h);
+                            blobrefs.put(h, (cnt != null) ? (cnt + 1) : 1);
+                        }
+                    }
+                }
+                else if (!isZoomOutRendered(rendered, x, y)) {
+                    zoomout.add(new int[] { x, y });
+                }
+            }
+            rs.close();
+            // Delete base tiles not rendered: one range delete for each 32 x 32 block with none rendered, else by tile, in batches
+            PreparedStatement rangedel = c.prepareStatement("DELETE FROM " + tableTiles + " WHERE MapID=? AND zoom=0 AND x>=? AND x<=? AND y>=? AND y<=?;");
+            PreparedStatement tiledel = c.prepareStatement("DELETE FROM " + tableTiles + " WHERE MapID=? AND x=? AND y=? AND zoom=0;");
+            HashSet<Long> blocksdone = new HashSet<Long>();
+            int rangecnt = 0, tilecnt = 0;
+            for (int[] xy : stale) {
+                int bx = xy[0] >> 5;
+                int by = xy[1] >> 5;
+                if (rendered.isRangeClear(bx << 5, by << 5, (bx << 5) + 31, (by << 5) + 31)) {
+                    if (blocksdone.add((((long) bx) << 32) | (by & 0xFFFFFFFFL))) {
+                        rangedel.setInt(1, mapkey);
+                        rangedel.setInt(2, bx << 5);
+                        rangedel.setInt(3, (bx << 5) + 31);
+                        rangedel.setInt(4, by << 5);
+                        rangedel.setInt(5, (by << 5) + 31);
+                        rangedel.addBatch();
+                        rangecnt++;
+                    }
+                }
+                else {
+                    tiledel.setInt(1, mapkey);
+                    tiledel.setInt(2, xy[0]);
+                    tiledel.setInt(3, xy[1]);
+                    tiledel.addBatch();
+                    tilecnt++;
+                }
+                if ((rangecnt + tilecnt) >= 500) {
+                    if (rangecnt > 0) rangedel.executeBatch();
+                    if (tilecnt > 0) tiledel.executeBatch();
+                    rangecnt = tilecnt = 0;
+                }
+            }
+            if (rangecnt > 0) rangedel.executeBatch();
+            if (tilecnt > 0) tiledel.executeBatch();
+            rangedel.close();
+            tiledel.close();
+            // Release references to shared content held by deleted tiles, then drop content no longer used
+            if (!blobrefs.isEmpty()) {
+                PreparedStatement relstmt = c.prepareStatement("UPDATE " + tableTileBlobs + " SET RefCount=RefCount-? WHERE Hash=?;");
+                for (Map.Entry<String, Integer> ent : blobrefs.entrySet()) {
+                    relstmt.setInt(1, ent.getValue());
+                    relstmt.setString(2, ent.getKey());
+                    relstmt.addBatch();
+                }
+                relstmt.executeBatch();
+                relstmt.close();
+            }
+            stmt.executeUpdate("DELETE FROM " + tableTileBlobs + " WHERE RefCount<=0;");
+            stmt.close();
+        } catch (SQLException x) {
+            Log.severe("Tile purge error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        if (err) return;
+        for (int[] xy : stale) {
+            StorageTile st = new StorageTile(world, map, xy[0], xy[1], 0, var);
+            invalidateCachedTile(st);
+            cb.tileFound(st, fmt);
+        }
+        for (int[] xy : zoomout) {
+            cb.tileFound(new StorageTile(world, map, xy[0], xy[1], 1, var), fmt);
+        }
+    }
+
+    /**
+     * Move tile's reference to shared content from one blob to another (either may be null).  Blob rows
+     * are updated in hash order, so concurrent tile writes can't deadlock on them.
+     */
+    private void changeBlobRef(Connection c, String oldblobhash, String blobhash, BufferOutputStream encImage) throws SQLException {
+        if ((blobhash != null) && blobhash.equals(oldblobhash)) {  // Same content: keep reference
+            return;
+        }
+        if ((oldblobhash != null) && ((blobhash == null) || (oldblobhash.compareTo(blobhash) < 0))) {
+            releaseBlobRef(c, oldblobhash);
+            oldblobhash = null;
+        }
+        if (blobhash != null) {
+            addBlobRef(c, blobhash, encImage);
+        }
+        if (oldblobhash != null) {
+            releaseBlobRef(c, oldblobhash);
+        }
+    }
+
+    /**
+     * Add reference to shared tile content, creating it if needed
+     */
+    private void addBlobRef(Connection c, String blobhash, BufferOutputStream encImage) throws SQLException {
+        for (int i = 0; i < 4; i++) {
+            PreparedStatement stmt = c.prepareStatement("UPDATE " + tableTileBlobs + " SET RefCount=RefCount+1 WHERE Hash=?;");
+            stmt.setString(1, blobhash);
+            int cnt = stmt.executeUpdate();
+            stmt.close();
+            if (cnt > 0) {
+                return;
+            }
+            // Not found: add it with no references, and retry (handles concurrent add and release)
+            stmt = c.prepareStatement("INSERT IGNORE INTO " + tableTileBlobs + " (Hash,RefCount,Image) VALUES (?,0,?);");
+            stmt.setString(1, blobhash);
+            stmt.setBinaryStream(2, new BufferInputStream(encImage.buf, encImage.len), encImage.len);
+            stmt.executeUpdate();
+            stmt.close();
+        }
+        throw new SQLException("Unable to add reference to tile blob " + blobhash);
+    }
+
+    /**
+     * Release reference to shared tile content, deleting it when no longer referenced
+     */
+    private void releaseBlobRef(Connection c, String blobhash) throws SQLException {
+        PreparedStatement stmt = c.prepareStatement("UPDATE " + tableTileBlobs + " SET RefCount=RefCount-1 WHERE Hash=?;");
+        stmt.setString(1, blobhash);
+        stmt.executeUpdate();
+        stmt.close();
+        stmt = c.prepareStatement("DELETE FROM " + tableTileBlobs + " WHERE Hash=? AND RefCount<=0;");
+        stmt.setString(1, blobhash);
+        stmt.executeUpdate();
+        stmt.close();
+    }
+
     @Override
     public boolean setPlayerFaceImage(String playername, FaceType facetype,
             BufferOutputStream encImage) {
@@ -777,6 +1076,29 @@ public class MariaDBMapStorage extends MapStorage {
         return exists;
     }
 
+    @Override
+    public Set<String> getPlayerFaceNames() {
+        Connection c = null;
+        boolean err = false;
+        Set<String> names = new HashSet<String>();
+        try {
+            c = getConnection();
+            Statement stmt = c.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT DISTINCT PlayerName FROM " + tableFaces + ";");
+            while (rs.next()) {
+                names.add(rs.getString("PlayerName"));
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException x) {
+            Log.severe("Face list error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return names;
+    }
+
     @Override
     public boolean setMarkerImage(String markerid, BufferOutputStream encImage) {
         Connection c = null;
@@ -8,10 +8,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.dynmap.DynmapCore;
 import org.dynmap.DynmapWorld;
@@ -25,10 +30,13 @@ import org.dynmap.storage.MapStorageTile;
 import org.dynmap.storage.MapStorageTileEnumCB;
 import org.dynmap.utils.BufferInputStream;
 import org.dynmap.utils.BufferOutputStream;
+import org.dynmap.utils.TileFlags;
 
 public class SQLiteMapStorage extends MapStorage {
     private String connectionString;
     private String databaseFile;
+    private boolean dedup;      // If true, identical tiles share content in TileBlobs table
+    private int dedupMaxLen;
     private static final int POOLSIZE = 5;
     private Connection[] cpool = new Connection[POOLSIZE];
     private int cpoolCount = 0;
@@ -109,20 +117,51 @@ public class SQLiteMapStorage extends MapStorage {
             try {
                 c = getConnection();
                 Statement stmt = c.createStatement();
-                //ResultSet rs = stmt.executeQuery("SELECT HashCode,LastUpdate,Format,Image FROM Tiles WHERE MapID=" + mapkey + " AND x=" + x + " AND y=" + y + " AND zoom=" + zoom + ";");
-                ResultSet rs = doExecuteQuery(stmt, "SELECT HashCode,LastUpdate,Format,Image FROM Tiles WHERE MapID=" + mapkey + " AND x=" + x + " AND y=" + y + " AND zoom=" + zoom + ";");
+                ResultSet rs = doExecuteQuery(stmt, "SELECT t.HashCode,t.LastUpdate,t.Format,t.Image,b.Image AS BlobImage FROM Tiles t LEFT JOIN TileBlobs b ON b.Hash=t.ImageHash WHERE t.MapID=" + mapkey + " AND t.x=" + x + " AND t.y=" + y + " AND t.zoom=" + zoom + ";");
+                if (rs.next()) {
+                    byte[] img = rs.getBytes("Image");
+                    if (img == null) {  // Shared tile content?
+                        img = rs.getBytes("BlobImage");
+                    }
+                    if (img != null) {
+                        rslt = new TileRead();
+                        rslt.hashCode = rs.getLong("HashCode");
+                        rslt.lastModified = rs.getLong("LastUpdate");
+                        rslt.format = MapType.ImageEncoding.fromOrd(rs.getInt("Format"));
+                        rslt.image = new BufferInputStream(img);
+                    }
+                }
+                rs.close();
+                stmt.close();
+            } catch (SQLException x) {
+                Log.severe("Tile read error - " + x.getMessage());
+                err = true;
+            } finally {
+                releaseConnection(c, err);
+            }
+            return rslt;
+        }
+
+        @Override
+        public TileRead readMetadata() {
+            if (mapkey == null) return null;
+            TileRead rslt = null;
+            Connection c = null;
+            boolean err = false;
+            try {
+                c = getConnection();
+                Statement stmt = c.createStatement();
+                ResultSet rs = doExecuteQuery(stmt, "SELECT HashCode,LastUpdate,Format FROM Tiles WHERE MapID=" + mapkey + " AND x=" + x + " AND y=" + y + " AND zoom=" + zoom + ";");
                 if (rs.next()) {
                     rslt = new TileRead();
                     rslt.hashCode = rs.getLong("HashCode");
                     rslt.lastModified = rs.getLong("LastUpdate");
                     rslt.format = MapType.ImageEncoding.fromOrd(rs.getInt("Format"));
-                    byte[] img = rs.getBytes("Image");
-                    rslt.image = new BufferInputStream(img);
                 }
                 rs.close();
                 stmt.close();
             } catch (SQLException x) {
-                Log.severe("Tile read error - " + x.getMessage());
+                Log.severe("Tile read metadata error - " + x.getMessage());
                 err = true;
             } finally {
                 releaseConnection(c, err);
@@ -132,16 +171,43 @@ public class SQLiteMapStorage extends MapStorage {
 
         @Override
         public boolean write(long hash, BufferOutputStream encImage) {
+            return write(hash, encImage, map.getImageFormat().getEncoding());
+        }
+
+        @Override
+        public boolean write(long hash, BufferOutputStream encImage, MapType.ImageEncoding fmt) {
             if (mapkey == null) return false;
             Connection c = null;
             boolean err = false;
-            boolean exists = exists();
-            // If delete, and doesn't exist, quit
-            if ((encImage == null) && (!exists)) return false;
+            String blobhash = null;
+            if ((encImage != null) && dedup && (encImage.len <= dedupMaxLen)) {
+                blobhash = calculateContentHash(encImage.buf, 0, encImage.len);
+            }
             
+            boolean intx = false;
             try {
                 c = getConnection();
-                PreparedStatement stmt;
+                // Check for existing tile, and shared content it references
+                boolean exists = false;
+                String oldblobhash = null;
+                PreparedStatement stmt = c.prepareStatement("SELECT ImageHash FROM Tiles WHERE MapID=? AND x=? and y=? AND zoom=?;");
+                stmt.setInt(1, mapkey);
+                stmt.setInt(2, x);
+                stmt.setInt(3, y);
+                stmt.setInt(4, zoom);
+                ResultSet rs = doExecuteQuery(stmt);
+                if (rs.next()) {
+                    exists = true;
+                    oldblobhash = rs.getString("ImageHash");
+                }
+                rs.close();
+                stmt.close();
+                // If delete, and doesn't exist, quit
+                if ((encImage == null) && (!exists)) return false;
+                // Update references to shared content and tile together, so a failed write leaves neither
+                c.setAutoCommit(false);
+                intx = true;
+                changeBlobRef(c, oldblobhash, blobhash, encImage);
                 if (encImage == null) { // If delete
                     stmt = c.prepareStatement("DELETE FROM Tiles WHERE MapID=? AND x=? and y=? AND zoom=?;");
                     stmt.setInt(1, mapkey);
@@ -150,39 +216,59 @@ public class SQLiteMapStorage extends MapStorage {
                     stmt.setInt(4, zoom);
                 }
                 else if (exists) {
-                    stmt = c.prepareStatement("UPDATE Tiles SET HashCode=?, LastUpdate=?, Format=?, Image=? WHERE MapID=? AND x=? and y=? AND zoom=?;");
+                    stmt = c.prepareStatement("UPDATE Tiles SET HashCode=?, LastUpdate=?, Format=?, Image=?, ImageHash=? WHERE MapID=? AND x=? and y=? AND zoom=?;");
                     stmt.setLong(1, hash);
                     stmt.setLong(2, System.currentTimeMillis());
-                    stmt.setInt(3, map.getImageFormat().getEncoding().ordinal());
-                    stmt.setBytes(4, encImage.buf);
-                    stmt.setInt(5, mapkey);
-                    stmt.setInt(6, x);
-                    stmt.setInt(7, y);
-                    stmt.setInt(8, zoom);
+                    stmt.setInt(3, fmt.ordinal());
+                    if (blobhash != null) {
+                        stmt.setNull(4, Types.BLOB);
+                    }
+                    else {
+                        stmt.setBytes(4, encImage.buf);
+                    }
+                    stmt.setString(5, blobhash);
+                    stmt.setInt(6, mapkey);
+                    stmt.setInt(7, x);
+                    stmt.setInt(8, y);
+                    stmt.setInt(9, zoom);
                 }
                 else {
-                    stmt = c.prepareStatement("INSERT INTO Tiles (MapID,x,y,zoom,HashCode,LastUpdate,Format,Image) VALUES (?,?,?,?,?,?,?,?);");
+                    stmt = c.prepareStatement("INSERT INTO Tiles (MapID,x,y,zoom,HashCode,LastUpdate,Format,Image,ImageHash) VALUES (?,?,?,?,?,?,?,?,?);");
                     stmt.setInt(1, mapkey);
                     stmt.setInt(2, x);
                     stmt.setInt(3, y);
                     stmt.setInt(4, zoom);
                     stmt.setLong(5, hash);
                     stmt.setLong(6, System.currentTimeMillis());
-                    stmt.setInt(7, map.getImageFormat().getEncoding().ordinal());
-                    stmt.setBytes(8, encImage.buf);
+                    stmt.setInt(7, fmt.ordinal());
+                    if (blobhash != null) {
+                        stmt.setNull(8, Types.BLOB);
+                    }
+                    else {
+                        stmt.setBytes(8, encImage.buf);
+                    }
+                    stmt.setString(9, blobhash);
                 }
-                //stmt.executeUpdate();
                 doExecuteUpdate(stmt);
                 stmt.close();
+                c.commit();
                 // Signal update for zoom out
-                if (zoom == 0) {
+                if ((zoom == 0) && zoomOutUpdates) {
                     world.enqueueZoomOutUpdate(this);
                 }
             } catch (SQLException x) {
                 Log.severe("Tile write error - " + x.getMessage());
                 err = true;
+                if (intx) {
+                    try { c.rollback(); } catch (SQLException rx) {}
+                }
             } finally {
-                releaseConnection(c, err);
+                boolean keep = !err;
+                if (intx && keep) {
+                    try { c.setAutoCommit(true); } catch (SQLException x) { keep = false; }
+                }
+                releaseConnection(c, !keep);
+                invalidateCachedTile(this);
             }
             return !err;
         }
@@ -261,9 +347,11 @@ public class SQLiteMapStorage extends MapStorage {
         if (!super.init(core)) {
             return false;
         }
-        File dbfile = core.getFile(core.configuration.getString("storage/dbfile", "dynmap.db"));
+        File dbfile = core.getFile(storageConfig.getString("dbfile", "dynmap.db"));
         databaseFile = dbfile.getAbsolutePath();
         connectionString = "jdbc:sqlite:" + databaseFile;
+        dedup = storageConfig.getBoolean("deduplicate", false);
+        dedupMaxLen = 1024 * storageConfig.getInteger("dedup-max-tile-kb", 64);
         Log.info("Opening SQLite file " + databaseFile + " as map store");
         try {
             Class.forName("org.sqlite.JDBC");
@@ -386,12 +474,30 @@ public class SQLiteMapStorage extends MapStorage {
             try {
                 c = getConnection();
                 doUpdate(c, "CREATE TABLE Maps (ID INTEGER PRIMARY KEY AUTOINCREMENT, WorldID STRING NOT NULL, MapID STRING NOT NULL, Variant STRING NOT NULL)");
-                doUpdate(c, "CREATE TABLE Tiles (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, zoom INT NOT NULL, HashCode INT NOT NULL, LastUpdate INT NOT NULL, Format INT NOT NULL, Image BLOB, PRIMARY KEY(MapID, x, y, zoom))");
+                doUpdate(c, "CREATE TABLE Tiles (MapID INT NOT NULL, x INT NOT NULL, y INT NOT NULL, zoom INT NOT NULL, HashCode INT NOT NULL, LastUpdate INT NOT NULL, Format INT NOT NULL, Image BLOB, ImageHash STRING, PRIMARY KEY(MapID, x, y, zoom))");
+                doUpdate(c, "CREATE INDEX TilesImageHash ON Tiles (MapID, ImageHash)");
+                doUpdate(c, "CREATE TABLE TileBlobs (Hash STRING PRIMARY KEY NOT NULL, RefCount INT NOT NULL, Image BLOB)");
                 doUpdate(c, "CREATE TABLE Faces (PlayerName STRING NOT NULL, TypeID INT NOT NULL, Image BLOB, PRIMARY KEY(PlayerName, TypeID))");
                 doUpdate(c, "CREATE TABLE MarkerIcons (IconName STRING PRIMARY KEY NOT NULL, Image BLOB)");
                 doUpdate(c, "CREATE TABLE MarkerFiles (FileName STRING PRIMARY KEY NOT NULL, Content CLOB)");
                 doUpdate(c, "CREATE TABLE SchemaVersion (level INT PRIMARY KEY NOT NULL)");
-                doUpdate(c, "INSERT INTO SchemaVersion (level) VALUES (1)");
+                doUpdate(c, "INSERT INTO SchemaVersion (level) VALUES (2)");
+            } catch (SQLException x) {
+                Log.severe("Error creating tables - " + x.getMessage());
+                err = true;
+                return false;
+            } finally {
+                releaseConnection(c, err);
+                c = null;
+            }
+        }
+        else if (version == 1) {
+            try {
+                c = getConnection();
+                doUpdate(c, "ALTER TABLE Tiles ADD COLUMN ImageHash STRING");
+                doUpdate(c, "CREATE INDEX TilesImageHash ON Tiles (MapID, ImageHash)");
+                doUpdate(c, "CREATE TABLE TileBlobs (Hash STRING PRIMARY KEY NOT NULL, RefCount INT NOT NULL, Image BLOB)");
+                doUpdate(c, "UPDATE SchemaVersion SET level=2 WHERE level = 1;");
             } catch (SQLException x) {
                 Log.severe("Error creating tables - " + x.getMessage());
                 err = true;
@@ -443,6 +549,21 @@ public class SQLiteMapStorage extends MapStorage {
         return conn;
     }
     
+    @Override
+    public void shutdown() {
+        // Close pooled connections
+        synchronized (cpool) {
+            for (int i = 0; i < cpool.length; i++) {
+                if (cpool[i] != null) {
+                    try { cpool[i].close(); } catch (SQLException x) {}
+                    cpool[i] = null;
+                    cpoolCount--;
+                }
+            }
+            cpool.notifyAll();
+        }
+    }
+
     private void releaseConnection(Connection c, boolean err) {
         if (c == null) return;
         synchronized (cpool) {
@@ -575,6 +696,7 @@ public class SQLiteMapStorage extends MapStorage {
                 processPurgeMapTiles(world, mt, var);
             }
         }
+        invalidateCachedTiles();
     }
     private void processPurgeMapTiles(DynmapWorld world, MapType map, ImageVariant var) {
         Connection c = null;
@@ -585,7 +707,9 @@ public class SQLiteMapStorage extends MapStorage {
             c = getConnection();
             // Query tiles for given mapkey
             Statement stmt = c.createStatement();
-            //stmt.executeUpdate("DELETE FROM Tiles WHERE MapID=" + mapkey + ";");
+            // Release references to shared content, then drop content no longer used
+            doExecuteUpdate(stmt, "UPDATE TileBlobs SET RefCount=RefCount-(SELECT COUNT(*) FROM Tiles WHERE Tiles.MapID=" + mapkey + " AND Tiles.ImageHash=TileBlobs.Hash) WHERE Hash IN (SELECT ImageHash FROM Tiles WHERE MapID=" + mapkey + ");");
+            doExecuteUpdate(stmt, "DELETE FROM TileBlobs WHERE RefCount<=0;");
             doExecuteUpdate(stmt, "DELETE FROM Tiles WHERE MapID=" + mapkey + ";");
             stmt.close();
         } catch (SQLException x) {
@@ -596,6 +720,172 @@ public class SQLiteMapStorage extends MapStorage {
         }
     }
 
+    @Override
+    public void purgeOldTiles(DynmapWorld world, MapType map, TileFlags rendered, MapStorageTileEnumCB cb) {
+        ImageVariant[] vars = map.getVariants();
+        for (ImageVariant var : vars) {
+            processPurgeOldTiles(world, map, var, rendered, cb);
+        }
+    }
+    private void processPurgeOldTiles(DynmapWorld world, MapType map, ImageVariant var, TileFlags rendered, MapStorageTileEnumCB cb) {
+        Connection c = null;
+        boolean err = false;
+        Integer mapkey = getMapKey(world, map, var);
+        if (mapkey == null) return;
+        MapType.ImageEncoding fmt = map.getImageFormat().getEncoding();
+        List<int[]> stale = new ArrayList<int[]>();     // Base tiles not rendered
+        List<int[]> zoomout = new ArrayList<int[]>();   // Zoom 1 tiles with no base tiles rendered
+        try {
+            c = getConnection();
+            Statement stmt = c.createStatement();
+            // Tiles in other formats are obsolete at all zoom levels: release shared content, and drop them
+            String where = "MapID=" + mapkey + " AND Format<>" + fmt.ordinal();
+            doExecuteUpdate(stmt, "UPDATE TileBlobs SET RefCount=RefCount-(SELECT COUNT(*) FROM Tiles WHERE Tiles.ImageHash=TileBlobs.Hash AND Tiles." + where + ") WHERE Hash IN (SELECT ImageHash FROM Tiles WHERE " + where + ");");
+            if (doExecuteUpdate(stmt, "DELETE FROM Tiles WHERE " + where + ";") > 0) {
+                invalidateCachedTiles();
+            }
+            // Find base and zoom 1 tiles to handle, without reading image data
+            HashMap<String, Integer> blobrefs = new HashMap<String, Integer>();  // Shared content references to release
+            ResultSet rs = doExecuteQuery(stmt, "SELECT x,y,zoom,ImageHash FROM Tiles WHERE MapID=" + mapkey + " AND zoom<=1;");
+            while (rs.next()) {
+                int x = rs.getInt("x");
+                int y = rs.getInt("y");
+                if (rs.getInt("zoom") == 0) {
+                    if (!rendered.getFlag(x, y)) {
+                        stale.add(new int[] { x, y });
+                        String h = rs.getString("ImageHash");
+                        if (h != null) {
+                            Integer cnt = blobrefs.get(h);
+                            blobrefs.put(h, (cnt != null) ? (cnt + 1) : 1);
+                        }
+                    }
+                }
+                else if (!isZoomOutRendered(rendered, x, y)) {
+                    zoomout.add(new int[] { x, y });
+                }
+            }
+            rs.close();
+            // Delete base tiles not rendered: one range delete for each 32 x 32 block with none rendered, else by tile, in batches
+            PreparedStatement rangedel = c.prepareStatement("DELETE FROM Tiles WHERE MapID=? AND zoom=0 AND x>=? AND x<=? AND y>=? AND y<=?;");
+            PreparedStatement tiledel = c.prepareStatement("DELETE FROM Tiles WHERE MapID=? AND x=? AND y=? AND zoom=0;");
+            HashSet<Long> blocksdone = new HashSet<Long>();
+            int rangecnt = 0, tilecnt = 0;
+            for (int[] xy : stale) {
+                int bx = xy[0] >> 5;
+                int by = xy[1] >> 5;
+                if (rendered.isRangeClear(bx << 5, by << 5, (bx << 5) + 31, (by << 5) + 31)) {
+                    if (blocksdone.add((((long) bx) << 32) | (by & 0xFFFFFFFFL))) {
+                        rangedel.setInt(1, mapkey);
+                        rangedel.setInt(2, bx << 5);
+                        rangedel.setInt(3, (bx << 5) + 31);
+                        rangedel.setInt(4, by << 5);
+                        rangedel.setInt(5, (by << 5) + 31);
+                        rangedel.addBatch();
+                        rangecnt++;
+                    }
+                }
+                else {
+                    tiledel.setInt(1, mapkey);
+                    tiledel.setInt(2, xy[0]);
+                    tiledel.setInt(3, xy[1]);
+                    tiledel.addBatch();
+                    tilecnt++;
+                }
+                if ((rangecnt + tilecnt) >= 500) {
+                    if (rangecnt > 0) doExecuteBatch(rangedel);
+                    if (tilecnt > 0) doExecuteBatch(tiledel);
+                    rangecnt = tilecnt = 0;
+                }
+            }
+            if (rangecnt > 0) doExecuteBatch(rangedel);
+            if (tilecnt > 0) doExecuteBatch(tiledel);
+            rangedel.close();
+            tiledel.close();
+            // Release references to shared content held by deleted tiles, then drop content no longer used
+            if (!blobrefs.isEmpty()) {
+                PreparedStatement relstmt = c.prepareStatement("UPDATE TileBlobs SET RefCount=RefCount-? WHERE Hash=?;");
+                for (Map.Entry<String, Integer> ent : blobrefs.entrySet()) {
+                    relstmt.setInt(1, ent.getValue());
+                    relstmt.setString(2, ent.getKey());
+                    doExecuteUpdate(relstmt);
+                }
+                relstmt.close();
+            }
+            doExecuteUpdate(stmt, "DELETE FROM TileBlobs WHERE RefCount<=0;");
+            stmt.close();
+        } catch (SQLException x) {
+            Log.severe("Tile purge error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        if (err) return;
+        for (int[] xy : stale) {
+            StorageTile st = new StorageTile(world, map, xy[0], xy[1], 0, var);
+            invalidateCachedTile(st);
+            cb.tileFound(st, fmt);
+        }
+        for (int[] xy : zoomout) {
+            cb.tileFound(new StorageTile(world, map, xy[0], xy[1], 1, var), fmt);
+        }
+    }
+
+    /**
+     * Move tile's reference to shared content from one blob to another (either may be null).  Blob rows
+     * are updated in hash order, so concurrent tile writes can't deadlock on them.
+     */
+    private void changeBlobRef(Connection c, String oldblobhash, String blobhash, BufferOutputStream encImage) throws SQLException {
+        if ((blobhash != null) && blobhash.equals(oldblobhash)) {  // Same content: keep reference
+            return;
+        }
+        if ((oldblobhash != null) && ((blobhash == null) || (oldblobhash.compareTo(blobhash) < 0))) {
+            releaseBlobRef(c, oldblobhash);
+            oldblobhash = null;
+        }
+        if (blobhash != null) {
+            addBlobRef(c, blobhash, encImage);
+        }
+        if (oldblobhash != null) {
+            releaseBlobRef(c, oldblobhash);
+        }
+    }
+
+    /**
+     * Add reference to shared tile content, creating it if needed
+     */
+    private void addBlobRef(Connection c, String blobhash, BufferOutputStream encImage) throws SQLException {
+        for (int i = 0; i < 4; i++) {
+            PreparedStatement stmt = c.prepareStatement("UPDATE TileBlobs SET RefCount=RefCount+1 WHERE Hash=?;");
+            stmt.setString(1, blobhash);
+            int cnt = doExecuteUpdate(stmt);
+            stmt.close();
+            if (cnt > 0) {
+                return;
+            }
+            // Not found: add it with no references, and retry (handles concurrent add and release)
+            stmt = c.prepareStatement("INSERT OR IGNORE INTO TileBlobs (Hash,RefCount,Image) VALUES (?,0,?);");
+            stmt.setString(1, blobhash);
+            stmt.setBytes(2, Arrays.copyOf(encImage.buf, encImage.len));
+            doExecuteUpdate(stmt);
+            stmt.close();
+        }
+        throw new SQLException("Unable to add reference to tile blob " + blobhash);
+    }
+
+    /**
+     * Release reference to shared tile content, deleting it when no longer referenced
+     */
+    private void releaseBlobRef(Connection c, String blobhash) throws SQLException {
+        PreparedStatement stmt = c.prepareStatement("UPDATE TileBlobs SET RefCount=RefCount-1 WHERE Hash=?;");
+        stmt.setString(1, blobhash);
+        doExecuteUpdate(stmt);
+        stmt.close();
+        stmt = c.prepareStatement("DELETE FROM TileBlobs WHERE Hash=? AND RefCount<=0;");
+        stmt.setString(1, blobhash);
+        doExecuteUpdate(stmt);
+        stmt.close();
+    }
+
     @Override
     public boolean setPlayerFaceImage(String playername, FaceType facetype,
             BufferOutputStream encImage) {
@@ -691,6 +981,29 @@ public class SQLiteMapStorage extends MapStorage {
         return exists;
     }
 
+    @Override
+    public Set<String> getPlayerFaceNames() {
+        Connection c = null;
+        boolean err = false;
+        Set<String> names = new HashSet<String>();
+        try {
+            c = getConnection();
+            Statement stmt = c.createStatement();
+            ResultSet rs = doExecuteQuery(stmt, "SELECT DISTINCT PlayerName FROM Faces;");
+            while (rs.next()) {
+                names.add(rs.getString("PlayerName"));
+            }
+            rs.close();
+            stmt.close();
+        } catch (SQLException x) {
+            Log.severe("Face list error - " + x.getMessage());
+            err = true;
+        } finally {
+            releaseConnection(c, err);
+        }
+        return names;
+    }
+
     @Override
     public boolean setMarkerImage(String markerid, BufferOutputStream encImage) {
         Connection c = null;
@@ -892,6 +1205,17 @@ public class SQLiteMapStorage extends MapStorage {
             }
         }
     }
+    private int[] doExecuteBatch(PreparedStatement statement) throws SQLException {
+        while (true) {
+            try {
+                return statement.executeBatch();
+            } catch (SQLException x) {
+                if (!x.getMessage().contains("[SQLITE_BUSY]")) {
+                    throw x;
+                }
+            }
+        }
+    }
     private int doExecuteUpdate(Statement statement, String sql) throws SQLException {
         while (true) {
             try {
@@ -0,0 +1,140 @@
+package org.dynmap.utils;
+
+/**
+ * Douglas-Peucker simplification of lines and polygons: keeps the points needed to stay within a
+ * tolerance of the original shape.  Results are the indices of the points kept, in order.
+ */
+public class PolylineSimplifier {
+
+    private static int[] allPoints(int n) {
+        int[] rslt = new int[n];
+        for (int i = 0; i < n; i++) {
+            rslt[i] = i;
+        }
+        return rslt;
+    }
+
+    private static int[] keptPoints(boolean[] keep) {
+        int cnt = 0;
+        for (int i = 0; i < keep.length; i++) {
+            if (keep[i]) cnt++;
+        }
+        int[] rslt = new int[cnt];
+        cnt = 0;
+        for (int i = 0; i < keep.length; i++) {
+            if (keep[i]) rslt[cnt++] = i;
+        }
+        return rslt;
+    }
+
+    // Square of distance from point (px, py) to segment (ax, ay) - (bx, by)
+    private static double segmentDistance2(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax, dy = by - ay;
+        double len2 = dx * dx + dy * dy;
+        double t = 0.0;
+        if (len2 > 0.0) {
+            t = ((px - ax) * dx + (py - ay) * dy) / len2;
+            if (t < 0.0) t = 0.0;
+            else if (t > 1.0) t = 1.0;
+        }
+        double ex = ax + t * dx - px, ey = ay + t * dy - py;
+        return ex * ex + ey * ey;
+    }
+
+    // Mark points between first and last (index n is point 0, for closing ring) that are needed for tolerance
+    private static void simplifyRange(double[] x, double[] y, int n, int first, int last, double tol2, boolean[] keep) {
+        int[] stack = new int[64];
+        int sp = 0;
+        stack[sp++] = first;
+        stack[sp++] = last;
+        while (sp > 0) {
+            int l = stack[--sp];
+            int f = stack[--sp];
+            int lw = (l == n) ? 0 : l;
+            int maxi = -1;
+            double maxd = tol2;
+            for (int i = f + 1; i < l; i++) {
+                double d = segmentDistance2(x[i], y[i], x[f], y[f], x[lw], y[lw]);
+                if (d > maxd) {
+                    maxd = d;
+                    maxi = i;
+                }
+            }
+            if (maxi < 0) continue;
+            keep[maxi] = true;
+            if (sp + 4 > stack.length) {
+                int[] ns = new int[stack.length * 2];
+                System.arraycopy(stack, 0, ns, 0, sp);
+                stack = ns;
+            }
+            stack[sp++] = f;
+            stack[sp++] = maxi;
+            stack[sp++] = maxi;
+            stack[sp++] = l;
+        }
+    }
+
+    /**
+     * Simplify open line
+     * @param x - X coordinates of points
+     * @param y - Y coordinates of points
+     * @param n - number of points
+     * @param tolerance - maximum distance of dropped points from simplified line
+     * @return indices of points kept (always includes first and last)
+     */
+    public static int[] simplifyLine(double[] x, double[] y, int n, double tolerance) {
+        if ((n <= 2) || (tolerance <= 0.0)) {
+            return allPoints(n);
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[n - 1] = true;
+        simplifyRange(x, y, n, 0, n - 1, tolerance * tolerance, keep);
+        return keptPoints(keep);
+    }
+
+    /**
+     * Simplify polygon (closed ring of points)
+     * @param x - X coordinates of points
+     * @param y - Y coordinates of points
+     * @param n - number of points
+     * @param tolerance - maximum distance of dropped points from simplified outline
+     * @return indices of points kept (at least 3, if polygon has 3)
+     */
+    public static int[] simplifyPolygon(double[] x, double[] y, int n, double tolerance) {
+        if ((n <= 3) || (tolerance <= 0.0)) {
+            return allPoints(n);
+        }
+        // Split ring into two lines, at first point and point farthest from it
+        int far = 1;
+        double fard = -1.0;
+        for (int i = 1; i < n; i++) {
+            double dx = x[i] - x[0], dy = y[i] - y[0];
+            double d = dx * dx + dy * dy;
+            if (d > fard) {
+                fard = d;
+                far = i;
+            }
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = keep[far] = true;
+        double tol2 = tolerance * tolerance;
+        simplifyRange(x, y, n, 0, far, tol2, keep);
+        simplifyRange(x, y, n, far, n, tol2, keep);
+        int[] rslt = keptPoints(keep);
+        if (rslt.length < 3) {  // Collapsed to a line: keep point farthest from it, so still a polygon
+            int maxi = -1;
+            double maxd = -1.0;
+            for (int i = 1; i < n; i++) {
+                if (i == far) continue;
+                double d = segmentDistance2(x[i], y[i], x[0], y[0], x[far], y[far]);
+                if (d > maxd) {
+                    maxd = d;
+                    maxi = i;
+                }
+            }
+            keep[maxi] = true;
+            rslt = keptPoints(keep);
+        }
+        return rslt;
+    }
+}
@@ -131,6 +131,56 @@ public class TileFlags {
 		return prev;
 	}
 	
+	/**
+	 * Test if all flags in given rectangle are set
+	 * 
+	 * @param minx - low X coordinate (inclusive)
+	 * @param miny - low Y coordinate (inclusive)
+	 * @param maxx - high X coordinate (inclusive)
+	 * @param maxy - high Y coordinate (inclusive)
+	 * @return true if all set
+	 */
+	public boolean isRangeSet(int minx, int miny, int maxx, int maxy) {
+	    return checkRange(minx, miny, maxx, maxy, true);
+	}
+	
+	/**
+	 * Test if no flags in given rectangle are set
+	 * 
+	 * @param minx - low X coordinate (inclusive)
+	 * @param miny - low Y coordinate (inclusive)
+	 * @param maxx - high X coordinate (inclusive)
+	 * @param maxy - high Y coordinate (inclusive)
+	 * @return true if none set
+	 */
+	public boolean isRangeClear(int minx, int miny, int maxx, int maxy) {
+	    return checkRange(minx, miny, maxx, maxy, false);
+	}
+	
+	private boolean checkRange(int minx, int miny, int maxx, int maxy, boolean set) {
+	    for (int cx = (minx >> 6); cx <= (maxx >> 6); cx++) {
+	        // Mask of bits of range within this column of sets
+	        int x0 = Math.max(minx, cx << 6) & 0x3F;
+	        int x1 = Math.min(maxx, (cx << 6) | 0x3F) & 0x3F;
+	        long mask = ((x1 == 63) ? -1L : ((1L << (x1 + 1)) - 1)) & (-1L << x0);
+	        for (int cy = (miny >> 6); cy <= (maxy >> 6); cy++) {
+	            long[] row = chunkmap.get((((long)cx) << 32) | (0xFFFFFFFFL & (long)cy));
+	            if (row == null) {
+	                if (set) return false;
+	                continue;
+	            }
+	            int y1 = Math.min(maxy, (cy << 6) | 0x3F);
+	            for (int y = Math.max(miny, cy << 6); y <= y1; y++) {
+	                long v = row[y & 0x3F] & mask;
+	                if (set ? (v != mask) : (v != 0L)) {
+	                    return false;
+	                }
+	            }
+	        }
+	    }
+	    return true;
+	}
+	
 	/**
 	 * Logical OR - set all flags true that are true in given set
 	 * 
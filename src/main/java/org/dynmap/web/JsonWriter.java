@@ -0,0 +1,488 @@
+package org.dynmap.web;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.dynmap.utils.BufferOutputStream;
+
+/**
+ * Streaming JSON emitter, writing UTF-8 straight into a BufferOutputStream, so output can be produced
+ * without building JSONObject/HashMap trees or intermediate strings.  Commas between members and
+ * elements are added as needed:
+ * <pre>
+ *   w.beginObject();
+ *   w.field("timestamp", now);
+ *   w.name("sets"); w.beginObject(); ... w.endObject();
+ *   w.endObject();
+ * </pre>
+ * Strings are escaped as by Json.escape (so output is plain ASCII).  Maps, lists, arrays and objects
+ * with public fields (such as client updates) can also be written with value(Object), as by
+ * Json.stringifyJson.  Writers are not thread safe: getThreadWriter() gives each thread its own,
+ * with a buffer reused by each use.
+ */
+public class JsonWriter {
+    private static final byte[] HEX = { '0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F' };
+    private static final byte[] TRUE = { 't','r','u','e' };
+    private static final byte[] FALSE = { 'f','a','l','s','e' };
+    private static final byte[] NULL = { 'n','u','l','l' };
+    private static final byte[] LONG_MIN = "-9223372036854775808".getBytes();
+    private static final double[] SCALE = { 1.0, 10.0, 100.0, 1000.0 };
+    private static final ConcurrentHashMap<Class<?>, ClassFields> classFields = new ConcurrentHashMap<Class<?>, ClassFields>();
+    private static final ThreadLocal<JsonWriter> threadWriter = new ThreadLocal<JsonWriter>() {
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter(new BufferOutputStream());
+        }
+    };
+
+    private BufferOutputStream out;
+    private boolean[] first = new boolean[16];  // For each open object or array, true if no member yet
+    private int depth;
+    private boolean afterName;
+
+    // Public fields of class, with their names encoded
+    private static class ClassFields {
+        Field[] fields;
+        byte[][] names;
+    }
+
+    /**
+     * Create writer
+     * @param out - output buffer (written after any content already in it)
+     */
+    public JsonWriter(BufferOutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Get writer for current thread, reset to empty.  Its buffer is reused by the next call on the same
+     * thread, so output must be used or copied (toByteArray) before then.
+     */
+    public static JsonWriter getThreadWriter() {
+        JsonWriter w = threadWriter.get();
+        w.reset();
+        return w;
+    }
+
+    /**
+     * Get output buffer
+     */
+    public BufferOutputStream getOutput() {
+        return out;
+    }
+
+    /**
+     * Empty output buffer and start new document
+     */
+    public void reset() {
+        out.reset();
+        depth = 0;
+        afterName = false;
+    }
+
+    /**
+     * Get length of output (bytes)
+     */
+    public int length() {
+        return out.len;
+    }
+
+    /**
+     * Get copy of output
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(out.buf, out.len);
+    }
+
+    // Make room for given number of bytes: grow by doubling, so large documents aren't copied over and over
+    private void ensure(int n) {
+        int need = out.len + n;
+        if (need > out.buf.length) {
+            out.buf = Arrays.copyOf(out.buf, Math.max(need, out.buf.length * 2));
+        }
+    }
+
+    private void put(int b) {
+        ensure(1);
+        out.buf[out.len++] = (byte) b;
+    }
+
+    private void put(byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, out.buf, out.len, b.length);
+        out.len += b.length;
+    }
+
+    // Separator before value: comma if not first member of enclosing object or array
+    private void beforeValue() {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth > 0) {
+            if (first[depth - 1]) {
+                first[depth - 1] = false;
+            }
+            else {
+                put(',');
+            }
+        }
+    }
+
+    private void open(int c) {
+        beforeValue();
+        put(c);
+        if (depth == first.length) {
+            first = Arrays.copyOf(first, depth * 2);
+        }
+        first[depth++] = true;
+    }
+
+    private void close(int c) {
+        if (depth == 0) {
+            throw new IllegalStateException("No open object or array");
+        }
+        depth--;
+        put(c);
+    }
+
+    public JsonWriter beginObject() {
+        open('{');
+        return this;
+    }
+
+    public JsonWriter endObject() {
+        close('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() {
+        open('[');
+        return this;
+    }
+
+    public JsonWriter endArray() {
+        close(']');
+        return this;
+    }
+
+    /**
+     * Write name of object member: its value is written next.  Outside any object, this writes a
+     * member on its own (such as "players":[...]), for splicing into an object serialized elsewhere.
+     * @param name - member name
+     */
+    public JsonWriter name(String name) {
+        beforeValue();
+        writeString(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    // Name already encoded (with quotes and colon)
+    private void name(byte[] encname) {
+        beforeValue();
+        put(encname);
+        afterName = true;
+    }
+
+    public JsonWriter value(String v) {
+        beforeValue();
+        if (v == null) {
+            put(NULL);
+        }
+        else {
+            writeString(v);
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean v) {
+        beforeValue();
+        put(v ? TRUE : FALSE);
+        return this;
+    }
+
+    public JsonWriter value(long v) {
+        beforeValue();
+        writeLong(v);
+        return this;
+    }
+
+    /**
+     * Write number: values with up to 3 decimal places are written without allocating; non-finite
+     * values (not valid JSON) are written as null
+     * @param v - value
+     */
+    public JsonWriter value(double v) {
+        beforeValue();
+        writeDouble(v);
+        return this;
+    }
+
+    public JsonWriter nullValue() {
+        beforeValue();
+        put(NULL);
+        return this;
+    }
+
+    /**
+     * Write value already serialized as JSON
+     * @param json - encoded JSON value
+     */
+    public JsonWriter rawValue(byte[] json) {
+        beforeValue();
+        put(json);
+        return this;
+    }
+
+    public JsonWriter field(String name, String v) {
+        name(name);
+        return value(v);
+    }
+
+    public JsonWriter field(String name, boolean v) {
+        name(name);
+        return value(v);
+    }
+
+    public JsonWriter field(String name, long v) {
+        name(name);
+        return value(v);
+    }
+
+    public JsonWriter field(String name, double v) {
+        name(name);
+        return value(v);
+    }
+
+    /**
+     * Write value of any type: null, Boolean, String, Number, Map, List, array, or other object as
+     * object of its public fields
+     * @param o - value
+     */
+    public JsonWriter value(Object o) {
+        if (o == null) {
+            return nullValue();
+        }
+        else if (o instanceof String) {
+            return value((String) o);
+        }
+        else if (o instanceof Boolean) {
+            return value(((Boolean) o).booleanValue());
+        }
+        else if ((o instanceof Integer) || (o instanceof Long) || (o instanceof Short) || (o instanceof Byte)) {
+            return value(((Number) o).longValue());
+        }
+        else if (o instanceof Double) {
+            return value(((Double) o).doubleValue());
+        }
+        else if (o instanceof Number) {
+            beforeValue();
+            writeAscii(o.toString());
+        }
+        else if (o instanceof Map<?, ?>) {
+            beginObject();
+            for (Map.Entry<?, ?> me : ((Map<?, ?>) o).entrySet()) {
+                name(String.valueOf(me.getKey()));
+                value(me.getValue());
+            }
+            endObject();
+        }
+        else if (o instanceof List<?>) {
+            List<?> l = (List<?>) o;
+            beginArray();
+            for (int i = 0; i < l.size(); i++) {
+                value(l.get(i));
+            }
+            endArray();
+        }
+        else if (o instanceof double[]) {
+            double[] a = (double[]) o;
+            beginArray();
+            for (int i = 0; i < a.length; i++) {
+                value(a[i]);
+            }
+            endArray();
+        }
+        else if (o instanceof int[]) {
+            int[] a = (int[]) o;
+            beginArray();
+            for (int i = 0; i < a.length; i++) {
+                value(a[i]);
+            }
+            endArray();
+        }
+        else if (o.getClass().isArray()) {
+            int length = Array.getLength(o);
+            beginArray();
+            for (int i = 0; i < length; i++) {
+                value(Array.get(o, i));
+            }
+            endArray();
+        }
+        else {
+            ClassFields cf = getClassFields(o.getClass());
+            beginObject();
+            for (int i = 0; i < cf.fields.length; i++) {
+                Object fv;
+                try {
+                    fv = cf.fields[i].get(o);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                } catch (IllegalAccessException e) {
+                    continue;
+                }
+                name(cf.names[i]);
+                value(fv);
+            }
+            endObject();
+        }
+        return this;
+    }
+
+    private static ClassFields getClassFields(Class<?> c) {
+        ClassFields cf = classFields.get(c);
+        if (cf == null) {
+            List<Field> flds = new ArrayList<Field>();
+            for (Field f : c.getFields()) {
+                if (Modifier.isPublic(f.getModifiers()) && (!Modifier.isStatic(f.getModifiers()))) {
+                    flds.add(f);
+                }
+            }
+            cf = new ClassFields();
+            cf.fields = flds.toArray(new Field[flds.size()]);
+            cf.names = new byte[cf.fields.length][];
+            for (int i = 0; i < cf.fields.length; i++) {
+                JsonWriter w = new JsonWriter(new BufferOutputStream());
+                w.writeString(cf.fields[i].getName());
+                w.put(':');
+                cf.names[i] = w.toByteArray();
+            }
+            classFields.put(c, cf);
+        }
+        return cf;
+    }
+
+    private void writeAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            out.buf[out.len++] = (byte) s.charAt(i);
+        }
+    }
+
+    private void writeString(String s) {
+        int n = s.length();
+        ensure(n + 2);   // Grown further below if any characters escaped
+        out.buf[out.len++] = '"';
+        for (int i = 0; i < n; i++) {
+            char ch = s.charAt(i);
+            if ((ch >= 0x20) && (ch < 0x7F) && (ch != '"') && (ch != '\\') && (ch != '/')) {
+                out.buf[out.len++] = (byte) ch;   // Room for rest, one byte each, made below
+                continue;
+            }
+            ensure(n - i + 6);
+            switch (ch) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = (byte) ch;
+                    break;
+                case '\b':
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = 'b';
+                    break;
+                case '\f':
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = 'f';
+                    break;
+                case '\n':
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = 'n';
+                    break;
+                case '\r':
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = 'r';
+                    break;
+                case '\t':
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = 't';
+                    break;
+                default:    // Other control characters and non-ASCII
+                    out.buf[out.len++] = '\\';
+                    out.buf[out.len++] = 'u';
+                    out.buf[out.len++] = HEX[(ch >> 12) & 0xF];
+                    out.buf[out.len++] = HEX[(ch >> 8) & 0xF];
+                    out.buf[out.len++] = HEX[(ch >> 4) & 0xF];
+                    out.buf[out.len++] = HEX[ch & 0xF];
+                    break;
+            }
+        }
+        ensure(1);
+        out.buf[out.len++] = '"';
+    }
+
+    private void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            put(LONG_MIN);
+            return;
+        }
+        ensure(20);
+        if (v < 0) {
+            out.buf[out.len++] = '-';
+            v = -v;
+        }
+        int start = out.len;
+        do {
+            out.buf[out.len++] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v > 0);
+        // Digits written least significant first: reverse them
+        for (int i = start, j = out.len - 1; i < j; i++, j--) {
+            byte t = out.buf[i];
+            out.buf[i] = out.buf[j];
+            out.buf[j] = t;
+        }
+    }
+
+    private void writeDouble(double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            put(NULL);
+            return;
+        }
+        double av = Math.abs(v);
+        if ((av < 1.0E7) && ((av >= 1.0E-3) || (v == 0.0))) {
+            // Find fewest decimal places (up to 3) giving exactly the same value when parsed back
+            for (int dp = 0; dp < SCALE.length; dp++) {
+                long r = Math.round(av * SCALE[dp]);
+                if ((r / SCALE[dp]) == av) {
+                    if ((v < 0) || ((v == 0.0) && ((1.0 / v) < 0))) {
+                        put('-');
+                    }
+                    writeLong(r / (long) SCALE[dp]);
+                    ensure(4);
+                    out.buf[out.len++] = '.';
+                    if (dp == 0) {
+                        out.buf[out.len++] = '0';
+                    }
+                    else {
+                        long frac = r % (long) SCALE[dp];
+                        for (int i = dp - 1; i >= 0; i--) {
+                            out.buf[out.len++] = (byte) ('0' + ((frac / (long) SCALE[i]) % 10));
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+        writeAscii(Double.toString(v));
+    }
+}
@@ -57,6 +57,10 @@ DynMap.prototype = {
 	initfollow: null,
 	
 	missedupdates: 0,
+	updatestream: null,
+	streamfailed: false,
+	playerframes: null,
+	playerbase: null,
 	maxcount: -1,
 	currentcount: 0,
 	
@@ -621,6 +625,13 @@ DynMap.prototype = {
 	update: function() {
 		var me = this;
 
+		// Use server push stream when available: falls back to polling if it can't be opened
+		if (me.options.updatestream && me.options.url.stream && window.EventSource && !me.streamfailed) {
+			if (!me.updatestream) {
+				me.openUpdateStream();
+			}
+			return;
+		}
 		$(me).trigger('worldupdating');
 		$.getJSON(me.formatUrl('update', { world: me.world.name, timestamp: me.lasttimestamp, reqid: me.reqid }), function(update) {
 				me.reqid++; // Bump request ID always
@@ -628,99 +639,9 @@ DynMap.prototype = {
 					setTimeout(function() { me.update(); }, me.options.updaterate);
 					return;
 				}
-				me.alertbox.hide();
-
-				if(update.error) {
-					if(update.error == 'login-required') {
-						me.saveURL();
-						window.location = 'login.html';
-					}
-					else {
-						alert(update.error);
-					}
-					return;
-				}
-				if (me.lasttimestamp == update.timestamp) { // Same as last update?
+				if (me.processUpdate(update)) {
 					setTimeout(function() { me.update(); }, me.options.updaterate);
-					return;
-				}
-
-				if (!me.options.jsonfile) {
-					me.lasttimestamp = update.timestamp;
-				}
-				if(me.options.confighash != update.confighash) {
-				    window.location = me.getLink();
-					return;
 				}
-				me.playerfield.text(me.options['msg-players'] + " [" + update.currentcount + "/" + me.options.maxcount + "]");
-
-				me.servertime = update.servertime;
-				var newserverday = (me.servertime > 23100 || me.servertime < 12900);
-				if(me.serverday != newserverday) {
-					me.serverday = newserverday;
-
-					me.updateBackground();
-					if(me.maptype.options.nightandday) {
-						// Readd map.
-						me.map.removeLayer(me.maptype);
-						me.map.addLayer(me.maptype);
-					}
-				}
-
-				var newplayers = {};
-				$.each(update.players, function(index, playerUpdate) {
-					var acct = playerUpdate.account;
-					var player = me.players[acct];
-					if (player) {
-						me.updatePlayer(player, playerUpdate);
-					} else {
-						me.addPlayer(playerUpdate);
-						if(me.initfollow && (me.initfollow == acct)) {
-							me.followPlayer(me.players[acct]);
-							me.initfollow = null;
-						}
-					}
-					newplayers[acct] = player;
-				});
-				var acct;
-				for(acct in me.players) {
-					var player = me.players[acct];
-					if(!(acct in newplayers)) {
-						me.removePlayer(player);
-					}
-				}
-
-				$.each(update.updates, function(index, update) {
-					// Only handle updates that are actually new.
-					if(!me.options.jsonfile || me.lasttimestamp <= update.timestamp) {
-						$(me).trigger('worldupdate', [ update ]);
-
-						swtch(update.type, {
-							tile: function() {
-								me.onTileUpdated(update.name,update.timestamp);
-							},
-							playerjoin: function() {
-								$(me).trigger('playerjoin', [ update.playerName ]);
-							},
-							playerquit: function() {
-								$(me).trigger('playerquit', [ update.playerName ]);
-							},
-							component: function() {
-								$(me).trigger('component.' + update.ctype, [ update ]);
-							}
-						});
-					}
-					/* remove older messages from chat*/
-					//var timestamp = event.timeStamp;
-					//var divs = $('div[rel]');
-					//divs.filter(function(i){return parseInt(divs[i].attr('rel')) > timestamp+me.options.messagettl;}).remove();
-				});
-
-				$(me).trigger('worldupdated', [ update ]);
-
-				me.lasttimestamp = update.timestamp;
-				me.missedupdates = 0;
-				setTimeout(function() { me.update(); }, me.options.updaterate);
 			}, function(status, statusText, request) {
 				me.lasttimestamp--;	// Avoid same TS URL
 				me.missedupdates++;
@@ -734,6 +655,240 @@ DynMap.prototype = {
 			}
 		);
 	},
+	// Handle update for world: returns false if updates should stop (error, or page reloading)
+	processUpdate: function(update) {
+		var me = this;
+
+		me.alertbox.hide();
+
+		if(update.error) {
+			if(update.error == 'login-required') {
+				me.saveURL();
+				window.location = 'login.html';
+			}
+			else {
+				alert(update.error);
+			}
+			return false;
+		}
+		if (me.lasttimestamp == update.timestamp) { // Same as last update?
+			return true;
+		}
+
+		if (!me.options.jsonfile) {
+			me.lasttimestamp = update.timestamp;
+		}
+		if(me.options.confighash != update.confighash) {
+		    window.location = me.getLink();
+			return false;
+		}
+		me.playerfield.text(me.options['msg-players'] + " [" + update.currentcount + "/" + me.options.maxcount + "]");
+
+		me.servertime = update.servertime;
+		var newserverday = (me.servertime > 23100 || me.servertime < 12900);
+		if(me.serverday != newserverday) {
+			me.serverday = newserverday;
+
+			me.updateBackground();
+			if(me.maptype.options.nightandday) {
+				// Readd map.
+				me.map.removeLayer(me.maptype);
+				me.map.addLayer(me.maptype);
+			}
+		}
+
+		if (update.playerdelta) {
+			update.players = me.applyPlayerDelta(update.playerdelta);
+		}
+		if (update.players) {
+			me.addPlayerFrame(update.timestamp, update.players);
+			me.updatePlayers(update.players);
+		}
+
+		$.each(update.updates, function(index, update) {
+			// Only handle updates that are actually new.
+			if(!me.options.jsonfile || me.lasttimestamp <= update.timestamp) {
+				me.processQueuedUpdate(update);
+			}
+			/* remove older messages from chat*/
+			//var timestamp = event.timeStamp;
+			//var divs = $('div[rel]');
+			//divs.filter(function(i){return parseInt(divs[i].attr('rel')) > timestamp+me.options.messagettl;}).remove();
+		});
+
+		$(me).trigger('worldupdated', [ update ]);
+
+		me.lasttimestamp = update.timestamp;
+		me.missedupdates = 0;
+		return true;
+	},
+	// Handle tile, join, quit or component update
+	processQueuedUpdate: function(update) {
+		var me = this;
+
+		$(me).trigger('worldupdate', [ update ]);
+
+		swtch(update.type, {
+			tile: function() {
+				me.onTileUpdated(update.name,update.timestamp);
+			},
+			playerjoin: function() {
+				$(me).trigger('playerjoin', [ update.playerName ]);
+			},
+			playerquit: function() {
+				$(me).trigger('playerquit', [ update.playerName ]);
+			},
+			component: function() {
+				$(me).trigger('component.' + update.ctype, [ update ]);
+			}
+		});
+	},
+	// Add, update and remove players to match player list of update
+	updatePlayers: function(players) {
+		var me = this;
+
+		var newplayers = {};
+		$.each(players, function(index, playerUpdate) {
+			var acct = playerUpdate.account;
+			var player = me.players[acct];
+			if (player) {
+				me.updatePlayer(player, playerUpdate);
+			} else {
+				me.addPlayer(playerUpdate);
+				if(me.initfollow && (me.initfollow == acct)) {
+					me.followPlayer(me.players[acct]);
+					me.initfollow = null;
+				}
+			}
+			newplayers[acct] = player;
+		});
+		var acct;
+		for(acct in me.players) {
+			var player = me.players[acct];
+			if(!(acct in newplayers)) {
+				me.removePlayer(player);
+			}
+		}
+	},
+	// Rebuild player list from changes since player list of an earlier update: null if we don't have that one
+	applyPlayerDelta: function(delta) {
+		var me = this;
+
+		if (delta.baseplayers) {
+			me.addPlayerFrame(delta.base, delta.baseplayers);
+		}
+		var base = me.playerframes && me.playerframes[delta.base];
+		if (!base) {
+			if (me.options.jsonfile) {
+				me.loadPlayerBase();
+			}
+			return null;
+		}
+		var players = {};
+		var order = [];
+		$.each(base, function(index, p) {
+			players[p.account] = p;
+			order.push(p.account);
+		});
+		$.each(delta.removed, function(index, acct) {
+			delete players[acct];
+		});
+		$.each(delta.players, function(index, p) {
+			if (players[p.account]) {
+				players[p.account] = $.extend({}, players[p.account], p);
+			} else {
+				players[p.account] = p;
+				order.push(p.account);
+			}
+		});
+		var list = [];
+		$.each(order, function(index, acct) {
+			if (players[acct]) {
+				list.push(players[acct]);
+			}
+		});
+		me.playerbase = delta.base;
+		return list;
+	},
+	// Fetch player list of last keyframe, written by the server to its own file, when polling started after it
+	loadPlayerBase: function() {
+		var me = this;
+
+		if (me.playerbaseloading) {
+			return;
+		}
+		me.playerbaseloading = true;
+		$.getJSON(me.formatUrl('update', { world: me.world.name + '_playerbase', timestamp: me.lasttimestamp, reqid: me.reqid }), function(data) {
+			if (data && data.players) {
+				me.addPlayerFrame(data.base, data.players);
+			}
+		}).always(function() {
+			me.playerbaseloading = false;
+		});
+	},
+	// Keep player list of update, as base for later changes
+	addPlayerFrame: function(timestamp, players) {
+		var me = this;
+
+		if (!me.playerframes) {
+			me.playerframes = {};
+		}
+		me.playerframes[timestamp] = players;
+		var times = [];
+		for (var ts in me.playerframes) {
+			times.push(Number(ts));
+		}
+		times.sort(function(a, b) { return a - b; });
+		for (var i = 0; i < times.length - 10; i++) {
+			if (times[i] != me.playerbase) {	// Keep base of changes sent, however old
+				delete me.playerframes[times[i]];
+			}
+		}
+	},
+	// Open server push stream for current world: queued updates arrive as they happen, the rest each update interval
+	openUpdateStream: function() {
+		var me = this;
+		var world = me.world.name;
+		var received = false;
+		var stream = new EventSource(me.formatUrl('stream', { world: world, timestamp: me.lasttimestamp }));
+
+		me.updatestream = stream;
+		stream.addEventListener('update', function(e) {
+			received = true;
+			if (me.world.name != world) {	// World changed: stream new world
+				me.closeUpdateStream();
+				me.update();
+				return;
+			}
+			$(me).trigger('worldupdating');
+			if (!me.processUpdate(JSON.parse(e.data))) {
+				me.closeUpdateStream();
+			}
+		}, false);
+		stream.onmessage = function(e) {
+			received = true;
+			if (me.world.name == world) {
+				me.processQueuedUpdate(JSON.parse(e.data));
+			}
+		};
+		stream.onerror = function() {
+			// Browser reconnects by itself unless the server turned it away
+			if (stream.readyState == 2 /* CLOSED */ && me.updatestream === stream) {
+				me.closeUpdateStream();
+				if (!received) {
+					me.streamfailed = true;	// Not available: poll instead
+				}
+				setTimeout(function() { me.update(); }, me.options.updaterate);
+			}
+		};
+	},
+	closeUpdateStream: function() {
+		var me = this;
+		if (me.updatestream) {
+			me.updatestream.close();
+			me.updatestream = null;
+		}
+	},
 	getTileUrl: function(tileName, always) {
 		var me = this;
 		var tile = me.registeredTiles[tileName];
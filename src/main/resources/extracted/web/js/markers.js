@@ -25,56 +25,157 @@ componentconstructors['markers'] = function(dynmap, configuration) {
 		});
 	}
 			
+	var shardcache = {};	// For each world, marker set shards already loaded: { hash: , set: , timestamp: } by set ID
+	var loadseq = 0;
+	var viewquery = dynmap.options.markerquery && dynmap.options.url.markerquery;	// Load only markers in view
+	var viewloaded = null;	// World, zoom-out level and area of markers loaded by view query
+
+	function loadmarkerset(name, markerset, ts) {
+		if(markerset.showlabels == undefined) markerset.showlabels = configuration.showlabel;
+		var ms = dynmapmarkersets[name];
+		if(!ms) {
+			ms = { id: name, label: markerset.label, hide: markerset.hide, layerprio: markerset.layerprio, minzoom: markerset.minzoom || -1, maxzoom: markerset.maxzoom || -1, 
+				showlabels: markerset.showlabels, markers: {}, areas: {}, lines: {}, circles: {} } ;
+			createMarkerSet(ms, ts);
+		}
+		else {
+			if(ms.label != markerset.label) {
+				ms.label = markerset.label;
+				dynmap.addToLayerSelector(ms.layergroup, ms.label, ms.layerprio || 0);
+			}
+			ms.markers = {};
+			ms.areas = {};
+			ms.lines = {};
+			ms.circles = {};
+			ms.hide = markerset.hide;
+			ms.showlabels = markerset.showlabels;
+			ms.timestamp = ts;
+		}
+		dynmapmarkersets[name] = ms;
+		$.each(markerset.markers, function(mname, marker) {
+			ms.markers[mname] = { label: marker.label, markup: marker.markup, x: marker.x, y: marker.y, z:marker.z,
+				icon: marker.icon, desc: marker.desc, dim: marker.dim, minzoom: marker.minzoom || -1, maxzoom: marker.maxzoom || -1 };
+			createMarker(ms, ms.markers[mname], ts);
+		});
+		$.each(markerset.areas, function(aname, area) {
+			ms.areas[aname] = { label: area.label, markup: area.markup, desc: area.desc, x: area.x, z: area.z,
+				ytop: area.ytop, ybottom: area.ybottom, color: area.color, weight: area.weight, opacity: area.opacity,
+				fillcolor: area.fillcolor, fillopacity: area.fillopacity, minzoom: area.minzoom || -1, maxzoom: area.maxzoom || -1 };
+			createArea(ms, ms.areas[aname], ts);
+		});
+		$.each(markerset.lines, function(lname, line) {
+			ms.lines[lname] = { label: line.label, markup: line.markup, desc: line.desc, x: line.x, y: line.y, z: line.z,
+				color: line.color, weight: line.weight, opacity: line.opacity, minzoom: line.minzoom || -1, maxzoom: line.maxzoom || -1 };
+			createLine(ms, ms.lines[lname], ts);
+		});
+		$.each(markerset.circles, function(cname, circle) {
+			ms.circles[cname] = { label: circle.label, markup: circle.markup, desc: circle.desc, x: circle.x, y: circle.y, z: circle.z,
+				xr: circle.xr, zr: circle.zr, color: circle.color, weight: circle.weight, opacity: circle.opacity,
+				fillcolor: circle.fillcolor, fillopacity: circle.fillopacity, minzoom: circle.minzoom || -1, maxzoom: circle.maxzoom || -1 };
+			createCircle(ms, ms.circles[cname], ts);
+		});
+	}
+
+	// Load shards listed by index, fetching only those changed since last loaded
+	function loadshards(world, index, seq) {
+		var cache = shardcache[world] || {};
+		var newcache = {};
+		var pending = 1;
+		var done = function() {
+			if(--pending > 0) return;
+			shardcache[world] = newcache;
+			if(seq != loadseq) return;	// World changed since
+			$.each(newcache, function(name, shard) {
+				loadmarkerset(name, shard.set, shard.timestamp);
+			});
+			$(dynmap).trigger('markersupdated', [dynmapmarkersets]);
+		};
+		$.each(index.shards, function(name, shard) {
+			var cached = cache[name];
+			if(cached && (cached.hash == shard.hash)) {
+				newcache[name] = cached;
+				return;
+			}
+			pending++;
+			var url = concatURL(dynmap.options.url.markers, '_markers_/marker_'+shard.file+'.json');
+			url += ((url.indexOf('?') >= 0) ? '&' : '?') + 'hash=' + shard.hash;
+			$.getJSON(url, function(data) {
+				newcache[name] = { hash: shard.hash, set: data.set, timestamp: data.timestamp };
+			}).always(done);
+		});
+		done();
+	}
+
+	function canloadview() {
+		return viewquery && dynmap.maptype && dynmap.getProjection().fromLatLngToLocation;
+	}
+
+	// Area of world in view, padded by half the view on each side, and zoom-out level of map
+	function getview() {
+		var proj = dynmap.getProjection();
+		var opts = dynmap.maptype.options;
+		var b = dynmap.map.getBounds();
+		var sw = b.getSouthWest(), ne = b.getNorthEast();
+		var corners = [ sw, ne, new L.LatLng(sw.lat, ne.lng, true), new L.LatLng(ne.lat, sw.lng, true) ];
+		var v = { xmin: Infinity, zmin: Infinity, xmax: -Infinity, zmax: -Infinity };
+		$.each(corners, function(i, c) {
+			$.each([ 0, 256 ], function(j, y) {	// View covers a different area at each height
+				var loc = proj.fromLatLngToLocation(c, y);
+				v.xmin = Math.min(v.xmin, loc.x);
+				v.zmin = Math.min(v.zmin, loc.z);
+				v.xmax = Math.max(v.xmax, loc.x);
+				v.zmax = Math.max(v.zmax, loc.z);
+			});
+		});
+		v.inner = { xmin: v.xmin, zmin: v.zmin, xmax: v.xmax, zmax: v.zmax };
+		var dx = (v.xmax - v.xmin) / 2, dz = (v.zmax - v.zmin) / 2;
+		v.xmin = Math.floor(v.xmin - dx);
+		v.zmin = Math.floor(v.zmin - dz);
+		v.xmax = Math.ceil(v.xmax + dx);
+		v.zmax = Math.ceil(v.zmax + dz);
+		v.zoom = Math.max(0, (opts.maxZoom - dynmap.map.getZoom()) - (opts.mapzoomin || 0));
+		return v;
+	}
+
+	// Load markers in view, unless those loaded already cover it at the same zoom-out level
+	function loadview(world, force) {
+		var v = getview();
+		var l = viewloaded;
+		if(!force && l && (l.world == world) && (l.zoom == v.zoom) && (v.inner.xmin >= l.xmin) && (v.inner.zmin >= l.zmin) &&
+			(v.inner.xmax <= l.xmax) && (v.inner.zmax <= l.zmax)) {
+			return;
+		}
+		viewloaded = { world: world, zoom: v.zoom, xmin: v.xmin, zmin: v.zmin, xmax: v.xmax, zmax: v.zmax };
+		var seq = ++loadseq;
+		var url = dynmap.options.url.markerquery.replace('{world}', encodeURIComponent(world));
+		url += ((url.indexOf('?') >= 0) ? '&' : '?') + 'bbox=' + [ v.xmin, v.zmin, v.xmax, v.zmax ].join(',') + '&zoom=' + v.zoom;
+		$.getJSON(url, function(data) {
+			if((seq != loadseq) || !data.sets) return;	// Superseded, or error
+			removeAllMarkers();
+			$.each(data.sets, function(name, markerset) {
+				loadmarkerset(name, markerset, data.timestamp);
+			});
+			$(dynmap).trigger('markersupdated', [dynmapmarkersets]);
+		});
+	}
+
 	function loadmarkers(world) {
+		if(canloadview()) {
+			loadview(world, true);
+			return;
+		}
 		removeAllMarkers();
 		var url = concatURL(dynmap.options.url.markers, '_markers_/marker_'+world+'.json');
+		var seq = ++loadseq;
 		
 		$.getJSON(url, function(data) {
+			if(data.shards) {	// Index of marker set shards
+				loadshards(world, data, seq);
+				return;
+			}
 			var ts = data.timestamp;
 			$.each(data.sets, function(name, markerset) {
-				if(markerset.showlabels == undefined) markerset.showlabels = configuration.showlabel;
-				var ms = dynmapmarkersets[name];
-				if(!ms) {
-					ms = { id: name, label: markerset.label, hide: markerset.hide, layerprio: markerset.layerprio, minzoom: markerset.minzoom || -1, maxzoom: markerset.maxzoom || -1, 
-						showlabels: markerset.showlabels, markers: {}, areas: {}, lines: {}, circles: {} } ;
-					createMarkerSet(ms, ts);
-				}
-				else {
-					if(ms.label != markerset.label) {
-						ms.label = markerset.label;
-						dynmap.addToLayerSelector(ms.layergroup, ms.label, ms.layerprio || 0);
-					}
-					ms.markers = {};
-					ms.areas = {};
-					ms.lines = {};
-					ms.circles = {};
-					ms.hide = markerset.hide;
-					ms.showlabels = markerset.showlabels;
-					ms.timestamp = ts;
-				}
-				dynmapmarkersets[name] = ms;
-				$.each(markerset.markers, function(mname, marker) {
-					ms.markers[mname] = { label: marker.label, markup: marker.markup, x: marker.x, y: marker.y, z:marker.z,
-						icon: marker.icon, desc: marker.desc, dim: marker.dim, minzoom: marker.minzoom || -1, maxzoom: marker.maxzoom || -1 };
-					createMarker(ms, ms.markers[mname], ts);
-				});
-				$.each(markerset.areas, function(aname, area) {
-					ms.areas[aname] = { label: area.label, markup: area.markup, desc: area.desc, x: area.x, z: area.z,
-						ytop: area.ytop, ybottom: area.ybottom, color: area.color, weight: area.weight, opacity: area.opacity,
-						fillcolor: area.fillcolor, fillopacity: area.fillopacity, minzoom: area.minzoom || -1, maxzoom: area.maxzoom || -1 };
-					createArea(ms, ms.areas[aname], ts);
-				});
-				$.each(markerset.lines, function(lname, line) {
-					ms.lines[lname] = { label: line.label, markup: line.markup, desc: line.desc, x: line.x, y: line.y, z: line.z,
-						color: line.color, weight: line.weight, opacity: line.opacity, minzoom: line.minzoom || -1, maxzoom: line.maxzoom || -1 };
-					createLine(ms, ms.lines[lname], ts);
-				});
-				$.each(markerset.circles, function(cname, circle) {
-					ms.circles[cname] = { label: circle.label, markup: circle.markup, desc: circle.desc, x: circle.x, y: circle.y, z: circle.z,
-						xr: circle.xr, zr: circle.zr, color: circle.color, weight: circle.weight, opacity: circle.opacity,
-						fillcolor: circle.fillcolor, fillopacity: circle.fillopacity, minzoom: circle.minzoom || -1, maxzoom: circle.maxzoom || -1 };
-					createCircle(ms, ms.circles[cname], ts);
-				});
+				loadmarkerset(name, markerset, ts);
 			});
 			
 			$(dynmap).trigger('markersupdated', [dynmapmarkersets]);
@@ -406,6 +507,10 @@ componentconstructors['markers'] = function(dynmap, configuration) {
 				}			
 			}
 		}
+		else if(msg.msg == 'setchanged') {	// Many markers of set changed at once: reload markers
+			loadmarkers(dynmap.world.name);
+			return;
+		}
 		else if(msg.msg == 'setdeleted') {
 			if(dynmapmarkersets[msg.id]) {
 				dynmap.removeFromLayerSelector(dynmapmarkersets[msg.id].layergroup);
@@ -516,6 +621,13 @@ componentconstructors['markers'] = function(dynmap, configuration) {
 	$(dynmap).bind('worldchanged', function(event) {
 		loadmarkers(this.world.name);
 	});
+	// Load markers in view, when view moves outside those loaded (or zoom changes)
+	if(viewquery) {
+		dynmap.map.on('moveend', function() {
+			if(viewloaded && (viewloaded.world == dynmap.world.name) && canloadview())
+				loadview(dynmap.world.name, false);
+		});
+	}
 	
 	loadmarkers(dynmap.world.name);
 };
@@ -78,7 +78,7 @@ else {
 
 $db = new SQLite3($dbfile, SQLITE3_OPEN_READONLY);
 
-$stmt = $db->prepare('SELECT Tiles.Image,Tiles.Format,Tiles.HashCode,Tiles.LastUpdate FROM Maps JOIN Tiles WHERE Maps.WorldID=:wid AND Maps.MapID=:mapid AND Maps.Variant=:var AND Maps.ID=Tiles.MapID AND Tiles.x=:x AND Tiles.y=:y and Tiles.zoom=:zoom');
+$stmt = $db->prepare('SELECT IFNULL(Tiles.Image,TileBlobs.Image),Tiles.Format,Tiles.HashCode,Tiles.LastUpdate FROM Maps JOIN Tiles ON Maps.ID=Tiles.MapID LEFT JOIN TileBlobs ON TileBlobs.Hash=Tiles.ImageHash WHERE Maps.WorldID=:wid AND Maps.MapID=:mapid AND Maps.Variant=:var AND Tiles.x=:x AND Tiles.y=:y and Tiles.zoom=:zoom');
 $stmt->bindValue(':wid', $world, SQLITE3_TEXT);
 $stmt->bindValue(':mapid', $prefix, SQLITE3_TEXT);
 $stmt->bindValue(':var', $variant, SQLITE3_TEXT);
@@ -40,8 +40,12 @@ if(!is_readable($fname)) {
 $useridlc = strtolower($userid);
 $uid = '[' . $useridlc . ']';
 
-if(isset($worldaccess[$world])) {
-    $ss = stristr($worldaccess[$world], $uid);
+$accessworld = $world;
+if(substr($world, -11) == '_playerbase') {
+    $accessworld = substr($world, 0, -11);
+}
+if(isset($worldaccess[$accessworld])) {
+    $ss = stristr($worldaccess[$accessworld], $uid);
 	if($ss === false) {
 	    echo "{ \"error\": \"access-denied\" }";
 		return;